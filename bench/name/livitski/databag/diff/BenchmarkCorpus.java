@@ -0,0 +1,264 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.diff;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Synthetic pair of file versions shared by benchmarks of the
+ * differencing engine. The {@link #kind} parameter selects how the
+ * new version differs from the old one, the {@link #sizeMB} parameter
+ * sets the size of the old version in megabytes. Both versions are
+ * generated from a fixed seed, so that repeated runs measure the same
+ * data. Deltas between the versions are computed once per trial and
+ * stored in temporary files along with the versions.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkCorpus
+{
+ /**
+  * Describes how the new version of a file is derived from the old one.
+  */
+ public enum Kind
+ {
+  /** The new version is a copy of the old version. */
+  IDENTICAL,
+  /** Random data is appended to a copy of the old version. */
+  APPENDED,
+  /** Blocks of random data are inserted at several positions. */
+  INSERTED,
+  /** Blocks of the old version are reordered. */
+  SHUFFLED,
+  /** The new version consists of unrelated random data. */
+  RANDOM
+ }
+
+ /** Size of the old version of the file, in megabytes. */
+ @Param({ "1", "16", "256", "1024" })
+ public int sizeMB;
+
+ /** Selects the way the new version differs from the old one. */
+ @Param({ "IDENTICAL", "APPENDED", "INSERTED", "SHUFFLED", "RANDOM" })
+ public Kind kind;
+
+ /** The old version of the file. */
+ public File oldFile;
+ /** The new version of the file. */
+ public File newFile;
+ /** Deltas between the versions indexed by {@link Delta.Type#ordinal()}. */
+ public File[] deltaFiles;
+
+ @Setup(Level.Trial)
+ public void generate()
+ 	throws IOException
+ {
+  long size = (long)sizeMB << 20;
+  Random random = new Random(SEED + size);
+  oldFile = File.createTempFile("bench", ".old");
+  newFile = File.createTempFile("bench", ".new");
+  writeRandom(oldFile, size, random);
+  switch (kind)
+  {
+  case IDENTICAL:
+   copy(oldFile, 0L, size, newFile, false);
+   break;
+  case APPENDED:
+   copy(oldFile, 0L, size, newFile, false);
+   writeRandom(newFile, size / 10, random);
+   break;
+  case INSERTED:
+   for (long pos = 0L, step = size / INSERTIONS; size > pos; pos += step)
+   {
+    copy(oldFile, pos, step, newFile, 0L < pos);
+    writeRandom(newFile, 1 + random.nextInt(BLOCK_SIZE), random);
+   }
+   break;
+  case SHUFFLED:
+   int count = (int)((size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+   int[] order = new int[count];
+   for (int i = 0; i < count; i++)
+    order[i] = i;
+   for (int i = count; 1 < i; i--)
+   {
+    int j = random.nextInt(i);
+    int temp = order[i - 1];
+    order[i - 1] = order[j];
+    order[j] = temp;
+   }
+   for (int i = 0; i < count; i++)
+    copy(oldFile, (long)order[i] * BLOCK_SIZE, BLOCK_SIZE, newFile, 0 < i);
+   break;
+  case RANDOM:
+   writeRandom(newFile, size, random);
+   break;
+  default:
+   throw new IllegalArgumentException("Unsupported corpus kind: " + kind);
+  }
+  deltaFiles = new File[Delta.Type.values().length];
+  OutputStream[] deltas = new OutputStream[deltaFiles.length];
+  InputStream in1 = null, in2 = null;
+  try
+  {
+   Differencer diff = new Differencer();
+   for (Delta.Type t : Delta.Type.values())
+   {
+    deltaFiles[t.ordinal()] = File.createTempFile("bench", '.' + t.name().toLowerCase());
+    deltas[t.ordinal()] = new FileOutputStream(deltaFiles[t.ordinal()]);
+    diff.setDelta(t, new ByteOutputStream(deltas[t.ordinal()]));
+   }
+   int bsize = diff.estimateLimits(oldFile.length(), newFile.length());
+   diff.setSizeLimit(0L);
+   in1 = new FileInputStream(oldFile);
+   in2 = new FileInputStream(newFile);
+   diff.setInput1(new ByteInputStream(in1, bsize));
+   diff.setInput2(new ByteInputStream(in2, bsize));
+   diff.compare();
+  }
+  finally
+  {
+   for (OutputStream out : deltas)
+    if (null != out)
+     out.close();
+   if (null != in1)
+    in1.close();
+   if (null != in2)
+    in2.close();
+  }
+ }
+
+ @TearDown(Level.Trial)
+ public void delete()
+ {
+  for (File file : new File[] { oldFile, newFile })
+   if (null != file)
+    file.delete();
+  if (null != deltaFiles)
+   for (File file : deltaFiles)
+    if (null != file)
+     file.delete();
+ }
+
+ /**
+  * Reads a link that restores one version of the file from the other.
+  * @param direction {@link Delta.Type#FORWARD} to restore the new version
+  * from the old one, {@link Delta.Type#REVERSE} for the opposite
+  * @param streams receives the streams opened by this method, which
+  * the caller must close
+  */
+ public DeltaLink readLink(Delta.Type direction, InputStream[] streams)
+ 	throws IOException, DeltaFormatException
+ {
+  streams[0] = new FileInputStream(deltaFiles[Delta.Type.COMMON.ordinal()]);
+  streams[1] = new FileInputStream(deltaFiles[direction.ordinal()]);
+  return DeltaLink.read(new ByteInputStream(streams[0]), new ByteInputStream(streams[1]));
+ }
+
+ /** Seed of the pseudo-random generator that produces corpus data. */
+ public static final long SEED = 0x5EEDL;
+
+ /** Size of blocks inserted or reordered in the new version. */
+ public static final int BLOCK_SIZE = 65536;
+
+ /** Number of blocks inserted into the {@link Kind#INSERTED} version. */
+ public static final int INSERTIONS = 16;
+
+ /**
+  * Output stream that counts and discards the data written to it.
+  */
+ public static class NullSink extends OutputStream
+ {
+  public long getCount()
+  {
+   return count;
+  }
+
+  @Override
+  public void write(int b)
+  {
+   count++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len)
+  {
+   count += len;
+  }
+
+  private long count;
+ }
+
+ private static void writeRandom(File file, long size, Random random)
+ 	throws IOException
+ {
+  OutputStream out = new FileOutputStream(file, true);
+  try
+  {
+   byte[] chunk = new byte[1 << 20];
+   for (long written = 0L; size > written; written += chunk.length)
+   {
+    random.nextBytes(chunk);
+    out.write(chunk, 0, size - written < chunk.length ? (int)(size - written) : chunk.length);
+   }
+  }
+  finally
+  {
+   out.close();
+  }
+ }
+
+ private static void copy(File from, long offset, long length, File to, boolean append)
+ 	throws IOException
+ {
+  RandomAccessFile in = new RandomAccessFile(from, "r");
+  OutputStream out = new FileOutputStream(to, append);
+  try
+  {
+   in.seek(offset);
+   byte[] chunk = new byte[1 << 20];
+   while (0L < length)
+   {
+    int read = in.read(chunk, 0, length < chunk.length ? (int)length : chunk.length);
+    if (0 > read)
+     break;
+    out.write(chunk, 0, read);
+    length -= read;
+   }
+  }
+  finally
+  {
+   out.close();
+   in.close();
+  }
+ }
+}
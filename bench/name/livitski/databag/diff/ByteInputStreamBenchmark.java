@@ -0,0 +1,130 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.diff;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the basic operations of {@link ByteInputStream} over
+ * data held in memory, so that the results reflect the overhead
+ * of the ring buffer rather than that of the file system.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ByteInputStreamBenchmark
+{
+ /** Size of the ring buffer. */
+ @Param({ "16385", "1048576" })
+ public int bufferSize;
+
+ @Setup
+ public void generate()
+ {
+  data = new byte[DATA_SIZE];
+  new Random(BenchmarkCorpus.SEED).nextBytes(data);
+ }
+
+ @Benchmark
+ public int readByte()
+ 	throws IOException
+ {
+  ByteInputStream in = open();
+  int sum = 0;
+  while (in.hasData())
+   sum += in.readByte();
+  return sum;
+ }
+
+ @Benchmark
+ public int readArray()
+ 	throws IOException
+ {
+  ByteInputStream in = open();
+  byte[] buf = new byte[READ_SIZE];
+  int sum = 0;
+  for (int read; 0 <= (read = in.read(buf));)
+   sum += read + buf[0];
+  return sum;
+ }
+
+ @Benchmark
+ public int skip()
+ 	throws IOException
+ {
+  ByteInputStream in = open();
+  int sum = 0;
+  while (in.hasData())
+  {
+   sum += in.readByte();
+   in.skipBytes(READ_SIZE);
+  }
+  return sum;
+ }
+
+ @Benchmark
+ public int markReset()
+ 	throws IOException
+ {
+  ByteInputStream in = open();
+  int sum = 0;
+  int span = bufferSize - 2 < READ_SIZE ? bufferSize - 2 : READ_SIZE;
+  while (in.hasData())
+  {
+   in.mark(0);
+   for (int i = 0; i < span && in.hasData(); i++)
+    sum += in.readByte();
+   in.reset();
+   sum += in.skipBytes(span);
+  }
+  return sum;
+ }
+
+ /** Size of the data read per invocation. */
+ public static final int DATA_SIZE = 1 << 24;
+
+ /** Number of bytes read, skipped or repeated at once. */
+ public static final int READ_SIZE = 4096;
+
+ private ByteInputStream open()
+ {
+  return new ByteInputStream(new ByteArrayInputStream(data), bufferSize);
+ }
+
+ private byte[] data;
+}
@@ -0,0 +1,72 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.diff;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time it takes {@link CumulativeDelta#addPriorDelta}
+ * to accumulate a two-link delta chain that leads from the new version
+ * in a {@link BenchmarkCorpus} to the old version and back.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CumulativeDeltaBenchmark
+{
+ @Benchmark
+ public long addPriorDelta(BenchmarkCorpus corpus)
+ 	throws IOException, DeltaFormatException
+ {
+  CumulativeDelta chain = new CumulativeDelta();
+  // deltas are added in the reverse order of their application
+  add(chain, corpus, Delta.Type.FORWARD);
+  add(chain, corpus, Delta.Type.REVERSE);
+  return chain.getEstimatedSize();
+ }
+
+ private static void add(CumulativeDelta chain, BenchmarkCorpus corpus, Delta.Type direction)
+ 	throws IOException, DeltaFormatException
+ {
+  InputStream[] deltas = new InputStream[2];
+  try
+  {
+   chain.addPriorDelta(corpus.readLink(direction, deltas));
+  }
+  finally
+  {
+   for (InputStream delta : deltas)
+    if (null != delta)
+     delta.close();
+  }
+ }
+}
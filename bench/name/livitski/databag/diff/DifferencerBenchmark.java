@@ -0,0 +1,70 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.diff;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time it takes {@link Differencer#compare()} to build
+ * deltas between the versions in a {@link BenchmarkCorpus}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DifferencerBenchmark
+{
+ @Benchmark
+ public long compare(BenchmarkCorpus corpus)
+ 	throws IOException
+ {
+  Differencer diff = new Differencer();
+  BenchmarkCorpus.NullSink sink = new BenchmarkCorpus.NullSink();
+  for (Delta.Type t : Delta.Type.values())
+   diff.setDelta(t, new ByteOutputStream(sink));
+  int bsize = diff.estimateLimits(corpus.oldFile.length(), corpus.newFile.length());
+  diff.setSizeLimit(0L);
+  InputStream in1 = new FileInputStream(corpus.oldFile);
+  InputStream in2 = new FileInputStream(corpus.newFile);
+  try
+  {
+   diff.setInput1(new ByteInputStream(in1, bsize));
+   diff.setInput2(new ByteInputStream(in2, bsize));
+   return diff.compare().getDeltaSizeTotal();
+  }
+  finally
+  {
+   in1.close();
+   in2.close();
+  }
+ }
+}
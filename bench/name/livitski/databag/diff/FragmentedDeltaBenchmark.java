@@ -0,0 +1,177 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.diff;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time it takes {@link CumulativeDelta#addPriorDelta}
+ * to accumulate a chain of synthetic deltas with many small fragments.
+ * Each delta alternates common fragments with one-byte directional
+ * fragments, and fragments of adjacent deltas overlap, so that
+ * the cumulative delta has about twice as many fragments as each link.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class FragmentedDeltaBenchmark
+{
+ @Benchmark
+ public long addPriorDelta(Chain chain)
+ 	throws IOException, DeltaFormatException
+ {
+  CumulativeDelta delta = new CumulativeDelta();
+  try
+  {
+   // deltas are added in the reverse order of their application
+   for (int i = chain.links.length; 0 < i--;)
+    delta.addPriorDelta(chain.read(i));
+   return delta.getEstimatedSize();
+  }
+  finally
+  {
+   delta.close();
+  }
+ }
+
+ /**
+  * Serialized links of the delta chain, generated once per trial.
+  */
+ @State(Scope.Benchmark)
+ public static class Chain
+ {
+  /** Number of fragments in each link. */
+  @Param({ "1000000" })
+  public int fragments;
+
+  /** Tells whether the last link moves blocks of data around. */
+  @Param({ "false", "true" })
+  public boolean moves;
+
+  @Setup
+  public void generate()
+  	throws IOException
+  {
+   links = new byte[][][] {
+     fragmented(0),
+     fragmented(STEP / 2),
+     moves ? shuffled() : fragmented(STEP / 4)
+   };
+  }
+
+  EffectiveDelta read(int index)
+  	throws IOException, DeltaFormatException
+  {
+   byte[][] link = links[index];
+   return DeltaLink.read(
+     new ByteInputStream(new ByteArrayInputStream(link[0])),
+     new ByteInputStream(new ByteArrayInputStream(link[1])));
+  }
+
+  /**
+   * Generates a delta that replaces the last byte of each block
+   * with a block size of {@link #STEP}, blocks starting at
+   * an offset of <code>phase</code>.
+   */
+  private byte[][] fragmented(int phase)
+  	throws IOException
+  {
+   Writers out = new Writers();
+   long pos = 0L;
+   int blocks = fragments / 2;
+   if (0 < phase)
+   {
+    out.common.writeFragment(0L, 0L, phase);
+    pos = phase;
+    blocks--;
+   }
+   for (int i = 0; blocks > i; i++)
+   {
+    out.common.writeFragment(pos, pos, STEP - 1);
+    pos += STEP - 1;
+    out.forward.writeFragment(pos, DATA, 0, 1);
+    pos++;
+   }
+   if (0 < phase)
+    out.common.writeFragment(pos, pos, STEP - phase);
+   return out.terminate();
+  }
+
+  /**
+   * Generates a delta that reverses the order of blocks
+   * and replaces the last byte of each block.
+   */
+  private byte[][] shuffled()
+  	throws IOException
+  {
+   Writers out = new Writers();
+   out.common.setMovesAllowed(true);
+   int blocks = fragments / 2;
+   long pos = 0L;
+   for (int i = 0; blocks > i; i++)
+   {
+    out.common.writeFragment((long)(blocks - 1 - i) * STEP, pos, STEP - 1);
+    pos += STEP - 1;
+    out.forward.writeFragment(pos, DATA, 0, 1);
+    pos++;
+   }
+   return out.terminate();
+  }
+
+  private static class Writers
+  {
+   byte[][] terminate()
+   	throws IOException
+   {
+    common.terminate();
+    forward.terminate();
+    return new byte[][] { commonBytes.toByteArray(), forwardBytes.toByteArray() };
+   }
+
+   final ByteArrayOutputStream commonBytes = new ByteArrayOutputStream();
+   final ByteArrayOutputStream forwardBytes = new ByteArrayOutputStream();
+   final CommonDeltaWriter common = new CommonDeltaWriter(new ByteOutputStream(commonBytes));
+   final DirectionalDeltaWriter forward
+   	= new DirectionalDeltaWriter(new ByteOutputStream(forwardBytes), Delta.Type.FORWARD);
+  }
+
+  private static final int STEP = 16;
+  private static final byte[] DATA = { 1 };
+
+  private byte[][][] links;
+ }
+}
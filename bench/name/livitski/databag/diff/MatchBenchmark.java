@@ -0,0 +1,160 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.diff;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures throughput of the {@link Differencer} on long common runs.
+ * Generates a file of random data and either its identical copy or
+ * a copy with {@link #CHANGES} scattered changes, then compares the
+ * original with the copy reading the copy through both
+ * {@link ByteInputStream} and {@link MappedByteSource}. Data files
+ * are created in the system's temporary directory, so make sure
+ * there is enough space for two files of {@link #sizeMB} megabytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class MatchBenchmark
+{
+ /** Size of the generated files, in megabytes. */
+ @Param({ "256", "2048" })
+ public int sizeMB;
+
+ /** Whether the copy has {@link #CHANGES} changed bytes. */
+ @Param({ "false", "true" })
+ public boolean changed;
+
+ @Setup(Level.Trial)
+ public void generate()
+ 	throws IOException
+ {
+  long size = (long)sizeMB << 20;
+  original = File.createTempFile("bench", ".orig");
+  copy = File.createTempFile("bench", changed ? ".changed" : ".same");
+  Random random = new Random(BenchmarkCorpus.SEED + size);
+  byte[] chunk = new byte[1 << 20];
+  RandomAccessFile[] out = new RandomAccessFile[2];
+  try
+  {
+   out[0] = new RandomAccessFile(original, "rw");
+   out[1] = new RandomAccessFile(copy, "rw");
+   for (long written = 0L; size > written; written += chunk.length)
+   {
+    random.nextBytes(chunk);
+    int length = size - written < chunk.length ? (int)(size - written) : chunk.length;
+    for (RandomAccessFile file : out)
+     file.write(chunk, 0, length);
+   }
+   for (int i = 1; changed && CHANGES >= i; i++)
+   {
+    long offset = size / (CHANGES + 1) * i;
+    out[1].seek(offset);
+    int val = out[1].read();
+    out[1].seek(offset);
+    out[1].write(~val);
+   }
+  }
+  finally
+  {
+   for (RandomAccessFile file : out)
+    if (null != file)
+     file.close();
+  }
+ }
+
+ @TearDown(Level.Trial)
+ public void delete()
+ {
+  for (File file : new File[] { original, copy })
+   if (null != file)
+    file.delete();
+ }
+
+ @Benchmark
+ public long stream()
+ 	throws IOException
+ {
+  return compare(false);
+ }
+
+ @Benchmark
+ public long mapped()
+ 	throws IOException
+ {
+  return compare(true);
+ }
+
+ /** Number of bytes changed in the near-identical copy. */
+ public static final int CHANGES = 16;
+
+ private long compare(boolean mapped)
+ 	throws IOException
+ {
+  Differencer diff = new Differencer();
+  BenchmarkCorpus.NullSink sink = new BenchmarkCorpus.NullSink();
+  for (Delta.Type t : Delta.Type.values())
+   diff.setDelta(t, new ByteOutputStream(sink));
+  int bsize = diff.estimateLimits(original.length(), copy.length());
+  diff.setSizeLimit(0L);
+  InputStream in1 = new FileInputStream(original);
+  RandomAccessFile in2 = new RandomAccessFile(copy, "r");
+  try
+  {
+   diff.setInput1(new ByteInputStream(in1, bsize));
+   if (mapped)
+    diff.setInput2(new MappedByteSource(in2.getChannel(), bsize));
+   else
+    diff.setInput2(new ByteInputStream(new FileInputStream(in2.getFD()), bsize));
+   return diff.compare().getDeltaSizeTotal();
+  }
+  finally
+  {
+   in1.close();
+   in2.close();
+  }
+ }
+
+ private File original, copy;
+}
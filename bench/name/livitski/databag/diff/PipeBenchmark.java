@@ -0,0 +1,135 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.diff;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the throughput of {@link BlockPipe} with that of piped
+ * streams, which it replaces in the application layer. A writer
+ * thread sends {@link #TRANSFER_SIZE} bytes in pieces of
+ * {@link #writeSize} bytes, while the benchmark thread reads them
+ * with a buffer of {@link #READ_BUFFER_SIZE} bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PipeBenchmark
+{
+ /**
+  * Number of bytes written at a time. Small writes resemble
+  * delta headers, large ones resemble copied data.
+  */
+ @Param({"16", "4096"})
+ public int writeSize;
+
+ @Setup
+ public void setUp()
+ {
+  data = new byte[writeSize];
+  new Random(BenchmarkCorpus.SEED).nextBytes(data);
+  writer = Executors.newSingleThreadExecutor();
+ }
+
+ @TearDown
+ public void tearDown()
+ {
+  writer.shutdownNow();
+ }
+
+ @Benchmark
+ public long pipedStreams()
+ 	throws IOException, InterruptedException, ExecutionException
+ {
+  PipedInputStream in = new PipedInputStream();
+  return transfer(new PipedOutputStream(in), in);
+ }
+
+ @Benchmark
+ public long blockPipe()
+ 	throws IOException, InterruptedException, ExecutionException
+ {
+  BlockPipe pipe = new BlockPipe();
+  return transfer(pipe.getSink(), pipe.getSource());
+ }
+
+ /** Number of bytes sent through a pipe per invocation. */
+ public static final long TRANSFER_SIZE = 16L << 20;
+
+ /** Size of the buffer used to read from a pipe. */
+ public static final int READ_BUFFER_SIZE = 4096;
+
+ private long transfer(final OutputStream out, InputStream in)
+ 	throws IOException, InterruptedException, ExecutionException
+ {
+  Future<Object> status = writer.submit(new Callable<Object>() {
+   public Object call() throws IOException
+   {
+    try
+    {
+     for (long count = 0L; TRANSFER_SIZE > count; count += data.length)
+      out.write(data, 0, data.length);
+     return null;
+    }
+    finally
+    {
+     out.close();
+    }
+   }
+  });
+  long count = 0L;
+  byte[] buffer = new byte[READ_BUFFER_SIZE];
+  for (int read; 0 <= (read = in.read(buffer));)
+   count += read;
+  in.close();
+  status.get();
+  return count;
+ }
+
+ private byte[] data;
+ private ExecutorService writer;
+}
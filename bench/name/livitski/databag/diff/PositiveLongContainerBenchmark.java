@@ -0,0 +1,93 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.diff;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures encoding and decoding of offsets and lengths with
+ * {@link PositiveLongContainer}. Values are spread evenly across
+ * encoded sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PositiveLongContainerBenchmark
+{
+ @Setup
+ public void generate()
+ 	throws IOException
+ {
+  Random random = new Random(BenchmarkCorpus.SEED);
+  values = new PositiveLongContainer[COUNT];
+  for (int i = 0; i < COUNT; i++)
+   values[i] = new PositiveLongContainer((random.nextLong() >>> 1) >>> random.nextInt(Long.SIZE - 1));
+  buffer = new ByteArrayOutputStream();
+  encode();
+  encoded = buffer.toByteArray();
+ }
+
+ @Benchmark
+ public int encode()
+ 	throws IOException
+ {
+  buffer.reset();
+  ByteOutputStream out = new ByteOutputStream(buffer);
+  for (PositiveLongContainer value : values)
+   value.encode(out);
+  return buffer.size();
+ }
+
+ @Benchmark
+ public long decode()
+ 	throws IOException, OffsetLengthDecodeException
+ {
+  ByteInputStream in = new ByteInputStream(new ByteArrayInputStream(encoded));
+  long sum = 0L;
+  for (int i = 0; i < COUNT; i++)
+   sum += PositiveLongContainer.decode(in).longValue();
+  return sum;
+ }
+
+ /** Number of values encoded or decoded per invocation. */
+ public static final int COUNT = 65536;
+
+ private PositiveLongContainer[] values;
+ private ByteArrayOutputStream buffer;
+ private byte[] encoded;
+}
@@ -0,0 +1,70 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.diff;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time it takes {@link Restorer#restore(ByteSink)} to
+ * rebuild the new version in a {@link BenchmarkCorpus} from the old
+ * version and forward deltas.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RestorerBenchmark
+{
+ @Benchmark
+ public long restore(BenchmarkCorpus corpus)
+ 	throws IOException, DeltaFormatException
+ {
+  InputStream[] deltas = new InputStream[2];
+  InputStream source = new FileInputStream(corpus.oldFile);
+  try
+  {
+   Restorer worker = new Restorer();
+   worker.setDelta(corpus.readLink(Delta.Type.FORWARD, deltas));
+   worker.setSource(new ByteInputStream(source));
+   BenchmarkCorpus.NullSink sink = new BenchmarkCorpus.NullSink();
+   worker.restore(new ByteOutputStream(sink));
+   return sink.getCount();
+  }
+  finally
+  {
+   source.close();
+   for (InputStream delta : deltas)
+    if (null != delta)
+     delta.close();
+  }
+ }
+}
@@ -33,6 +33,7 @@ import name.livitski.databag.app.filter.FilterSpec;
 import name.livitski.databag.app.filter.PathFilter;
 import name.livitski.databag.app.filter.PathMatcher;
 import name.livitski.databag.app.sync.ImageBuilder;
+import name.livitski.databag.app.sync.ImageCache;
 import name.livitski.databag.db.DBException;
 import name.livitski.databag.db.Manager;
 import name.livitski.databag.db.NoSuchRecordException;
@@ -191,13 +192,45 @@ public abstract class ConfigurableService extends Logging implements Closeable
   * additional configuration. 
   */
  protected ImageBuilder getImageBuilder()
+ 	throws DBException
  {
   if (null == imageBuilder)
-   imageBuilder = new ImageBuilder(db);
+   imageBuilder = newImageBuilder();
   // TODO: share imageBuilder throughout the application
   return imageBuilder;
  }
 
+ /**
+  * Creates an instance of {@link ImageBuilder} configured for use
+  * with this object. Unlike {@link #getImageBuilder()}, this method
+  * returns a new instance on each call, which the caller must
+  * {@link ImageBuilder#close() close} when done.
+  */
+ protected ImageBuilder newImageBuilder()
+ 	throws DBException
+ {
+  return newImageBuilder(db);
+ }
+
+ /**
+  * Creates an instance of {@link ImageBuilder} that reads a specific
+  * database manager, such as a {@link Manager#acquireReader() reader}
+  * of this object's database, and is otherwise configured as with
+  * {@link #newImageBuilder()}.
+  */
+ protected ImageBuilder newImageBuilder(Manager db)
+ 	throws DBException
+ {
+  ImageBuilder builder = new ImageBuilder(db);
+  builder.setChunkingThreshold(config.getParameterValue(Configuration.CHUNKING_THRESHOLD));
+  Long cacheSize = config.getParameterValue(Configuration.IMAGE_CACHE_SIZE);
+  // cached images are not encrypted
+  if (null != cacheSize && 0L < cacheSize && !db.isEncryptionEnabled())
+   builder.setImageCache(
+     new ImageCache(new File(db.getLocation(), ImageCache.DIRECTORY_NAME), cacheSize));
+  return builder;
+ }
+
  protected Manager getDb()
  {
   return db;
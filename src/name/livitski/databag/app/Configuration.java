@@ -38,18 +38,42 @@ public class Configuration
  /** Denotes the {@link AllowedTimestampDiscrepancy} parameter. */
  public static final AllowedTimestampDiscrepancy ALLOWED_TIMESTAMP_DISCREPANCY = new AllowedTimestampDiscrepancy();
 
+ /** Denotes the {@link ChunkingThreshold} parameter. */
+ public static final ChunkingThreshold CHUNKING_THRESHOLD = new ChunkingThreshold();
+
  /** Denotes the {@link CumulativeDeltaSize} parameter. */
  public static final CumulativeDeltaSize CUMULATIVE_DELTA_SIZE = new CumulativeDeltaSize();
 
  /** Denotes the {@link DeltaChainSize} parameter. */
  public static final DeltaChainSize DELTA_CHAIN_SIZE = new DeltaChainSize();
 
+ /** Denotes the {@link KeyframeInterval} parameter. */
+ public static final KeyframeInterval KEYFRAME_INTERVAL = new KeyframeInterval();
+
+ /** Denotes the {@link KeyframeChainBytes} parameter. */
+ public static final KeyframeChainBytes KEYFRAME_CHAIN_BYTES = new KeyframeChainBytes();
+
  /** Denotes the {@link DefaultAction} parameter. */
  public static final DefaultAction DEFAULT_ACTION = new DefaultAction();
 
+ /** Denotes the {@link ImageCacheSize} parameter. */
+ public static final ImageCacheSize IMAGE_CACHE_SIZE = new ImageCacheSize();
+
  /** Denotes the {@link SelectedFilter} parameter. */
  public static final SelectedFilter SELECTED_FILTER = new SelectedFilter();
 
+ /** Denotes the {@link SyncThreads} parameter. */
+ public static final SyncThreads SYNC_THREADS = new SyncThreads();
+
+ /** Denotes the {@link StreamingSync} parameter. */
+ public static final StreamingSync STREAMING_SYNC = new StreamingSync();
+
+ /** Denotes the {@link NewFileBatchSize} parameter. */
+ public static final NewFileBatchSize NEW_FILE_BATCH_SIZE = new NewFileBatchSize();
+
+ /** Denotes the {@link NewFileBatchBytes} parameter. */
+ public static final NewFileBatchBytes NEW_FILE_BATCH_BYTES = new NewFileBatchBytes();
+
  /**
   * Returns a parameter value if it has been set, or
   * its {@link Parameter#getDefaultValue() default value}
@@ -204,6 +228,56 @@ public class Configuration
   }
  }
 
+ /**
+  * Limits the number of deltas between a new version of a file and the
+  * nearest stored image of that file. When adding a delta-compressed
+  * version would make restoring it apply more deltas than this
+  * limit, the new image is stored in its entirety, which bounds the
+  * time it takes to restore any version. The same limit is the default
+  * target of the maintenance operation that stores images of existing
+  * versions. By default, this parameter is <code>null</code>, which
+  * means there is no such limit. A non-positive value also removes
+  * the limit.
+  * @see name.livitski.databag.app.maint.Cleaner#addKeyframes()
+  */
+ protected static final class KeyframeInterval extends Parameter<Integer>
+ {
+  @Override
+  public Integer getDefaultValue()
+  {
+   return null;
+  }
+
+  @Override
+  public Class<Integer> getType()
+  {
+   return Integer.class;
+  }
+ }
+
+ /**
+  * Limits the total size, in bytes, of the deltas between a new version
+  * of a file and the nearest stored image of that file. Unlike the
+  * {@link DeltaChainSize}, this limit does not depend on the file size.
+  * When adding a delta-compressed version would exceed either limit,
+  * the new image is stored in its entirety. By default, this parameter
+  * is <code>null</code>, which means there is no such limit.
+  */
+ protected static final class KeyframeChainBytes extends Parameter<Long>
+ {
+  @Override
+  public Long getDefaultValue()
+  {
+   return null;
+  }
+
+  @Override
+  public Class<Long> getType()
+  {
+   return Long.class;
+  }
+ }
+
  /**
   * Specifies the size boundary for a cumulative delta stored in memory.
   * The boundary is set as a fraction of current JVM's maximum heap size.
@@ -267,13 +341,169 @@ public class Configuration
   }
  }
 
+ /**
+  * Sets the number of worker threads that read local files when
+  * synchronizing multiple files. Database updates are always applied
+  * by a single thread in the same order regardless of this setting.
+  * The same number of threads restores multiple files into a directory
+  * outside the current replica.
+  * Default value of this parameter is <code>1</code>, which means
+  * that files are processed one at a time.
+  * @see name.livitski.databag.app.sync.SyncPipeline
+  * @see name.livitski.databag.app.sync.RestoreService#restore(name.livitski.databag.app.filter.PathMatcher, java.sql.Timestamp, java.io.File)
+  */
+ protected static final class SyncThreads extends Parameter<Integer>
+ {
+  @Override
+  public Integer getDefaultValue()
+  {
+   return 1;
+  }
+
+  @Override
+  public Class<Integer> getType()
+  {
+   return Integer.class;
+  }
+ }
+
+ /**
+  * Selects the algorithm used to compute differences between versions
+  * of a file. Files with either the new or the previous version of at
+  * least this many bytes are compared using
+  * {@link name.livitski.databag.diff.ChunkingDifferencer content-defined chunking},
+  * which finds matching data regardless of the distance between changes
+  * and is better suited for large binary files. Other files are compared
+  * using {@link name.livitski.databag.diff.Differencer}.
+  * By default, this parameter is <code>null</code> and content-defined
+  * chunking is not used.
+  */
+ protected static final class ChunkingThreshold extends Parameter<Long>
+ {
+  @Override
+  public Long getDefaultValue()
+  {
+   return null;
+  }
+
+  @Override
+  public Class<Long> getType()
+  {
+   return Long.class;
+  }
+ }
+
+ /**
+  * Limits the total size, in bytes, of version images that are kept
+  * in the {@link name.livitski.databag.app.sync.ImageCache image cache}
+  * after being reconstructed from delta chains. The cache is stored
+  * in the bag's directory and is not used with encrypted bags.
+  * A <code>null</code> or non-positive value disables the cache.
+  * Default value of this parameter is 64 MiB.
+  */
+ protected static final class ImageCacheSize extends Parameter<Long>
+ {
+  @Override
+  public Long getDefaultValue()
+  {
+   return 64L << 20;
+  }
+
+  @Override
+  public Class<Long> getType()
+  {
+   return Long.class;
+  }
+ }
+
+ /**
+  * Enables the streaming mode of synchronizing a replica. In that mode,
+  * {@link name.livitski.databag.app.sync.SyncService} walks the local
+  * directory tree and the tree of names on the shared medium together,
+  * one directory at a time, instead of collecting all local file names
+  * and resolving the names of all shared files up front. Memory use then
+  * depends on the size of directories rather than the number of files,
+  * and known files are synchronized while the walk goes on.
+  * Default value of this parameter is <code>false</code>.
+  */
+ protected static final class StreamingSync extends Parameter<Boolean>
+ {
+  @Override
+  public Boolean getDefaultValue()
+  {
+   return false;
+  }
+
+  @Override
+  public Class<Boolean> getType()
+  {
+   return Boolean.class;
+  }
+ }
+
+ /**
+  * Limits the number of new files that synchronization adds to the
+  * shared storage within one database transaction. Grouping new files
+  * saves the cost of committing a transaction for each of them, which
+  * dominates when many small files are added. Each file is still added
+  * within a nested transaction of its own, so that a failure undoes
+  * only the changes made for that file. Default value of this parameter
+  * is <code>100</code>. Value of <code>1</code> commits each file
+  * separately.
+  * @see NewFileBatchBytes
+  */
+ protected static final class NewFileBatchSize extends Parameter<Integer>
+ {
+  @Override
+  public Integer getDefaultValue()
+  {
+   return 100;
+  }
+
+  @Override
+  public Class<Integer> getType()
+  {
+   return Integer.class;
+  }
+ }
+
+ /**
+  * Limits the total size, in bytes, of new files that synchronization
+  * adds to the shared storage within one database transaction. The
+  * transaction is committed once this limit or the
+  * {@link NewFileBatchSize number of files} is reached. Default value
+  * of this parameter is 16 MiB.
+  */
+ protected static final class NewFileBatchBytes extends Parameter<Long>
+ {
+  @Override
+  public Long getDefaultValue()
+  {
+   return 16L << 20;
+  }
+
+  @Override
+  public Class<Long> getType()
+  {
+   return Long.class;
+  }
+ }
+
  protected static final Parameter<?>[] PARAMETERS = {
   // TODO: list all parameter keys here
   DEFAULT_ACTION,
   DELTA_CHAIN_SIZE,
   CUMULATIVE_DELTA_SIZE,
   ALLOWED_TIMESTAMP_DISCREPANCY,
-  SELECTED_FILTER
+  SELECTED_FILTER,
+  SYNC_THREADS,
+  CHUNKING_THRESHOLD,
+  IMAGE_CACHE_SIZE,
+  STREAMING_SYNC,
+  NEW_FILE_BATCH_SIZE,
+  NEW_FILE_BATCH_BYTES,
+  KEYFRAME_INTERVAL,
+  KEYFRAME_CHAIN_BYTES
  };
 
  private Map<Parameter<?>, Object> settings;
@@ -19,13 +19,18 @@
     
 package name.livitski.databag.app.filter;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Combines several {@link #addElement(PathFilter) filter operations} into
  * an aggregate filter using a {@link #getType() logical operator}
  * and, optionally, {@link #isInverted() inverting the result}. 
+ * {@link PathMatcher Patterns} that begin with a plain name are indexed
+ * by that name, so that only the patterns that can match a path's first
+ * element are evaluated.
  */
 public class CompositePathFilter implements PathFilter
 {
@@ -33,26 +38,87 @@ public class CompositePathFilter implements PathFilter
   * Executes {@link #addElement(PathFilter) constituent filters} while
   * their results can make difference to the aggregate
   * {@link #getType() operator}, then returns the result,
-  * optionally {@link #isInverted() inverting it}.
+  * optionally {@link #isInverted() inverting it}. Indexed patterns
+  * are evaluated first, in no particular order, since the order of
+  * evaluation does not affect the result.
   */
  public boolean pathMatches(String[] splitPath)
  {
   boolean state = type.getStartValue();
-  for (PathFilter element : elements)
+  if (0 < indexedCount)
   {
-   state = type.evaluate(state, element.pathMatches(splitPath));
-   if (type.finished(state))
-    break;
+   List<PathMatcher> sensitive = null, insensitive = null;
+   int candidates = 0;
+   if (0 < splitPath.length)
+   {
+    if (!caseSensitiveHeads.isEmpty()
+      && null != (sensitive = caseSensitiveHeads.get(splitPath[0])))
+     candidates += sensitive.size();
+    if (!caseInsensitiveHeads.isEmpty()
+      && null != (insensitive = caseInsensitiveHeads.get(PathMatcher.foldCase(splitPath[0]))))
+     candidates += insensitive.size();
+   }
+   // indexed patterns that are not candidates do not match
+   if (candidates < indexedCount)
+    state = type.evaluate(state, false);
+   if (!type.finished(state) && null != sensitive)
+    state = evaluate(sensitive, state, splitPath);
+   if (!type.finished(state) && null != insensitive)
+    state = evaluate(insensitive, state, splitPath);
   }
+  if (!type.finished(state))
+   state = evaluate(others, state, splitPath);
   return inverted ? !state : state;
  }
 
+ /**
+  * Combines the coverage of {@link #addElement(PathFilter) constituent filters}
+  * using the {@link #getType() operator}, then
+  * {@link Coverage#invert() inverts} it if this filter
+  * {@link #isInverted() is inverted}.
+  */
+ public Coverage descendantCoverage(String[] splitDirectory)
+ {
+  Coverage coverage = type.getStartValue() ? Coverage.ALL : Coverage.NONE;
+  String head = null, foldedHead = null;
+  if (0 < splitDirectory.length)
+  {
+   head = splitDirectory[0];
+   foldedHead = PathMatcher.foldCase(head);
+  }
+  // patterns indexed under other names do not match anything in the directory
+  for (Map.Entry<String, List<PathMatcher>> bucket : caseSensitiveHeads.entrySet())
+   if (null == head || bucket.getKey().equals(head))
+    coverage = combine(coverage, bucket.getValue(), splitDirectory);
+   else
+    coverage = type.combine(coverage, Coverage.NONE);
+  for (Map.Entry<String, List<PathMatcher>> bucket : caseInsensitiveHeads.entrySet())
+   if (null == head || bucket.getKey().equals(foldedHead))
+    coverage = combine(coverage, bucket.getValue(), splitDirectory);
+   else
+    coverage = type.combine(coverage, Coverage.NONE);
+  coverage = combine(coverage, others, splitDirectory);
+  return inverted ? coverage.invert() : coverage;
+ }
+
  /**
   * Adds an operation to the end of this filter's list. 
   */
  public void addElement(PathFilter element)
  {
-  elements.add(element);
+  String head = element instanceof PathMatcher ? ((PathMatcher)element).getLiteralHead() : null;
+  if (null == head)
+   others.add(element);
+  else
+  {
+   Map<String, List<PathMatcher>> index = ((PathMatcher)element).isCaseSensitive()
+     ? caseSensitiveHeads : caseInsensitiveHeads;
+   List<PathMatcher> bucket = index.get(head);
+   if (null == bucket)
+    index.put(head, bucket = new ArrayList<PathMatcher>(1));
+   bucket.add((PathMatcher)element);
+   indexedCount++;
+  }
  }
 
  /**
@@ -109,6 +175,33 @@ public class CompositePathFilter implements PathFilter
    throw new UnsupportedOperationException(String.valueOf(this));
   }
 
+  /**
+   * Combines the {@link PathFilter#descendantCoverage coverage} of two
+   * filters joined by this operator.
+   */
+  public Coverage combine(Coverage c1, Coverage c2)
+  {
+   switch (this)
+   {
+   case AND:
+    return Coverage.NONE == c1 || Coverage.NONE == c2 ? Coverage.NONE
+      : Coverage.ALL == c1 && Coverage.ALL == c2 ? Coverage.ALL : Coverage.SOME;
+   case OR:
+    return Coverage.ALL == c1 || Coverage.ALL == c2 ? Coverage.ALL
+      : Coverage.NONE == c1 && Coverage.NONE == c2 ? Coverage.NONE : Coverage.SOME;
+   }
+   throw new UnsupportedOperationException(String.valueOf(this));
+  }
+
+  /**
+   * Tells whether a combined {@link PathFilter#descendantCoverage coverage}
+   * will not change with more filters joined by this operator.
+   */
+  public boolean settled(Coverage coverage)
+  {
+   return (startValue ? Coverage.NONE : Coverage.ALL) == coverage;
+  }
+
   public boolean finished(boolean state)
   {
    return state != startValue;
@@ -127,7 +220,32 @@ public class CompositePathFilter implements PathFilter
   private boolean startValue;
  }
 
+ private boolean evaluate(List<? extends PathFilter> elements, boolean state, String[] splitPath)
+ {
+  for (PathFilter element : elements)
+  {
+   state = type.evaluate(state, element.pathMatches(splitPath));
+   if (type.finished(state))
+    break;
+  }
+  return state;
+ }
+
+ private Coverage combine(Coverage coverage, List<? extends PathFilter> elements, String[] splitDirectory)
+ {
+  for (PathFilter element : elements)
+  {
+   if (type.settled(coverage))
+    break;
+   coverage = type.combine(coverage, element.descendantCoverage(splitDirectory));
+  }
+  return coverage;
+ }
+
  private Operator type;
  private boolean inverted;
- private List<PathFilter> elements = new LinkedList<PathFilter>();
+ private int indexedCount;
+ private Map<String, List<PathMatcher>> caseSensitiveHeads = new HashMap<String, List<PathMatcher>>();
+ private Map<String, List<PathMatcher>> caseInsensitiveHeads = new HashMap<String, List<PathMatcher>>();
+ private List<PathFilter> others = new ArrayList<PathFilter>();
 }
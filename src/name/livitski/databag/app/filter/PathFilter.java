@@ -31,4 +31,43 @@ public interface PathFilter
   * {@link PathMatcher#splitPathString(String) split into descending directory names and a file name} 
   */
  boolean pathMatches(String[] splitPath);
+
+ /**
+  * Tells how many paths within a directory this filter may match,
+  * so that callers can skip directories with no matching paths.
+  * The answer need not be exact: {@link Coverage#SOME} is a valid
+  * answer for any directory.
+  * @param splitDirectory path to the directory relative to a replica
+  * root, split in the same way as the argument of {@link #pathMatches}
+  * @return {@link Coverage#NONE} if no path within the directory
+  * can match this filter, {@link Coverage#ALL} if all such paths
+  * match, {@link Coverage#SOME} otherwise
+  */
+ Coverage descendantCoverage(String[] splitDirectory);
+
+ /**
+  * Describes the paths within a directory that match a filter.
+  * @see PathFilter#descendantCoverage(String[])
+  */
+ enum Coverage
+ {
+  NONE, SOME, ALL;
+
+  /**
+   * Returns the coverage of a filter that matches the paths this
+   * filter does not match.
+   */
+  public Coverage invert()
+  {
+   switch (this)
+   {
+   case NONE:
+    return ALL;
+   case ALL:
+    return NONE;
+   default:
+    return this;
+   }
+  }
+ }
 }
@@ -55,6 +55,47 @@ public class PathMatcher implements PathFilter
  {
   this.isCaseSensitive = isCaseSensitive;
   this.pattern = splitPathString(pattern);
+  compile();
+ }
+
+ /**
+  * Tells whether this matcher compares names case-sensitively.
+  */
+ public boolean isCaseSensitive()
+ {
+  return isCaseSensitive;
+ }
+
+ /**
+  * Returns the first element of this matcher's pattern if that element
+  * is a plain name without wildcards, or <code>null</code> otherwise.
+  * All paths that match this pattern begin with that name. For
+  * case-insensitive matchers, the name is {@link #foldCase(String) folded}.
+  */
+ public String getLiteralHead()
+ {
+  return 0 < kinds.length && LITERAL == kinds[0] ? names[0] : null;
+ }
+
+ /**
+  * Converts a name to the form used for case-insensitive comparisons,
+  * consistent with {@link #match(String, String, boolean)}.
+  */
+ public static String foldCase(String name)
+ {
+  char[] chars = null;
+  for (int i = 0; i < name.length(); i++)
+  {
+   char c = name.charAt(i);
+   char u = Character.toUpperCase(c);
+   if (c != u)
+   {
+    if (null == chars)
+     chars = name.toCharArray();
+    chars[i] = u;
+   }
+  }
+  return null == chars ? name : new String(chars);
  }
 
  /**
@@ -161,7 +202,9 @@ public class PathMatcher implements PathFilter
   *
   * NOTE: this comment and signature were updated by K. Livitski, 2011.
   * The rest of the method's code originates from Apache ANT 1.7 with
-  * some initial lines omitted and some variables renamed. 
+  * some initial lines omitted and some variables renamed. Tests of
+  * pattern elements use the form {@link #compile() compiled} when
+  * the matcher was created.
   */
  public boolean pathMatches(String[] path)
  {
@@ -176,11 +219,10 @@ public class PathMatcher implements PathFilter
 
      // up to first '**'
      while (patIdxStart <= patIdxEnd && strIdxStart <= strIdxEnd) {
-         String patDir = pattern[patIdxStart];
-         if (patDir.equals("**")) {
+         if (ANY_PATH == kinds[patIdxStart]) {
              break;
          }
-         if (!match(patDir, path[strIdxStart], isCaseSensitive)) {
+         if (!matchElement(patIdxStart, path[strIdxStart])) {
              pattern = null;
              path = null;
              return false;
@@ -191,7 +233,7 @@ public class PathMatcher implements PathFilter
      if (strIdxStart > strIdxEnd) {
          // String is exhausted
          for (int i = patIdxStart; i <= patIdxEnd; i++) {
-             if (!pattern[i].equals("**")) {
+             if (ANY_PATH != kinds[i]) {
                  pattern = null;
                  path = null;
                  return false;
@@ -209,11 +251,10 @@ public class PathMatcher implements PathFilter
 
      // up to last '**'
      while (patIdxStart <= patIdxEnd && strIdxStart <= strIdxEnd) {
-         String patDir = pattern[patIdxEnd];
-         if (patDir.equals("**")) {
+         if (ANY_PATH == kinds[patIdxEnd]) {
              break;
          }
-         if (!match(patDir, path[strIdxEnd], isCaseSensitive)) {
+         if (!matchElement(patIdxEnd, path[strIdxEnd])) {
              pattern = null;
              path = null;
              return false;
@@ -224,7 +265,7 @@ public class PathMatcher implements PathFilter
      if (strIdxStart > strIdxEnd) {
          // String is exhausted
          for (int i = patIdxStart; i <= patIdxEnd; i++) {
-             if (!pattern[i].equals("**")) {
+             if (ANY_PATH != kinds[i]) {
                  pattern = null;
                  path = null;
                  return false;
@@ -236,7 +277,7 @@ public class PathMatcher implements PathFilter
      while (patIdxStart != patIdxEnd && strIdxStart <= strIdxEnd) {
          int patIdxTmp = -1;
          for (int i = patIdxStart + 1; i <= patIdxEnd; i++) {
-             if (pattern[i].equals("**")) {
+             if (ANY_PATH == kinds[i]) {
                  patIdxTmp = i;
                  break;
              }
@@ -254,9 +295,8 @@ public class PathMatcher implements PathFilter
          strLoop:
                      for (int i = 0; i <= strLength - patLength; i++) {
                          for (int j = 0; j < patLength; j++) {
-                             String subPat = pattern[patIdxStart + j + 1];
                              String subStr = path[strIdxStart + i + j];
-                             if (!match(subPat, subStr, isCaseSensitive)) {
+                             if (!matchElement(patIdxStart + j + 1, subStr)) {
                                  continue strLoop;
                              }
                          }
@@ -276,7 +316,7 @@ public class PathMatcher implements PathFilter
      }
 
      for (int i = patIdxStart; i <= patIdxEnd; i++) {
-         if (!pattern[i].equals("**")) {
+         if (ANY_PATH != kinds[i]) {
              pattern = null;
              path = null;
              return false;
@@ -286,6 +326,49 @@ public class PathMatcher implements PathFilter
      return true;
  }
 
+ /**
+  * Follows the pattern along the directory's path, keeping track of
+  * pattern elements that may come next. No path within the directory
+  * matches if no element but the end of pattern is left, and all paths
+  * match if the pattern may continue with <code>**</code> elements only.
+  */
+ public Coverage descendantCoverage(String[] splitDirectory)
+ {
+  final int length = kinds.length;
+  boolean[] states = new boolean[length + 1];
+  boolean[] next = new boolean[length + 1];
+  states[0] = true;
+  closeStates(states);
+  for (String name : splitDirectory)
+  {
+   boolean any = false;
+   for (int i = 0; i < length; i++)
+    if (states[i])
+    {
+     if (ANY_PATH == kinds[i])
+      any = next[i] = true;
+     else if (matchElement(i, name))
+      any = next[i + 1] = true;
+    }
+   if (!any)
+    return Coverage.NONE;
+   boolean[] swap = states;
+   states = next;
+   next = swap;
+   java.util.Arrays.fill(next, false);
+   closeStates(states);
+  }
+  boolean more = false;
+  for (int i = 0; i < length; i++)
+   if (states[i])
+   {
+    if (ANY_PATH == kinds[i] && anyPathTail <= i)
+     return Coverage.ALL;
+    more = true;
+   }
+  return more ? Coverage.SOME : Coverage.NONE;
+ }
+
  /**
   * Tests whether or not a string matches against a pattern.
   * The pattern may contain two special characters:<br>
@@ -455,7 +538,74 @@ public class PathMatcher implements PathFilter
      return true;
  }
 
+ /**
+  * Classifies the elements of the pattern and prepares plain names
+  * for comparison, so that {@link #pathMatches(String[])} does not
+  * have to scan them for wildcards on every call.
+  */
+ private void compile()
+ {
+  kinds = new byte[pattern.length];
+  names = new String[pattern.length];
+  anyPathTail = pattern.length;
+  for (int i = 0; i < pattern.length; i++)
+  {
+   String element = pattern[i];
+   if ("**".equals(element))
+    kinds[i] = ANY_PATH;
+   else if (0 < element.length() && element.replace("*", "").isEmpty())
+    kinds[i] = ANY_NAME;
+   else if (hasWildcards(element))
+    kinds[i] = WILDCARD;
+   else
+   {
+    kinds[i] = LITERAL;
+    names[i] = isCaseSensitive ? element : foldCase(element);
+   }
+  }
+  while (0 < anyPathTail && ANY_PATH == kinds[anyPathTail - 1])
+   anyPathTail--;
+ }
+
+ /**
+  * Adds the pattern positions that follow <code>**</code> elements
+  * to a set of positions, since <code>**</code> may match nothing.
+  */
+ private void closeStates(boolean[] states)
+ {
+  for (int i = 0; i < kinds.length; i++)
+   if (states[i] && ANY_PATH == kinds[i])
+    states[i + 1] = true;
+ }
+
+ private boolean matchElement(int index, String name)
+ {
+  switch (kinds[index])
+  {
+  case ANY_NAME:
+   return true;
+  case LITERAL:
+   String literal = names[index];
+   if (isCaseSensitive)
+    return literal.equals(name);
+   if (literal.length() != name.length())
+    return false;
+   for (int i = literal.length(); 0 <= --i;)
+    if (literal.charAt(i) != Character.toUpperCase(name.charAt(i)))
+     return false;
+   return true;
+  default:
+   return match(pattern[index], name, isCaseSensitive);
+  }
+ }
+
+ private static final byte LITERAL = 0, WILDCARD = 1, ANY_NAME = 2, ANY_PATH = 3;
+
  private static final String[] DUMMY_TOKEN_ARRAY = {};
  private String[] pattern;
  private boolean isCaseSensitive;
+ private byte[] kinds;
+ private String[] names;
+ // elements starting from this index are all "**"
+ private int anyPathTail;
 }
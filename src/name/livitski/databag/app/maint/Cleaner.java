@@ -22,9 +22,13 @@ package name.livitski.databag.app.maint;
 import java.io.Closeable;
 import java.io.IOException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -53,7 +57,7 @@ import name.livitski.databag.db.schema.VersionDTO;
 import name.livitski.databag.diff.Delta;
 
 /**
- * Performs cleanup of the shared storage. This class
+ * Performs cleanup and maintenance of the shared storage. This class
  * can perform only one operation at a time and should
  * be used within a single thread.
  */
@@ -107,6 +111,71 @@ public class Cleaner extends ConfigurableService implements Closeable
   }
  }
 
+ /**
+  * Stores images of selected versions of shared files, so that
+  * restoring any version of those files takes no more than
+  * the {@link #getKeyframeLimit() limit} of deltas. Versions to store
+  * are chosen to keep the number of new images low. Files that do not
+  * match the effective filter are not changed.
+  * @return the number of images stored
+  */
+ public long addKeyframes()
+	throws Exception
+ {
+  startTime = new Timestamp(System.currentTimeMillis());
+  Integer limit = getKeyframeLimit();
+  Map<String, String> params = Collections.singletonMap("limit", String.valueOf(limit));
+  SyncLogDTO logRecord = openLogRecord("keyframes", params);
+  Throwable status = null;
+  long stored = 0L;
+  try
+  {
+   if (null == limit || 0 >= limit)
+    log().fine("Delta chain length is not limited, no keyframes needed");
+   else
+    stored = addKeyframesToFiles(limit);
+  }
+  catch (Throwable fault)
+  {
+   rethrowAnyException(status = fault);
+  }
+  finally
+  {
+   try
+   {
+    updateLogRecord(logRecord, status);
+   }
+   catch (Throwable updateFailure)
+   {
+    log().log(Level.WARNING, "Status update failed for the log " + logRecord, updateFailure);
+   }
+  }
+  return stored;
+ }
+
+ /**
+  * Returns the maximum number of deltas that restoring a version
+  * may take after {@link #addKeyframes()}. Unless
+  * {@link #setKeyframeLimit(Integer) set explicitly}, this is
+  * the {@link Configuration#KEYFRAME_INTERVAL keyframe interval}.
+  * A <code>null</code> or non-positive value means no limit.
+  */
+ public Integer getKeyframeLimit()
+ {
+  return null == keyframeLimit ? getParameterValue(Configuration.KEYFRAME_INTERVAL) : keyframeLimit;
+ }
+
+ /**
+  * Changes the {@link #getKeyframeLimit() limit} of deltas
+  * used by {@link #addKeyframes()}.
+  * @param keyframeLimit the new limit, or <code>null</code> to use
+  * the configured keyframe interval
+  */
+ public void setKeyframeLimit(Integer keyframeLimit)
+ {
+  this.keyframeLimit = keyframeLimit;
+ }
+
  /**
   * Performs cleaning of the {@link SyncLogDAO sync log records}
   * prior to the {@link #Cleaner(Manager, Configuration, Timestamp) epoch}.
@@ -156,6 +225,8 @@ public class Cleaner extends ConfigurableService implements Closeable
   final long estimatedCount = stats.countFiles();
   FileDAO fileDAO = db.findDAO(FileDAO.class);
   NodeNameDAO nameDAO = db.findDAO(NodeNameDAO.class);
+  // resolve names of all files in memory
+  nameDAO.preload();
   VersionDAO versionDAO = db.findDAO(VersionDAO.class);
   Cursor<FileDTO> files = fileDAO.fetchAllFiles();
   long deleted = 0L;
@@ -353,6 +424,209 @@ public class Cleaner extends ConfigurableService implements Closeable
   return deleted;
  }
 
+ /**
+  * Stores images of versions of files that match the effective
+  * filter so that restoring a version takes no more than a limited
+  * number of deltas.
+  * @param limit maximum number of deltas to restore a version
+  * @return the number of images stored
+  * @throws Exception if there is an error querying or
+  * updating the database
+  */
+ protected long addKeyframesToFiles(int limit)
+ 	throws Exception
+ {
+  final Logger log = log();
+  Manager db = getDb();
+  PathFilter filter;
+  try {
+   filter = getEffectiveFilter();
+  }
+  catch (IOException invalid)
+  {
+   throw new RuntimeException("Unexpected exception probing a null replica", invalid);
+  }
+  final long estimatedCount = stats.countFiles();
+  FileDAO fileDAO = db.findDAO(FileDAO.class);
+  NodeNameDAO nameDAO = db.findDAO(NodeNameDAO.class);
+  nameDAO.preload();
+  Cursor<FileDTO> files = fileDAO.fetchAllFiles();
+  long stored = 0L;
+  try
+  {
+   log.info("Storing images of versions more than " + limit + " delta(s) away from an image ...");
+   for (long count = 0L, threshold = 10L;;)
+   {
+    FileDTO file = files.next();
+    if (null == file) break;
+    String[] splitPath = nameDAO.toSplitPath(file.getNameId());
+    if (filter.pathMatches(splitPath))
+     stored += addKeyframes(file, limit);
+    count++;
+    if (count >= threshold)
+    {
+     log.info("Checked " + count + " file(s), "
+       + (100L * count / estimatedCount) + '%'
+       + ", stored " + stored + " image(s)");
+     threshold += estimatedCount / 10L;
+     if (count >= threshold)
+      threshold = estimatedCount;
+    }
+   }
+  }
+  finally
+  {
+   try { files.close(); }
+   catch (DBException ex) {
+    log().log(Level.WARNING, "Error closing cursor over all shared files", ex);
+   }
+  }
+  return stored;
+ }
+
+ /**
+  * Stores images of some versions of a file so that restoring any
+  * of its versions takes no more than a limited number of deltas.
+  * The graph of the file's versions is a forest with a stored image
+  * in each tree. A breadth-first search from the images finds the
+  * shortest paths, same as those that the {@link ImageBuilder} would
+  * take. Then the versions are visited starting with the farthest.
+  * When a visited version is still too far from an image, the image
+  * of the version <code>limit</code> steps up its path is stored.
+  * Storing that image brings all versions within the limit from it,
+  * including the farthest ones, which keeps the number of new images low.
+  * Each image is stored in a separate transaction.
+  * @param file shared storage record of the file
+  * @param limit maximum number of deltas to restore a version
+  * @return the number of images stored
+  * @throws Exception if there is an error reading or updating
+  * the database
+  */
+ protected long addKeyframes(FileDTO file, int limit)
+  throws Exception
+ {
+  Manager db = getDb();
+  VersionDAO versionDAO = db.findDAO(VersionDAO.class);
+  // load the graph of versions, deletion marks have no content to restore
+  Map<Integer, VersionDTO> versions = new HashMap<Integer, VersionDTO>();
+  Map<Integer, List<Integer>> neighbors = new HashMap<Integer, List<Integer>>();
+  Cursor<VersionDTO> cursor = versionDAO.findVersions(file, null);
+  try
+  {
+   for (VersionDTO version; null != (version = cursor.next());)
+    if (!version.isDeletionMark())
+    {
+     versions.put(version.getId(), version);
+     neighbors.put(version.getId(), new ArrayList<Integer>(2));
+    }
+  }
+  finally
+  {
+   cursor.close();
+  }
+  List<Integer> order = new ArrayList<Integer>(versions.size());
+  for (VersionDTO version : versions.values())
+  {
+   List<Integer> derived = neighbors.get(version.getBaseVersionId());
+   if (null != derived)
+   {
+    derived.add(version.getId());
+    neighbors.get(version.getId()).add(version.getBaseVersionId());
+   }
+   if (version.isImageAvailable())
+    order.add(version.getId());
+  }
+  // find the shortest paths from images
+  Map<Integer, Integer> distance = new HashMap<Integer, Integer>();
+  Map<Integer, Integer> parent = new HashMap<Integer, Integer>();
+  for (Integer id : order)
+   distance.put(id, 0);
+  for (int i = 0; order.size() > i; i++)
+  {
+   Integer id = order.get(i);
+   int next = distance.get(id) + 1;
+   for (Integer neighbor : neighbors.get(id))
+    if (!distance.containsKey(neighbor))
+    {
+     distance.put(neighbor, next);
+     parent.put(neighbor, id);
+     order.add(neighbor);
+    }
+  }
+  if (order.size() < versions.size())
+   log().warning(file + " has " + (versions.size() - order.size())
+     + " version(s) not connected to an image");
+  long stored = 0L;
+  for (ListIterator<Integer> i = order.listIterator(order.size()); i.hasPrevious();)
+  {
+   Integer id = i.previous();
+   if (limit >= distance.get(id))
+    continue;
+   Integer keyframe = id;
+   for (int step = 0; limit > step; step++)
+    keyframe = parent.get(keyframe);
+   storeImage(versions.get(keyframe));
+   stored++;
+   // update distances within the limit from the new image
+   LinkedList<Integer> queue = new LinkedList<Integer>();
+   distance.put(keyframe, 0);
+   queue.add(keyframe);
+   while (!queue.isEmpty())
+   {
+    Integer node = queue.removeFirst();
+    int next = distance.get(node) + 1;
+    if (limit < next)
+     continue;
+    for (Integer neighbor : neighbors.get(node))
+     if (next < distance.get(neighbor))
+     {
+      distance.put(neighbor, next);
+      queue.add(neighbor);
+     }
+   }
+  }
+  return stored;
+ }
+
+ /**
+  * Stores the image of a version in a transaction of its own.
+  */
+ protected void storeImage(VersionDTO version)
+  throws Exception
+ {
+  Manager db = getDb();
+  Transaction txn = null;
+  Throwable status = null;
+  try
+  {
+   txn = db.beginTransaction();
+   log().fine("Storing keyframe image of " + version);
+   ImageBuilder worker = getImageBuilder();
+   worker.setVersion(version);
+   worker.transferImage();
+   txn.commit();
+   txn = null;
+  }
+  catch (Throwable e)
+  {
+   log().log(Level.FINER, "Keyframe storage aborted", e);
+   status = e;
+  }
+  finally
+  {
+   if (null != txn)
+    try { txn.abort(); }
+    catch (DBException ex) {
+     if (null == status)
+      status = ex;
+     else
+      log().log(Level.WARNING, "Error aborting a keyframe transaction", ex);
+    }
+  }
+  if (null != status)
+   rethrowAnyException(status);
+ }
+
  @Override
  protected Timestamp getOperationTimestamp()
  {
@@ -366,4 +640,5 @@ public class Cleaner extends ConfigurableService implements Closeable
 
  private Timestamp epoch, startTime;
  private Statistics stats;
+ private Integer keyframeLimit;
 }
@@ -48,6 +48,30 @@ public class CumulativeDeltaStats
   this.cumulativeDeltaSize = cumulativeDeltaSize;
  }
 
+ /**
+  * Returns the number of deltas in the chain.
+  */
+ public int getDeltaChainLength()
+ {
+  return deltaChainLength;
+ }
+
+ public void setDeltaChainLength(int deltaChainLength)
+ {
+  if (0 > deltaChainLength)
+   throw new IllegalArgumentException("deltaChainLength = " + deltaChainLength);
+  this.deltaChainLength = deltaChainLength;
+ }
+
+ /**
+  * Counts another delta in the chain.
+  */
+ public void addDeltaChainLink()
+ {
+  if (Integer.MAX_VALUE > deltaChainLength)
+   deltaChainLength++;
+ }
+
  public void addDeltaChainSize(long increment)
  {
   if (0 > increment)
@@ -65,6 +89,7 @@ public class CumulativeDeltaStats
     || deltaChainSize > other.deltaChainSize
     || 0 > cumulativeDeltaSize
     || cumulativeDeltaSize > other.cumulativeDeltaSize
+    || deltaChainLength > other.deltaChainLength
     );
  }
 
@@ -72,15 +97,22 @@ public class CumulativeDeltaStats
  public String toString()
  {
   return "delta chain statistics (cumulativeDeltaSize = " + cumulativeDeltaSize
-  	+ ", deltaChainSize = " + deltaChainSize + ')';
+  	+ ", deltaChainSize = " + deltaChainSize
+  	+ ", deltaChainLength = " + deltaChainLength + ')';
  }
 
  public CumulativeDeltaStats(long deltaChainSize, long cumulativeDeltaSize)
+ {
+  this(deltaChainSize, cumulativeDeltaSize, Integer.MAX_VALUE);
+ }
+
+ public CumulativeDeltaStats(long deltaChainSize, long cumulativeDeltaSize, int deltaChainLength)
  {
   setDeltaChainSize(deltaChainSize);
   if (0L > cumulativeDeltaSize)
    throw new IllegalArgumentException("cumulativeDeltaSize = " + cumulativeDeltaSize);
   setCumulativeDeltaSize(cumulativeDeltaSize);
+  setDeltaChainLength(deltaChainLength);
  }
 
  public CumulativeDeltaStats()
@@ -89,4 +121,5 @@ public class CumulativeDeltaStats
 
  private long deltaChainSize;
  private long cumulativeDeltaSize;
+ private int deltaChainLength;
 }
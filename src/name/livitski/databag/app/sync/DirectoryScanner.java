@@ -22,20 +22,69 @@ package name.livitski.databag.app.sync;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import name.livitski.databag.app.filter.PathFilter;
 import name.livitski.databag.app.filter.PathMatcher;
 
 /**
  * Scans a directory recursively to find all files
- * that match a {@link PathFilter filter}.
+ * that match a {@link PathFilter filter}. The scanner
+ * takes a {@link LocalFileInfo snapshot} of each file's attributes
+ * as it finds the file, so that the synchronization does not have
+ * to read them again. With more than one
+ * {@link #setThreadCount(int) thread}, subdirectories are
+ * listed in parallel. Files are reported in the same order
+ * regardless of the number of threads. Directories that cannot
+ * contain matching files are skipped.
+ * Use {@link #newInstance(File)} to obtain a scanner that takes
+ * advantage of the file attribute API available since Java 7.
  */
 public class DirectoryScanner
 {
+ /**
+  * Creates a scanner for the running platform. On Java 7 or newer,
+  * the scanner reads all attributes of a directory entry in one query
+  * and detects links to ancestor directories by comparing file keys.
+  * Otherwise, it falls back to this class.
+  * @param root the root directory of a replica to scan or
+  * <code>null</code> to create a dummy scanner that never finds
+  * files
+  * @see #DirectoryScanner(File)
+  */
+ public static DirectoryScanner newInstance(File root)
+ {
+  Logger log = Logger.getLogger(DirectoryScanner.class.getName());
+  try
+  {
+   return Class.forName(IMPLEMENTATION_CLASS).asSubclass(DirectoryScanner.class)
+   	.getConstructor(File.class).newInstance(root);
+  }
+  catch (ClassNotFoundException missing)
+  {
+   log.log(Level.FINE, "File attribute scanner is not available", missing);
+  }
+  catch (LinkageError unsupported)
+  {
+   log.log(Level.FINE, "File attribute scanner is not supported by this JVM", unsupported);
+  }
+  catch (Exception failure)
+  {
+   log.log(Level.WARNING, "Could not create a file attribute scanner", failure);
+  }
+  return new DirectoryScanner(root);
+ }
+
  /**
   * Scans the {@link #DirectoryScanner(File) root directory} and
   * its descendants and collects all files that match the
@@ -49,10 +98,31 @@ public class DirectoryScanner
  public void scan()
  	throws IOException
  {
-  paths = new LinkedHashSet<File>();
-  ancestorPaths = new HashSet<File>();
-  splitPath = new ArrayList<String>();
-  scanPaths(null);
+  Map<File, LocalFileInfo> found = new LinkedHashMap<File, LocalFileInfo>();
+  if (null != root)
+  {
+   ExecutorService executor = 1 < threadCount ? Executors.newFixedThreadPool(threadCount) : null;
+   try
+   {
+    collect(new Listing(executor, describe(root), null, new String[0], null).call(), found);
+   }
+   catch (IOException e)
+   {
+    throw e;
+   }
+   catch (Exception e)
+   {
+    if (e instanceof RuntimeException)
+     throw (RuntimeException)e;
+    throw (IOException)new IOException("Error scanning " + root).initCause(e);
+   }
+   finally
+   {
+    if (null != executor)
+     executor.shutdownNow();
+   }
+  }
+  files = found;
  }
 
  /**
@@ -64,7 +134,20 @@ public class DirectoryScanner
   */
  public Set<File> getFiles()
  {
-  return paths;
+  return null == files ? null : files.keySet();
+ }
+
+ /**
+  * Returns the attributes of a file read during the last
+  * {@link #scan()} operation.
+  * @param path relative path to the file, as {@link #getFiles() reported}
+  * by the scan 
+  * @return the snapshot of the file's attributes or <code>null</code>
+  * if the last scan did not report the file
+  */
+ public LocalFileInfo getFileInfo(File path)
+ {
+  return null == files ? null : files.get(path);
  }
 
  /**
@@ -76,7 +159,7 @@ public class DirectoryScanner
  public void setFilter(PathFilter filter)
  {
   this.filter = filter;
-  this.paths = null;
+  this.files = null;
  }
 
  /**
@@ -89,7 +172,28 @@ public class DirectoryScanner
  public void setPattern(PathMatcher pattern)
  {
   this.pattern = pattern;
-  this.paths = null;
+  this.files = null;
+ }
+
+ /**
+  * Returns the number of threads that list directories during
+  * a {@link #scan()}.
+  */
+ public int getThreadCount()
+ {
+  return threadCount;
+ }
+
+ /**
+  * Sets the number of threads that list directories during
+  * a {@link #scan()}. With a single thread, which is the default,
+  * directories are listed by the thread that calls {@link #scan()}.
+  */
+ public void setThreadCount(int threadCount)
+ {
+  if (0 >= threadCount)
+   throw new IllegalArgumentException("Thread count must be positive, got " + threadCount);
+  this.threadCount = threadCount;
  }
 
  /**
@@ -105,44 +209,249 @@ public class DirectoryScanner
  }
 
  /**
-  * Used by {@link #scan()} to enumerate files. Avoids endless loops
-  * in the presence of links to ancestor directories.
+  * Lists a directory and takes snapshots of the matching files in it.
+  * Subdirectories are listed by separate instances, either directly
+  * or on a pool of threads. Avoids endless loops in the presence of
+  * links to ancestor directories by comparing their
+  * {@link Entry#directoryKey() keys}.
   */
- protected void scanPaths(String parent)
-	throws IOException
- {
-  File dir = null == parent ? root : new File(root, parent);
-  if (null == dir)
-   return;
-  // Prevent endless recursion due to symlinks
-  File canonical = dir.getCanonicalFile();
-  if (!ancestorPaths.add(canonical))
-  	return;
-  final String[] list = dir.list();
-  if (null != list)
-   for (String name : list)
-   {
-    File path = new File(parent, name);
-    splitPath.add(name);
-    if (new File(dir, name).isDirectory())
-     scanPaths(path.getPath());
-    else
+ protected class Listing implements Callable<List<Object>>
+ {
+  /**
+   * Returns the entries of the directory in the order of their
+   * listing. An entry is either a matching file, or a {@link Future}
+   * or a {@link List} with the entries of a subdirectory.
+   */
+  public List<Object> call()
+  	throws Exception
+  {
+   List<Object> entries = new ArrayList<Object>();
+   // Prevent endless recursion due to symlinks
+   Object key = dir.directoryKey();
+   for (Ancestor ancestor = ancestors; null != ancestor; ancestor = ancestor.parent)
+    if (key.equals(ancestor.key))
+     return entries;
+   Ancestor chain = new Ancestor(key, ancestors);
+   final List<Entry> list = list(dir.getFile());
+   if (null != list)
+    for (Entry entry : list)
+    {
+     String name = entry.getFile().getName();
+     File path = new File(parent, name);
+     String[] childSplitPath = new String[splitPath.length + 1];
+     System.arraycopy(splitPath, 0, childSplitPath, 0, splitPath.length);
+     childSplitPath[splitPath.length] = name;
+     if (entry.isDirectory())
+     {
+      if (!mayContainMatches(childSplitPath))
+       continue;
+      Listing subdir = new Listing(executor, entry, path.getPath(), childSplitPath, chain);
+      entries.add(null == executor ? subdir.call() : executor.submit(subdir));
+     }
+     else if ((null == pattern || pattern.pathMatches(childSplitPath))
+     && (null == filter || filter.pathMatches(childSplitPath)))
+      entries.add(new Found(path, entry.snapshot()));
+    }
+   return entries;
+  }
+
+  protected Listing(ExecutorService executor, Entry dir, String parent, String[] splitPath, Ancestor ancestors)
+  {
+   this.executor = executor;
+   this.dir = dir;
+   this.parent = parent;
+   this.splitPath = splitPath;
+   this.ancestors = ancestors;
+  }
+
+  private final ExecutorService executor;
+  private final Entry dir;
+  private final String parent;
+  private final String[] splitPath;
+  private final Ancestor ancestors;
+ }
+
+ /**
+  * An entry of a directory {@link #list(File) listed} by the scanner.
+  * This implementation queries the file system for the attributes
+  * of a file as they are requested. Subclasses may override its methods
+  * to return the attributes that they have read along with the
+  * listing.
+  */
+ protected static class Entry
+ {
+  /**
+   * Returns the absolute location of this entry.
+   */
+  public File getFile()
+  {
+   return file;
+  }
+
+  /**
+   * Tells whether this entry is a directory or a link to one.
+   */
+  public boolean isDirectory()
+  {
+   return directory;
+  }
+
+  /**
+   * Returns an object that identifies the directory this entry
+   * points to. Two entries that have equal keys are the same
+   * directory, even when reached via different links. This
+   * implementation returns the canonical path of the entry.
+   * @throws IOException if the key cannot be determined
+   */
+  public Object directoryKey()
+  	throws IOException
+  {
+   return file.getCanonicalFile();
+  }
+
+  /**
+   * Takes a snapshot of the size and modification time of this entry,
+   * which must be a regular file.
+   */
+  public LocalFileInfo snapshot()
+  {
+   return new LocalFileInfo(file, file.length(), file.lastModified());
+  }
+
+  /**
+   * Creates an entry for a file.
+   * @param file absolute location of the file
+   * @param directory whether the file is a directory
+   */
+  public Entry(File file, boolean directory)
+  {
+   this.file = file;
+   this.directory = directory;
+  }
+
+  private final File file;
+  private final boolean directory;
+ }
+
+ /**
+  * Describes a file, usually the root of a replica, that has not been
+  * listed with its directory. This implementation queries the file
+  * system whether the file is a directory.
+  * @param file absolute location of the file
+  * @throws IOException if there is an error reading the file's
+  * attributes
+  */
+ protected Entry describe(File file)
+ 	throws IOException
+ {
+  return new Entry(file, file.isDirectory());
+ }
+
+ /**
+  * Lists entries of a directory in the order that the file system
+  * returns them. This implementation queries the file system once per
+  * entry to find out whether it is a directory. This method may be
+  * called by multiple threads at once.
+  * @param dir absolute location of the directory
+  * @return the list of entries or <code>null</code> if the directory
+  * cannot be listed
+  * @throws IOException if there is an error reading an entry's
+  * attributes
+  */
+ protected List<Entry> list(File dir)
+ 	throws IOException
+ {
+  String[] names = dir.list();
+  if (null == names)
+   return null;
+  List<Entry> list = new ArrayList<Entry>(names.length);
+  for (String name : names)
+  {
+   File file = new File(dir, name);
+   list.add(new Entry(file, file.isDirectory()));
+  }
+  return list;
+ }
+
+ /**
+  * Tells whether a directory may contain files that match both the
+  * {@link #setFilter filter} and the {@link #setPattern pattern}.
+  * Directories that cannot contain such files are not scanned.
+  * @see PathFilter#descendantCoverage(String[])
+  */
+ protected boolean mayContainMatches(String[] splitDirectory)
+ {
+  return (null == pattern || PathFilter.Coverage.NONE != pattern.descendantCoverage(splitDirectory))
+  	&& (null == filter || PathFilter.Coverage.NONE != filter.descendantCoverage(splitDirectory));
+ }
+
+ /**
+  * Adds the files from a {@link Listing} to the results, waiting for
+  * the listings of subdirectories as necessary.
+  */
+ @SuppressWarnings("unchecked")
+ protected void collect(List<Object> entries, Map<File, LocalFileInfo> found)
+ 	throws Exception
+ {
+  for (Object entry : entries)
+  {
+   if (entry instanceof Future<?>)
+    try
+    {
+     entry = ((Future<?>)entry).get();
+    }
+    catch (ExecutionException failure)
     {
-     String[] splitPathArray = splitPath.toArray(DUMMY_ARRAY);
-     if ((null == pattern || pattern.pathMatches(splitPathArray))
-     && (null == filter || filter.pathMatches(splitPathArray)))
-      paths.add(path);
+     Throwable cause = failure.getCause();
+     if (cause instanceof Exception)
+      throw (Exception)cause;
+     else if (cause instanceof Error)
+      throw (Error)cause;
+     throw failure;
     }
-    splitPath.remove(splitPath.size() - 1);
+   if (entry instanceof List<?>)
+    collect((List<Object>)entry, found);
+   else
+   {
+    Found file = (Found)entry;
+    found.put(file.path, file.info);
    }
-  ancestorPaths.remove(canonical);
+  }
+ }
+
+ private static class Found
+ {
+  Found(File path, LocalFileInfo info)
+  {
+   this.path = path;
+   this.info = info;
+  }
+
+  final File path;
+  final LocalFileInfo info;
+ }
+
+ private static class Ancestor
+ {
+  Ancestor(Object key, Ancestor parent)
+  {
+   this.key = key;
+   this.parent = parent;
+  }
+
+  final Object key;
+  final Ancestor parent;
  }
 
+ /**
+  * Name of the class that implements the scanner using the file
+  * attribute API.
+  */
+ protected static final String IMPLEMENTATION_CLASS = "name.livitski.databag.app.sync.FileAttributeScanner";
+
  private File root;
  private PathFilter filter;
  private PathMatcher pattern;
- private Set<File> paths;
- private Set<File> ancestorPaths;
- private List<String> splitPath;
- private static String[] DUMMY_ARRAY = {};
+ private int threadCount = 1;
+ private Map<File, LocalFileInfo> files;
 }
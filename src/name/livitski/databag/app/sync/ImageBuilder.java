@@ -29,8 +29,9 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.nio.channels.FileChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.concurrent.Callable;
@@ -50,8 +51,11 @@ import name.livitski.databag.db.Filter;
 import name.livitski.databag.db.Manager;
 import name.livitski.databag.db.schema.VersionDAO;
 import name.livitski.databag.db.schema.VersionDTO;
+import name.livitski.databag.diff.BlockPipe;
 import name.livitski.databag.diff.ByteInputStream;
 import name.livitski.databag.diff.ByteOutputStream;
+import name.livitski.databag.diff.ByteSink;
+import name.livitski.databag.diff.ChunkingDifferencer;
 import name.livitski.databag.diff.CommonDeltaWriter;
 import name.livitski.databag.diff.CumulativeDelta;
 import name.livitski.databag.diff.Delta;
@@ -62,6 +66,7 @@ import name.livitski.databag.diff.DiffResult;
 import name.livitski.databag.diff.Differencer;
 import name.livitski.databag.diff.DirectionalDeltaWriter;
 import name.livitski.databag.diff.EffectiveDelta;
+import name.livitski.databag.diff.MappedByteSource;
 import name.livitski.databag.diff.Restorer;
 import name.livitski.tools.Logging;
 
@@ -196,42 +201,15 @@ public class ImageBuilder extends Logging implements Closeable
  	throws IOException, DBException
  {
   checkState();
-  InputStream image = null;
-  Logger log = log();
-  log.finer("Restoring image of " + getVersion() + " ...");
-  try
-  {
-   image = buildImage();
-   int count = 0;
-   for (byte[] buf = new byte[BUFFER_SIZE];;)
+  Object lock = databaseLock;
+  if (null == lock)
+   copyImage(out);
+  else
+   // the image stream reads the database until it is closed
+   synchronized (lock)
    {
-    int read = image.read(buf);
-    if (0 > read)
-     break;
-    out.write(buf, 0, read);
-    count += read;
+    copyImage(out);
    }
-   log.finer("Restored " + count + " byte(s)"); 
-  }
-  catch (Exception ex)
-  {
-   log.log(Level.SEVERE, "Error restoring " + getVersion(), ex);
-   if (ex instanceof IOException)
-    throw (IOException)ex;
-   if (ex instanceof DBException)
-    throw (DBException)ex;
-   if (ex instanceof RuntimeException)
-    throw (RuntimeException)ex;
-   else
-    throw new RuntimeException(ex);
-  }
-  finally
-  {
-   // Allow exception in close() to supersede initial exception
-   // as it will store status of asynchronous restore process
-   if (null != image)
-    image.close();
-  }
  }
 
  /**
@@ -244,12 +222,58 @@ public class ImageBuilder extends Logging implements Closeable
   */
  public boolean buildDeltas(File file, DeltaStore target)
 	throws IOException, DBException
+ {
+  return buildDeltas(file, null, target);
+ }
+
+ /**
+  * Creates a set of deltas for differences between a local
+  * file and rebuilt image of the attached {@link #getVersion() version}
+  * and computes a digest of the file's contents. Files of
+  * {@link #MAPPING_THRESHOLD} bytes or larger are
+  * {@link MappedByteSource memory-mapped} rather than read
+  * through a buffer.
+  * @param file file to build deltas for
+  * @param digest the object that receives the file's contents
+  * as they are read, or <code>null</code> to skip digest computation.
+  * The digest is complete only if this method returns <code>true</code>.
+  * @param target handler that stores delta images as they are generated.
+  * The handler must be thread-safe.
+  * @return whether or not valid deltas have been built 
+  */
+ public boolean buildDeltas(File file, MessageDigest digest, DeltaStore target)
+	throws IOException, DBException
+ {
+  return buildDeltas(file, digest, null, target);
+ }
+
+ /**
+  * Creates a set of deltas for differences between a local file and
+  * rebuilt image of the attached {@link #getVersion() version} reusing
+  * the file's content-defined chunks computed in advance, e.g. on
+  * a worker thread of a {@link SyncPipeline}.
+  * @param chunks chunks of the file's contents, or <code>null</code>
+  * if they have not been computed. Ignored unless the file is
+  * compared using {@link ChunkingDifferencer content-defined chunking}.
+  * @see #buildDeltas(File, MessageDigest, DeltaStore)
+  * @see LocalFileInfo#prepareContent(Long)
+  */
+ public boolean buildDeltas(File file, MessageDigest digest,
+   ChunkingDifferencer.Fingerprint chunks, DeltaStore target)
+	throws IOException, DBException
  {
   checkState();
   log().finer("Building deltas for " + file);
   FileInputStream image = new FileInputStream(file);
   try {
-   return buildDeltas(image, file.length(), target);
+   long size = file.length();
+   if (MAPPING_THRESHOLD <= size)
+    return buildDeltas(null, image.getChannel(), size, digest, chunks, target);
+   InputStream in = null == digest ? image : new DigestInputStream(image, digest);
+   boolean built = buildDeltas(in, null, size, null, chunks, target);
+   if (built && null != digest)
+    for (byte[] buf = new byte[BUFFER_SIZE]; 0 <= in.read(buf););
+   return built;
   }
   finally
   {
@@ -272,9 +296,24 @@ public class ImageBuilder extends Logging implements Closeable
   * The handler must be thread-safe.
   * @return whether or not valid deltas have been built 
   */
- @SuppressWarnings("unchecked")
  public boolean buildDeltas(InputStream image, long size, final DeltaStore target)
 	throws IOException, DBException
+ {
+  return buildDeltas(image, null, size, null, null, target);
+ }
+
+ /**
+  * Creates a set of deltas for differences between either a byte stream
+  * or a file channel and rebuilt image of the attached
+  * {@link #getVersion() version}.
+  * @param digest receives contents of the channel, ignored when
+  * reading a stream
+  * @param chunks precomputed chunks of the input, or <code>null</code>
+  */
+ @SuppressWarnings("unchecked")
+ private boolean buildDeltas(InputStream image, FileChannel channel, long size,
+   MessageDigest digest, ChunkingDifferencer.Fingerprint chunks, final DeltaStore target)
+	throws IOException, DBException
  {
   VersionDTO version = getVersion();
   if (null == version)
@@ -285,31 +324,80 @@ public class ImageBuilder extends Logging implements Closeable
   Logger log = log();
   log.finer("Preparing image of " + version + " ...");
   Future<Object>[] handlerStatus = new Future[Delta.Type.values().length];
-  PipedOutputStream[] pipes = new PipedOutputStream[Delta.Type.values().length];
+  OutputStream[] pipes = new OutputStream[Delta.Type.values().length];
+  MappedByteSource mapped = null, original = null;
+  File[] spools = new File[2];
   Exception status = null;
   try
   {
    base = buildImage();
-   Differencer diff = new Differencer();
+   ByteSink[] sinks = new ByteSink[Delta.Type.values().length];
    for (final Delta.Type t : Delta.Type.values())
    {
-    PipedOutputStream pipe = new PipedOutputStream();
-    final PipedInputStream in = new PipedInputStream(pipe);
+    BlockPipe pipe = new BlockPipe();
+    final InputStream in = pipe.getSource();
     handlerStatus[t.ordinal()] =
      getThreadPool().submit(new Callable<Object>() {
       public Object call() throws Exception
       {
+       try {
 	target.saveDelta(t, in);
         return null;
+       }
+       finally
+       {
+        // make the differencer fail rather than wait if the handler stops reading 
+        in.close();
+       }
       }
      });
-    diff.setDelta(t, new ByteOutputStream(pipe));
-    pipes[t.ordinal()] = pipe;
+    sinks[t.ordinal()] = pipe.getSink();
+    pipes[t.ordinal()] = pipe.getSink();
+   }
+   DiffResult result;
+   if (isChunkingEnabled(version.getSize(), size))
+   {
+    log.finer("Comparing content-defined chunks of " + version + " ...");
+    ChunkingDifferencer diff = new ChunkingDifferencer();
+    diff.setMovesEnabled(true);
+    for (Delta.Type t : Delta.Type.values())
+     diff.setDelta(t, sinks[t.ordinal()]);
+    diff.setSizeLimit(version.getSize() > size ? version.getSize() : size);
+    spools[0] = spool(base);
+    original = MappedByteSource.open(spools[0], Differencer.BUFFER_SIZE);
+    diff.setInput1(original);
+    if (null == channel)
+    {
+     spools[1] = spool(image);
+     mapped = MappedByteSource.open(spools[1], Differencer.BUFFER_SIZE);
+    }
+    else
+    {
+     mapped = new MappedByteSource(channel, Differencer.BUFFER_SIZE);
+     mapped.setDigest(digest);
+    }
+    diff.setInput2(mapped, chunks);
+    result = diff.compare();
+   }
+   else
+   {
+    Differencer diff = new Differencer();
+    for (Delta.Type t : Delta.Type.values())
+     diff.setDelta(t, sinks[t.ordinal()]);
+    int bsize = diff.estimateLimits(version.getSize(), size); 
+    diff.setInput1(new ByteInputStream(base, bsize));
+    if (null == channel)
+     diff.setInput2(new ByteInputStream(image, bsize));
+    else
+    {
+     mapped = new MappedByteSource(channel, bsize);
+     mapped.setDigest(digest);
+     diff.setInput2(mapped);
+    }
+    result = diff.compare();
    }
-   int bsize = diff.estimateLimits(version.getSize(), size); 
-   diff.setInput1(new ByteInputStream(base, bsize));
-   diff.setInput2(new ByteInputStream(image, bsize));
-   DiffResult result = diff.compare();
+   if (null != mapped && !result.isAborted())
+    mapped.finishDigest();
    for (Delta.Type t : Delta.Type.values())
     log.finest(t + " fragment count: " + result.getFragmentCount(t));
    for (Delta.Type t : Delta.Type.values())
@@ -323,8 +411,17 @@ public class ImageBuilder extends Logging implements Closeable
       + version.getFileId());
    // update delta chain stats
    stats.addDeltaChainSize(increment);
+   stats.addDeltaChainLink();
    return !result.isAborted();
   }
+  catch (InternalError fault)
+  {
+   // a mapped file has been truncated, the error may arrive
+   // after the read that caused it, so it is caught here
+   IOException ex = MappedByteSource.truncated(fault);
+   status = ex;
+   throw ex;
+  }
   catch (Exception ex)
   {
    status = ex;
@@ -340,6 +437,21 @@ public class ImageBuilder extends Logging implements Closeable
   finally
   {
    Exception status1 = null;
+   if (null != mapped)
+    try { mapped.close(); }
+    catch (IOException ex)
+    {
+     log().log(Level.WARNING, "Error releasing mapped image for file #" + version.getFileId(), ex);
+    }
+   if (null != original)
+    try { original.close(); }
+    catch (IOException ex)
+    {
+     log().log(Level.WARNING, "Error releasing mapped image of " + version, ex);
+    }
+   for (File spool : spools)
+    if (null != spool && !spool.delete())
+     log().warning("Could not delete temporary file " + spool);
    for (int i = handlerStatus.length; 0 < i--;)
    {
     if (null != pipes[i])
@@ -462,14 +574,120 @@ public class ImageBuilder extends Logging implements Closeable
 
  /**
   * Releases resources used by this instance's
-  * {@link #getThreadPool() thread pool}.
+  * {@link #getThreadPool() thread pool} and its cumulative delta,
+  * and detaches its {@link #setImageCache(ImageCache) image cache}
+  * from the database.
   */
  public void close()
  {
+  resetDelta();
+  if (null != imageCache)
+   try
+   {
+    db.findDAO(VersionDAO.class).removeVersionListener(imageCache);
+   }
+   catch (DBException e)
+   {
+    log().log(Level.FINE, "Could not detach the image cache from " + db, e);
+   }
   if (null != threadPool)
    threadPool.shutdown();
  }
 
+ /**
+  * Returns the minimum size of files compared using content-defined
+  * chunking, or <code>null</code> if chunking is disabled. Chunking
+  * is always disabled for encrypted databases, since it requires
+  * unencrypted copies of the images.
+  * @see #setChunkingThreshold(Long)
+  */
+ public Long getChunkingThreshold()
+ {
+  return db.isEncryptionEnabled() ? null : chunkingThreshold;
+ }
+
+ /**
+  * Selects the algorithm that {@link #buildDeltas} methods use to
+  * compare files. When either the new image or the image of the
+  * {@link #getVersion() base version} has at least the threshold
+  * number of bytes, the deltas are built by a
+  * {@link ChunkingDifferencer}. Both images are then
+  * {@link MappedByteSource memory-mapped}, which requires
+  * copying the base image and streamed images to temporary files.
+  * Otherwise, a {@link Differencer} is used. The threshold has no
+  * effect on encrypted databases.
+  * @param chunkingThreshold the minimum size of files to be compared
+  * using content-defined chunking, or <code>null</code> to disable
+  * chunking
+  * @see name.livitski.databag.app.Configuration#CHUNKING_THRESHOLD
+  */
+ public void setChunkingThreshold(Long chunkingThreshold)
+ {
+  this.chunkingThreshold = chunkingThreshold;
+ }
+
+ /**
+  * Returns the cache of reconstructed images used by this object,
+  * or <code>null</code> if images are not cached.
+  * @see #setImageCache(ImageCache)
+  */
+ public ImageCache getImageCache()
+ {
+  return imageCache;
+ }
+
+ /**
+  * Assigns a cache of reconstructed images. Images of versions
+  * that have no image stored in the database are then looked up
+  * in that cache before their delta chains are replayed, and
+  * stored there once they are built. The cache is notified of
+  * versions removed from this builder's database until the builder
+  * is {@link #close() closed}.
+  * @param imageCache the cache to use or <code>null</code> to
+  * disable caching
+  * @throws DBException if there is an error accessing the database
+  * @see name.livitski.databag.app.Configuration#IMAGE_CACHE_SIZE
+  */
+ public void setImageCache(ImageCache imageCache)
+ 	throws DBException
+ {
+  VersionDAO versionDAO = db.findDAO(VersionDAO.class);
+  if (null != this.imageCache)
+   versionDAO.removeVersionListener(this.imageCache);
+  this.imageCache = imageCache;
+  if (null != imageCache)
+   versionDAO.addVersionListener(imageCache);
+ }
+
+ /**
+  * Returns the object that this builder synchronizes on while it
+  * reads the database, or <code>null</code> if it does not.
+  * @see #setDatabaseLock(Object)
+  */
+ public Object getDatabaseLock()
+ {
+  return databaseLock;
+ }
+
+ /**
+  * Makes {@link #storeImage} methods hold a lock while they read
+  * the database. This allows builders that share a database manager
+  * to restore images in different threads. Since the image stream
+  * keeps reading the database until it is closed, the lock is held
+  * for the entire restore, so such builders restore one image at a
+  * time. Builders that read the database through
+  * {@link Manager#acquireReader() read-only connections} of their own
+  * need no lock.
+  * @param databaseLock the object to synchronize on, which must be
+  * the same for all builders that share the database manager, and
+  * must also be held by other threads that use the manager
+  * at the same time, or <code>null</code> to disable locking
+  */
+ public void setDatabaseLock(Object databaseLock)
+ {
+  this.databaseLock = databaseLock;
+ }
+
  /**
   * Creates an instance associated with a database.
   * The caller must {@link #close()} the instance
@@ -497,8 +715,14 @@ public class ImageBuilder extends Logging implements Closeable
   VersionDTO version = getVersion();
   if (version.isImageAvailable())
    image = db.findDAO(VersionDAO.class).retrieveImage(version);
-  else
+  else if (null == imageCache)
    image = buildCumulative();
+  else
+  {
+   image = imageCache.open(version, stats);
+   if (null == image)
+    image = imageCache.store(version, stats, buildCumulative());
+  }
   // TODO: call resetDelta() if/when using other image construction methods
   return image;
  }
@@ -510,23 +734,38 @@ public class ImageBuilder extends Logging implements Closeable
   final InputStream initial = db.findDAO(VersionDAO.class).retrieveImage(fullVersion);
   if (null == initial)
    throw new IllegalArgumentException("No image for " + fullVersion + " at the head of path");
+  File spooled = null;
+  MappedByteSource mapped = null;
   try {
    final Restorer worker = new Restorer();
    worker.setDelta(cumulativeDelta);
-   worker.setSource(new ByteInputStream(initial));
-   PipedInputStream image = new PipedInputStream();
-   final OutputStream pipe = new PipedOutputStream(image); 
+   if (cumulativeDelta.hasMoves())
+   {
+    // moved fragments require random access to the initial image
+    if (db.isEncryptionEnabled())
+     throw new IOException("Cannot restore " + getVersion() + " from an encrypted " + db
+       + " since it contains moved blocks, which would require an unencrypted copy of "
+       + fullVersion);
+    spooled = spool(initial);
+    mapped = MappedByteSource.open(spooled, Differencer.BUFFER_SIZE);
+    worker.setSource(mapped);
+   }
+   else
+    worker.setSource(new ByteInputStream(initial));
+   final File spool = spooled;
+   final MappedByteSource source = mapped;
+   final BlockPipe pipe = new BlockPipe();
    final Future<Object> monitor = getThreadPool().submit(
      new Callable<Object>() {
       public Object call() throws Exception
       {
        try {
-        worker.restore(new ByteOutputStream(pipe));
+        worker.restore(pipe.getSink());
         return null;
        }
        finally
        {
-	try { pipe.close(); }
+	try { pipe.getSink().close(); }
 	catch (Exception fail)
 	{
 	 log().log(Level.WARNING, "Restore pipe close failed for " + getVersion(), fail);
@@ -534,7 +773,7 @@ public class ImageBuilder extends Logging implements Closeable
        }
       }
      });
-   return new FilterInputStream(image)
+   return new FilterInputStream(pipe.getSource())
    {
     @Override
     public void close() throws IOException
@@ -575,25 +814,15 @@ public class ImageBuilder extends Logging implements Closeable
      }
      finally
      {
-      try
-      { initial.close(); }
-      catch (Exception fail)
-      {
-       log().log(Level.WARNING, "Image close failed for " + fullVersion, fail);
-      }
+      super.close();
+      releaseInitial(initial, source, spool);
      }
     }
    };
   }
   catch (Exception ex)
   {
-   try
-   {
-    initial.close();
-   } catch (Exception fail)
-   {
-    log().log(Level.WARNING, "Image close failed for " + fullVersion, fail);
-   }
+   releaseInitial(initial, mapped, spooled);
    if (ex instanceof IOException)
     throw (IOException) ex;
    else if (ex instanceof RuntimeException)
@@ -603,8 +832,79 @@ public class ImageBuilder extends Logging implements Closeable
   }
  }
 
+ private void releaseInitial(InputStream initial, MappedByteSource mapped, File spooled)
+ {
+  try
+  { initial.close(); }
+  catch (Exception fail)
+  {
+   log().log(Level.WARNING, "Image close failed for " + fullVersion, fail);
+  }
+  if (null != mapped)
+   try
+   { mapped.close(); }
+   catch (Exception fail)
+   {
+    log().log(Level.WARNING, "Could not release the copy of " + fullVersion, fail);
+   }
+  if (null != spooled && !spooled.delete())
+   log().warning("Could not delete temporary file " + spooled);
+ }
+
+ /**
+  * Builds the image of the attached version and copies it to
+  * a stream.
+  */
+ private void copyImage(OutputStream out)
+ 	throws IOException, DBException
+ {
+  InputStream image = null;
+  Logger log = log();
+  log.finer("Restoring image of " + getVersion() + " ...");
+  try
+  {
+   image = buildImage();
+   int count = 0;
+   for (byte[] buf = new byte[BUFFER_SIZE];;)
+   {
+    int read = image.read(buf);
+    if (0 > read)
+     break;
+    out.write(buf, 0, read);
+    count += read;
+   }
+   log.finer("Restored " + count + " byte(s)"); 
+  }
+  catch (Exception ex)
+  {
+   log.log(Level.SEVERE, "Error restoring " + getVersion(), ex);
+   if (ex instanceof IOException)
+    throw (IOException)ex;
+   if (ex instanceof DBException)
+    throw (DBException)ex;
+   if (ex instanceof RuntimeException)
+    throw (RuntimeException)ex;
+   else
+    throw new RuntimeException(ex);
+  }
+  finally
+  {
+   // Allow exception in close() to supersede initial exception
+   // as it will store status of asynchronous restore process
+   if (null != image)
+    image.close();
+  }
+ }
+
  private void resetDelta()
  {
+  if (null != cumulativeDelta)
+   try
+   { cumulativeDelta.close(); }
+   catch (Exception fail)
+   {
+    log().log(Level.WARNING, "Could not release the cumulative delta for " + fullVersion, fail);
+   }
   cumulativeDelta = null;
   fullVersion = null;
  }
@@ -612,9 +912,14 @@ public class ImageBuilder extends Logging implements Closeable
  private void accumulateDelta()
   throws DBException, IOException
  {
-  if (null == cumulativeDelta)
+  if (null != cumulativeDelta)
+   return;
+  boolean done = false;
+  try
   {
-   cumulativeDelta = new CumulativeDelta();
+   // the spool file is not encrypted
+   cumulativeDelta = db.isEncryptionEnabled() ? new CumulativeDelta()
+   	: new CumulativeDelta(CUMULATIVE_DELTA_SPILL_THRESHOLD);
    VersionDAO versionDAO = db.findDAO(VersionDAO.class);
    final List<VersionDTO> path = pathToImage();
    fullVersion = path.get(path.size()-1);
@@ -653,6 +958,7 @@ public class ImageBuilder extends Logging implements Closeable
      stats.addDeltaChainSize(versionDAO.retrieveDeltaSize(current, direction));
      EffectiveDelta link = DeltaLink.read(new ByteInputStream(common), new ByteInputStream(directional));
      cumulativeDelta.addPriorDelta(link);
+     stats.addDeltaChainLink();
      stats.setCumulativeDeltaSize(cumulativeDelta.getEstimatedSize());
     }
     catch (DeltaFormatException error)
@@ -676,6 +982,13 @@ public class ImageBuilder extends Logging implements Closeable
       }
     }
    }
+   done = true;
+  }
+  finally
+  {
+   // a partial delta must not be reused, and may have spilled to a file
+   if (!done)
+    resetDelta();
   }
  }
 
@@ -694,6 +1007,49 @@ public class ImageBuilder extends Logging implements Closeable
   return path;
  }
 
+ protected boolean isChunkingEnabled(long size1, long size2)
+ {
+  Long chunkingThreshold = getChunkingThreshold();
+  return null != chunkingThreshold
+   && (chunkingThreshold.longValue() <= size1 || chunkingThreshold.longValue() <= size2);
+ }
+
+ /**
+  * Copies a stream to a temporary file. The caller is responsible
+  * for deleting that file.
+  */
+ private File spool(InputStream in)
+ 	throws IOException
+ {
+  File file = File.createTempFile(SPOOL_PREFIX, null);
+  boolean done = false;
+  try
+  {
+   OutputStream out = new FileOutputStream(file);
+   try
+   {
+    for (byte[] buf = new byte[BUFFER_SIZE];;)
+    {
+     int read = in.read(buf);
+     if (0 > read)
+      break;
+     out.write(buf, 0, read);
+    }
+   }
+   finally
+   {
+    out.close();
+   }
+   done = true;
+   return file;
+  }
+  finally
+  {
+   if (!done && !file.delete())
+    log().warning("Could not delete temporary file " + file);
+  }
+ }
+
  protected ExecutorService getThreadPool()
  {
   if (null == threadPool || threadPool.isShutdown())
@@ -704,13 +1060,32 @@ public class ImageBuilder extends Logging implements Closeable
  /** Length of internal buffer used for image copying. */
  public static final int BUFFER_SIZE = 4096;
 
+ /**
+  * Minimum size of a local file, in bytes, that is
+  * {@link MappedByteSource memory-mapped} when building deltas.
+  * Smaller files are read through a buffer, since mapping them
+  * costs more than copying their contents.
+  */
+ public static final long MAPPING_THRESHOLD = 65536L;
+
+ /**
+  * Number of bytes of directional data that a {@link CumulativeDelta}
+  * keeps in memory before moving it to a temporary file. Cumulative
+  * deltas of encrypted databases are kept in memory regardless of
+  * their size.
+  */
+ public static final long CUMULATIVE_DELTA_SPILL_THRESHOLD = 8L << 20;
+
+ /** Name prefix of temporary files that store images for chunking. */
+ public static final String SPOOL_PREFIX = "databag";
+
  /** Number of auxiliary threads for binary image processing. */
  public static final int THREAD_POOL_SIZE = 1 + Delta.Type.values().length;
 
  /**
   * Timeout for image processing threads in {@link TimeUnit#MILLISECONDS milliseconds}.
-  * Must be more than a second to allow the other end of a disconnected pipe to react
-  * to a close.
+  * Allows a thread to finish storing the data it has received through
+  * a {@link BlockPipe} after the pipe is closed.
   */
  public static final long PIPE_EXIT_TIMEOUT = 5125L;
 
@@ -728,4 +1103,7 @@ public class ImageBuilder extends Logging implements Closeable
  private CumulativeDeltaStats stats;
  private CumulativeDelta cumulativeDelta;
  private VersionDTO fullVersion;
+ private Long chunkingThreshold;
+ private ImageCache imageCache;
+ private Object databaseLock;
 }
@@ -0,0 +1,424 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.app.sync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.logging.Level;
+
+import name.livitski.databag.db.schema.VersionDAO;
+import name.livitski.databag.db.schema.VersionDTO;
+import name.livitski.tools.Logging;
+
+/**
+ * Keeps recently reconstructed version images in a directory, so that
+ * repeated requests for the same {@link VersionDTO version} do not
+ * have to replay its delta chain. Each entry is a file named after
+ * the file and version ids of an image. Since version ids may be
+ * reused once a version is purged, an entry also records the size,
+ * modification time and digest of its version, and is only used
+ * for a version that has the same attributes. Entries of removed
+ * versions are deleted as the {@link VersionDAO} reports them.
+ * An entry also records the
+ * {@link CumulativeDeltaStats statistics} of the delta chain that
+ * the image was built from. When the total size of entries exceeds
+ * the {@link #getSizeLimit() size limit}, least recently used entries
+ * are deleted. Since the entries are plain files, their last
+ * modification times track their use, and the cache persists across
+ * sessions. Instances of this class do not keep any state other than
+ * their settings, so several instances may share a directory.
+ */
+public class ImageCache extends Logging implements VersionDAO.VersionListener
+{
+ /**
+  * Opens a cached image of a version.
+  * @param version the version to look up
+  * @param stats receives the statistics of the delta chain that
+  * the image has been built from
+  * @return the stream of image bytes, which the caller must close,
+  * or <code>null</code> if there is no valid cache entry for the
+  * version
+  */
+ public InputStream open(VersionDTO version, CumulativeDeltaStats stats)
+ {
+  File entry = entryFor(version);
+  if (!entry.isFile())
+   return null;
+  DataInputStream in = null;
+  try
+  {
+   in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry), ImageBuilder.BUFFER_SIZE));
+   if (ENTRY_MAGIC != in.readLong() || version.getSize() != in.readLong()
+     || modifiedTimeOf(version) != in.readLong())
+    throw new IOException("Invalid header of " + entry + " or it belongs to a different version");
+   byte[] digest = new byte[in.readInt()];
+   in.readFully(digest);
+   if (!Arrays.equals(digestOf(version), digest))
+    throw new IOException("Entry " + entry + " belongs to a different version");
+   if (entry.length() != headerSize(version) + version.getSize())
+    throw new IOException("Invalid size of " + entry);
+   stats.setDeltaChainSize(in.readLong());
+   stats.setCumulativeDeltaSize(in.readLong());
+   stats.setDeltaChainLength(in.readInt());
+   if (!entry.setLastModified(System.currentTimeMillis()))
+    log().finest("Could not update the timestamp of " + entry);
+   log().finer("Found cached image of " + version);
+   InputStream image = in;
+   in = null;
+   return image;
+  }
+  catch (Exception invalid)
+  {
+   log().log(Level.FINE, "Discarding cached image of " + version, invalid);
+   discard(entry);
+   return null;
+  }
+  finally
+  {
+   if (null != in)
+    try { in.close(); }
+    catch (IOException fail)
+    {
+     log().log(Level.FINE, "Close failed for " + entry, fail);
+    }
+  }
+ }
+
+ /**
+  * Wraps a stream of a reconstructed image so that its contents are
+  * copied to the cache as they are read. The entry is added to the
+  * cache when the wrapper is closed, provided that the image has
+  * been read to its end and the underlying stream closes normally.
+  * Images larger than the {@link #getSizeLimit() size limit} are
+  * not cached.
+  * @param version the version of the image
+  * @param stats the statistics of the delta chain that the image
+  * is built from
+  * @param image the stream of image bytes
+  * @return the stream that the caller should read and close instead
+  * of the argument
+  */
+ public InputStream store(VersionDTO version, CumulativeDeltaStats stats, InputStream image)
+ {
+  if (headerSize(version) + version.getSize() > sizeLimit)
+   return image;
+  try
+  {
+   return new Recorder(version, stats, image);
+  }
+  catch (IOException fail)
+  {
+   log().log(Level.FINE, "Could not cache the image of " + version, fail);
+   return image;
+  }
+ }
+
+ /**
+  * Deletes the cached image of a version that has been removed
+  * from the database, or whose deltas have been removed.
+  */
+ public void versionRemoved(VersionDTO version)
+ {
+  File entry = entryFor(version);
+  if (entry.exists() && discard(entry))
+   log().finer("Discarded cached image of removed " + version);
+ }
+
+ /**
+  * Returns the directory that stores cached images.
+  */
+ public File getDirectory()
+ {
+  return directory;
+ }
+
+ /**
+  * Returns the maximum total size of cached images, in bytes.
+  */
+ public long getSizeLimit()
+ {
+  return sizeLimit;
+ }
+
+ /**
+  * Creates an object that caches images in a directory.
+  * The directory is created when the first image is stored.
+  * @param directory location of the cache
+  * @param sizeLimit maximum total size of cached images, in bytes
+  */
+ public ImageCache(File directory, long sizeLimit)
+ {
+  if (0L >= sizeLimit)
+   throw new IllegalArgumentException("Image cache size limit must be positive, got " + sizeLimit);
+  this.directory = directory;
+  this.sizeLimit = sizeLimit;
+ }
+
+ /** Name of the cache directory within a bag's location. */
+ public static final String DIRECTORY_NAME = "images";
+
+ /** Name suffix of the cache entries. */
+ public static final String ENTRY_SUFFIX = ".image";
+
+ /**
+  * Age of an incomplete entry, in milliseconds, after which it is
+  * considered abandoned.
+  */
+ public static final long STALE_SPOOL_AGE = 24 * 3600000L;
+
+ protected File entryFor(VersionDTO version)
+ {
+  return new File(directory, version.getFileId() + "-" + version.getId() + ENTRY_SUFFIX);
+ }
+
+ /**
+  * Deletes least recently used entries until the total size
+  * of the cache is within its limit. Also deletes incomplete
+  * entries left over from earlier sessions.
+  */
+ protected synchronized void evict()
+ {
+  final long staleBefore = System.currentTimeMillis() - STALE_SPOOL_AGE;
+  File[] entries = directory.listFiles(new FileFilter() {
+   public boolean accept(File file)
+   {
+    String name = file.getName();
+    if (name.startsWith(ImageBuilder.SPOOL_PREFIX) && staleBefore > file.lastModified())
+     discard(file);
+    return file.isFile() && name.endsWith(ENTRY_SUFFIX);
+   }
+  });
+  if (null == entries)
+   return;
+  final long[] times = new long[entries.length];
+  long total = 0L;
+  Integer[] order = new Integer[entries.length];
+  for (int i = 0; i < entries.length; i++)
+  {
+   times[i] = entries[i].lastModified();
+   total += entries[i].length();
+   order[i] = i;
+  }
+  Arrays.sort(order, new Comparator<Integer>() {
+   public int compare(Integer i1, Integer i2)
+   {
+    return times[i1] < times[i2] ? -1 : times[i1] == times[i2] ? 0 : 1;
+   }
+  });
+  for (int i = 0; i < order.length && total > sizeLimit; i++)
+  {
+   File entry = entries[order[i]];
+   long length = entry.length();
+   if (discard(entry))
+   {
+    total -= length;
+    log().finest("Evicted " + entry + " from the image cache");
+   }
+  }
+ }
+
+ private static long headerSize(VersionDTO version)
+ {
+  return HEADER_SIZE + digestOf(version).length;
+ }
+
+ private static long modifiedTimeOf(VersionDTO version)
+ {
+  Timestamp modified = version.getModifiedTime();
+  return null == modified ? -1L : modified.getTime();
+ }
+
+ private static byte[] digestOf(VersionDTO version)
+ {
+  byte[] digest = version.getDigest();
+  return null == digest ? NO_DIGEST : digest;
+ }
+
+ private boolean discard(File file)
+ {
+  if (file.delete() || !file.exists())
+   return true;
+  log().warning("Could not delete cache file " + file);
+  return false;
+ }
+
+ private class Recorder extends FilterInputStream
+ {
+  @Override
+  public int read()
+  	throws IOException
+  {
+   int read = super.read();
+   if (0 > read)
+    complete = true;
+   else
+   {
+    single[0] = (byte)read;
+    record(single, 0, 1);
+   }
+   return read;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len)
+  	throws IOException
+  {
+   int read = super.read(b, off, len);
+   if (0 > read)
+    complete = true;
+   else
+    record(b, off, read);
+   return read;
+  }
+
+  @Override
+  public long skip(long n)
+  	throws IOException
+  {
+   // skipped data cannot be recorded
+   abandon();
+   return super.skip(n);
+  }
+
+  @Override
+  public boolean markSupported()
+  {
+   return false;
+  }
+
+  @Override
+  public void close()
+  	throws IOException
+  {
+   boolean closed = false;
+   try
+   {
+    super.close();
+    closed = true;
+   }
+   finally
+   {
+    finish(closed && complete && version.getSize() == count);
+   }
+  }
+
+  Recorder(VersionDTO version, CumulativeDeltaStats stats, InputStream image)
+  	throws IOException
+  {
+   super(image);
+   this.version = version;
+   if (!directory.isDirectory() && !directory.mkdirs())
+    throw new IOException("Could not create directory " + directory);
+   spool = File.createTempFile(ImageBuilder.SPOOL_PREFIX, null, directory);
+   try
+   {
+    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spool), ImageBuilder.BUFFER_SIZE));
+    out.writeLong(ENTRY_MAGIC);
+    out.writeLong(version.getSize());
+    out.writeLong(modifiedTimeOf(version));
+    byte[] digest = digestOf(version);
+    out.writeInt(digest.length);
+    out.write(digest);
+    out.writeLong(stats.getDeltaChainSize());
+    out.writeLong(stats.getCumulativeDeltaSize());
+    out.writeInt(stats.getDeltaChainLength());
+   }
+   catch (IOException fail)
+   {
+    finish(false);
+    throw fail;
+   }
+  }
+
+  private void record(byte[] b, int off, int len)
+  {
+   if (null == out)
+    return;
+   try
+   {
+    out.write(b, off, len);
+    count += len;
+   }
+   catch (IOException fail)
+   {
+    log().log(Level.FINE, "Could not cache the image of " + version, fail);
+    abandon();
+   }
+  }
+
+  private void abandon()
+  {
+   finish(false);
+  }
+
+  private void finish(boolean commit)
+  {
+   if (null == spool)
+    return;
+   try
+   {
+    if (null != out)
+     out.close();
+   }
+   catch (IOException fail)
+   {
+    log().log(Level.FINE, "Could not cache the image of " + version, fail);
+    commit = false;
+   }
+   out = null;
+   File entry = entryFor(version);
+   if (commit && (entry.delete() || !entry.exists()) && spool.renameTo(entry))
+   {
+    log().finer("Cached image of " + version);
+    evict();
+   }
+   else
+    discard(spool);
+   spool = null;
+  }
+
+  private VersionDTO version;
+  private File spool;
+  private DataOutputStream out;
+  private long count;
+  private boolean complete;
+  private byte[] single = new byte[1];
+ }
+
+ private static final long ENTRY_MAGIC = 0x64622D696D673033L;
+ /** Size of the header without the digest. */
+ private static final int HEADER_SIZE = 5 * 8 + 2 * 4;
+ private static final byte[] NO_DIGEST = {};
+
+ private File directory;
+ private long sizeLimit;
+}
@@ -0,0 +1,346 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.app.sync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import name.livitski.databag.diff.ChunkingDifferencer;
+import name.livitski.databag.diff.Differencer;
+import name.livitski.databag.diff.MappedByteSource;
+
+/**
+ * Snapshot of a local file's attributes taken before the file
+ * is synchronized with the shared medium. Instances of this class
+ * may be created on worker threads, since they do not access the
+ * database. A snapshot also keeps the {@link #getDigest() digest}
+ * of the file's contents once it has been computed.
+ * @see SyncPipeline
+ */
+public class LocalFileInfo
+{
+ /**
+  * Returns the absolute location of the local file.
+  */
+ public File getFile()
+ {
+  return file;
+ }
+
+ /**
+  * Tells whether the local file existed when this snapshot was taken.
+  */
+ public boolean exists()
+ {
+  return exists;
+ }
+
+ /**
+  * Tells whether the local path pointed to a directory when
+  * this snapshot was taken.
+  */
+ public boolean isDirectory()
+ {
+  return directory;
+ }
+
+ /**
+  * Returns the local file's size, in bytes, as of this snapshot.
+  */
+ public long getSize()
+ {
+  return size;
+ }
+
+ /**
+  * Returns the local file's modification time as of this snapshot,
+  * or <code>0L</code> if that time could not be determined.
+  * @see File#lastModified()
+  */
+ public long getModifiedTime()
+ {
+  return modifiedTime;
+ }
+
+ /**
+  * Returns this snapshot if the local file's modification time has
+  * not changed since it was taken, or a new snapshot otherwise. Costs
+  * a single file system query when the snapshot is still current.
+  */
+ public LocalFileInfo refresh()
+ {
+  return exists && modifiedTime == file.lastModified() ? this : new LocalFileInfo(file);
+ }
+
+ /**
+  * Tells whether the local file still has the size and modification
+  * time recorded in this snapshot. Costs two file system queries.
+  */
+ public boolean isCurrent()
+ {
+  if (!exists)
+   return !file.exists();
+  return modifiedTime == file.lastModified() && size == file.length();
+ }
+
+ /**
+  * Reads the local file ahead of its synchronization to compute the
+  * {@link #getDigest() digest} of its contents and, if the file is at
+  * least <code>chunkingThreshold</code> bytes long, to split it into
+  * {@link #getChunks() content-defined chunks}. This method does
+  * not access the database and is meant to be called on a worker
+  * thread. Does nothing for a directory or an absent file.
+  * @param chunkingThreshold the size of files that are compared using
+  * content-defined chunking, or <code>null</code> to compute the digest only
+  * @throws IOException if there is an error reading the file
+  * @see SyncPipeline.Task#prepare()
+  */
+ public void prepareContent(Long chunkingThreshold)
+ 	throws IOException
+ {
+  if (!exists || directory)
+   return;
+  if (null == chunkingThreshold || chunkingThreshold.longValue() > size || 0L == size)
+  {
+   computeDigest();
+   return;
+  }
+  MessageDigest md = newDigest();
+  MappedByteSource source = MappedByteSource.open(file, Differencer.BUFFER_SIZE);
+  try
+  {
+   source.setDigest(md);
+   ChunkingDifferencer.Fingerprint fingerprint = new ChunkingDifferencer().fingerprint(source);
+   source.finishDigest();
+   chunks = fingerprint;
+   digest = md.digest();
+  }
+  catch (InternalError fault)
+  {
+   // the file has been truncated while mapped
+   throw MappedByteSource.truncated(fault);
+  }
+  finally
+  {
+   source.close();
+  }
+ }
+
+ /**
+  * Returns the content-defined chunks of the local file computed by
+  * {@link #prepareContent(Long)}, or <code>null</code> if the file
+  * has not been split.
+  */
+ public ChunkingDifferencer.Fingerprint getChunks()
+ {
+  return chunks;
+ }
+
+ /**
+  * Returns the {@link #DIGEST_ALGORITHM digest} of the local file's
+  * contents if it has been computed, or <code>null</code> otherwise.
+  * The digest is computed when a stream returned by {@link #openStream()}
+  * reaches the end of file, or by {@link #computeDigest()}.
+  */
+ public byte[] getDigest()
+ {
+  return digest;
+ }
+
+ /**
+  * Stores the {@link #DIGEST_ALGORITHM digest} of the local file's
+  * contents computed by the caller.
+  */
+ void setDigest(byte[] digest)
+ {
+  this.digest = digest;
+ }
+
+ /**
+  * Returns the {@link #DIGEST_ALGORITHM digest} of the local file's
+  * contents, reading the file if the digest has not been computed yet.
+  * @throws IOException if there is an error reading the file
+  */
+ public byte[] computeDigest()
+ 	throws IOException
+ {
+  if (null == digest)
+  {
+   InputStream stream = openStream();
+   try
+   {
+    finishDigest(stream);
+   }
+   finally
+   {
+    stream.close();
+   }
+  }
+  return digest;
+ }
+
+ /**
+  * Opens the local file for reading and computes the
+  * {@link #DIGEST_ALGORITHM digest} of its contents as the
+  * stream is consumed. That allows callers to obtain the digest
+  * without reading the file again. Once the stream reaches the end of
+  * file, the digest becomes available from {@link #getDigest()}.
+  * If the digest has already been computed, the stream reads the
+  * file without computing it again.
+  * The caller is responsible for closing the stream.
+  * @throws IOException if the file cannot be opened
+  */
+ public InputStream openStream()
+ 	throws IOException
+ {
+  if (null != digest)
+   return new FileInputStream(file);
+  return new DigestInputStream(new FileInputStream(file), newDigest())
+  {
+   @Override
+   public int read() throws IOException
+   {
+    int b = super.read();
+    if (0 > b)
+     done();
+    return b;
+   }
+
+   @Override
+   public int read(byte[] b, int off, int len) throws IOException
+   {
+    int count = super.read(b, off, len);
+    if (0 > count)
+     done();
+    return count;
+   }
+
+   private void done()
+   {
+    if (!eof)
+    {
+     eof = true;
+     LocalFileInfo.this.digest = getMessageDigest().digest();
+    }
+   }
+
+   private boolean eof;
+  };
+ }
+
+ /**
+  * Reads the remainder of a stream returned by {@link #openStream()}
+  * and returns the digest of the file's contents.
+  * Does not close the stream.
+  * @param stream the stream returned by the last call to
+  * {@link #openStream()} on this object
+  * @throws IOException if there is an error reading the file
+  */
+ public byte[] finishDigest(InputStream stream)
+ 	throws IOException
+ {
+  byte[] buffer = null;
+  while (null == digest)
+  {
+   if (null == buffer)
+    buffer = new byte[BUFFER_SIZE];
+   if (0 > stream.read(buffer))
+    break;
+  }
+  return digest;
+ }
+
+ /**
+  * Creates an object that computes content digests of files
+  * stored on the shared medium.
+  * @see #DIGEST_ALGORITHM
+  */
+ public static MessageDigest newDigest()
+ {
+  try
+  {
+   return MessageDigest.getInstance(DIGEST_ALGORITHM);
+  }
+  catch (NoSuchAlgorithmException e)
+  {
+   throw new UnsupportedOperationException("Digest algorithm " + DIGEST_ALGORITHM
+     + " is not available", e);
+  }
+ }
+
+ /**
+  * Name of the algorithm used to compute content digests of files.
+  * Digests are stored with versions of shared files and must not
+  * exceed 64 bytes in length.
+  */
+ public static final String DIGEST_ALGORITHM = "SHA-256";
+
+ /**
+  * Size of the buffer used to read files when computing digests.
+  */
+ public static final int BUFFER_SIZE = 16384;
+
+ @Override
+ public String toString()
+ {
+  return "local file '" + file + "' (size = " + size + ", modified at "
+  	+ new java.util.Date(modifiedTime) + ")";
+ }
+
+ /**
+  * Reads attributes of a local file.
+  * @param file absolute location of the file
+  */
+ public LocalFileInfo(File file)
+ {
+  this.file = file;
+  this.exists = file.exists();
+  this.directory = exists && file.isDirectory();
+  this.size = exists ? file.length() : 0L;
+  this.modifiedTime = exists ? file.lastModified() : 0L;
+ }
+
+ /**
+  * Creates a snapshot of a regular file with attributes that
+  * the caller has read.
+  * @param file absolute location of the file
+  * @param size the file's size, in bytes
+  * @param modifiedTime the file's modification time
+  * @see DirectoryScanner
+  */
+ LocalFileInfo(File file, long size, long modifiedTime)
+ {
+  this.file = file;
+  this.exists = true;
+  this.size = size;
+  this.modifiedTime = modifiedTime;
+ }
+
+ private File file;
+ private boolean exists, directory;
+ private long size, modifiedTime;
+ private volatile byte[] digest;
+ private volatile ChunkingDifferencer.Fingerprint chunks;
+}
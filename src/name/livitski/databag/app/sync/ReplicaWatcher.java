@@ -0,0 +1,107 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.app.sync;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import name.livitski.tools.Logging;
+
+/**
+ * Reports changes to the files in a local directory tree, so that
+ * only the changed locations of a replica have to be
+ * {@link SyncService#synchronize(java.util.Collection, name.livitski.databag.app.filter.PathMatcher) synchronized}.
+ * The implementation relies on the file system notifications
+ * available since Java 7 and is compiled separately from the rest
+ * of the code. Use {@link #newInstance()} to find out whether it
+ * is available on the running platform.
+ * The caller must {@link #close()} a watcher when done using it.
+ */
+public abstract class ReplicaWatcher extends Logging implements Closeable
+{
+ /**
+  * Creates a watcher for the running platform.
+  * @return a new watcher or <code>null</code> if file system
+  * notifications are not supported by the running JVM
+  */
+ public static ReplicaWatcher newInstance()
+ {
+  Logger log = Logger.getLogger(ReplicaWatcher.class.getName());
+  try
+  {
+   return Class.forName(IMPLEMENTATION_CLASS).asSubclass(ReplicaWatcher.class).newInstance();
+  }
+  catch (ClassNotFoundException missing)
+  {
+   log.log(Level.FINE, "Replica watcher implementation is not available", missing);
+  }
+  catch (LinkageError unsupported)
+  {
+   log.log(Level.FINE, "Replica watcher is not supported by this JVM", unsupported);
+  }
+  catch (Exception failure)
+  {
+   log.log(Level.WARNING, "Could not create a replica watcher", failure);
+  }
+  return null;
+ }
+
+ /**
+  * Starts watching a directory and all its subdirectories, including
+  * those created later. Links to directories are not followed.
+  * This method may only be called once per instance.
+  * @param root the directory to watch
+  * @throws IOException if the directory cannot be watched
+  */
+ public abstract void watch(File root)
+ 	throws IOException;
+
+ /**
+  * Waits for changes to the {@link #watch(File) watched} directory
+  * tree and returns their locations. Once a change is reported,
+  * this method keeps collecting changes until none arrive for
+  * a quiet period, so that changes made in quick succession, such
+  * as the writes to a file being copied, are reported together.
+  * Each location is reported once per batch.
+  * @param timeout maximum number of milliseconds to wait for the
+  * first change
+  * @param quietPeriod number of milliseconds without changes that
+  * ends a batch
+  * @return paths to the changed files and directories relative to
+  * the root of the watched tree, an empty set if there were no
+  * changes within the timeout, or <code>null</code> if the
+  * notifications have been lost and the whole tree has to be
+  * scanned for changes
+  * @throws IOException if there is an error watching new directories
+  * @throws InterruptedException if the calling thread is interrupted
+  * while waiting
+  */
+ public abstract Set<File> awaitChanges(long timeout, long quietPeriod)
+ 	throws IOException, InterruptedException;
+
+ /**
+  * Name of the class that implements the watcher.
+  */
+ protected static final String IMPLEMENTATION_CLASS = "name.livitski.databag.app.sync.WatchServiceWatcher";
+}
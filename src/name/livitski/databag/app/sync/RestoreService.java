@@ -25,12 +25,22 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -115,6 +125,8 @@ public class RestoreService extends SyncRestoreHelper implements Closeable
     localFiles = scanLocal(pattern);
    PathFilter filter = getEffectiveFilter();
    NodeNameDAO nameDAO = db.findDAO(NodeNameDAO.class);
+   // resolve names of all restored files in memory
+   nameDAO.preload();
    VersionDAO versionDAO = db.findDAO(VersionDAO.class);
    Map<File, FileAndVersionDTO> versions = new HashMap<File, FileAndVersionDTO>();
    // retrieve file records at the restore point along with version records
@@ -160,7 +172,11 @@ public class RestoreService extends SyncRestoreHelper implements Closeable
    records.close();
    records = null;
    // for each version/file record stored, restore the file to that version
-   for (Map.Entry<File, FileAndVersionDTO> entry : versions.entrySet())
+   Integer threads = getParameterValue(Configuration.SYNC_THREADS);
+   if (null != threads && 1 < threads && 0 < db.getReaderCount()
+     && null != dest && null == canonicalPathInReplica(dest, null))
+    restoreConcurrently(versions, dest, threads);
+   else for (Map.Entry<File, FileAndVersionDTO> entry : versions.entrySet())
    {
     File path = entry.getKey();
     // prepare the target path for custom restore, none of the restored files may exist at the target
@@ -216,6 +232,147 @@ public class RestoreService extends SyncRestoreHelper implements Closeable
   }
  }
 
+ /**
+  * Restores files into a directory outside the current replica using
+  * a pool of threads. Since such restore does not update the shared
+  * storage, each file can be restored independently. All targets are
+  * checked and their directories created before any file is restored.
+  * Each thread uses an {@link ImageBuilder} of its own. Builders read
+  * the database through {@link Manager#acquireReader() read-only
+  * connections} while those are available. Other builders take turns
+  * {@link ImageBuilder#setDatabaseLock(Object) restoring images}
+  * through the shared manager. Callers should restore files one by one
+  * when the database has no {@link Manager#getReaderCount() read-only
+  * connections}, since all builders would then take turns. The first
+  * failure cancels the remaining restores. Read-only connections are
+  * returned once all threads have stopped; if some do not stop in time,
+  * these connections are left to be closed with the database.
+  * @param versions versions to restore keyed by their relative paths
+  * @param dest destination directory outside the current replica
+  * @param threads the number of threads to use
+  * @throws IllegalStateException if there is a file or directory at the
+  * location of a restored file
+  * @throws IOException if a directory could not be created, or there is
+  * an error reading or writing the file or version data streams
+  * @throws DBException if there is an error accessing database
+  */
+ protected void restoreConcurrently(Map<File, FileAndVersionDTO> versions, File dest, int threads)
+  throws Exception
+ {
+  final Logger log = log();
+  final Map<File, VersionDTO> targets = new TreeMap<File, VersionDTO>();
+  Set<File> directories = new TreeSet<File>();
+  for (Map.Entry<File, FileAndVersionDTO> entry : versions.entrySet())
+  {
+   File restoreTo = new File(dest, entry.getKey().getPath());
+   if (restoreTo.exists())
+    throw new IllegalStateException("Cannot restore file to '" + restoreTo
+      + "' because there already is a " + (restoreTo.isDirectory() ? "directory" : "file")
+      + " at that location.");
+   VersionDTO version = entry.getValue().getVersion();
+   if (version.isDeletionMark())
+    log.finer("Local file '" + restoreTo + "' does not exist, skipping deletion mark " + version);
+   else
+   {
+    targets.put(restoreTo, version);
+    directories.add(restoreTo.getAbsoluteFile().getParentFile());
+   }
+  }
+  // ancestors sort before their descendants
+  for (File location : directories)
+   if (!location.isDirectory() && !location.mkdirs())
+    throw new IOException("Could not create directory " + location);
+  if (threads > targets.size())
+   threads = targets.size();
+  final Object lock = new Object();
+  final BlockingQueue<ImageBuilder> builders = new LinkedBlockingQueue<ImageBuilder>();
+  List<ImageBuilder> allBuilders = new ArrayList<ImageBuilder>(threads);
+  List<Manager> readers = new ArrayList<Manager>();
+  ExecutorService pool = null;
+  try
+  {
+   Manager db = getDb();
+   int readerCount = Math.min(threads, db.getReaderCount());
+   for (int i = 0; threads > i; i++)
+   {
+    ImageBuilder builder;
+    if (readerCount > i)
+    {
+     Manager reader = db.acquireReader();
+     readers.add(reader);
+     builder = newImageBuilder(reader);
+    }
+    else
+    {
+     builder = newImageBuilder();
+     builder.setDatabaseLock(lock);
+    }
+    allBuilders.add(builder);
+    builders.add(builder);
+   }
+   pool = Executors.newFixedThreadPool(Math.max(threads, 1));
+   List<Future<?>> results = new ArrayList<Future<?>>(targets.size());
+   for (final Map.Entry<File, VersionDTO> target : targets.entrySet())
+    results.add(pool.submit(new Callable<Object>() {
+     public Object call() throws Exception
+     {
+      ImageBuilder builder = builders.take();
+      try
+      {
+       log.info("Restoring " + target.getValue() + " to " + target.getKey() + " ...");
+       builder.setVersion(target.getValue());
+       builder.storeImage(target.getKey());
+       return null;
+      }
+      finally
+      {
+       builders.add(builder);
+      }
+     }
+    }));
+   for (Future<?> result : results)
+    try
+    {
+     result.get();
+    }
+    catch (ExecutionException failure)
+    {
+     Throwable cause = failure.getCause();
+     if (cause instanceof Exception)
+      throw (Exception)cause;
+     else if (cause instanceof Error)
+      throw (Error)cause;
+     else
+      throw failure;
+    }
+  }
+  finally
+  {
+   boolean stopped = null == pool;
+   try
+   {
+    if (!stopped)
+    {
+     pool.shutdownNow();
+     stopped = pool.awaitTermination(ImageBuilder.PIPE_EXIT_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+   }
+   finally
+   {
+    for (ImageBuilder builder : allBuilders)
+     builder.close();
+    if (stopped)
+     for (Manager reader : readers)
+      reader.close();
+    else if (!readers.isEmpty())
+     log.warning("Restore threads did not stop in time, " + readers.size()
+       + " read-only connection(s) will remain open until the database is closed");
+    else
+     log.warning("Restore threads did not stop in time");
+   }
+  }
+ }
+
  /**
   * Restores a specific version of a shared file and writes it to
   * a local file. If no destination file is set, the restored
@@ -0,0 +1,188 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.app.sync;
+
+import java.io.Closeable;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+
+import name.livitski.tools.Logging;
+
+/**
+ * Splits synchronization of multiple files into two stages. The
+ * {@link Task#prepare() preparation stage} reads local files and
+ * runs on a bounded pool of worker threads. The
+ * {@link Task#commit() commit stage} accesses the database and
+ * runs on the thread that {@link #submit(Task) submits} tasks,
+ * in the order of submission. Since the database is accessed
+ * over a single connection, this arrangement guarantees that the
+ * shared medium is updated in the same order as it would be
+ * if files were processed one at a time.
+ * When the pipeline is created with a single thread, both stages
+ * run on the calling thread within the {@link #submit(Task)} call.
+ * The caller must {@link #close()} a pipeline when done using it.
+ */
+public class SyncPipeline extends Logging implements Closeable
+{
+ /**
+  * A unit of work submitted to the pipeline.
+  */
+ public interface Task
+ {
+  /**
+   * Performs the part of a task that does not access the database.
+   * May be called on a worker thread.
+   */
+  void prepare() throws Exception;
+
+  /**
+   * Completes the task after it has been {@link #prepare() prepared}.
+   * Always called on the thread that submitted the task.
+   */
+  void commit() throws Exception;
+ }
+
+ /**
+  * Submits a task to the pipeline. If the number of tasks waiting
+  * for the commit stage has reached its limit, commits the oldest
+  * pending tasks on the calling thread before returning.
+  * @param task the task to run
+  * @throws Exception if a pending task has failed at either stage
+  */
+ public void submit(final Task task)
+  throws Exception
+ {
+  if (null == executor)
+  {
+   task.prepare();
+   task.commit();
+   return;
+  }
+  while (pending.size() >= window)
+   commitNext();
+  pending.add(executor.submit(new Callable<Task>() {
+   public Task call() throws Exception
+   {
+    task.prepare();
+    return task;
+   }
+  }));
+ }
+
+ /**
+  * Commits all pending tasks on the calling thread.
+  * @throws Exception if a pending task has failed at either stage
+  */
+ public void flush()
+  throws Exception
+ {
+  while (!pending.isEmpty())
+   commitNext();
+ }
+
+ /**
+  * Cancels pending tasks, if any, and stops the worker threads.
+  */
+ public void close()
+ {
+  if (null != executor)
+  {
+   if (!pending.isEmpty())
+   {
+    log().fine("Cancelling " + pending.size() + " pending task(s)");
+    for (Future<Task> future; null != (future = pending.poll());)
+     future.cancel(true);
+   }
+   executor.shutdownNow();
+  }
+ }
+
+ /**
+  * Returns the number of threads that prepare tasks in this pipeline.
+  */
+ public int getThreadCount()
+ {
+  return threads;
+ }
+
+ /**
+  * Creates a pipeline.
+  * @param threads number of worker threads that will prepare tasks,
+  * values less than <code>2</code> make the pipeline run all tasks
+  * on the calling thread
+  */
+ public SyncPipeline(int threads)
+ {
+  if (1 < threads)
+  {
+   this.threads = threads;
+   this.window = WINDOW_FACTOR * threads;
+   this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+    public Thread newThread(Runnable r)
+    {
+     Thread thread = new Thread(r, "sync-worker-" + ++threadCount);
+     thread.setDaemon(true);
+     return thread;
+    }
+   });
+  }
+  else
+   this.threads = 1;
+ }
+
+ /**
+  * Number of tasks per worker thread that may await the commit stage.
+  */
+ public static final int WINDOW_FACTOR = 4;
+
+ protected void commitNext()
+  throws Exception
+ {
+  Future<Task> next = pending.remove();
+  Task task;
+  try
+  {
+   task = next.get();
+  }
+  catch (ExecutionException failure)
+  {
+   Throwable cause = failure.getCause();
+   log().log(Level.FINER, "Preparation failed for a synchronization task", cause);
+   if (cause instanceof Exception)
+    throw (Exception)cause;
+   else if (cause instanceof Error)
+    throw (Error)cause;
+   else
+    throw failure;
+  }
+  task.commit();
+ }
+
+ private int threads, window, threadCount;
+ private ExecutorService executor;
+ private Queue<Future<Task>> pending = new LinkedList<Future<Task>>();
+}
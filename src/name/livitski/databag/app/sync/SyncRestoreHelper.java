@@ -22,10 +22,11 @@ package name.livitski.databag.app.sync;
 import static name.livitski.databag.app.sync.ResolutionAction.*;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
 import java.sql.Timestamp;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
@@ -176,7 +177,10 @@ public abstract class SyncRestoreHelper extends ConfigurableService
   * First, determines the absolute path to the local replica of
   * that file. Then, calls {@link #analyzeFile(FileDTO, File)}
   * to determine an {@link ResolutionAction action to take}
-  * with respect to that file, and performs that action. When
+  * with respect to that file, and performs that action. The analysis
+  * is skipped if the local file has the same size and modification
+  * time as when it was last synchronized to the current version of
+  * the shared file. When
   * a file is replaced or becomes the new version on the shared
   * medium, {@link LastSyncDTO last synchronization records} are
   * updated.
@@ -189,14 +193,45 @@ public abstract class SyncRestoreHelper extends ConfigurableService
   * or the file record's information is inconsistent 
   */
  protected void syncToLocal(FileDTO record) throws IOException, DBException
+ {
+  syncToLocal(record, null);
+ }
+
+ /**
+  * Synchronizes the file denoted by a record in the shared storage
+  * with its respective location in
+  * {@link #getCurrentReplica() the current replica} using a snapshot
+  * of local file's attributes taken in advance.
+  * @param record shared storage record for the file to synchronize.
+  * @param prepared attributes of the local file at the record's location,
+  * or <code>null</code> to read them from the file system
+  * @see #syncToLocal(FileDTO)
+  * @see SyncPipeline
+  */
+ protected void syncToLocal(FileDTO record, LocalFileInfo prepared)
+ 	throws IOException, DBException
  {
    Manager db = getDb();
    Logger log = log();
-   File local = db.findDAO(NodeNameDAO.class).toLocalFile(record.getNameId(), replica.getPath());
+   File local = null == prepared
+   	? db.findDAO(NodeNameDAO.class).toLocalFile(record.getNameId(), replica.getPath())
+   	: prepared.getFile();
    VersionDAO versionDAO = db.findDAO(VersionDAO.class);
    LastSyncDAO syncDAO = db.findDAO(LastSyncDAO.class); 
    log.finest("Synchronizing " + record + " with " + local);
-   ResolutionAction action = analyzeFile(record, local);
+   if (null == prepared)
+    prepared = new LocalFileInfo(local);
+   ResolutionAction action;
+   // skip the analysis if the local file hasn't changed since its last sync to the current version
+   if (prepared.exists() && !prepared.isDirectory()
+     && syncDAO.isUnchangedSince(record.getId(), record.getCurrentVersionId(),
+       prepared.getSize(), prepared.getModifiedTime()))
+   {
+    log.finest("File " + local + " has not changed since its last synchronization");
+    action = NONE;
+   }
+   else
+    action = analyzeFile(record, prepared);
    switch(action)
    {
    case NONE:
@@ -206,7 +241,7 @@ public abstract class SyncRestoreHelper extends ConfigurableService
     VersionDTO version = versionDAO.findCurrentVersion(record);
     restoreVersion(version, local);
     // add/update a sync record during synchronization (set version=restored version)
-    syncDAO.recordSync(replica, version);
+    syncDAO.recordSync(replica, version, local.length(), new Timestamp(local.lastModified()));
     break;
    case UPDATE:
     if (local.isDirectory())
@@ -225,9 +260,14 @@ public abstract class SyncRestoreHelper extends ConfigurableService
  //   }
     else
     {
-     version = addVersion(record, local);
-     // add/update a sync record when a new version is created (set version=new version)
-     syncDAO.recordSync(replica, version);
+     int previous = record.getCurrentVersionId();
+     version = addVersion(record, prepared);
+     if (previous == version.getId())
+      // record the state of a file that has been touched, but not changed
+      syncDAO.recordSync(replica, version, prepared.getSize(), new Timestamp(prepared.getModifiedTime()));
+     else
+      // add/update a sync record when a new version is created (set version=new version)
+      syncDAO.recordSync(replica, version, version.getSize(), version.getModifiedTime());
     }
     break;
    case BRANCH: 
@@ -303,9 +343,18 @@ public abstract class SyncRestoreHelper extends ConfigurableService
   * data exceeds certain thresholds. On fallback, makes sure that version
   * graph for the file remains connected in both forward and reverse
   * directions. 
+  * If the local file turns out to have the same contents as the
+  * current version, no version is added. When the local file has
+  * the same size as the current version, its digest is computed,
+  * unless that has been done in advance, and compared before any
+  * deltas are built. Otherwise, the digest is computed while the
+  * deltas are built, so that a file that has changed its size is
+  * not read just to compare it. A file changed without changing its
+  * size is thus read twice.
   * @param record identifies a file on the shared medium
   * @param local points to the new version of the file
-  * @return database record for the newly created version
+  * @return database record for the newly created version, or the
+  * current version if the local file has the same contents
   * @throws DBException if there is an error accessing shared database
   * @throws IOException if there is an error reading the local
   * file, or reading or writing stream data to the medium
@@ -313,7 +362,21 @@ public abstract class SyncRestoreHelper extends ConfigurableService
  protected VersionDTO addVersion(FileDTO record, File local)
   throws DBException, IOException
  {
-  final long fileSize = local.length();
+  return addVersion(record, new LocalFileInfo(local));
+ }
+
+ /**
+  * Stores a new version of a file on the shared medium using a snapshot
+  * of the file's attributes. The {@link LocalFileInfo#getDigest() digest}
+  * of the new version is computed while its contents are streamed to the
+  * medium, and stored with the version record.
+  * @see #addVersion(FileDTO, File)
+  */
+ protected VersionDTO addVersion(FileDTO record, LocalFileInfo info)
+  throws DBException, IOException
+ {
+  final File local = info.getFile();
+  final long fileSize = info.getSize();
   Timestamp modifiedTime;
   final Logger log = log();
   ImageBuilder worker = getImageBuilder();
@@ -328,13 +391,22 @@ public abstract class SyncRestoreHelper extends ConfigurableService
    VersionDTO current = versionDAO.findCurrentVersion(record);
    if (current.isDeletionMark())
     throw new IllegalArgumentException("Cannot add a version derived from deletion mark: " + current);
+   // a file of the same size as the current version may have been
+   // touched, but not changed, so compare digests before building deltas
+   if (null == info.getDigest() && null != current.getDigest()
+     && current.getSize() == fileSize)
+    info.computeDigest();
+   if (isSameContent(info, current))
+   {
+    log.finer(local + " has the same contents as " + current);
+    return current;
+   }
    modifiedTime = adjustNewVersionTimestamp(local, record, current);
    worker.setVersion(current);
    final VersionDTO updated = new VersionDTO(record);
    updated.setBaseVersionId(current.getId());
    updated.setModifiedTime(modifiedTime);
    updated.setSize(fileSize);
-   // TODO: digest
    versionDAO.insert(updated);
    // end repeat statements
    boolean saved = false;
@@ -342,18 +414,30 @@ public abstract class SyncRestoreHelper extends ConfigurableService
    // generate deltas and compare stats to high thresholds
    try
    {
-    if (worker.buildDeltas(local, new ImageBuilder.DeltaStore() {
+    log.finer("Building deltas for " + local);
+    // reuse the digest and chunks computed in advance, if any
+    MessageDigest digest = null == info.getDigest() ? LocalFileInfo.newDigest() : null;
+    boolean built = worker.buildDeltas(local, digest, info.getChunks(), new ImageBuilder.DeltaStore() {
       public void saveDelta(Type type, InputStream stream) throws IOException,
         DBException
       {
        versionDAO.saveDelta(updated, stream, type);
       }
-     }))
+     });
+    if (built)
     {
+     if (null != digest)
+      info.setDigest(digest.digest());
      long heapSize = Runtime.getRuntime().totalMemory();
+     long chainSizeLimit = (long)(fileSize * (double) getParameterValue(Configuration.DELTA_CHAIN_SIZE));
+     Long keyframeBytes = getParameterValue(Configuration.KEYFRAME_CHAIN_BYTES);
+     if (null != keyframeBytes && 0L <= keyframeBytes && chainSizeLimit > keyframeBytes)
+      chainSizeLimit = keyframeBytes;
+     Integer keyframeInterval = getParameterValue(Configuration.KEYFRAME_INTERVAL);
      CumulativeDeltaStats threshold = new CumulativeDeltaStats(
-       (long)(fileSize * (double) getParameterValue(Configuration.DELTA_CHAIN_SIZE)),
-       (long)(heapSize * (double) getParameterValue(Configuration.CUMULATIVE_DELTA_SIZE))
+       chainSizeLimit,
+       (long)(heapSize * (double) getParameterValue(Configuration.CUMULATIVE_DELTA_SIZE)),
+       null == keyframeInterval || 0 >= keyframeInterval ? Integer.MAX_VALUE : keyframeInterval
        );
      // NOTE: order of comparison is significant in case of an integer overflow
      if (!worker.getCumulativeStats().exceeds(threshold))
@@ -372,8 +456,9 @@ public abstract class SyncRestoreHelper extends ConfigurableService
       else
       {
        log.fine("Saving complete image of " + local + " as " + updated +  " ...");
-       image = new FileInputStream(local);
+       image = info.openStream();
        versionDAO.saveImage(updated, image);
+       info.finishDigest(image);
        saved = true;
       }
      }
@@ -398,14 +483,16 @@ public abstract class SyncRestoreHelper extends ConfigurableService
     updated.setBaseVersionId(current.getId());
     updated.setModifiedTime(modifiedTime);
     updated.setSize(fileSize);
-    // TODO: digest
     versionDAO.insert(updated);
     // end repeat statements
     log.fine("No deltas have been generated for " + updated);
     // store complete images of both versions to preserve graph continuity
     log.fine("Saving complete image of " + updated + " ...");
-    image = new FileInputStream(local);
+    if (null != image)
+     image.close();
+    image = info.openStream();
     versionDAO.saveImage(updated, image);
+    info.finishDigest(image);
     if (!current.isImageAvailable())
     {
      InputStream currentImage = null;
@@ -423,6 +510,9 @@ public abstract class SyncRestoreHelper extends ConfigurableService
      }
     }
    }
+   updated.setDigest(info.getDigest());
+   if (null != updated.getDigest())
+    versionDAO.update(updated);
    record.setCurrentVersionId(updated.getId());
    fileDAO.update(record);
    txn.commit();
@@ -538,9 +628,22 @@ public abstract class SyncRestoreHelper extends ConfigurableService
  protected ResolutionAction analyzeFile(FileDTO file, File local)
  	throws IOException, DBException
  {
+  return analyzeFile(file, new LocalFileInfo(local));
+ }
+
+ /**
+  * Determines whether a local file is the new, current, or outdated
+  * version of a tracked file using a snapshot of its attributes.
+  * @see #analyzeFile(FileDTO, File)
+  */
+ protected ResolutionAction analyzeFile(FileDTO file, LocalFileInfo info)
+ 	throws IOException, DBException
+ {
+  File local = info.getFile();
   ResolutionAction action = resolutionActionForFile(file);
   VersionDTO match = null;
-  if (!local.exists())
+  boolean current = false;
+  if (!info.exists())
   {
    // file doesn't exist - safe to discard it
    action = DISCARD;
@@ -551,12 +654,29 @@ public abstract class SyncRestoreHelper extends ConfigurableService
    LastSyncDAO syncDAO = db.findDAO(LastSyncDAO.class); 
    NodeNameDTO name = db.findDAO(NodeNameDAO.class).find(file.getNameId());
    // look for matching version if local path points to a file
-   match = local.isDirectory() ? null : findMatchingVersion(local, name);
+   match = info.isDirectory() ? null : findMatchingVersion(info, name, false);
+   VersionDTO latest = null;
+   LastSyncDTO lastSync = null;
+   boolean update = false;
+   if (null == match)
+   {
+    latest = db.findDAO(VersionDAO.class).findCurrentVersion(file);
+    // the local file is a new version if it has a recent change and lastSync is current
+    lastSync = syncDAO.findRecord(file.getId(), replica);
+    update = null != lastSync && new Integer(latest.getId()).equals(lastSync.getVersionId())
+      && latest.getModifiedTime().getTime() < info.getModifiedTime();
+    // contents of a new version are compared with the current version as it is stored
+    if (!update && !info.isDirectory())
+     match = findMatchingContent(info, name);
+   }
    if (null != match)
    {
     if (match.getFileId() == file.getId() && match.getId() == file.getCurrentVersionId())
+    {
      // the file is current
      action = NONE;
+     current = true;
+    }
 // the following doesn't seem right - we should update replicas when there are no conflicts
 //    else if (NONE == action)
 //     // asked to keep stale versions 
@@ -569,25 +689,26 @@ public abstract class SyncRestoreHelper extends ConfigurableService
    }
    else // null == match
    {
-    // no match - find the most recent version
-    match = db.findDAO(VersionDAO.class).findCurrentVersion(file);
+    // no match - use the most recent version
+    match = latest;
     // add new version if the local file has a recent change and lastSync is current
-    LastSyncDTO lastSync = syncDAO.findRecord(file.getId(), replica);
-    if (null != lastSync && new Integer(match.getId()).equals(lastSync.getVersionId())
-      && match.getModifiedTime().getTime() < local.lastModified())
+    if (update)
      action = UPDATE;
     // raise a conflict otherwise if there are no specific instructions
     else if (UNKNOWN == action)
      throw new IllegalStateException(
        "Please specify how to resolve the conflict between local file "
-       + local + " (size = " + local.length() + ", modified at "
-       + new java.util.Date(local.lastModified()) + ") and " + match
+       + local + " (size = " + info.getSize() + ", modified at "
+       + new java.util.Date(info.getModifiedTime()) + ") and " + match
        + ". The file has "
        + (null == lastSync ? "no synchronization record for the current replica." : "a " + lastSync)
        );
    }
+   // record the state of a current file so that it can be skipped while it stays the same
+   if (current && 0L != info.getModifiedTime())
+    syncDAO.recordSync(replica, match, info.getSize(), new Timestamp(info.getModifiedTime()));
    // create sync records for skipped files during database migration
-   if (null != match && NONE == action)
+   else if (null != match && NONE == action)
    {
     // check whether a sync record exists in a migrated file storage
     if (!syncDAO.existsRecord(match.getFileId(), replica))
@@ -618,6 +739,9 @@ public abstract class SyncRestoreHelper extends ConfigurableService
   * {@link LastSyncDAO#findRecord(long, ReplicaDTO) last synced version}
   * of its respective file over a regular version. Third order of preference
   * is by the modification date, descending.  
+  * If no version has a matching timestamp, this method
+  * {@link #findMatchingContent compares content digests} of
+  * the local file and the live shared file's recent versions.
   * @param local the local file to find matching version of
   * @param name the name of a shared file to consider
   * @return matching version object or <code>null</code>
@@ -627,47 +751,125 @@ public abstract class SyncRestoreHelper extends ConfigurableService
   */
  protected VersionDTO findMatchingVersion(File local, NodeNameDTO name)
    throws DBException
+ {
+  return findMatchingVersion(new LocalFileInfo(local), name);
+ }
+
+ /**
+  * Looks up a match for a local file among named shared file's versions
+  * using a snapshot of that file's attributes.
+  * @see #findMatchingVersion(File, NodeNameDTO)
+  */
+ protected VersionDTO findMatchingVersion(LocalFileInfo local, NodeNameDTO name)
+   throws DBException
+ {
+  return findMatchingVersion(local, name, true);
+ }
+
+ /**
+  * Looks up a match for a local file among named shared file's versions,
+  * optionally skipping the comparison of content digests.
+  * @param compareContent whether to {@link #findMatchingContent compare
+  * content digests} if no version has a matching timestamp
+  * @see #findMatchingVersion(File, NodeNameDTO)
+  */
+ protected VersionDTO findMatchingVersion(LocalFileInfo local, NodeNameDTO name, boolean compareContent)
+   throws DBException
  {
   Manager db = getDb();
   VersionDAO versionDAO = db.findDAO(VersionDAO.class);
   FileDTO liveFile = versionDAO.findExistingFile(name);
-  // TODO: option for checking the digest instead of time (need hash index on digest)
   Cursor<VersionDTO> matches = versionDAO.findVersions(
     name,
-    local.length(),
-    local.lastModified(),
+    local.getSize(),
+    local.getModifiedTime(),
     getParameterValue(Configuration.ALLOWED_TIMESTAMP_DISCREPANCY)
   );
+  VersionDTO match = selectMatchingVersion(matches, liveFile);
+  // TODO: also try unlinked records from the LastSyncDAO, including a digest check
+  if (null == match && compareContent && null != liveFile)
+   match = findMatchingContent(local, name, liveFile);
+  return match;
+ }
+
+ /**
+  * Looks up a version of the live shared file with a specific name that
+  * has the same contents as a local file.
+  * @return matching version object or <code>null</code>
+  * if there is no match or no live file with that name
+  * @see #findMatchingContent(LocalFileInfo, NodeNameDTO, FileDTO)
+  */
+ protected VersionDTO findMatchingContent(LocalFileInfo local, NodeNameDTO name)
+   throws DBException
+ {
+  FileDTO liveFile = getDb().findDAO(VersionDAO.class).findExistingFile(name);
+  return null == liveFile ? null : findMatchingContent(local, name, liveFile);
+ }
+
+ /**
+  * Tells whether a local file has the same contents as a version,
+  * judging by a digest of the file that has already been computed.
+  * Returns <code>false</code> if the digest is not available.
+  */
+ protected static boolean isSameContent(LocalFileInfo local, VersionDTO version)
+ {
+  byte[] digest = local.getDigest();
+  return null != digest && null != version.getDigest() && !version.isDeletionMark()
+    && version.getSize() == local.getSize() && Arrays.equals(digest, version.getDigest());
+ }
+
+ /**
+  * Looks up a version of a live shared file that has the same contents
+  * as a local file, but a different timestamp. Only the file's
+  * {@link FileDTO#getCurrentVersionId() current version} or its
+  * {@link LastSyncDAO#findRecord(long, ReplicaDTO) last synced version}
+  * can match, thus a local file that has been touched, but not changed,
+  * since the last synchronization is not mistaken for a new version.
+  * The local file's {@link LocalFileInfo#computeDigest() digest} is
+  * computed only if the shared file's current version has a digest and
+  * the same size as the local file.
+  * @param local the local file to find matching version of
+  * @param name the name of a shared file to consider
+  * @param liveFile the existing shared file with that name
+  * @return matching version object or <code>null</code>
+  * if there is no match
+  * @throws DBException if there is an error accessing shared
+  * database
+  */
+ protected VersionDTO findMatchingContent(LocalFileInfo local, NodeNameDTO name, FileDTO liveFile)
+   throws DBException
+ {
+  VersionDAO versionDAO = getDb().findDAO(VersionDAO.class);
+  VersionDTO current = versionDAO.findCurrentVersion(liveFile);
+  if (null == current || current.isDeletionMark()
+    || null == current.getDigest() || current.getSize() != local.getSize())
+   return null;
+  byte[] digest;
+  try
+  {
+   digest = local.computeDigest();
+  }
+  catch (IOException ex)
+  {
+   log().log(Level.FINE, "Could not compute digest of " + local, ex);
+   return null;
+  }
+  Cursor<VersionDTO> matches = versionDAO.findVersions(name, local.getSize(), digest);
   VersionDTO match = null;
   try
   {
    for (VersionDTO candidate; null != (candidate = matches.next());)
    {
-    if (null == match)
-     match = candidate;
-    // TODO: better procedure for multiple match resolution (use hash or differencing)
-    else
+    if (candidate.getFileId() != liveFile.getId())
+     continue;
+    else if (candidate.getId() == liveFile.getCurrentVersionId())
     {
-     int order;
-     // Prefer versions of the live file
-     order = null != liveFile && match.getFileId() == liveFile.getId() ? 1 : 0;
-     order -= null != liveFile && candidate.getFileId() == liveFile.getId() ? 1 : 0;
-     // Then favor last synced versions
-     if (0 == order)
-     {
-      if (isLastSyncedVersion(match))
-       order = 1;
-      if (isLastSyncedVersion(candidate))
-       order -= 1;
-     }
-     // If all else fails, favor the most recent version
-     if (0 == order)
-      order = match.getModifiedTime().compareTo(candidate.getModifiedTime());
-     if (0 > order)
-      match = candidate;
+     match = candidate;
+     break;
     }
+    else if (null == match && isLastSyncedVersion(candidate))
+     match = candidate;
    }
-   // TODO: also try unlinked records from the LastSyncDAO, including a digest check
   }
   finally
   {
@@ -677,6 +879,8 @@ public abstract class SyncRestoreHelper extends ConfigurableService
     log().log(Level.FINE, "Error closing " + matches, ex);
    }
   }
+  if (null != match)
+   log().finer(local + " has the same contents as " + match);
   return match;
  }
 
@@ -706,17 +910,37 @@ public abstract class SyncRestoreHelper extends ConfigurableService
   */
  protected void addNewFile(File path, boolean deleteObsolete)
   throws IOException, DBException
+ {
+  addNewFile(path, null, deleteObsolete);
+ }
+
+ /**
+  * Places a new file into the shared storage using a snapshot of
+  * its attributes taken in advance.
+  * @param path relative path to the new file from the
+  * {@link ReplicaDTO#getPath() replica's root}. 
+  * @param prepared attributes of the local file at <code>path</code>,
+  * or <code>null</code> to read them from the file system
+  * @param deleteObsolete request to check whether the
+  * local file is an obsolete version of a deleted shared
+  * file and delete it if so
+  * @see #addNewFile(File, boolean)
+  * @see SyncPipeline
+  */
+ protected void addNewFile(File path, LocalFileInfo prepared, boolean deleteObsolete)
+  throws IOException, DBException
  {
   Manager db = getDb();
   Logger log = log();
-  File local = new File(replica.getPath(), path.getPath());
-  long time = local.lastModified();
-  long size = local.length();
-  // TODO: digest
+  if (null == prepared)
+   prepared = new LocalFileInfo(new File(replica.getPath(), path.getPath()));
+  File local = prepared.getFile();
+  long time = prepared.getModifiedTime();
+  long size = prepared.getSize();
   if (0L == time)
    throw new IOException("Could not read attributes of file " + local);
   Timestamp timestamp = new Timestamp(time);
-  FileInputStream image = null;
+  InputStream image = null;
   NodeNameDAO nameDAO = db.findDAO(NodeNameDAO.class);
   FileDAO fileDAO = db.findDAO(FileDAO.class);
   VersionDAO versionDAO = db.findDAO(VersionDAO.class);
@@ -732,7 +956,7 @@ public abstract class SyncRestoreHelper extends ConfigurableService
    // check whether the file is obsolete and should be deleted instead
    if (deleteObsolete)
    {
-    VersionDTO version = findMatchingVersion(local, node);
+    VersionDTO version = findMatchingVersion(prepared, node);
     if (null != version)
     {
      FileDTO other = fileDAO.findFile(version.getFileId());
@@ -778,14 +1002,16 @@ public abstract class SyncRestoreHelper extends ConfigurableService
     VersionDTO version = new VersionDTO(file);
     version.setModifiedTime(timestamp);
     version.setSize(size);
-    // TODO: digest
     versionDAO.insert(version);
-    image = new FileInputStream(local);
+    image = prepared.openStream();
     versionDAO.saveImage(version, image);
+    version.setDigest(prepared.finishDigest(image));
+    if (null != version.getDigest())
+     versionDAO.update(version);
     file.setCurrentVersionId(version.getId());
     fileDAO.update(file);
     // add a sync record when a file is added to shared storage
-    syncDAO.recordSync(replica, version);
+    syncDAO.recordSync(replica, version, size, timestamp);
    }
    txn.commit();
    txn = null;
@@ -921,13 +1147,84 @@ public abstract class SyncRestoreHelper extends ConfigurableService
   * @see DirectoryScanner
   */
  protected Set<File> scanLocal(PathMatcher pattern) throws IOException, DBException
+ {
+  DirectoryScanner scanner = newScanner(pattern);
+  scanner.scan();
+  return scanner.getFiles();
+ }
+
+ /**
+  * Creates a scanner for files of the current replica that match the
+  * {@link #getEffectiveFilter() effective filter} and an optional pattern.
+  * The scanner uses as many threads as {@link Configuration#SYNC_THREADS}
+  * allows.
+  * @param pattern the pattern to match or <code>null</code> to match
+  * all files that pass the effective filter
+  * @throws IOException if the replica's root is not accessible
+  * @throws DBException if there is an error retrieving the effective filter
+  * @see #scanLocal(PathMatcher)
+  */
+ protected DirectoryScanner newScanner(PathMatcher pattern) throws IOException, DBException
  {
   File root = getReplicaRoot();
-  DirectoryScanner scanner = new DirectoryScanner(root);
+  DirectoryScanner scanner = DirectoryScanner.newInstance(root);
   scanner.setPattern(pattern);
   scanner.setFilter(getEffectiveFilter());
-  scanner.scan();
-  return scanner.getFiles();
+  Integer threads = getParameterValue(Configuration.SYNC_THREADS);
+  if (null != threads && 1 < threads)
+   scanner.setThreadCount(threads);
+  return scanner;
+ }
+
+ /**
+  * Chooses the preferred match among versions that match a local file.
+  * Prefers matches of existing file's versions to those of deleted files.
+  * Second order of preference is a last synced version of its respective
+  * file over a regular version. Third order of preference is by the
+  * modification date, descending. Closes the cursor when done.
+  */
+ private VersionDTO selectMatchingVersion(Cursor<VersionDTO> matches, FileDTO liveFile)
+   throws DBException
+ {
+  VersionDTO match = null;
+  try
+  {
+   for (VersionDTO candidate; null != (candidate = matches.next());)
+   {
+    if (null == match)
+     match = candidate;
+    // TODO: better procedure for multiple match resolution (use hash or differencing)
+    else
+    {
+     int order;
+     // Prefer versions of the live file
+     order = null != liveFile && match.getFileId() == liveFile.getId() ? 1 : 0;
+     order -= null != liveFile && candidate.getFileId() == liveFile.getId() ? 1 : 0;
+     // Then favor last synced versions
+     if (0 == order)
+     {
+      if (isLastSyncedVersion(match))
+       order = 1;
+      if (isLastSyncedVersion(candidate))
+       order -= 1;
+     }
+     // If all else fails, favor the most recent version
+     if (0 == order)
+      order = match.getModifiedTime().compareTo(candidate.getModifiedTime());
+     if (0 > order)
+      match = candidate;
+    }
+   }
+  }
+  finally
+  {
+   try { matches.close(); }
+   catch (Exception ex)
+   {
+    log().log(Level.FINE, "Error closing " + matches, ex);
+   }
+  }
+  return match;
  }
 
  /**
@@ -22,7 +22,14 @@ package name.livitski.databag.app.sync;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
@@ -35,11 +42,13 @@ import name.livitski.databag.app.filter.PathMatcher;
 import name.livitski.databag.db.Cursor;
 import name.livitski.databag.db.DBException;
 import name.livitski.databag.db.Manager;
+import name.livitski.databag.db.Transaction;
 import name.livitski.databag.db.schema.FileDAO;
 import name.livitski.databag.db.schema.FileDTO;
 import name.livitski.databag.db.schema.LastSyncDAO;
 import name.livitski.databag.db.schema.LastSyncDTO;
 import name.livitski.databag.db.schema.NodeNameDAO;
+import name.livitski.databag.db.schema.NodeNameDTO;
 import name.livitski.databag.db.schema.ReplicaDTO;
 import name.livitski.databag.db.schema.SyncLogDAO;
 import name.livitski.databag.db.schema.VersionDAO;
@@ -86,6 +95,20 @@ public class SyncService extends SyncRestoreHelper implements Closeable
   * paths point to. When this method succeeds or aborts, it
   * {@link SyncLogDAO#updateStatus updates the status}
   * of its log record created in the beginning to reflect its result.
+  * When the {@link Configuration#SYNC_THREADS} parameter is greater
+  * than one, attributes of local files are read by a
+  * {@link SyncPipeline pool of worker threads} ahead of processing,
+  * while the database is updated on the calling thread in the same
+  * order as it would be with a single thread.
+  * When the {@link Configuration#STREAMING_SYNC} parameter is set,
+  * the local directory tree and the tree of names in the shared
+  * storage are {@link TreeWalk walked together} instead, one directory
+  * at a time, and known files are synchronized as they are found.
+  * Paths of new files are still collected and added after that.
+  * The sizes and modification times that local files had when they
+  * were last synchronized are {@link LastSyncDAO#preloadStates loaded}
+  * in advance, and files that have not changed since are skipped
+  * without further analysis.
   * @param pattern an optional pattern to match when choosing files to restore,
   * <code>null</code> to match all files that match the
   * {@link #getEffectiveFilter() effective filter} 
@@ -109,6 +132,7 @@ public class SyncService extends SyncRestoreHelper implements Closeable
    params = Collections.singletonMap("pattern", pattern.toString());
   startOperation(SYNC_MANY_OPERATION, params, true);
   Cursor<FileDTO> cfiles = null;
+  SyncPipeline pipeline = null;
   Throwable status = null;
   try
   {
@@ -117,35 +141,62 @@ public class SyncService extends SyncRestoreHelper implements Closeable
    log.info("Synchronizing " + replica + " with " + db 
      + " using " + effectiveFilterSpec + " ...");
    log.fine("Synchronization started on " + getOperationTimestamp());
-   // enumerate local files
-   Set<File> locals = scanLocal(pattern);
-   log.finer("Found " + locals.size() + " local file(s) in " + replica);
-   PathFilter filter = getEffectiveFilter();
-   NodeNameDAO nameDAO = db.findDAO(NodeNameDAO.class);
-   cfiles = db.findDAO(VersionDAO.class).fetchAllExistingFiles();
-   // sync known files first
-   String[][] splitPathRef = { null };
-   // NOTE: the cursor remains open throughout the operation. The file records may not be added here.
-   for (FileDTO record; null != (record = cfiles.next());)
+   pipeline = new SyncPipeline(getParameterValue(Configuration.SYNC_THREADS));
+   if (1 < pipeline.getThreadCount())
    {
-    File path = nameDAO.toLocalFile(record.getNameId(), splitPathRef);
-    if ((null == pattern || pattern.pathMatches(splitPathRef[0])) && filter.pathMatches(splitPathRef[0]))
+    log.fine("Reading local files with " + pipeline.getThreadCount() + " threads");
+    readAhead = true;
+   }
+   // load the state of local files as of their last synchronization
+   db.findDAO(LastSyncDAO.class).preloadStates(replica);
+   File root = new File(replica.getPath());
+   newFileBatch = new NewFileBatch();
+   if (Boolean.TRUE.equals(getParameterValue(Configuration.STREAMING_SYNC)))
+   {
+    log.fine("Walking " + replica + " one directory at a time");
+    TreeWalk walk = new TreeWalk(pattern, pipeline);
+    walk.walk(getReplicaRoot(), null, 0L);
+    log.finer("Found " + walk.localCount + " local file(s) in " + replica);
+   }
+   else
+   {
+    // enumerate local files
+    DirectoryScanner scanner = newScanner(pattern);
+    scanner.scan();
+    Set<File> scanned = scanner.getFiles();
+    log.finer("Found " + scanned.size() + " local file(s) in " + replica);
+    PathFilter filter = getEffectiveFilter();
+    NodeNameDAO nameDAO = db.findDAO(NodeNameDAO.class);
+    // resolve names of all known files in memory
+    nameDAO.preload();
+    cfiles = db.findDAO(VersionDAO.class).fetchAllExistingFiles();
+    // sync known files first
+    String[][] splitPathRef = { null };
+    // NOTE: the cursor remains open throughout the operation. The file records may not be added here.
+    for (FileDTO record; null != (record = cfiles.next());)
     {
-     if (locals.contains(path))
+     File path = nameDAO.toLocalFile(record.getNameId(), splitPathRef);
+     if ((null == pattern || pattern.pathMatches(splitPathRef[0])) && filter.pathMatches(splitPathRef[0]))
      {
-      // synchronize file
-      syncToLocal(record);
-      locals.remove(path);
+      LocalFileInfo info = scanner.getFileInfo(path);
+      if (scanned.remove(path))
+       // synchronize file
+       pipeline.submit(new SyncTask(record, new File(root, path.getPath()), info));
+      else
+       pipeline.submit(new AbsentLocalTask(record, path));
      }
-     else
-      syncAbsentLocal(record, path);
     }
+    pipeline.flush();
+    cfiles.close();
+    cfiles = null;
+    // add new files
+    for (File path : scanned)
+     pipeline.submit(new NewFileTask(path, new File(root, path.getPath()),
+       scanner.getFileInfo(path)));
    }
-   cfiles.close();
-   cfiles = null;
-   // add new files
-   for (File path : locals)
-    addNewFile(path, true);
+   pipeline.flush();
+   newFileBatch.commit();
+   newFileBatch.checkFailures();
   }
   catch (Throwable abort)
   {
@@ -153,6 +204,20 @@ public class SyncService extends SyncRestoreHelper implements Closeable
   }
   finally
   {
+   if (null != pipeline)
+    pipeline.close();
+   readAhead = false;
+   if (null != newFileBatch)
+   {
+    // keep the files added before a failure
+    try { newFileBatch.commit(); }
+    catch (Throwable e)
+    {
+     log.log(Level.WARNING, "Could not store a batch of new files in " + db, e);
+    }
+    newFileBatch = null;
+   }
+   db.findDAO(LastSyncDAO.class).discardPreloadedStates();
    if (null != cfiles)
     try { cfiles.close(); }
     catch (Throwable e)
@@ -205,6 +270,82 @@ public class SyncService extends SyncRestoreHelper implements Closeable
   }
 }
 
+ /**
+  * Synchronizes the files at specific locations in the current
+  * replica, such as the locations of changes reported by a
+  * {@link ReplicaWatcher}. Each location may point to a file or a
+  * directory, which need not exist either locally or on the shared
+  * medium. Known files at those locations and within those
+  * directories are synchronized as they would be by
+  * {@link #synchronize(Number)}, and local files that are not
+  * tracked yet are added to the shared medium. Both kinds of files
+  * must match the {@link #getEffectiveFilter() effective filter}
+  * and the pattern, if any. Files at other locations are not
+  * examined.
+  * @param paths locations to synchronize, relative to the
+  * replica's root
+  * @param pattern an optional pattern to match, <code>null</code>
+  * to match all files that match the effective filter
+  * @see TreeWalk#visit(File)
+  * @see #synchronize(PathMatcher)
+  */
+ public void synchronize(Collection<File> paths, PathMatcher pattern)
+  throws Exception
+ {
+  Logger log = log();
+  Manager db = getDb();
+  Map<String, String> params = new HashMap<String, String>();
+  params.put("locations", String.valueOf(paths.size()));
+  if (null != pattern)
+   params.put("pattern", pattern.toString());
+  startOperation(SYNC_CHANGES_OPERATION, params, true);
+  SyncPipeline pipeline = null;
+  Throwable status = null;
+  try
+  {
+   File root = getReplicaRoot();
+   log.info("Synchronizing " + paths.size() + " location(s) in replica '" + root + "' ...");
+   pipeline = new SyncPipeline(getParameterValue(Configuration.SYNC_THREADS));
+   readAhead = 1 < pipeline.getThreadCount();
+   TreeWalk walk = new TreeWalk(pattern, pipeline);
+   newFileBatch = new NewFileBatch();
+   // a location within another one is visited with its ancestor
+   Set<File> visited = new HashSet<File>();
+   for (File path : paths)
+   {
+    boolean nested = false;
+    for (File ancestor = path.getParentFile(); null != ancestor && !nested; ancestor = ancestor.getParentFile())
+     nested = paths.contains(ancestor);
+    if (!nested && visited.add(path))
+     walk.visit(path);
+   }
+   pipeline.flush();
+   newFileBatch.commit();
+   newFileBatch.checkFailures();
+  }
+  catch (Throwable abort)
+  {
+   rethrowAnyException(status = abort);
+  }
+  finally
+  {
+   if (null != pipeline)
+    pipeline.close();
+   readAhead = false;
+   if (null != newFileBatch)
+   {
+    // keep the files added before a failure
+    try { newFileBatch.commit(); }
+    catch (Throwable e)
+    {
+     log.log(Level.WARNING, "Could not store a batch of new files in " + db, e);
+    }
+    newFileBatch = null;
+   }
+   endOperation(status);
+  }
+ }
+
  /**
   * Creates an instance associated with a replica in a database.
   * The caller must {@link #close()} the instance when done using it or aborted.
@@ -220,6 +361,7 @@ public class SyncService extends SyncRestoreHelper implements Closeable
 
  public static final String SYNC_MANY_OPERATION = "sync_many";
  public static final String SYNC_ONE_OPERATION = "sync_one_shared";
+ public static final String SYNC_CHANGES_OPERATION = "sync_changes";
 
  /**
   * Synchronizes a shared file with a location in the current replica,
@@ -297,6 +439,529 @@ public class SyncService extends SyncRestoreHelper implements Closeable
   }
  }
 
+ /**
+  * Synchronizes a tracked file that exists in the current replica.
+  */
+ protected class SyncTask implements SyncPipeline.Task
+ {
+  /**
+   * Takes a snapshot of the local file. When reading ahead, also
+   * computes the digest and chunks of the file unless it has the size
+   * and modification time recorded at its last synchronization.
+   */
+  public void prepare()
+  {
+   info = null == info ? new LocalFileInfo(local) : info.refresh();
+   if (readContent && info.exists() && !info.isDirectory()
+     && (null == lastState || lastState[0] != info.getSize() || lastState[1] != info.getModifiedTime()))
+    try
+    {
+     info.prepareContent(chunkingThreshold);
+    }
+    catch (IOException e)
+    {
+     // let the commit stage read the file and report the problem
+     log().log(Level.FINE, "Could not read ahead " + info, e);
+    }
+  }
+
+  public void commit() throws IOException, DBException
+  {
+   // discard the results of reading ahead if the file has changed since
+   if (readContent && !info.isCurrent())
+    info = new LocalFileInfo(local);
+   endNewFileBatch();
+   syncToLocal(record, info);
+  }
+
+  public SyncTask(FileDTO record, File local)
+   throws DBException
+  {
+   this(record, local, null);
+  }
+
+  /**
+   * Creates a task that reuses the attributes of the local file
+   * read by a {@link DirectoryScanner}, unless the file has changed
+   * since.
+   */
+  public SyncTask(FileDTO record, File local, LocalFileInfo scanned)
+   throws DBException
+  {
+   this.record = record;
+   this.local = local;
+   this.info = scanned;
+   this.readContent = readAhead;
+   if (readAhead)
+   {
+    this.lastState = getDb().findDAO(LastSyncDAO.class)
+      .findPreloadedState(record.getId(), record.getCurrentVersionId());
+    this.chunkingThreshold = getImageBuilder().getChunkingThreshold();
+   }
+  }
+
+  private FileDTO record;
+  private File local;
+  private LocalFileInfo info;
+  private final boolean readContent;
+  private long[] lastState;
+  private Long chunkingThreshold;
+ }
+
+ /**
+  * Synchronizes a tracked file that is absent from the current replica.
+  */
+ protected class AbsentLocalTask implements SyncPipeline.Task
+ {
+  public void prepare()
+  {
+  }
+
+  public void commit() throws IOException, DBException
+  {
+   endNewFileBatch();
+   syncAbsentLocal(record, path);
+  }
+
+  public AbsentLocalTask(FileDTO record, File path)
+  {
+   this.record = record;
+   this.path = path;
+  }
+
+  private FileDTO record;
+  private File path;
+ }
+
+ /**
+  * Walks the local directory tree of the current replica along with
+  * the tree of names in the shared storage. Entries of each local
+  * directory and the children of the matching naming node are sorted
+  * by name and merged, so that only the directories on the current
+  * path are held in memory. Files found during the walk are submitted
+  * to the pipeline right away, known files for synchronization and new
+  * files to be added. A new file is submitted after the entries below
+  * its location in the shared storage, so that they are marked deleted
+  * before the file is added. Directories that exist only in
+  * the shared storage are walked to find the files deleted from the
+  * replica. Links to ancestor directories are not followed.
+  * Directories that cannot contain files that pass the filter and
+  * match the pattern are skipped.
+  * Entries at {@link #visit(File) arbitrary locations} can be
+  * handled the same way, along with their descendants.
+  */
+ protected class TreeWalk
+ {
+  /**
+   * Walks a directory and its descendants.
+   * @param dir the local directory or <code>null</code> if there is
+   * no such directory in the replica
+   * @param path relative path to the directory, <code>null</code>
+   * for the replica's root
+   * @param nameId id of the directory's naming node, <code>0L</code>
+   * for the replica's root, or <code>null</code> if the directory
+   * has no name in the shared storage
+   */
+  public void walk(File dir, File path, Long nameId)
+  	throws Exception
+  {
+   String[] locals = null;
+   File canonical = null;
+   if (null != dir)
+   {
+    // Prevent endless recursion due to symlinks
+    canonical = dir.getCanonicalFile();
+    if (ancestors.add(canonical))
+     locals = dir.list();
+    else
+     canonical = null;
+   }
+   if (null == locals)
+    locals = NO_NAMES;
+   Arrays.sort(locals);
+   List<NodeNameDTO> names = Collections.emptyList();
+   Map<Long, List<FileDTO>> files = Collections.emptyMap();
+   if (null != nameId)
+   {
+    names = nameDAO.listChildren(nameId);
+    // sort names the same way as local entries
+    Collections.sort(names, BY_RELATIVE_NAME);
+    if (!names.isEmpty())
+     files = existingFiles(nameId);
+   }
+   for (int i = 0, j = 0; i < locals.length || j < names.size();)
+   {
+    String localName = i < locals.length ? locals[i] : null;
+    NodeNameDTO node = j < names.size() ? names.get(j) : null;
+    int order = null == localName ? 1 : null == node ? -1
+      : localName.compareTo(node.getRelativeName());
+    if (0 < order)
+     localName = null;
+    else
+     i++;
+    if (0 > order)
+     node = null;
+    else
+     j++;
+    String name = null == localName ? node.getRelativeName() : localName;
+    visit(null == localName ? null : new File(dir, name), new File(path, name), name,
+      node, null == node ? null : files.get(node.getId()));
+   }
+   if (null != canonical)
+    ancestors.remove(canonical);
+  }
+
+  /**
+   * Visits an entry at an arbitrary location in the replica, walking
+   * its descendants if it is a directory either in the replica or in
+   * the shared storage. Entries that do not exist in either place
+   * are ignored.
+   * @param path relative path to the entry
+   */
+  public void visit(File path)
+  	throws Exception
+  {
+   String[] split = PathMatcher.splitRelativeFile(path);
+   splitPath.clear();
+   splitPath.addAll(Arrays.asList(split).subList(0, split.length - 1));
+   ancestors.clear();
+   File local = new File(getReplicaRoot(), path.getPath());
+   NodeNameDTO node = nameDAO.find(path, false);
+   List<FileDTO> records = null;
+   if (null != node)
+    records = existingFiles(node.getParentId()).get(node.getId());
+   visit(local.exists() ? local : null, path, split[split.length - 1], node, records);
+  }
+
+  /**
+   * Synchronizes an entry of a directory being walked, then walks the
+   * entry if it is a directory, or adds it if it is a new file.
+   * @param local the local file or directory, <code>null</code> if
+   * there is no such entry in the replica
+   * @param childPath relative path to the entry
+   * @param name name of the entry
+   * @param node naming node of the entry in the shared storage,
+   * <code>null</code> if there is no such node
+   * @param records existing shared files with the entry's name,
+   * <code>null</code> if there are none
+   */
+  protected void visit(File local, File childPath, String name, NodeNameDTO node, List<FileDTO> records)
+  	throws Exception
+  {
+   boolean directory = null != local && local.isDirectory();
+   boolean newFile = false;
+   splitPath.add(name);
+   String[] splitPathArray = splitPath.toArray(NO_NAMES);
+   if ((null == pattern || pattern.pathMatches(splitPathArray)) && filter.pathMatches(splitPathArray))
+   {
+    boolean localFile = null != local && !directory;
+    if (localFile)
+     localCount++;
+    if (null != records)
+     for (FileDTO record : records)
+      if (localFile)
+      {
+       // synchronize file
+       pipeline.submit(new SyncTask(record, local));
+       localFile = false;
+      }
+      else
+       pipeline.submit(new AbsentLocalTask(record, childPath));
+    else
+     newFile = localFile;
+   }
+   if ((directory || (null != node && null == records))
+     && (null == pattern || PathFilter.Coverage.NONE != pattern.descendantCoverage(splitPathArray))
+     && PathFilter.Coverage.NONE != filter.descendantCoverage(splitPathArray))
+    walk(directory ? local : null, childPath, null == node ? null : node.getId());
+   if (newFile)
+    pipeline.submit(new NewFileTask(childPath, local));
+   splitPath.remove(splitPath.size() - 1);
+  }
+
+  /**
+   * Creates a walk over files of the current replica that match the
+   * {@link #getEffectiveFilter() effective filter} and a pattern.
+   * @param pattern the pattern to match or <code>null</code> to
+   * match all files that pass the filter
+   * @param pipeline the pipeline that synchronizes known files
+   */
+  public TreeWalk(PathMatcher pattern, SyncPipeline pipeline)
+  	throws IOException, DBException
+  {
+   Manager db = getDb();
+   this.pattern = pattern;
+   this.filter = getEffectiveFilter();
+   this.pipeline = pipeline;
+   this.nameDAO = db.findDAO(NodeNameDAO.class);
+   this.versionDAO = db.findDAO(VersionDAO.class);
+  }
+
+  /** Number of local files found by the walk. */
+  public int localCount;
+
+  private Map<Long, List<FileDTO>> existingFiles(long parentNameId)
+  	throws DBException
+  {
+   Map<Long, List<FileDTO>> files = new HashMap<Long, List<FileDTO>>();
+   Cursor<FileDTO> cursor = versionDAO.fetchExistingFilesIn(parentNameId);
+   try
+   {
+    for (FileDTO record; null != (record = cursor.next());)
+    {
+     List<FileDTO> records = files.get(record.getNameId());
+     if (null == records)
+      files.put(record.getNameId(), records = new ArrayList<FileDTO>(1));
+     records.add(record);
+    }
+   }
+   finally
+   {
+    try { cursor.close(); }
+    catch (DBException e)
+    {
+     log().log(Level.WARNING, "Error closing iterator over tracked files in " + getDb(), e);
+    }
+   }
+   return files;
+  }
+
+  private final PathMatcher pattern;
+  private final PathFilter filter;
+  private final SyncPipeline pipeline;
+  private final NodeNameDAO nameDAO;
+  private final VersionDAO versionDAO;
+  private final Set<File> ancestors = new HashSet<File>();
+  private final List<String> splitPath = new ArrayList<String>();
+ }
+
+ /**
+  * Adds a new file from the current replica to the shared medium.
+  */
+ protected class NewFileTask implements SyncPipeline.Task
+ {
+  /**
+   * Takes a snapshot of the new file and, when reading ahead,
+   * computes the digest of its contents.
+   */
+  public void prepare()
+  {
+   info = null == info ? new LocalFileInfo(local) : info.refresh();
+   if (readContent)
+    try
+    {
+     info.prepareContent(null);
+    }
+    catch (IOException e)
+    {
+     // let the commit stage read the file and report the problem
+     log().log(Level.FINE, "Could not read ahead " + info, e);
+    }
+  }
+
+  public void commit() throws IOException, DBException
+  {
+   // discard the digest computed ahead if the file has changed since
+   if (readContent && !info.isCurrent())
+    info = new LocalFileInfo(local);
+   if (null == newFileBatch)
+    addNewFile(path, info, true);
+   else
+   {
+    newFileBatch.beforeFile(path);
+    try
+    {
+     addNewFile(path, info, true);
+    }
+    catch (IOException failure)
+    {
+     newFileBatch.fileFailed(failure);
+     return;
+    }
+    newFileBatch.afterFile(info.getSize());
+   }
+  }
+
+  public NewFileTask(File path, File local)
+  {
+   this(path, local, null);
+  }
+
+  /**
+   * Creates a task that reuses the attributes of the local file
+   * read by a {@link DirectoryScanner}, unless the file has changed
+   * since.
+   */
+  public NewFileTask(File path, File local, LocalFileInfo scanned)
+  {
+   this.path = path;
+   this.local = local;
+   this.info = scanned;
+   this.readContent = readAhead;
+  }
+
+  private File path, local;
+  private LocalFileInfo info;
+  private final boolean readContent;
+ }
+
+ /**
+  * Groups the additions of new files into database transactions
+  * limited by the {@link Configuration#NEW_FILE_BATCH_SIZE number}
+  * and {@link Configuration#NEW_FILE_BATCH_BYTES total size} of files.
+  * Each file is added within a transaction nested in the batch's
+  * transaction. When a file cannot be added because of an I/O error,
+  * the changes made for that file are {@link #fileFailed rolled back}
+  * to the savepoint of its nested transaction, and the batch goes on
+  * with the next file. Once all files have been added, the
+  * synchronization {@link #checkFailures() fails} if any files
+  * were skipped. Database errors and errors adding files
+  * outside of a batch abort the synchronization at once.
+  */
+ protected class NewFileBatch
+ {
+  /**
+   * Begins the transaction of a batch before a file is added,
+   * unless that transaction is already open or batches are limited
+   * to a single file, then begins the nested transaction of the file.
+   * @param path relative path to the file
+   */
+  public void beforeFile(File path) throws DBException
+  {
+   filePath = path;
+   if (null == txn && 1 < sizeLimit)
+    txn = getDb().beginTransaction();
+   if (null != txn)
+    fileTxn = getDb().beginTransaction();
+  }
+
+  /**
+   * Counts a file added to the current batch and commits the batch
+   * once it reaches either limit.
+   * @param size size of the file, in bytes
+   */
+  public void afterFile(long size) throws DBException
+  {
+   if (null == txn)
+    return;
+   Transaction file = fileTxn;
+   fileTxn = null;
+   file.commit();
+   count++;
+   bytes += size;
+   if (sizeLimit <= count || byteLimit <= bytes)
+    commit();
+  }
+
+  /**
+   * Undoes the changes made for the file being added and logs the
+   * failure. The batch keeps the files added before. When files are
+   * not batched, rethrows the failure.
+   * @param failure the reason why the file could not be added
+   * @throws IOException the failure if files are not batched
+   * @throws DBException if the changes cannot be undone
+   */
+  public void fileFailed(IOException failure) throws IOException, DBException
+  {
+   if (null == txn)
+    throw failure;
+   abortFile();
+   if (0 == failures++)
+    firstFailure = failure;
+   log().log(Level.WARNING, "Could not add new file " + filePath + ": " + failure.getMessage(), failure);
+  }
+
+  /**
+   * Returns the number of files that could not be added.
+   */
+  public int getFailureCount()
+  {
+   return failures;
+  }
+
+  /**
+   * Reports the files that could not be added, if any.
+   * @throws IOException if any files have been skipped
+   * because of I/O errors
+   */
+  public void checkFailures() throws IOException
+  {
+   if (0 < failures)
+    throw (IOException)new IOException(failures + " new file(s) could not be added to "
+      + getDb() + ", the first error was: " + firstFailure.getMessage()).initCause(firstFailure);
+  }
+
+  /**
+   * Commits the current batch, if any.
+   */
+  public void commit() throws DBException
+  {
+   Transaction batch = txn;
+   if (null == batch)
+    return;
+   // undo the changes for a file interrupted by an error
+   if (null != fileTxn)
+   {
+    log().fine("Discarding the changes for new file " + filePath + " interrupted by an error");
+    abortFile();
+   }
+   txn = null;
+   log().finer("Committing a batch of " + count + " new file(s), " + bytes + " byte(s)");
+   count = 0;
+   bytes = 0L;
+   try
+   {
+    batch.commit();
+    batch = null;
+   }
+   finally
+   {
+    if (null != batch && batch.isActive())
+     try { batch.abort(); }
+     catch (Exception ex)
+     {
+      log().log(Level.FINER, "Rollback failed for a batch of new files", ex);
+     }
+   }
+  }
+
+  public NewFileBatch()
+  {
+   Integer sizeLimit = getParameterValue(Configuration.NEW_FILE_BATCH_SIZE);
+   Long byteLimit = getParameterValue(Configuration.NEW_FILE_BATCH_BYTES);
+   this.sizeLimit = null == sizeLimit ? 1 : sizeLimit;
+   this.byteLimit = null == byteLimit ? Long.MAX_VALUE : byteLimit;
+  }
+
+  private void abortFile() throws DBException
+  {
+   Transaction file = fileTxn;
+   fileTxn = null;
+   if (null != file && file.isActive())
+    file.abort();
+  }
+
+  private final int sizeLimit;
+  private final long byteLimit;
+  private Transaction txn, fileTxn;
+  private File filePath;
+  private int count, failures;
+  private IOException firstFailure;
+  private long bytes;
+ }
+
+ /**
+  * Commits the current batch of new files, if any, before a known file
+  * is synchronized, so that known files are not synchronized within
+  * the transaction of a batch. That happens when a
+  * {@link TreeWalk walk} finds known files among new ones.
+  */
+ protected void endNewFileBatch() throws DBException
+ {
+  if (null != newFileBatch)
+   newFileBatch.commit();
+ }
+
  /**
   * If the replica's root directory does not exist, makes an attempt to create it.
   * Fails if the directory that should contain replica's root cannot be created.  
@@ -319,4 +984,15 @@ public class SyncService extends SyncRestoreHelper implements Closeable
   }
   return root;
  }
+
+ private NewFileBatch newFileBatch;
+ // whether the tasks read local files on the pipeline's worker threads
+ private boolean readAhead;
+ private static final String[] NO_NAMES = {};
+ private static final Comparator<NodeNameDTO> BY_RELATIVE_NAME = new Comparator<NodeNameDTO>() {
+  public int compare(NodeNameDTO n1, NodeNameDTO n2)
+  {
+   return n1.getRelativeName().compareTo(n2.getRelativeName());
+  }
+ };
 }
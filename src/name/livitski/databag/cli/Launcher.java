@@ -169,6 +169,32 @@ public class Launcher extends Logging
   }
  }
 
+ /**
+  * @return the number of seconds between full synchronizations in watch mode
+  * or <code>null</code> if watch mode has not been requested  
+  */
+ public Number getWatchInterval()
+ {
+  if (!hasOption(WATCH_OPTION))
+   return null;
+  String arg = options.getOptionValue(WATCH_OPTION);
+  if (null == arg)
+   return SyncCommand.DEFAULT_WATCH_INTERVAL;
+  try
+  {
+   Integer interval = Integer.valueOf(arg);
+   if (0 < interval)
+    return interval;
+  }
+  catch (NumberFormatException e)
+  {
+   throw new IllegalArgumentException("Value of --" + WATCH_OPTION
+     + " must be a number, got: " + arg, e);
+  }
+  throw new IllegalArgumentException("Value of --" + WATCH_OPTION
+    + " must be a positive number of seconds, got: " + arg);
+ }
+
  /**
   * @return the version number from the command line
   * or <code>null</code> if no version number has been entered  
@@ -622,6 +648,15 @@ public class Launcher extends Logging
      purge();
      return;
     }
+    // keyframe maintenance request
+    if (hasOption(KEYFRAMES_COMMAND))
+    {
+     if (hasOption(SAVE_OPTION))
+      throw new IllegalArgumentException("--" + KEYFRAMES_COMMAND
+        + " command does not support output redirection (--" + SAVE_OPTION + " option)");
+     addKeyframes();
+     return;
+    }
     // file restore request
     if (hasOption(RESTORE_COMMAND))
     {
@@ -669,6 +704,7 @@ public class Launcher extends Logging
      SyncCommand cmd = new SyncCommand(db, replica, getConfiguration());
      cmd.setPattern(optionValue(SYNC_COMMAND));
      cmd.setFileId(getFileId());
+     cmd.setWatchInterval(getWatchInterval());
      cmd.run();
      return;
     }
@@ -1032,6 +1068,45 @@ public class Launcher extends Logging
   }
  }
 
+ protected void addKeyframes() throws Exception
+ {
+  Integer limit = null;
+  String arg = optionValue(KEYFRAMES_COMMAND);
+  if (null != arg)
+  {
+   try
+   {
+    limit = Integer.valueOf(arg);
+   }
+   catch (NumberFormatException e)
+   {
+    throw new IllegalArgumentException("Value of --" + KEYFRAMES_COMMAND
+      + " must be a number, got: " + arg, e);
+   }
+   if (0 >= limit)
+    throw new IllegalArgumentException("Value of --" + KEYFRAMES_COMMAND
+      + " must be a positive number of deltas, got: " + arg);
+  }
+  Cleaner worker = new Cleaner(db, getConfiguration(), null);
+  try
+  {
+   worker.setKeyframeLimit(limit);
+   long stored = worker.addKeyframes();
+   log().info("Stored " + stored + " keyframe image(s)");
+  }
+  finally
+  {
+   try
+   {
+    worker.close();
+   }
+   catch (Exception e)
+   {
+    log().log(Level.WARNING, "Close failed for bag cleaner", e);
+   }
+  }
+ }
+
  protected void showLog() throws DBException
  {
   if (hasFilterOption())
@@ -1383,6 +1458,41 @@ public class Launcher extends Logging
       + " must be a number, got: " + options.getOptionValue(LOB_SIZE_OPTION),
       err);
    }
+  if (hasOption(OBJECT_CACHE_OPTION))
+   try
+   {
+    Number arg = (Number) options.getParsedOptionValue(OBJECT_CACHE_OPTION);
+    if (0.01 < Math.abs(arg.doubleValue() - arg.intValue())
+      || 0 > arg.intValue())
+     throw new IllegalArgumentException("Value of --" + OBJECT_CACHE_OPTION
+       + " must be a non-negative integer, got: " + arg);
+    db.setObjectCacheCapacity(arg.intValue());
+   } catch (ParseException err)
+   {
+    throw new IllegalArgumentException("Value of --" + OBJECT_CACHE_OPTION
+      + " must be a number, got: " + options.getOptionValue(OBJECT_CACHE_OPTION),
+      err);
+   }
+  if (hasOption(PACK_OPTION))
+   try
+   {
+    Number arg = (Number) options.getParsedOptionValue(PACK_OPTION);
+    if (0.01 < Math.abs(arg.doubleValue() - arg.intValue())
+      || 0 > arg.intValue())
+     throw new IllegalArgumentException("Value of --" + PACK_OPTION
+       + " must be a non-negative integer, got: " + arg);
+    db.setPackedImageLimit(arg.intValue());
+   } catch (ParseException err)
+   {
+    throw new IllegalArgumentException("Value of --" + PACK_OPTION
+      + " must be a number, got: " + options.getOptionValue(PACK_OPTION),
+      err);
+   }
+  // only restores to another directory use read-only connections,
+  // which must be opened with the database while the password is known
+  Integer threads = getConfiguration().getParameterValue(SYNC_THREADS);
+  if (null != threads && 1 < threads && hasOption(RESTORE_COMMAND) && hasOption(SAVE_OPTION))
+   db.setReaderCount(threads);
   if (hasOption(ENCRYPT_OPTION))
    initEncryption();
  }
@@ -1554,6 +1664,14 @@ public class Launcher extends Logging
   CONFIGURATION_OPTIONS.put(DELTA_CHAIN_SIZE_OPTION, DELTA_CHAIN_SIZE);
   CONFIGURATION_OPTIONS.put(DEFAULT_ACTION_OPTION, DEFAULT_ACTION);
   CONFIGURATION_OPTIONS.put(FILTER_OPTION, SELECTED_FILTER);
+  CONFIGURATION_OPTIONS.put(THREADS_OPTION, SYNC_THREADS);
+  CONFIGURATION_OPTIONS.put(CHUNKING_THRESHOLD_OPTION, CHUNKING_THRESHOLD);
+  CONFIGURATION_OPTIONS.put(IMAGE_CACHE_SIZE_OPTION, IMAGE_CACHE_SIZE);
+  CONFIGURATION_OPTIONS.put(STREAMING_SYNC_OPTION, STREAMING_SYNC);
+  CONFIGURATION_OPTIONS.put(NEW_FILE_BATCH_SIZE_OPTION, NEW_FILE_BATCH_SIZE);
+  CONFIGURATION_OPTIONS.put(NEW_FILE_BATCH_BYTES_OPTION, NEW_FILE_BATCH_BYTES);
+  CONFIGURATION_OPTIONS.put(KEYFRAME_INTERVAL_OPTION, KEYFRAME_INTERVAL);
+  CONFIGURATION_OPTIONS.put(KEYFRAME_CHAIN_BYTES_OPTION, KEYFRAME_CHAIN_BYTES);
 
   SIMPLE_CONVERTERS.put(ResolutionAction.class,
     new Converter<ResolutionAction>() {
@@ -1578,6 +1696,21 @@ public class Launcher extends Logging
    }
   });
 
+  SIMPLE_CONVERTERS.put(Integer.class, new Converter<Integer>() {
+   public Integer valueOf(String str) throws IllegalArgumentException
+   {
+    return Integer.valueOf(str);
+   }
+  });
+
+  SIMPLE_CONVERTERS.put(Boolean.class, new Converter<Boolean>() {
+   public Boolean valueOf(String str) throws IllegalArgumentException
+   {
+    // a switch without an argument turns the setting on
+    return null == str || Boolean.valueOf(str);
+   }
+  });
+
   SIMPLE_CONVERTERS.put(Float.class, new Converter<Float>() {
    public Float valueOf(String str) throws IllegalArgumentException
    {
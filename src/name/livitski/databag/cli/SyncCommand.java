@@ -19,10 +19,17 @@
     
 package name.livitski.databag.cli;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.logging.Level;
+
 import name.livitski.databag.app.Configuration;
 import name.livitski.databag.app.filter.PathMatcher;
 import name.livitski.databag.app.info.ReplicaInfo;
+import name.livitski.databag.app.sync.ReplicaWatcher;
 import name.livitski.databag.app.sync.SyncService;
+import name.livitski.databag.db.DBException;
 import name.livitski.databag.db.Manager;
 
 /**
@@ -50,29 +57,168 @@ public class SyncCommand extends AbstractCommand
   this.fileId = fileId;
  }
 
+ /**
+  * Returns the number of seconds between full synchronizations
+  * in watch mode, or <code>null</code> if the replica is synchronized
+  * only once.
+  */
+ public Number getWatchInterval()
+ {
+  return watchInterval;
+ }
+
+ /**
+  * Requests watch mode, in which the command keeps synchronizing
+  * the replica until interrupted. When the JVM supports file system
+  * notifications, the command {@link ReplicaWatcher watches} the
+  * replica and synchronizes batches of changed locations as they are
+  * reported, and also synchronizes the whole replica periodically
+  * in case some of the changes have not been reported. Otherwise,
+  * the whole replica is synchronized periodically. The database
+  * remains open between synchronizations, so that records loaded and
+  * cached by one of them are reused by the next.
+  * @param watchInterval number of seconds between full
+  * synchronizations, or <code>null</code> to synchronize once
+  */
+ public void setWatchInterval(Number watchInterval)
+ {
+  this.watchInterval = watchInterval;
+ }
+
  public SyncCommand(Manager db, ReplicaInfo replica, Configuration config)
  {
   super(db, replica, config);
  }
 
+ /**
+  * Default {@link #getWatchInterval() interval} between full
+  * synchronizations in watch mode, in seconds.
+  */
+ public static final Integer DEFAULT_WATCH_INTERVAL = 600;
+
+ /**
+  * Number of milliseconds without changes to a watched replica
+  * that ends a batch of changes to synchronize.
+  */
+ public static final long WATCH_QUIET_PERIOD = 2000L;
+
  @Override
  protected void runProtected() throws Exception
  {
-  SyncService syncService = getSyncService();
   if (null != fileId && null != pattern)
    throw new IllegalArgumentException("Cannot synchronize by a file id ("
      + fileId + ") and a pattern ('" + pattern + "') simultaneously. Please remove one of the arguments.");
-  else if (null != pattern)
+  if (null == watchInterval)
+  {
+   synchronize();
+   return;
+  }
+  File root = new File(getCurrentReplica().getRootPath()).getCanonicalFile();
+  ReplicaWatcher watcher = null == fileId ? ReplicaWatcher.newInstance() : null;
+  try
+  {
+   if (null != watcher)
+    try
+    {
+     watcher.watch(root);
+     log().info("Watching " + root + " for changes and synchronizing it in full every "
+       + watchInterval + " second(s), interrupt the program to stop ...");
+    }
+    catch (IOException e)
+    {
+     log().log(Level.WARNING, "Could not watch " + root + " for changes: " + e.getMessage(), e);
+     watcher.close();
+     watcher = null;
+    }
+   if (null == watcher)
+    log().info("Synchronizing " + root + " every " + watchInterval
+      + " second(s), interrupt the program to stop ...");
+   watch(watcher);
+  }
+  catch (InterruptedException interrupt)
   {
-   PathMatcher matcher = new PathMatcher(pattern, checkReplicasCaseSensitivity());
-   syncService.synchronize(matcher);
+   log().info("Watch of " + root + " interrupted");
+   Thread.currentThread().interrupt();
   }
-  else if (null != fileId)
+  finally
+  {
+   if (null != watcher)
+    watcher.close();
+  }
+ }
+
+ /**
+  * Keeps synchronizing the replica until interrupted.
+  * @param watcher the watcher of the replica or <code>null</code>
+  * to synchronize it periodically in full
+  */
+ private void watch(ReplicaWatcher watcher) throws Exception
+ {
+  long interval = watchInterval.longValue() * 1000L;
+  for (;;)
+  {
+   try
+   {
+    synchronize();
+   }
+   catch (DBException fatal)
+   {
+    throw fatal;
+   }
+   catch (Exception failure)
+   {
+    log().log(Level.SEVERE, failure.getMessage(), failure);
+    log().warning("Synchronization failed, will retry in " + watchInterval + " second(s)");
+   }
+   long next = System.currentTimeMillis() + interval;
+   if (null == watcher)
+   {
+    Thread.sleep(interval);
+    continue;
+   }
+   for (long timeout; 0L < (timeout = next - System.currentTimeMillis());)
+   {
+    Set<File> changes = watcher.awaitChanges(timeout, WATCH_QUIET_PERIOD);
+    // rescan the replica if notifications have been lost
+    if (null == changes)
+     break;
+    else if (changes.isEmpty())
+     continue;
+    try
+    {
+     getSyncService().synchronize(changes, getMatcher());
+    }
+    catch (DBException fatal)
+    {
+     throw fatal;
+    }
+    catch (Exception failure)
+    {
+     log().log(Level.SEVERE, failure.getMessage(), failure);
+     log().warning("Synchronization of changed files failed, will synchronize the replica in full");
+     break;
+    }
+   }
+  }
+ }
+
+ private void synchronize() throws Exception
+ {
+  SyncService syncService = getSyncService();
+  if (null != fileId)
    syncService.synchronize(fileId);
   else
-   syncService.synchronize((PathMatcher)null);
+   syncService.synchronize(getMatcher());
+ }
+
+ private PathMatcher getMatcher() throws Exception
+ {
+  if (null != pattern && null == matcher)
+   matcher = new PathMatcher(pattern, checkReplicasCaseSensitivity());
+  return matcher;
  }
 
- private Number fileId;
+ private Number fileId, watchInterval;
  private String pattern;
+ private PathMatcher matcher;
 }
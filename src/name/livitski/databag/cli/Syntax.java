@@ -252,6 +252,8 @@ public class Syntax
 
  protected static final String PURGE_COMMAND = "purge";
 
+ protected static final String KEYFRAMES_COMMAND = "keyframes";
+
  protected static final String RESTORE_COMMAND = "restore"; // -r
 
  protected static final String UNDO_COMMAND = "undo"; // -u
@@ -284,6 +286,10 @@ public class Syntax
 
  protected static final String LOB_SIZE_OPTION = "lob-size";
 
+ protected static final String OBJECT_CACHE_OPTION = "object-cache";
+
+ protected static final String PACK_OPTION = "pack";
+
  protected static final String MEDIUM_OPTION = "medium"; // -d
 
  protected static final String FILE_ID_OPTION = "fn";
@@ -308,10 +314,28 @@ public class Syntax
 
  protected static final String CUMULATIVE_DELTA_SIZE_OPTION = "cds";
 
+ protected static final String CHUNKING_THRESHOLD_OPTION = "chunking";
+
  protected static final String DELTA_CHAIN_SIZE_OPTION = "dcs";
 
+ protected static final String IMAGE_CACHE_SIZE_OPTION = "image-cache";
+
  protected static final String SCHEMA_EVOLUTION_OPTION = "upgrade-db";
 
+ protected static final String THREADS_OPTION = "threads";
+
+ protected static final String STREAMING_SYNC_OPTION = "stream";
+
+ protected static final String WATCH_OPTION = "watch";
+
+ protected static final String NEW_FILE_BATCH_SIZE_OPTION = "batch";
+
+ protected static final String NEW_FILE_BATCH_BYTES_OPTION = "batch-bytes";
+
+ protected static final String KEYFRAME_INTERVAL_OPTION = "keyframe-interval";
+
+ protected static final String KEYFRAME_CHAIN_BYTES_OPTION = "keyframe-bytes";
+
  /**
   * NOTE: DO NOT add commands' descriptions here. Place them in the
   * <code>usage.properties</code> resource file instead. All argument names MUST BE EMPTY.
@@ -323,6 +347,13 @@ public class Syntax
      OptionBuilder.withLongOpt(PURGE_COMMAND)
      .hasOptionalArgs(2).withArgName("").create())
 
+   .addOption(
+     OptionBuilder
+       .withLongOpt(KEYFRAMES_COMMAND)
+       .hasOptionalArg()
+       .withArgName("")
+       .create())
+
    .addOption(
      OptionBuilder
        .withLongOpt(DROP_COMMAND)
@@ -472,6 +503,14 @@ public class Syntax
        .withArgName("")
        .create())
 
+   .addOption(
+     OptionBuilder
+       .withLongOpt(CHUNKING_THRESHOLD_OPTION)
+       .hasArg()
+       .withArgName("")
+       .withType(Number.class)
+       .create())
+
    .addOption(
      OptionBuilder
        .withLongOpt(COMPRESSION_OPTION)
@@ -479,6 +518,14 @@ public class Syntax
        .withArgName("")
        .create())
 
+   .addOption(
+     OptionBuilder
+       .withLongOpt(IMAGE_CACHE_SIZE_OPTION)
+       .hasArg()
+       .withArgName("")
+       .withType(Number.class)
+       .create())
+
    .addOption(
      OptionBuilder
        .withLongOpt(LOB_SIZE_OPTION)
@@ -487,10 +534,78 @@ public class Syntax
        .withType(Number.class)
        .create())
 
+   .addOption(
+     OptionBuilder
+       .withLongOpt(OBJECT_CACHE_OPTION)
+       .hasArg()
+       .withArgName("")
+       .withType(Number.class)
+       .create())
+
+   .addOption(
+     OptionBuilder
+       .withLongOpt(PACK_OPTION)
+       .hasArg()
+       .withArgName("")
+       .withType(Number.class)
+       .create())
+
    .addOption(
      OptionBuilder
        .withLongOpt(SCHEMA_EVOLUTION_OPTION)
        .create())
 
+   .addOption(
+     OptionBuilder
+       .withLongOpt(STREAMING_SYNC_OPTION)
+       .create())
+
+   .addOption(
+     OptionBuilder
+       .withLongOpt(THREADS_OPTION)
+       .hasArg()
+       .withArgName("")
+       .withType(Number.class)
+       .create())
+
+   .addOption(
+     OptionBuilder
+       .withLongOpt(NEW_FILE_BATCH_SIZE_OPTION)
+       .hasArg()
+       .withArgName("")
+       .withType(Number.class)
+       .create())
+
+   .addOption(
+     OptionBuilder
+       .withLongOpt(NEW_FILE_BATCH_BYTES_OPTION)
+       .hasArg()
+       .withArgName("")
+       .withType(Number.class)
+       .create())
+
+   .addOption(
+     OptionBuilder
+       .withLongOpt(KEYFRAME_INTERVAL_OPTION)
+       .hasArg()
+       .withArgName("")
+       .withType(Number.class)
+       .create())
+
+   .addOption(
+     OptionBuilder
+       .withLongOpt(KEYFRAME_CHAIN_BYTES_OPTION)
+       .hasArg()
+       .withArgName("")
+       .withType(Number.class)
+       .create())
+
+   .addOption(
+     OptionBuilder
+       .withLongOpt(WATCH_OPTION)
+       .hasOptionalArg()
+       .withArgName("")
+       .create())
+
    .addOptionGroup(COMMAND_OPTION_GROUP);
 }
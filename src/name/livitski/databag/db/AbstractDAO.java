@@ -184,6 +184,35 @@ public abstract class AbstractDAO
   return mgr.log();
  }
 
+ /**
+  * Notifies this DAO that an outermost transaction is about to be
+  * committed. Implementations that defer changes to the database
+  * should write them here, so that they are committed along with the
+  * transaction. Does nothing by default.
+  * @param txn the transaction that is being committed
+  * @throws DBException if there is an error writing deferred changes,
+  * in which case the transaction remains active
+  */
+ protected void prepareCommit(Transaction txn)
+ 	throws DBException
+ {
+ }
+
+ /**
+  * Notifies this DAO that a transaction, possibly nested, has been
+  * rolled back. Implementations that defer changes to the database
+  * should reconcile them with the database state here. When this method
+  * is called, the {@link Manager#isTransactionActive() active transaction},
+  * if any, is the one that contained the aborted transaction.
+  * Does nothing by default.
+  * @param txn the transaction that has been aborted
+  * @throws DBException if there is an error querying the database
+  */
+ protected void transactionAborted(Transaction txn)
+ 	throws DBException
+ {
+ }
+
  /**
   * DAO instances are created and maintained by the {@link Manager},
   * one instance per connection. Other classes should not attempt
@@ -203,6 +232,8 @@ public abstract class AbstractDAO
  {
   if (mgr.isTransactionActive())
    throw new DBException("Cannot create schema for " + getClass() + ": a transaction is active");
+  if (mgr.isReadOnly())
+   throw new DBException("Cannot create schema for " + getClass() + " on a " + mgr);
 
   ScriptRunner runner = new ScriptRunner(mgr, schemaDDL(), "initializing schema for " + getClass());
   runner.execute();
@@ -19,19 +19,21 @@
     
 package name.livitski.databag.db;
 
-import java.lang.ref.Reference;
-import java.lang.ref.ReferenceQueue;
-import java.lang.ref.SoftReference;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
 
 import static name.livitski.databag.db.CachedDTO.State.*;
 
 /**
  * Provides an object cache for a DAO implementation. Data objects
  * stored in cache must derive their class from {@link CachedDTO}.
+ * The cache keeps up to {@link Manager#getObjectCacheCapacity()}
+ * objects and evicts the least recently used ones beyond that
+ * number. Objects with changes pending in a transaction are not
+ * evicted until the transaction ends.
  * @param <DTO> data class managed by this DAO 
  * @param <K> identity token (ID) type of the data class
  * @see CachedDTO
@@ -40,10 +42,12 @@ public abstract class CachingDAO<K, DTO extends CachedDTO<K>> extends AbstractDA
 {
  public DTO find(K id) throws DBException
  {
-  cleanupCache();
-  DTO object = findInCache(id);
-  if (null == object)
+  DTO object = cache.get(id);
+  if (null != object)
+   hits++;
+  else
   {
+   misses++;
    object = loadImpl(id);
    if (null != object)
    {
@@ -51,9 +55,9 @@ public abstract class CachingDAO<K, DTO extends CachedDTO<K>> extends AbstractDA
      throw new UnsupportedOperationException(
        "Mutable data object(s) are not supported. DTO " + object.getClass()
        + " must implement " + Immutable.class);
-    cache(object, true);
     // TODO: mutable objects become detached unless there is an active transaction
     object.setState(LOADED, mgr.getActiveTransaction());
+    cache(object, true);
    }
   }
   return object;
@@ -61,7 +65,6 @@ public abstract class CachingDAO<K, DTO extends CachedDTO<K>> extends AbstractDA
 
  public DTO save(DTO object) throws DBException
  {
-  cleanupCache();
   Transaction txn = mgr.getActiveTransaction();
   switch (object.getState())
   {
@@ -92,7 +95,6 @@ public abstract class CachingDAO<K, DTO extends CachedDTO<K>> extends AbstractDA
 
  public void delete (DTO object) throws DBException
  {
-  cleanupCache();
   Transaction txn = mgr.getActiveTransaction();
   switch (object.getState())
   {
@@ -117,6 +119,40 @@ public abstract class CachingDAO<K, DTO extends CachedDTO<K>> extends AbstractDA
   }
  }
 
+ /**
+  * Returns the number of objects {@link #find found} in the cache.
+  */
+ public long getCacheHits()
+ {
+  return hits;
+ }
+
+ /**
+  * Returns the number of objects that {@link #find} had to load
+  * from the database.
+  */
+ public long getCacheMisses()
+ {
+  return misses;
+ }
+
+ /**
+  * Returns the number of objects evicted from the cache to keep
+  * its size within the {@link Manager#getObjectCacheCapacity() limit}.
+  */
+ public long getCacheEvictions()
+ {
+  return evictions;
+ }
+
+ /**
+  * Returns the number of objects currently in the cache.
+  */
+ public int getCacheSize()
+ {
+  return cache.size();
+ }
+
  /**
   * Pseudo-constraint used to report unsupported {@link #insertImpl(CachedDTO)}
   * operations.
@@ -208,8 +244,8 @@ public abstract class CachingDAO<K, DTO extends CachedDTO<K>> extends AbstractDA
  protected void resetCache()
 	throws DBException
  {
-  for (Iterator<Reference<DTO>> itr = cache.values().iterator(); itr.hasNext(); itr.remove())
-   detachRef(itr.next());
+  for (Iterator<DTO> itr = cache.values().iterator(); itr.hasNext(); itr.remove())
+   itr.next().setState(DETACHED, null);
  }
 
  protected CachingDAO(Manager mgr)
@@ -217,15 +253,28 @@ public abstract class CachingDAO<K, DTO extends CachedDTO<K>> extends AbstractDA
   super(mgr);
  }
 
+ /**
+  * Notifies the implementation that a transaction has been committed
+  * or aborted. Implementations that keep data other than cached
+  * objects should discard or finalize the changes to that data
+  * made within the transaction. Does nothing by default.
+  * @param txn the transaction that has ended
+  * @param commit <code>true</code> if the transaction has been
+  * committed, <code>false</code> if it has been aborted
+  */
+ protected void transactionEnded(Transaction txn, boolean commit)
+ 	throws DBException
+ {
+ }
+
  /** Called by {@link Manager} to discard cache on transaction commit or abort. */
  void doneTxn(Transaction txn, boolean commit)
  	throws DBException
  {
-  for (Iterator<Reference<DTO>> i = cache.values().iterator(); i.hasNext();)
+  transactionEnded(txn, commit);
+  for (Iterator<DTO> i = cache.values().iterator(); i.hasNext();)
   {
-   DTO object = i.next().get();
-   if (null == object)
-    continue;
+   DTO object = i.next();
    switch (object.getState())
    {
    case LOADED:
@@ -266,32 +315,29 @@ public abstract class CachingDAO<K, DTO extends CachedDTO<K>> extends AbstractDA
     i.remove();
    }
   }
+  evict();
  }
 
- private DTO findInCache(K id)
+ /** Describes the cache statistics for the {@link Manager}'s log. */
+ String cacheStatistics()
  {
-  Reference<DTO> ref = cache.get(id);
-  return null == ref ? null : ref.get(); 
+  return getClass().getSimpleName() + " cache (hits = " + hits + ", misses = " + misses
+  	+ ", evictions = " + evictions + ", size = " + cache.size() + ')';
  }
 
  private DTO cache(DTO object, boolean replace)
  	throws DBException
  {
   K id = object.getId();
-  DTO old = null;
-  if (!replace)
-   old = findInCache(id);
-  if(null == old)
-  {
-   Reference<DTO> ref = new SoftReference<DTO>(object, queue);
-   refids.put(ref, id);
-   ref = cache.put(id, ref);
-   old = null == ref ? null : ref.get();
-   if (null == old || old == object)
-    old = null;
-   else
-    old.setState(DETACHED, null);
-  }
+  DTO old = cache.get(id);
+  if (null != old && !replace)
+   return old;
+  cache.put(id, object);
+  if (null == old || old == object)
+   old = null;
+  else
+   old.setState(DETACHED, null);
+  evict();
   return old; 
  }
 
@@ -300,37 +346,47 @@ public abstract class CachingDAO<K, DTO extends CachedDTO<K>> extends AbstractDA
  private DTO uncache(K id)
 	throws DBException
  {
-  Reference<DTO> ref = cache.remove(id);
-  return detachRef(ref); 
- }
-
- private DTO detachRef(Reference<DTO> ref)
-	throws DBException
- {
-  DTO old;
-  if (null != ref)
-  {
-   refids.remove(ref);
-   old = ref.get(); 
-  }
-  else
-   old = null;
+  DTO old = cache.remove(id);
   if (null != old)
    old.setState(DETACHED, null);
   return old;
  }
 
- private void cleanupCache()
+ /**
+  * Removes least recently used objects from the cache until its size
+  * is within the limit. Evicted objects are not detached, since their
+  * holders may continue to use them. Objects that a transaction
+  * has yet to settle stay in the cache and are moved to its end.
+  */
+ private void evict()
  {
-  for (Reference<? extends CachedDTO<?>> ref; null != (ref = queue.poll());)
+  int capacity = mgr.getObjectCacheCapacity();
+  if (cache.size() <= capacity)
+   return;
+  List<K> pinned = null;
+  for (Iterator<Map.Entry<K, DTO>> i = cache.entrySet().iterator();
+  	cache.size() > capacity && i.hasNext();)
   {
-   K id = refids.get(ref);
-   if (null != id && cache.get(id) == ref)
-    cache.remove(id);
+   Map.Entry<K, DTO> entry = i.next();
+   DTO object = entry.getValue();
+   if (LOADED == object.getState() && object instanceof Immutable)
+   {
+    i.remove();
+    evictions++;
+   }
+   else
+   {
+    if (null == pinned)
+     pinned = new ArrayList<K>();
+    pinned.add(entry.getKey());
+   }
   }
+  // skip pinned objects on subsequent evictions
+  if (null != pinned)
+   for (K id : pinned)
+    cache.get(id);
  }
 
- private Map<K, Reference<DTO>> cache = new HashMap<K, Reference<DTO>>();
- private Map<Reference<DTO>, K> refids = new WeakHashMap<Reference<DTO>, K>();
- private ReferenceQueue<DTO> queue = new ReferenceQueue<DTO>();
+ private long hits, misses, evictions;
+ private Map<K, DTO> cache = new LinkedHashMap<K, DTO>(16, .75f, true);
 }
@@ -23,11 +23,17 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import name.livitski.tools.Logging;
@@ -35,6 +41,10 @@ import name.livitski.tools.Logging;
 /**
  * Manages access to the embedded database.
  * This class is not thread-safe and should not be used concurrently.
+ * To read the database from several threads, configure the
+ * {@link #setReaderCount(int) number of read-only connections}
+ * to open along with the database, and have each thread
+ * {@link #acquireReader() acquire} a reader of its own.
  */
 public class Manager extends Logging
 {
@@ -100,6 +110,8 @@ public class Manager extends Logging
  public  Transaction beginTransaction()
 	throws DBException
  {
+  if (isReadOnly())
+   throw new DBException("Cannot begin a transaction on " + this);
   if (null == recentTxn)
    try
    {
@@ -136,6 +148,8 @@ public class Manager extends Logging
  	throws DBException
  {
   if (null != jdbc) return;
+  if (isReadOnly())
+   throw new IllegalStateException("Cannot reopen " + this);
   if (!location.isDirectory())
    throw new DBException("There is no valid " + this);
   Throwable status = new RuntimeException("No database names have been configured");
@@ -320,12 +334,177 @@ public class Manager extends Logging
   }
  }
 
+ /**
+  * Returns the maximum number of objects that each caching DAO
+  * of this database keeps in memory.
+  * @see CachingDAO
+  */
+ public int getObjectCacheCapacity()
+ {
+  return objectCacheCapacity;
+ }
+
+ /**
+  * Changes the maximum number of objects that each caching DAO
+  * of this database keeps in memory. A lower limit takes effect
+  * as DAOs add objects to their caches.
+  * @param objectCacheCapacity the new limit, must not be negative
+  */
+ public void setObjectCacheCapacity(int objectCacheCapacity)
+ {
+  if (0 > objectCacheCapacity)
+   throw new IllegalArgumentException("Invalid object cache capacity: " + objectCacheCapacity);
+  this.objectCacheCapacity = objectCacheCapacity;
+ }
+
+ /** Default {@link #getObjectCacheCapacity() object cache capacity}. */
+ public static final int DEFAULT_OBJECT_CACHE_CAPACITY = 20000;
+
+ /**
+  * Returns the size limit of file images that are stored in shared
+  * compressed packs rather than as separate objects, in bytes.
+  * <code>0</code> means that images are never packed.
+  * @see name.livitski.databag.db.schema.PackDAO
+  */
+ public int getPackedImageLimit()
+ {
+  return packedImageLimit;
+ }
+
+ /**
+  * Changes the size limit of file images that are stored in shared
+  * compressed packs. The limit only affects images saved after
+  * the change.
+  * @param packedImageLimit the new limit in bytes, <code>0</code>
+  * to stop packing images, must not be negative. Limits above the
+  * {@link name.livitski.databag.db.schema.PackDAO#SEGMENT_SIZE pack segment size}
+  * are reduced to that size.
+  */
+ public void setPackedImageLimit(int packedImageLimit)
+ {
+  if (0 > packedImageLimit)
+   throw new IllegalArgumentException("Invalid packed image size limit: " + packedImageLimit);
+  this.packedImageLimit = packedImageLimit;
+ }
+
+ /**
+  * Returns the number of read-only connections that this manager
+  * opens along with the database.
+  * @see #setReaderCount(int)
+  */
+ public int getReaderCount()
+ {
+  return readerCount;
+ }
+
+ /**
+  * Changes the number of read-only connections that this manager
+  * opens along with the database. These connections are opened
+  * while the {@link #setEncryption(char[]) password} is still
+  * available, and stay open until the database is
+  * {@link #close() closed}. You must call this method before
+  * {@link #create() creating} or {@link #open() opening} a database.
+  * @param readerCount the number of read-only connections,
+  * <code>0</code> to disable concurrent reading
+  * @see #acquireReader()
+  */
+ public void setReaderCount(int readerCount)
+ {
+  if (null != jdbc)
+   throw new IllegalStateException("The database is already open");
+  if (0 > readerCount)
+   throw new IllegalArgumentException("Invalid number of read-only connections: " + readerCount);
+  this.readerCount = readerCount;
+ }
+
+ /**
+  * Lends a read-only connection to this database, waiting for one
+  * to become available if necessary. The connection is represented
+  * by a manager of its own, which keeps a separate set of
+  * {@link #findDAO(Class) DAOs} and prepared statements, and may
+  * be used in a thread other than that of this manager. DAOs of
+  * a reader must only run queries. Readers cannot
+  * {@link #beginTransaction() begin transactions} and do not
+  * see uncommitted changes made through this manager. Since
+  * the database is locked at table level, readers wait for the writing transactions of this manager
+  * to finish. For that reason, readers cannot be acquired while
+  * a transaction is active with this manager. When done, the
+  * caller must {@link #close() close} the reader, which returns
+  * its connection to this manager and discards the objects that
+  * its DAOs have cached.
+  * @return a read-only manager for exclusive use by the caller
+  * @throws DBException if the database is not open, no read-only
+  * connections have been {@link #setReaderCount(int) configured},
+  * a transaction is active with this manager, or the wait has been
+  * interrupted
+  */
+ public Manager acquireReader()
+ 	throws DBException
+ {
+  if (isReadOnly())
+   throw new IllegalStateException("Cannot acquire a reader from " + this);
+  if (null == jdbc)
+   throw new DBException("Cannot read " + this + ": database not open");
+  if (readers.isEmpty())
+   throw new DBException("No read-only connections have been opened to " + this);
+  if (isTransactionActive())
+   throw new DBException("Cannot read " + this + " concurrently with the " + recentTxn);
+  try
+  {
+   Manager reader = idleReaders.take();
+   reader.lent = true;
+   return reader;
+  }
+  catch (InterruptedException interrupt)
+  {
+   Thread.currentThread().interrupt();
+   throw new DBException("Interrupted while waiting for a read-only connection to " + this, interrupt);
+  }
+ }
+
+ /**
+  * Tells whether this manager represents a read-only connection
+  * {@link #acquireReader() acquired} from another manager.
+  */
+ public boolean isReadOnly()
+ {
+  return null != owner;
+ }
+
+ /**
+  * Returns the cache of prepared statements used with this
+  * database, which also counts the statements reused.
+  */
+ public StatementCache getStatementCache()
+ {
+  return statements;
+ }
+
+ /**
+  * Closes the database along with its read-only connections.
+  * When called on a {@link #acquireReader() reader}, returns
+  * that reader's connection to its manager instead.
+  */
  public void close()
  	throws DBException
  {
-  if (null != jdbc)
+  if (isReadOnly())
+  {
+   if (lent && null != jdbc)
+   {
+    lent = false;
+    logCacheStatistics();
+    daoMap.clear();
+    owner.idleReaders.add(this);
+   }
+  }
+  else if (null != jdbc)
    try
    {
+    closeReaders();
+    log().fine("Closing " + this + ", " + statements);
+    logCacheStatistics();
+    statements.clear();
     jdbc.close();
     jdbc = null;
    } catch (SQLException e)
@@ -337,6 +516,8 @@ public class Manager extends Logging
  @Override
  public String toString()
  {
+  if (isReadOnly())
+   return "read-only connection to " + owner;
   return (isEncryptionEnabled() ? "encrypted " : "") + "database at " + location;
  }
 
@@ -382,6 +563,28 @@ public class Manager extends Logging
   return super.log();
  }
 
+ /**
+  * Obtains a prepared statement from the {@link #getStatementCache() cache}
+  * or prepares a new one.
+  * The caller must {@link #releaseStatement release} the statement
+  * instead of closing it.
+  */
+ protected PreparedStatement prepareStatement(String sql)
+ 	throws SQLException
+ {
+  return statements.prepare(getJdbc(), sql);
+ }
+
+ /**
+  * Returns a statement obtained from {@link #prepareStatement}
+  * to the {@link #getStatementCache() cache}.
+  */
+ protected void releaseStatement(PreparedStatement stmt)
+ 	throws SQLException
+ {
+  statements.release(stmt);
+ }
+
  protected Transaction getActiveTransaction()
  {
   return recentTxn;
@@ -413,6 +616,37 @@ public class Manager extends Logging
     ((CachingDAO<?, ?>)dao).doneTxn(txn, commit);
  }
 
+ protected void prepareCommit(Transaction txn)
+ 	throws DBException
+ {
+  for (AbstractDAO dao : daoMap.values())
+   dao.prepareCommit(txn);
+ }
+
+ protected void txnAborted(Transaction txn)
+ 	throws DBException
+ {
+  for (AbstractDAO dao : daoMap.values())
+   dao.transactionAborted(txn);
+ }
+
+ /**
+  * Creates a manager for a {@link #acquireReader() read-only connection}.
+  */
+ private Manager(Manager owner, Connection jdbc)
+ {
+  this.owner = owner;
+  this.jdbc = jdbc;
+  location = owner.location;
+  compressionType = owner.compressionType;
+  cipher = owner.cipher;
+  if (owner.isEncryptionEnabled())
+   encryptionPassword = new char[0];
+  inPlaceLobThreshold = owner.inPlaceLobThreshold;
+  objectCacheCapacity = owner.objectCacheCapacity;
+  packedImageLimit = owner.packedImageLimit;
+ }
+
  static final String DRIVER = "org.h2.Driver";
  static final String URL_PREFIX = "jdbc:h2:file:";
  static final String SERIALIZABLE_SUFFIX = ";LOCK_MODE=1";
@@ -439,28 +673,21 @@ public class Manager extends Logging
  private void establishConnection(String url, boolean willRetryOnFailure) throws SQLException
  {
   if (!isEncryptionEnabled())
-   jdbc = DriverManager.getConnection(url);
+  {
+   jdbc = connect(url);
+   openReaders(url);
+  }
   else if (0 == encryptionPassword.length)
    throw new IllegalStateException(
      "The password is no longer available. Please set the password again before reconnecting.");
   else
   {
    Throwable status = null;
-   final int length = encryptionPassword.length;
-   final char[] passwordCopy = new char[length + 1];
    try
    {
-    int errorPos = copyPassword(passwordCopy, encryptionPassword);
-    if (0 <= errorPos)
-     throw new IllegalArgumentException(
-       "Character code " + (int)encryptionPassword[errorPos]
- 	+ " is not allowed in a password, but found at position " + errorPos);
-    passwordCopy[length] = ' ';
-    // prepare the file password
-    Properties properties = new Properties();
-    // this violates the Properties contract, but does not leave copies of password in memory 
-    properties.put("password", passwordCopy);
-    jdbc = DriverManager.getConnection(url, properties);
+    jdbc = connect(url);
+    // readers must connect before the password is erased
+    openReaders(url);
    }
    catch (Throwable failure)
    {
@@ -475,13 +702,103 @@ public class Manager extends Logging
    }
    finally
    {
-    Arrays.fill(passwordCopy, '\0');
     if (!willRetryOnFailure || null == status)
      clearPassword();
    }
   }
  }
 
+ /**
+  * Opens a connection to the database, passing it a temporary copy
+  * of the password if encryption is enabled. The driver may erase
+  * the copy, so each connection needs one of its own.
+  */
+ private Connection connect(String url) throws SQLException
+ {
+  if (!isEncryptionEnabled())
+   return DriverManager.getConnection(url);
+  final int length = encryptionPassword.length;
+  final char[] passwordCopy = new char[length + 1];
+  try
+  {
+   int errorPos = copyPassword(passwordCopy, encryptionPassword);
+   if (0 <= errorPos)
+    throw new IllegalArgumentException(
+      "Character code " + (int)encryptionPassword[errorPos]
+	+ " is not allowed in a password, but found at position " + errorPos);
+   passwordCopy[length] = ' ';
+   // prepare the file password
+   Properties properties = new Properties();
+   // this violates the Properties contract, but does not leave copies of password in memory 
+   properties.put("password", passwordCopy);
+   return DriverManager.getConnection(url, properties);
+  }
+  finally
+  {
+   Arrays.fill(passwordCopy, '\0');
+  }
+ }
+
+ /**
+  * Opens the {@link #getReaderCount() configured number} of read-only
+  * connections to the database that this manager has just connected to.
+  * Closes all connections if any of them fails to open.
+  */
+ private void openReaders(String url) throws SQLException
+ {
+  try
+  {
+   while (readerCount > readers.size())
+   {
+    Connection connection = connect(url);
+    Manager reader = new Manager(this, connection);
+    readers.add(reader);
+    connection.setReadOnly(true);
+    idleReaders.add(reader);
+   }
+   if (0 < readerCount)
+    log().fine("Opened " + readerCount + " read-only connection(s) to " + this);
+  }
+  catch (SQLException fail)
+  {
+   closeReaders();
+   try
+   {
+    jdbc.close();
+   }
+   catch (SQLException ignored)
+   {
+    log().log(Level.FINE, "Error closing " + this + " after a failure", ignored);
+   }
+   jdbc = null;
+   throw fail;
+  }
+ }
+
+ private void closeReaders()
+ {
+  for (Manager reader : readers)
+   try
+   {
+    reader.statements.clear();
+    reader.jdbc.close();
+    reader.jdbc = null;
+   }
+   catch (SQLException fail)
+   {
+    log().log(Level.WARNING, "Error closing " + reader, fail);
+   }
+  readers.clear();
+  idleReaders.clear();
+ }
+
+ private void logCacheStatistics()
+ {
+  for (AbstractDAO dao : daoMap.values())
+   if (dao instanceof CachingDAO<?, ?>)
+    log().fine(((CachingDAO<?, ?>)dao).cacheStatistics());
+ }
+
  private void clearPassword()
  {
   if (null != encryptionPassword)
@@ -514,9 +831,17 @@ public class Manager extends Logging
  private String cipher;
  private char[] encryptionPassword;
  private int inPlaceLobThreshold = -1;
+ private int objectCacheCapacity = DEFAULT_OBJECT_CACHE_CAPACITY;
+ private int packedImageLimit;
+ private int readerCount;
  private java.io.File location;
  private Connection jdbc;
  private Transaction recentTxn;
+ private Manager owner;
+ private volatile boolean lent;
+ private final List<Manager> readers = new ArrayList<Manager>();
+ private final BlockingQueue<Manager> idleReaders = new LinkedBlockingQueue<Manager>();
+ private final StatementCache statements = new StatementCache(StatementCache.DEFAULT_CAPACITY);
  private Map<Class<? extends AbstractDAO>, AbstractDAO> daoMap
 	= new HashMap<Class<? extends AbstractDAO>, AbstractDAO>();
 }
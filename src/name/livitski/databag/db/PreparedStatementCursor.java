@@ -51,7 +51,7 @@ public abstract class PreparedStatementCursor<T> extends
   if (null != savedStmt)
    try
    {
-    savedStmt.close();
+    super.close(savedStmt);
    }
    catch (SQLException e)
    {
@@ -85,7 +85,7 @@ public abstract class PreparedStatementCursor<T> extends
  protected void close(Statement stmt) throws SQLException
  {
   if (null != savedStmt)
-   try { savedStmt.close(); } catch (SQLException ignored) {}
+   try { super.close(savedStmt); } catch (SQLException ignored) {}
   savedStmt = stmt;
  }
 
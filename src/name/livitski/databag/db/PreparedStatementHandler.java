@@ -68,11 +68,32 @@ public abstract class PreparedStatementHandler extends StatementHandler
  	throws SQLException
  {
   log().finest(sql);
-  PreparedStatement stmt = getJdbc().prepareStatement(sql);
-  bindParameters(stmt);
+  PreparedStatement stmt = mgr.prepareStatement(sql);
+  boolean bound = false;
+  try
+  {
+   bindParameters(stmt);
+   bound = true;
+  }
+  finally
+  {
+   if (!bound)
+    mgr.releaseStatement(stmt);
+  }
   return stmt;
  }
 
+ /**
+  * Returns the statement to the manager's
+  * {@link Manager#getStatementCache() cache} instead of closing it.
+  */
+ @Override
+ protected void close(Statement stmt)
+ 	throws SQLException
+ {
+  mgr.releaseStatement((PreparedStatement)stmt);
+ }
+
  @Override
  protected void handleStatement(Statement gstmt)
  	throws SQLException, DBException
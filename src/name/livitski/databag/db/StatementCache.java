@@ -0,0 +1,210 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+import name.livitski.tools.Logging;
+
+/**
+ * Keeps prepared statements of a {@link Manager database connection}
+ * for reuse, so that frequently executed queries are not parsed
+ * again each time. Statements are keyed by their SQL text. A statement
+ * {@link #prepare obtained} from the cache is used exclusively
+ * by its caller until it is {@link #release(PreparedStatement) released},
+ * so that nested or deferred uses of the same SQL, such as open
+ * {@link PreparedStatementCursor cursors}, get statements of their
+ * own. At most {@link #getCapacity() capacity} released statements
+ * are kept; the least recently used statement is closed when that
+ * limit is exceeded. Like its manager, this class is not thread-safe.
+ */
+public class StatementCache extends Logging
+{
+ /**
+  * Returns the number of statements reused from this cache.
+  */
+ public long getHits()
+ {
+  return hits;
+ }
+
+ /**
+  * Returns the number of statements that had to be prepared
+  * because this cache did not contain them.
+  */
+ public long getMisses()
+ {
+  return misses;
+ }
+
+ /**
+  * Returns the maximum number of statements kept for reuse.
+  */
+ public int getCapacity()
+ {
+  return capacity;
+ }
+
+ /**
+  * Returns the number of statements currently kept for reuse.
+  */
+ public int getSize()
+ {
+  return idle.size();
+ }
+
+ /**
+  * Returns the number of statements obtained from this cache
+  * that have not been released yet.
+  */
+ public int getInUseCount()
+ {
+  return inUse.size();
+ }
+
+ @Override
+ public String toString()
+ {
+  return "statement cache (hits = " + hits + ", misses = " + misses
+  	+ ", size = " + idle.size() + ", capacity = " + capacity + ')';
+ }
+
+ /**
+  * Creates a cache for a connection.
+  * @param capacity maximum number of statements to keep for reuse,
+  * <code>0</code> disables reuse
+  */
+ public StatementCache(int capacity)
+ {
+  if (0 > capacity)
+   throw new IllegalArgumentException("Invalid statement cache capacity: " + capacity);
+  this.capacity = capacity;
+ }
+
+ /** Default {@link #getCapacity() capacity} of a cache. */
+ public static final int DEFAULT_CAPACITY = 64;
+
+ /**
+  * Returns a statement for exclusive use by the caller, taken from
+  * this cache or prepared anew. The caller must
+  * {@link #release(PreparedStatement) release} the statement when done.
+  */
+ protected PreparedStatement prepare(Connection jdbc, String sql)
+ 	throws SQLException
+ {
+  if (jdbc != connection)
+  {
+   clear();
+   connection = jdbc;
+  }
+  PreparedStatement stmt = idle.remove(sql);
+  if (null == stmt)
+  {
+   misses++;
+   stmt = jdbc.prepareStatement(sql);
+  }
+  else
+   hits++;
+  inUse.put(stmt, sql);
+  return stmt;
+ }
+
+ /**
+  * Returns a statement {@link #prepare obtained} from this cache,
+  * making it available for reuse. Statements that did not come from
+  * this cache or that cannot be kept are closed.
+  */
+ protected void release(PreparedStatement stmt)
+ 	throws SQLException
+ {
+  String sql = inUse.remove(stmt);
+  if (null == sql || 0 == capacity || idle.containsKey(sql))
+  {
+   stmt.close();
+   return;
+  }
+  try
+  {
+   ResultSet results = stmt.getResultSet();
+   if (null != results)
+    results.close();
+   stmt.clearParameters();
+  }
+  catch (SQLException fail)
+  {
+   stmt.close();
+   throw fail;
+  }
+  idle.put(sql, stmt);
+ }
+
+ /**
+  * Closes all statements kept for reuse. Statements in use are
+  * closed when they are {@link #release released}.
+  */
+ protected void clear()
+ {
+  for (Iterator<PreparedStatement> i = idle.values().iterator(); i.hasNext();)
+  {
+   close(i.next());
+   i.remove();
+  }
+  inUse.clear();
+  connection = null;
+ }
+
+ private void close(PreparedStatement stmt)
+ {
+  try
+  {
+   stmt.close();
+  }
+  catch (SQLException fail)
+  {
+   log().log(Level.FINE, "Error closing a cached statement", fail);
+  }
+ }
+
+ private final int capacity;
+ private long hits, misses;
+ private Connection connection;
+ private final Map<PreparedStatement, String> inUse = new IdentityHashMap<PreparedStatement, String>();
+ private final Map<String, PreparedStatement> idle
+ 	= new LinkedHashMap<String, PreparedStatement>(16, .75f, true) {
+  @Override
+  protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest)
+  {
+   if (size() <= capacity)
+    return false;
+   close(eldest.getValue());
+   return true;
+  }
+
+  private static final long serialVersionUID = 1L;
+ };
+}
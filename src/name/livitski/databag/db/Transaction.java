@@ -41,12 +41,15 @@ public class Transaction
   * Commits this transaction. Transaction becomes inactive once
   * committed.
   * @throws DBException if the transaction is not active or there
-  * is an error accessing database or updating cache
+  * is an error accessing database, writing changes deferred by
+  * {@link AbstractDAO#prepareCommit DAO objects}, or updating cache
   * @see #isActive()
   */
  public void commit()
  	throws DBException
  {
+   if (null == parent && isActive())
+    mgr.prepareCommit(this);
    mgr.unwindTransaction(parent);
    if (null == parent)
    {
@@ -123,6 +126,7 @@ public class Transaction
      throw new DBException("Could not roll back " + this, e);
     }
    }
+   mgr.txnAborted(this);
  }
 
  /**
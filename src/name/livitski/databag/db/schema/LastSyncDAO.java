@@ -22,7 +22,9 @@ package name.livitski.databag.db.schema;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.sql.Types;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -52,6 +54,28 @@ public class LastSyncDAO extends AbstractDAO
   */
  public void recordSync(final ReplicaDTO replica, final VersionDTO version)
 	throws DBException
+ {
+  recordSync(replica, version, null, null);
+ }
+
+ /**
+  * Records a file version synchronization event within a replica
+  * along with the state of the local file as of that event. The state
+  * is saved when the local file is known to have the contents of
+  * <code>version</code>, so that later synchronizations can skip that
+  * file while its size and modification time remain the same.
+  * @param replica represents the replica being synchronized  
+  * @param version represents the file version materialized in that replica 
+  * @param localSize size of the local file or <code>null</code> if
+  * the state of the local file is not known
+  * @param localModified modification time of the local file or
+  * <code>null</code> if the state of the local file is not known
+  * @throws DBException if there is a problem updating the database
+  * @see #isUnchangedSince(long, int, long, long)
+  */
+ public void recordSync(final ReplicaDTO replica, final VersionDTO version,
+   final Long localSize, final Timestamp localModified)
+	throws DBException
  {
   final long fileId = version.getFileId();
  
@@ -70,10 +94,20 @@ public class LastSyncDAO extends AbstractDAO
    @Override
    protected void bindParameters(PreparedStatement stmt) throws SQLException
    {
-    // params: version_id, file_id, replica_id
+    // params: version_id, local_size, local_modified, file_id, replica_id
     stmt.setInt(1, version.getId());
-    stmt.setLong(2, fileId);
-    stmt.setInt(3, replica.getId());
+    if (null == localSize || null == localModified)
+    {
+     stmt.setNull(2, Types.BIGINT);
+     stmt.setNull(3, Types.TIMESTAMP);
+    }
+    else
+    {
+     stmt.setLong(2, localSize);
+     stmt.setTimestamp(3, localModified);
+    }
+    stmt.setLong(4, fileId);
+    stmt.setInt(5, replica.getId());
    }
 
    @Override
@@ -92,6 +126,8 @@ public class LastSyncDAO extends AbstractDAO
   Transaction txn = mgr.beginTransaction();
   try
   {
+   if (null != states && replica.getId() == states.replicaId)
+    states.invalidate(fileId);
    RecordHandler handler = new RecordHandler();
    // use INSERT if the record doesn't exist, UPDATE otherwise
    handler.setNoRecord(!existsRecord(fileId, replica));
@@ -276,6 +312,104 @@ public class LastSyncDAO extends AbstractDAO
   return loader.getRecord();
  }
 
+ /**
+  * Loads the state of local files recorded in the synchronization records
+  * of a replica with a single query. Only records that point to current
+  * versions of their files and {@link LastSyncDTO#getLocalSize() keep
+  * the state} of local files are loaded. Until the loaded data is
+  * {@link #discardPreloadedStates() discarded}, synchronization of the
+  * replica can {@link #isUnchangedSince(long, int, long, long) tell}
+  * whether a local file has changed since it was last synchronized
+  * without querying the database. Records of files that are synchronized
+  * again while the data is loaded are invalidated.
+  * @param replica replica record
+  * @throws DBException if there is a problem querying the database
+  */
+ public void preloadStates(final ReplicaDTO replica)
+	throws DBException
+ {
+  final StateIndex loaded = new StateIndex(replica.getId());
+  new PreparedStatementHandler(mgr, LOAD_CURRENT_STATES_SQL)
+  {
+   @Override
+   protected void bindParameters(PreparedStatement stmt) throws SQLException
+   {
+    stmt.setInt(1, replica.getId());
+   }
+
+   @Override
+   protected void handleResults(ResultSet rs) throws SQLException
+   {
+    while (rs.next())
+     loaded.add(rs.getLong(1), rs.getInt(2), rs.getLong(3), rs.getTimestamp(4).getTime());
+   }
+
+   @Override
+   protected String legend()
+   {
+    return "loading the states of synchronized files in " + replica;
+   }
+  }.execute();
+  states = loaded;
+  log().fine("Loaded the state of " + loaded.count + " synchronized file(s) in " + replica);
+ }
+
+ /**
+  * Tells whether a local file has the same size and modification time
+  * as when it was last synchronized to a version of its shared file,
+  * according to the {@link #preloadStates(ReplicaDTO) loaded} records.
+  * @param fileId identifier of the shared file
+  * @param versionId identifier of the shared file's current version
+  * @param size size of the local file
+  * @param modifiedTime modification time of the local file
+  * @return <code>true</code> if the local file has been synchronized to
+  * <code>versionId</code> and has not changed since, <code>false</code>
+  * if it might have changed or there is no loaded record for the file
+  */
+ public boolean isUnchangedSince(long fileId, int versionId, long size, long modifiedTime)
+ {
+  StateIndex index = states;
+  if (null == index)
+   return false;
+  int i = index.indexOf(fileId);
+  return 0 <= i && versionId == index.versionIds[i]
+  	&& size == index.sizes[i] && modifiedTime == index.modifiedTimes[i];
+ }
+
+ /**
+  * Returns the size and modification time that a local file had
+  * when it was last synchronized to a version of its shared file,
+  * according to the {@link #preloadStates(ReplicaDTO) loaded} records.
+  * Lets the caller compare these values with the local file's attributes
+  * on a different thread.
+  * @param fileId identifier of the shared file
+  * @param versionId identifier of the shared file's current version
+  * @return an array with the size and the modification time of the
+  * local file, in that order, or <code>null</code> if the file has not
+  * been synchronized to <code>versionId</code> or there is no loaded
+  * record for it
+  * @see #isUnchangedSince(long, int, long, long)
+  */
+ public long[] findPreloadedState(long fileId, int versionId)
+ {
+  StateIndex index = states;
+  if (null == index)
+   return null;
+  int i = index.indexOf(fileId);
+  if (0 > i || versionId != index.versionIds[i] || 0L > index.sizes[i])
+   return null;
+  return new long[] { index.sizes[i], index.modifiedTimes[i] };
+ }
+
+ /**
+  * Releases the memory used by {@link #preloadStates(ReplicaDTO) loaded}
+  * states of local files.
+  */
+ public void discardPreloadedStates()
+ {
+  states = null;
+ }
+
  /**
   * Check if there is a synchronization record for a file within a replica.
   * @param fileId identifier of the file record
@@ -355,12 +489,12 @@ public class LastSyncDAO extends AbstractDAO
  @Override
  public String[] schemaDDL()
  {
-  return DDL_V2;
+  return DDL_V3;
  }
 
  public static final String TABLE_NAME = "LastSync";
 
- protected static final int SCHEMA_VERSION = 2;
+ protected static final int SCHEMA_VERSION = 3;
 
  @Override
  protected int upgradeSchema(int dbVersion)
@@ -393,10 +527,9 @@ public class LastSyncDAO extends AbstractDAO
  protected static final Class[] DEPENDENCIES = new Class[]
     { FileDAO.class, ReplicaDAO.class, VersionDAO.class, NodeNameDAO.class };
  
- /**
+ /*
   * DDL of the table, version 1.
-  * @deprecated
-  *
+  * 
  @Deprecated
  protected static final String DDL_V1 =
   "CREATE TABLE " + TABLE_NAME + "( " +
@@ -417,9 +550,10 @@ public class LastSyncDAO extends AbstractDAO
  		"REFERENCES Version(file, id) ON DELETE RESTRICT " +
  ")";*/
 
- /**
+ /*
   * DDL statements for version 2 of this table.
-  */
+  * 
+ @Deprecated
  protected static final String[] DDL_V2 = {
   "CREATE TABLE " + TABLE_NAME + "( " +
 	"file BIGINT, " +
@@ -436,6 +570,30 @@ public class LastSyncDAO extends AbstractDAO
 		"REFERENCES Replica ON DELETE CASCADE, " +
 	"CONSTRAINT FK_ResolvedVersion_version FOREIGN KEY (file, version) " +
 		"REFERENCES Version(file, id) ON DELETE RESTRICT " +
+")"
+ };*/
+
+ /**
+  * DDL statements for version 3 of this table.
+  */
+ protected static final String[] DDL_V3 = {
+  "CREATE TABLE " + TABLE_NAME + "( " +
+	"file BIGINT, " +
+	"replica INTEGER, " +
+	"version INTEGER, " +
+	"size BIGINT, " +
+	"digest BINARY(64), " +
+	"modified TIMESTAMP, " +
+	"name BIGINT REFERENCES NodeName, " +
+	"local_size BIGINT, " +
+	"local_modified TIMESTAMP, " +
+	"PRIMARY KEY (file, replica), " +
+	"CONSTRAINT FK_ResolvedVersion_file FOREIGN KEY (file) " +
+		"REFERENCES File ON DELETE CASCADE, " +
+	"CONSTRAINT FK_ResolvedVersion_replica FOREIGN KEY (replica) " +
+		"REFERENCES Replica ON DELETE CASCADE, " +
+	"CONSTRAINT FK_ResolvedVersion_version FOREIGN KEY (file, version) " +
+		"REFERENCES Version(file, id) ON DELETE RESTRICT " +
 ")"
  };
 
@@ -448,31 +606,37 @@ public class LastSyncDAO extends AbstractDAO
    "WHERE ls.deleted",
    "DELETE FROM " + TABLE_NAME + " ls WHERE ls.deleted AND ls.version IS NULL",
    "ALTER TABLE " + TABLE_NAME + " DROP COLUMN deleted"
+  },
+  { // V2 TO V3
+   "ALTER TABLE " + TABLE_NAME + " ADD COLUMN local_size BIGINT",
+   "ALTER TABLE " + TABLE_NAME + " ADD COLUMN local_modified TIMESTAMP"
   }
  };
 
  protected static final String INSERT_FIELDS =
-  "version, size, digest, modified, name, file, replica";
+  "version, size, digest, modified, name, local_size, local_modified, file, replica";
 
  /**
   * INSERT statement for a regular sync record.
   */
  protected static final String INSERT_SYNC_SQL =
-  "INSERT INTO " + TABLE_NAME + " (" + INSERT_FIELDS + ") VALUES (?, NULL, NULL, NULL, NULL, ?, ?)";
+  "INSERT INTO " + TABLE_NAME + " (" + INSERT_FIELDS + ") VALUES (?, NULL, NULL, NULL, NULL, ?, ?, ?, ?)";
 
  /**
   * UPDATE statement for a regular sync record.
   */
  protected static final String UPDATE_SYNC_SQL =
    "UPDATE " + TABLE_NAME + " SET version = ?" +
-   ", size = NULL, digest = NULL, modified = NULL, name = NULL " +
+   ", size = NULL, digest = NULL, modified = NULL, name = NULL" +
+   ", local_size = ?, local_modified = ? " +
    "WHERE file = ? AND replica = ?";
 
  /**
   * UPDATE statement for a deletion sync record.
   */
  protected static final String UNLINK_SQL =
-  "UPDATE " + TABLE_NAME + " SET version = NULL, size = ?, digest = ?, modified = ?, name = ? "
+  "UPDATE " + TABLE_NAME + " SET version = NULL, size = ?, digest = ?, modified = ?, name = ?"
+  + ", local_size = NULL, local_modified = NULL "
   + "WHERE file = ? AND version = ?";
 
  /**
@@ -489,10 +653,22 @@ public class LastSyncDAO extends AbstractDAO
   */
  protected static final String LOAD_RECORD_SQL =
   "SELECT (v.id IS NULL AND ls.size IS NULL) OR (v.id IS NOT NULL AND v.size IS NULL) AS deleted"
-  + ", ls.version, ls.size, ls.digest, ls.modified, ls.name FROM " + TABLE_NAME
+  + ", ls.version, ls.size, ls.digest, ls.modified, ls.name, ls.local_size, ls.local_modified FROM " + TABLE_NAME
   + " ls LEFT OUTER JOIN " + VersionDAO.TABLE_NAME + " v ON ls.file=v.file AND ls.version = v.id"
   + " WHERE ls.file = ? AND ls.replica = ?";
 
+ /**
+  * SQL statement for loading the sync records of a replica that
+  * point to current versions of files and keep the state of
+  * their local files.
+  */
+ protected static final String LOAD_CURRENT_STATES_SQL =
+  "SELECT ls.file, ls.version, ls.local_size, ls.local_modified FROM " + TABLE_NAME
+  + " ls JOIN " + FileDAO.TABLE_NAME + " f ON ls.file = f." + FileDAO.ID_FIELD_NAME
+  + " AND ls.version = f.current"
+  + " WHERE ls.replica = ? AND ls.local_size IS NOT NULL AND ls.local_modified IS NOT NULL"
+  + " ORDER BY ls.file";
+
  /**
   * SQL statement for testing existence of the sync record for a
   * (file,replica) pair.
@@ -514,5 +690,55 @@ public class LastSyncDAO extends AbstractDAO
  protected static final String DELETE_FILE_RECORDS_SQL =
   "DELETE FROM " + TABLE_NAME + " WHERE file = ?";
 
+ /**
+  * Stores the states of local files in parallel arrays sorted
+  * by file id.
+  */
+ private static class StateIndex
+ {
+  int indexOf(long fileId)
+  {
+   return Arrays.binarySearch(fileIds, 0, count, fileId);
+  }
+
+  void add(long fileId, int versionId, long size, long modifiedTime)
+  {
+   if (fileIds.length == count)
+   {
+    int capacity = count << 1;
+    fileIds = Arrays.copyOf(fileIds, capacity);
+    versionIds = Arrays.copyOf(versionIds, capacity);
+    sizes = Arrays.copyOf(sizes, capacity);
+    modifiedTimes = Arrays.copyOf(modifiedTimes, capacity);
+   }
+   fileIds[count] = fileId;
+   versionIds[count] = versionId;
+   sizes[count] = size;
+   modifiedTimes[count++] = modifiedTime;
+  }
+
+  void invalidate(long fileId)
+  {
+   int i = indexOf(fileId);
+   if (0 <= i)
+    sizes[i] = -1L;
+  }
+
+  StateIndex(int replicaId)
+  {
+   this.replicaId = replicaId;
+  }
+
+  final int replicaId;
+  long[] fileIds = new long[INITIAL_SIZE];
+  int[] versionIds = new int[INITIAL_SIZE];
+  long[] sizes = new long[INITIAL_SIZE];
+  long[] modifiedTimes = new long[INITIAL_SIZE];
+  int count;
+
+  private static final int INITIAL_SIZE = 1024;
+ }
+
  private SchemaUpgrades upgrades;
+ private StateIndex states;
 }
@@ -64,6 +64,24 @@ public class LastSyncDTO implements VersionInfo
   return versionId;
  }
 
+ /**
+  * Returns the size of the local file as of the last synchronization,
+  * or <code>-1L</code> if that state is not known.
+  */
+ public long getLocalSize()
+ {
+  return null == localSize ? -1L : localSize;
+ }
+
+ /**
+  * Returns the modification time of the local file as of the last
+  * synchronization, or <code>null</code> if that state is not known.
+  */
+ public Timestamp getLocalModifiedTime()
+ {
+  return localModifiedTime;
+ }
+
  public boolean isDeleted()
  {
   return deleted;
@@ -98,13 +116,17 @@ public class LastSyncDTO implements VersionInfo
   nameId = rs.getLong(6);
   if (rs.wasNull())
    nameId = null;
+  localSize = rs.getLong(7);
+  if (rs.wasNull())
+   localSize = null;
+  localModifiedTime = rs.getTimestamp(8);
   this.fileId = fileId;
   this.replicaId = replicaId;
  }
  
  private byte[] digest;
- private Timestamp modifiedTime;
- private Long nameId, size;
+ private Timestamp modifiedTime, localModifiedTime;
+ private Long nameId, size, localSize;
  private long fileId;
  private int replicaId;
  private Integer versionId;
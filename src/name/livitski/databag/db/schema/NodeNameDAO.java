@@ -24,6 +24,8 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
@@ -89,6 +91,11 @@ public class NodeNameDAO extends CachingDAO<Long, NodeNameDTO>
  public NodeNameDTO find(NodeNameDTO parent, String rdn)
  	throws DBException
  {
+  if (null != index)
+  {
+   int at = index.indexOf(null == parent ? 0L : parent.getId(), rdn);
+   return 0 > at ? null : find(index.ids[at]);
+  }
   Loader loader = new Loader(mgr);
   loader.useParentAndName(null == parent ? null : parent.getId(), rdn);
   loader.execute();
@@ -147,6 +154,103 @@ public class NodeNameDAO extends CachingDAO<Long, NodeNameDTO>
   return copy;
  }
 
+ /**
+  * Lists the child nodes of a naming node with a single query.
+  * @param parentId id of the parent node, or <code>0L</code> to
+  * list the root nodes
+  * @return the list of child nodes ordered by their
+  * {@link NodeNameDTO#getRelativeName() relative names}
+  * @throws DBException if there is an error querying the database 
+  */
+ public List<NodeNameDTO> listChildren(final long parentId)
+ 	throws DBException
+ {
+  final List<Long> ids = new ArrayList<Long>();
+  final List<String> names = new ArrayList<String>();
+  new PreparedStatementHandler(mgr, 0L == parentId ? LIST_ROOTS_SQL : LIST_CHILDREN_SQL)
+  {
+   @Override
+   protected void bindParameters(PreparedStatement stmt) throws SQLException
+   {
+    if (0L != parentId)
+     stmt.setLong(1, parentId);
+   }
+
+   @Override
+   protected void handleResults(ResultSet rs) throws SQLException
+   {
+    while (rs.next())
+    {
+     ids.add(rs.getLong(1));
+     names.add(rs.getString(2));
+    }
+   }
+
+   @Override
+   protected String legend()
+   {
+    return "listing children of named node " + parentId;
+   }
+  }.execute();
+  List<NodeNameDTO> children = new ArrayList<NodeNameDTO>(ids.size());
+  for (int i = 0; i < ids.size(); i++)
+   children.add(cache(new NodeNameDTO(ids.get(i), parentId, names.get(i))));
+  return children;
+ }
+
+ /**
+  * Loads all naming nodes into memory with a single query. Until the
+  * loaded data is {@link #discardPreloaded() discarded}, nodes are
+  * looked up by their ids and by their parents and names without
+  * querying the database. New nodes are added to the loaded data as
+  * they are saved. Deletion of nodes or an aborted transaction causes
+  * the loaded data to be discarded, since the effects of those on the
+  * tree of names cannot be tracked. Has no effect if the nodes have
+  * already been loaded.
+  * @throws DBException if there is an error querying the database 
+  */
+ public void preload()
+ 	throws DBException
+ {
+  if (null != index)
+   return;
+  final NameIndex loaded = new NameIndex();
+  new PreparedStatementHandler(mgr, LOAD_ALL_SQL)
+  {
+   @Override
+   protected void handleResults(ResultSet rs) throws SQLException
+   {
+    while (rs.next())
+     loaded.add(rs.getLong(1), rs.getLong(2), rs.getString(3));
+   }
+
+   @Override
+   protected String legend()
+   {
+    return "loading all " + TABLE_NAME + " records";
+   }
+  }.execute();
+  index = loaded;
+  log().fine("Loaded " + loaded.count + " " + TABLE_NAME + " record(s)");
+ }
+
+ /**
+  * Tells whether naming nodes are {@link #preload() loaded} in memory.
+  */
+ public boolean isPreloaded()
+ {
+  return null != index;
+ }
+
+ /**
+  * Releases the memory used by {@link #preload() loaded} naming nodes.
+  * Subsequent lookups will query the database.
+  */
+ public void discardPreloaded()
+ {
+  index = null;
+ }
+
  @Override
  public int getCurrentVersion()
  {
@@ -259,6 +363,18 @@ public class NodeNameDAO extends CachingDAO<Long, NodeNameDTO>
     throw new NoSuchRecordException(TABLE_NAME, id);
    }
 
+   @Override
+   protected void handleUpdate(int count) throws DBException
+   {
+    // deletion cascades to descendants of the node
+    if (null != index)
+    {
+     log().fine("Discarding loaded " + TABLE_NAME + " records after deleting node " + id);
+     discardPreloaded();
+    }
+    super.handleUpdate(count);
+   }
+
    @Override
    protected String legend()
    {
@@ -304,6 +420,8 @@ public class NodeNameDAO extends CachingDAO<Long, NodeNameDTO>
     }
     if (!hasId)
      throw new DBException("No record has been added for " + object);
+    if (null != index)
+     index.add(object.getId(), object.getParentId(), object.getRelativeName());
    }
 
    @Override
@@ -320,6 +438,11 @@ public class NodeNameDAO extends CachingDAO<Long, NodeNameDTO>
  @Override
  protected NodeNameDTO loadImpl(Long id) throws DBException
  {
+  if (null != index)
+  {
+   int at = index.indexOf(id);
+   return 0 > at ? null : new NodeNameDTO(id, index.parents[at], index.names[at]);
+  }
   Loader loader = new Loader(mgr);
   loader.setId(id);
   loader.execute();
@@ -335,6 +458,16 @@ public class NodeNameDAO extends CachingDAO<Long, NodeNameDTO>
   throw new UnsupportedOperationException(object.getClass() + " is immutable");
  }
 
+ @Override
+ protected void transactionEnded(Transaction txn, boolean commit)
+ {
+  if (!commit && null != index)
+  {
+   log().fine("Discarding loaded " + TABLE_NAME + " records after a rollback");
+   discardPreloaded();
+  }
+ }
+
  /**
   * Access point for tests.
   */
@@ -495,10 +628,105 @@ public class NodeNameDAO extends CachingDAO<Long, NodeNameDTO>
 
  protected static final String SELECT_ROOTS_SQL = "SELECT " + ID_FIELD_NAME + " FROM " + TABLE_NAME + " WHERE " + PARENT_FIELD_NAME + " IS NULL ORDER BY rdn";
 
+ protected static final String LIST_CHILDREN_SQL = "SELECT " + ID_FIELD_NAME + ", rdn FROM " + TABLE_NAME + " WHERE " + PARENT_FIELD_NAME + " = ? ORDER BY rdn";
+
+ protected static final String LIST_ROOTS_SQL = "SELECT " + ID_FIELD_NAME + ", rdn FROM " + TABLE_NAME + " WHERE " + PARENT_FIELD_NAME + " IS NULL ORDER BY rdn";
+
+ protected static final String LOAD_ALL_SQL = "SELECT " + ID_FIELD_NAME + ", " + PARENT_FIELD_NAME + ", rdn FROM " + TABLE_NAME;
+
  protected static final String INSERT_SQL = "INSERT INTO " + TABLE_NAME + " (" + PARENT_FIELD_NAME + ", rdn) VALUES (?, ?)";
 
  protected static final String DELETE_SQL = "DELETE FROM " + TABLE_NAME + " WHERE " + ID_FIELD_NAME + " = ?";
 
+ /**
+  * Stores naming nodes in parallel arrays hashed by node id and
+  * by parent id and relative name. Root nodes have parent id
+  * <code>0</code>.
+  */
+ private static class NameIndex
+ {
+  int indexOf(long id)
+  {
+   for (int i = idHeads[hash(id) & idHeads.length - 1]; 0 <= i; i = idNext[i])
+    if (id == ids[i])
+     return i;
+   return -1;
+  }
+
+  int indexOf(long parentId, String rdn)
+  {
+   for (int i = childHeads[hash(parentId, rdn) & childHeads.length - 1]; 0 <= i; i = childNext[i])
+    if (parentId == parents[i] && rdn.equals(names[i]))
+     return i;
+   return -1;
+  }
+
+  void add(long id, long parentId, String rdn)
+  {
+   if (ids.length == count)
+   {
+    int size = count << 1;
+    ids = Arrays.copyOf(ids, size);
+    parents = Arrays.copyOf(parents, size);
+    names = Arrays.copyOf(names, size);
+    idNext = new int[size];
+    childNext = new int[size];
+    idHeads = new int[size << 1];
+    childHeads = new int[size << 1];
+    Arrays.fill(idHeads, -1);
+    Arrays.fill(childHeads, -1);
+    for (int i = 0; i < count; i++)
+     link(i);
+   }
+   ids[count] = id;
+   parents[count] = parentId;
+   names[count] = rdn;
+   link(count++);
+  }
+
+  NameIndex()
+  {
+   int size = INITIAL_SIZE;
+   ids = new long[size];
+   parents = new long[size];
+   names = new String[size];
+   idNext = new int[size];
+   childNext = new int[size];
+   idHeads = new int[size << 1];
+   childHeads = new int[size << 1];
+   Arrays.fill(idHeads, -1);
+   Arrays.fill(childHeads, -1);
+  }
+
+  private void link(int i)
+  {
+   int slot = hash(ids[i]) & idHeads.length - 1;
+   idNext[i] = idHeads[slot];
+   idHeads[slot] = i;
+   slot = hash(parents[i], names[i]) & childHeads.length - 1;
+   childNext[i] = childHeads[slot];
+   childHeads[slot] = i;
+  }
+
+  private static int hash(long id)
+  {
+   int h = (int)(id ^ id >>> 32);
+   return h ^ h >>> 16;
+  }
+
+  private static int hash(long parentId, String rdn)
+  {
+   return hash(parentId * 31 + rdn.hashCode());
+  }
+
+  private static final int INITIAL_SIZE = 1024;
+
+  long[] ids, parents;
+  String[] names;
+  int count;
+  private int[] idHeads, idNext, childHeads, childNext;
+ }
+
  private NodeNameDTO findInternal(File localName, boolean create)
  	throws DBException
  {
@@ -542,4 +770,6 @@ public class NodeNameDAO extends CachingDAO<Long, NodeNameDTO>
   }
   return comps;
  }
+
+ private NameIndex index;
 }
@@ -0,0 +1,541 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.db.schema;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import name.livitski.databag.db.AbstractDAO;
+import name.livitski.databag.db.DBException;
+import name.livitski.databag.db.Manager;
+import name.livitski.databag.db.NoSuchRecordException;
+import name.livitski.databag.db.PreparedStatementHandler;
+import name.livitski.databag.db.Transaction;
+
+/**
+ * Manages records in the <code>Pack</code> table. A pack is a segment
+ * of data that holds the images of several small file versions one
+ * after another, deflated as a single stream. Compressing such images
+ * together exploits the similarity between files, and saves the overhead
+ * of storing each image as a separate object. Images are {@link #append
+ * appended} to the open pack of this object until its data reaches the
+ * {@link #SEGMENT_SIZE segment size}, then a new pack is opened.
+ * The data of the open pack is kept in memory and written to the
+ * database when the pack is full or the transaction that appended
+ * to it commits. Images can only be appended within a transaction,
+ * so that a pack is not written again after each append. Packs are
+ * compressed by this object and stored in a binary column rather
+ * than a LOB, which the database would compress once more.
+ * <p>A pack written within a transaction that is still active may be
+ * reverted by rolling back a nested transaction, while it holds images
+ * of versions saved before that transaction began. This object keeps
+ * the compressed data of such packs until the outermost transaction
+ * ends, and writes them again if a nested transaction is aborted.</p>
+ * <p>Like the connection of its {@link Manager database manager},
+ * an instance of this class is not thread-safe and should be used
+ * within a single thread.</p>
+ * @see VersionDAO#saveImage(VersionDTO, InputStream)
+ * @see Manager#getPackedImageLimit()
+ */
+public class PackDAO extends AbstractDAO
+{
+ /**
+  * Appends an image to a pack.
+  * @param image buffer containing the image
+  * @param length length of the image, in bytes
+  * @return the location of the image
+  * @throws DBException if there is an error updating the database
+  * @throws IllegalStateException if there is no active transaction
+  */
+ public Location append(byte[] image, int length)
+ 	throws DBException
+ {
+  if (!mgr.isTransactionActive())
+   throw new IllegalStateException("Images can only be appended to packs within a transaction");
+  if (0L != openId && SEGMENT_SIZE < openLength + (long)length)
+   closeSegment();
+  if (0L == openId)
+   openSegment();
+  if (openData.length < openLength + length)
+  {
+   byte[] grown = new byte[Math.min(SEGMENT_SIZE, Math.max(openLength + length, openData.length << 1))];
+   System.arraycopy(openData, 0, grown, 0, openLength);
+   openData = grown;
+  }
+  System.arraycopy(image, 0, openData, openLength, length);
+  Location location = new Location(openId, openLength);
+  openLength += length;
+  return location;
+ }
+
+ /**
+  * Reads an image stored in a pack.
+  * @param packId identity of the pack
+  * @param offset offset of the image within the pack's data
+  * @param length length of the image
+  * @return the stream of the image's bytes
+  * @throws DBException if the pack does not exist, does not contain
+  * the requested image, or there is an error reading it
+  */
+ public InputStream openImage(long packId, long offset, long length)
+ 	throws DBException
+ {
+  byte[] data;
+  int available;
+  if (packId == openId)
+  {
+   data = openData;
+   available = openLength;
+  }
+  else
+  {
+   if (packId != readId)
+   {
+    Segment pending = written.get(packId);
+    if (null == pending)
+     load(packId);
+    else
+    {
+     readData = inflate(packId, pending.data, pending.length);
+     readId = packId;
+    }
+   }
+   data = readData;
+   available = readData.length;
+  }
+  if (0L > offset || 0L > length || available < offset + length)
+   throw new DBException("Pack #" + packId + " of " + available
+     + " byte(s) does not contain an image of " + length
+     + " byte(s) at offset " + offset);
+  return new ByteArrayInputStream(data, (int)offset, (int)length);
+ }
+
+ /**
+  * Deletes a pack unless it contains images of existing versions.
+  * @param packId identity of the pack
+  * @throws DBException if there is an error updating the database
+  */
+ public void deleteIfUnused(final long packId)
+ 	throws DBException
+ {
+  new PreparedStatementHandler(mgr, DELETE_UNUSED_SQL)
+  {
+   @Override
+   protected void bindParameters(PreparedStatement stmt) throws SQLException
+   {
+    stmt.setLong(1, packId);
+   }
+
+   @Override
+   protected void handleUpdate(int count)
+   {
+    if (0 < count)
+    {
+     if (packId == openId)
+      discardOpen();
+     if (packId == readId)
+      readId = 0L;
+     written.remove(packId);
+    }
+   }
+
+   @Override
+   protected String legend()
+   {
+    return "deleting pack #" + packId + " if unused";
+   }
+  }.execute();
+ }
+
+ /**
+  * Location of an image within a pack.
+  */
+ public static class Location
+ {
+  public long getPackId()
+  {
+   return packId;
+  }
+
+  public long getOffset()
+  {
+   return offset;
+  }
+
+  @Override
+  public String toString()
+  {
+   return "offset " + offset + " in pack #" + packId;
+  }
+
+  public Location(long packId, long offset)
+  {
+   this.packId = packId;
+   this.offset = offset;
+  }
+
+  private long packId, offset;
+ }
+
+ @Override
+ public int getCurrentVersion()
+ {
+  return 1;
+ }
+
+ @Override
+ public String[] schemaDDL()
+ {
+  return SCHEMA_SCRIPT;
+ }
+
+ public static final String TABLE_NAME = "Pack";
+
+ /**
+  * Size of a pack's uncompressed data, in bytes, beyond which images
+  * are no longer appended to that pack.
+  */
+ public static final int SEGMENT_SIZE = 1 << 18;
+
+ /**
+  * Creates a DAO object as specified by the superclass. The constructor need not
+  * be public as only the {@link Manager database manager} may instantiate this object.
+  * @param mgr database manager reference
+  */
+ protected PackDAO(Manager mgr)
+ {
+  super(mgr);
+ }
+
+ protected static final String DDL_V1 =
+  "CREATE TABLE " + TABLE_NAME + " (" +
+  "id BIGINT IDENTITY, " +
+  "length BIGINT NOT NULL, " +
+  "data VARBINARY NOT NULL" +
+  ")";
+
+ protected static final String[] SCHEMA_SCRIPT = { DDL_V1 };
+
+ protected static final String INSERT_SQL =
+  "INSERT INTO " + TABLE_NAME + " (length, data) VALUES (0, X'')";
+
+ protected static final String UPDATE_SQL =
+  "UPDATE " + TABLE_NAME + " SET length = ?, data = ? WHERE id = ?";
+
+ protected static final String EXISTS_SQL =
+  "SELECT id FROM " + TABLE_NAME + " WHERE id = ?";
+
+ protected static final String LOAD_SQL =
+  "SELECT length, data FROM " + TABLE_NAME + " WHERE id = ?";
+
+ protected static final String DELETE_UNUSED_SQL =
+  "DELETE FROM " + TABLE_NAME + " p WHERE p.id = ? AND NOT EXISTS"
+  + " (SELECT * FROM " + VersionDAO.TABLE_NAME + " v WHERE v.pack = p.id)";
+
+ /**
+  * Writes the open pack and the packs reverted by an aborted nested
+  * transaction to the database before the transaction commits.
+  */
+ @Override
+ protected void prepareCommit(Transaction txn)
+ 	throws DBException
+ {
+  if (0L != openId && writtenLength != openLength)
+  {
+   write(openId, openLength, compress(openData, openLength));
+   writtenLength = openLength;
+  }
+  for (Map.Entry<Long, Segment> entry : written.entrySet())
+   if (entry.getValue().reverted)
+    write(entry.getKey(), entry.getValue().length, entry.getValue().data);
+  written.clear();
+ }
+
+ /**
+  * Discards the open pack when the outermost transaction is aborted.
+  * After a nested transaction is aborted, drops the packs that it
+  * created and marks the others for writing on commit, since their
+  * updates may have been rolled back.
+  */
+ @Override
+ protected void transactionAborted(Transaction txn)
+ 	throws DBException
+ {
+  readId = 0L;
+  if (!mgr.isTransactionActive())
+  {
+   discardOpen();
+   written.clear();
+   return;
+  }
+  if (0L != openId)
+  {
+   if (exists(openId))
+    writtenLength = -1;
+   else
+    discardOpen();
+  }
+  for (Iterator<Map.Entry<Long, Segment>> i = written.entrySet().iterator(); i.hasNext();)
+  {
+   Map.Entry<Long, Segment> entry = i.next();
+   if (exists(entry.getKey()))
+    entry.getValue().reverted = true;
+   else
+    i.remove();
+  }
+ }
+
+ /**
+  * Compressed data of a pack written within the current transaction.
+  */
+ private static class Segment
+ {
+  Segment(int length, byte[] data)
+  {
+   this.length = length;
+   this.data = data;
+  }
+
+  final int length;
+  final byte[] data;
+  boolean reverted;
+ }
+
+ private void openSegment()
+ 	throws DBException
+ {
+  class Inserter extends PreparedStatementHandler
+  {
+   public Inserter()
+   {
+    super(PackDAO.this.mgr, INSERT_SQL);
+   }
+
+   @Override
+   protected void handleUpdate(PreparedStatement stmt)
+   	throws DBException, SQLException
+   {
+    if (0 < stmt.getUpdateCount())
+    {
+     ResultSet idrs = stmt.getGeneratedKeys();
+     if (idrs.next())
+      id = idrs.getLong(1);
+    }
+    if (0 == id)
+     throw new DBException("No record has been added to " + TABLE_NAME);
+   }
+
+   @Override
+   protected String legend()
+   {
+    return "adding a pack";
+   }
+
+   long id;
+  }
+  Inserter inserter = new Inserter();
+  inserter.execute();
+  openId = inserter.id;
+  openData = new byte[INITIAL_BUFFER_SIZE];
+  openLength = writtenLength = 0;
+ }
+
+ private void closeSegment()
+ 	throws DBException
+ {
+  if (writtenLength != openLength)
+  {
+   byte[] compressed = compress(openData, openLength);
+   write(openId, openLength, compressed);
+   written.put(openId, new Segment(openLength, compressed));
+  }
+  discardOpen();
+ }
+
+ private void discardOpen()
+ {
+  openId = 0L;
+  openData = null;
+  openLength = writtenLength = 0;
+ }
+
+ private void write(final long packId, final int length, final byte[] compressed)
+ 	throws DBException
+ {
+  new PreparedStatementHandler(mgr, UPDATE_SQL)
+  {
+   @Override
+   protected void bindParameters(PreparedStatement stmt) throws SQLException
+   {
+    // params: length, data, id
+    stmt.setLong(1, length);
+    stmt.setBytes(2, compressed);
+    stmt.setLong(3, packId);
+   }
+
+   @Override
+   protected void noMatchOnUpdate() throws DBException
+   {
+    throw new NoSuchRecordException(TABLE_NAME, String.valueOf(packId));
+   }
+
+   @Override
+   protected String legend()
+   {
+    return "writing " + compressed.length + " byte(s) to pack #" + packId;
+   }
+  }.execute();
+ }
+
+ private boolean exists(final long packId)
+ 	throws DBException
+ {
+  final boolean[] found = { false };
+  new PreparedStatementHandler(mgr, EXISTS_SQL)
+  {
+   @Override
+   protected void bindParameters(PreparedStatement stmt) throws SQLException
+   {
+    stmt.setLong(1, packId);
+   }
+
+   @Override
+   protected void handleResults(ResultSet rs) throws SQLException
+   {
+    found[0] = rs.next();
+   }
+
+   @Override
+   protected String legend()
+   {
+    return "looking up pack #" + packId;
+   }
+  }.execute();
+  return found[0];
+ }
+
+ private void load(final long packId)
+ 	throws DBException
+ {
+  class Loader extends PreparedStatementHandler
+  {
+   public Loader()
+   {
+    super(PackDAO.this.mgr, LOAD_SQL);
+   }
+
+   @Override
+   protected void bindParameters(PreparedStatement stmt) throws SQLException
+   {
+    stmt.setLong(1, packId);
+   }
+
+   @Override
+   protected void handleResults(ResultSet rs) throws SQLException, DBException
+   {
+    if (!rs.next())
+     throw new NoSuchRecordException(TABLE_NAME, String.valueOf(packId));
+    long length = rs.getLong(1);
+    if (SEGMENT_SIZE < length)
+     throw new DBException("Pack #" + packId + " is too long: " + length + " byte(s)");
+    data = inflate(packId, rs.getBytes(2), (int)length);
+   }
+
+   @Override
+   protected String legend()
+   {
+    return "reading pack #" + packId;
+   }
+
+   byte[] data;
+  }
+  Loader loader = new Loader();
+  loader.execute();
+  readData = loader.data;
+  readId = packId;
+ }
+
+ private static byte[] inflate(long packId, byte[] compressed, int length)
+ 	throws DBException
+ {
+  byte[] data = new byte[length];
+  Inflater inflater = new Inflater();
+  try
+  {
+   inflater.setInput(compressed);
+   int count = 0;
+   while (data.length > count && !inflater.finished())
+   {
+    int inflated = inflater.inflate(data, count, data.length - count);
+    if (0 == inflated && (inflater.needsInput() || inflater.needsDictionary()))
+     break;
+    count += inflated;
+   }
+   if (data.length != count || !inflater.finished() && 0 < inflater.inflate(new byte[1]))
+    throw new DBException("Pack #" + packId + " does not contain "
+      + length + " byte(s) of data");
+  }
+  catch (DataFormatException invalid)
+  {
+   throw new DBException("Pack #" + packId + " is corrupt", invalid);
+  }
+  finally
+  {
+   inflater.end();
+  }
+  return data;
+ }
+
+ private static byte[] compress(byte[] data, int length)
+ {
+  Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+  try
+  {
+   deflater.setInput(data, 0, length);
+   deflater.finish();
+   ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+   byte[] buffer = new byte[8192];
+   while (!deflater.finished())
+    out.write(buffer, 0, deflater.deflate(buffer));
+   return out.toByteArray();
+  }
+  finally
+  {
+   deflater.end();
+  }
+ }
+
+ private static final int INITIAL_BUFFER_SIZE = 65536;
+
+ private long openId, readId;
+ private byte[] openData, readData;
+ private int openLength, writtenLength;
+ private final Map<Long, Segment> written = new LinkedHashMap<Long, Segment>();
+}
@@ -19,9 +19,11 @@
     
 package name.livitski.databag.db.schema;
 
+import java.io.ByteArrayInputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.sql.Blob;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -31,6 +33,7 @@ import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 
 import name.livitski.databag.db.AbstractDAO;
@@ -127,6 +130,50 @@ public class VersionDAO extends AbstractDAO
   }
  }
 
+ /**
+  * Iterates over tracked files that haven't been deleted and are
+  * named by children of a certain naming node.
+  * @param parentNameId id of the parent naming node, or <code>0L</code>
+  * to iterate over files named by root nodes
+  * @see NodeNameDAO#listChildren(long)
+  */
+ public Cursor<FileDTO> fetchExistingFilesIn(final long parentNameId)
+ 	throws DBException
+ {
+  FileDAO.RecordsIterator it = new FileDAO.RecordsIterator(mgr)
+  {
+   {
+    sql = 0L == parentNameId ? LOAD_EXISTING_ROOT_FILES_SQL : LOAD_EXISTING_CHILD_FILES_SQL;
+   }
+
+   @Override
+   protected void bindParameters(PreparedStatement stmt) throws SQLException
+   {
+    if (0L != parentNameId)
+     stmt.setLong(1, parentNameId);
+   }
+
+   @Override
+   protected String legend()
+   {
+    return "retrieving records of existing files at children of name node " + parentNameId;
+   }
+  };
+  try
+  {
+   it.execute();
+   return it;
+  }
+  catch (Exception e)
+  {
+   it.close();
+   if (e instanceof DBException)
+    throw (DBException)e;
+   else
+    throw (RuntimeException)e;
+  }
+ }
+
  /**
   * Returns all file records that have prior versions with a certain name
   * different from the file name on record.
@@ -329,6 +376,36 @@ public class VersionDAO extends AbstractDAO
   }
  }
 
+ /**
+  * Fetch versions of files with a specific name, size, and content digest.
+  * This query uses the hash index on the digest column. Versions that
+  * have no digest stored are not included in results.
+  * @param digest digest of the contents to look for
+  */
+ public Cursor<VersionDTO> findVersions(NodeNameDTO name, long size, byte[] digest)
+	throws DBException
+ {
+  if (null == digest)
+   throw new IllegalArgumentException("Null digest is not allowed");
+  SelectionIterator it = new SelectionIterator(mgr);
+  it.filterByName(name.getId());
+  it.filterBySize(size);
+  it.filterByDigest(digest);
+  try
+  {
+   it.execute();
+   return it;
+  }
+  catch (Exception e)
+  {
+   it.close();
+   if (e instanceof DBException)
+    throw (DBException)e;
+   else
+    throw (RuntimeException)e;
+  }
+ }
+
  /**
   * Fetch versions of files with a specific name that were modified
   * within a specific time range.
@@ -565,6 +642,7 @@ public class VersionDAO extends AbstractDAO
 	throws DBException
  {
   BLOBAccess image = new BLOBAccess(mgr, v);
+  image.setPacks(mgr.findDAO(PackDAO.class));
   image.execute();
   return image.getInputStream();
  }
@@ -613,8 +691,29 @@ public class VersionDAO extends AbstractDAO
  public void delete(final VersionDTO version)
 	throws DBException
  {
+  final long[] pack = { 0L };
+  new PKStatement(mgr, FIND_PACK_SQL)
+  {
+   { setVersion(version); }
+
+   @Override
+   protected void handleResults(ResultSet rs) throws SQLException
+   {
+    if (rs.next())
+     pack[0] = rs.getLong(1);
+   }
+
+   @Override
+   protected String legend()
+   {
+    return "looking up the image pack of " + version;
+   }
+  }.execute();
   Deleter worker = new Deleter(mgr, version);
   worker.execute();
+  if (0L != pack[0])
+   mgr.findDAO(PackDAO.class).deleteIfUnused(pack[0]);
+  fireVersionRemoved(version);
  }
 
  /**
@@ -643,8 +742,39 @@ public class VersionDAO extends AbstractDAO
     return "purging obsolete versions of file #" + getFileId();
    }
   };
+  final List<Long> packs = new LinkedList<Long>();
+  FileIdStatement finder = new FileIdStatement(mgr, FIND_FILE_PACKS_SQL)
+  {
+   @Override
+   protected void bindParameters(PreparedStatement stmt) throws SQLException
+   {
+    super.bindParameters(stmt);
+    stmt.setTimestamp(2, asof);
+   }
+
+   @Override
+   protected void handleResults(ResultSet rs) throws SQLException
+   {
+    while (rs.next())
+     packs.add(rs.getLong(1));
+   }
+
+   @Override
+   protected String legend()
+   {
+    return "looking up image packs of file #" + getFileId();
+   }
+  };
+  finder.setFileId(file.getId());
+  finder.execute();
   stmt.setFileId(file.getId());
   stmt.execute();
+  if (!packs.isEmpty())
+  {
+   PackDAO packDAO = mgr.findDAO(PackDAO.class);
+   for (Long pack : packs)
+    packDAO.deleteIfUnused(pack);
+  }
   return stmt.getUpdateCount();
  }
 
@@ -732,6 +862,9 @@ public class VersionDAO extends AbstractDAO
  /**
   * Save a stream as image of a file version.
   * Error is reported if the file version already has an image attached.
+  * Images within the {@link Manager#getPackedImageLimit() packed image limit}
+  * are stored in {@link PackDAO packs} when this method is called within
+  * a transaction, and separately otherwise.
   * @param version version to attach the image to
   * @param image non-null stream to read the image from
   * @throws DBException if this version already has an image attached
@@ -743,6 +876,23 @@ public class VersionDAO extends AbstractDAO
  {
   if (null == image)
    throw new IllegalArgumentException("Null image is not allowed");
+  int limit = mgr.isTransactionActive()
+  	? Math.min(mgr.getPackedImageLimit(), PackDAO.SEGMENT_SIZE) : 0;
+  if (0 < limit)
+  {
+   // read ahead to find out whether the image is small enough to pack
+   byte[] buffer = new byte[limit + 1];
+   int length = 0;
+   for (int read; buffer.length > length
+   	&& 0 <= (read = image.read(buffer, length, buffer.length - length));)
+    length += read;
+   if (buffer.length > length)
+   {
+    savePackedImage(version, buffer, length);
+    return;
+   }
+   image = new SequenceInputStream(new ByteArrayInputStream(buffer), image);
+  }
   saveImage(version, image, null);
  }
 
@@ -773,6 +923,42 @@ public class VersionDAO extends AbstractDAO
 	throws DBException, IOException
  {
   saveImage(version, null, type);
+  fireVersionRemoved(version);
+ }
+
+ /**
+  * Receives notifications about versions removed from the database,
+  * so that the data derived from them, such as cached images, can
+  * be discarded.
+  * @see VersionDAO#addVersionListener(VersionListener)
+  */
+ public interface VersionListener
+ {
+  /**
+   * Called after a version record or one of its deltas has been
+   * deleted. The transaction that deleted it may still abort.
+   * @param version the version that has been removed or changed
+   */
+  void versionRemoved(VersionDTO version);
+ }
+
+ /**
+  * Registers an object to be notified when this DAO
+  * {@link #delete(VersionDTO) deletes} a version or
+  * {@link #deleteDelta(VersionDTO, Type) one of its deltas}.
+  */
+ public void addVersionListener(VersionListener listener)
+ {
+  listeners.add(listener);
+ }
+
+ /**
+  * Stops notifying an object registered with
+  * {@link #addVersionListener(VersionListener)}.
+  */
+ public void removeVersionListener(VersionListener listener)
+ {
+  listeners.remove(listener);
  }
 
  @SuppressWarnings("unchecked")
@@ -897,6 +1083,41 @@ public class VersionDAO extends AbstractDAO
    version.setImageAvailable(true);
  }
 
+ protected void savePackedImage(final VersionDTO version, byte[] image, int length)
+ 	throws DBException
+ {
+  final PackDAO.Location location = mgr.findDAO(PackDAO.class).append(image, length);
+  new PKStatement(mgr, SAVE_PACKED_IMAGE_SQL)
+  {
+   {
+    setVersion(version);
+    paramOffset = 2;
+   }
+
+   @Override
+   protected void bindParameters(PreparedStatement stmt) throws SQLException
+   {
+    stmt.setLong(1, location.getPackId());
+    stmt.setLong(2, location.getOffset());
+    super.bindParameters(stmt);
+   }
+
+   @Override
+   protected void noMatchOnUpdate() throws DBException
+   {
+    throw new DBException("Error " + legend()
+      + ". The record does not exist in database or already has an image attached");
+   }
+
+   @Override
+   protected String legend()
+   {
+    return "saving image at " + location + " for " + version;
+   }
+  }.execute();
+  version.setImageAvailable(true);
+ }
+
  /**
   * Creates a DAO object as specified by the superclass. The constructor need not
   * be public as only the {@link Manager database manager} may instantiate this object. 
@@ -1069,9 +1290,16 @@ public class VersionDAO extends AbstractDAO
  
   public void filterBySize(long size)
   {
-   this.sql = FIND_MATCHING_SQL;
+   if (null == digestFilter)
+    this.sql = FIND_MATCHING_SQL;
    sizeFilter = size;
   }
+
+  public void filterByDigest(byte[] digest)
+  {
+   this.sql = FIND_BY_DIGEST_SQL;
+   digestFilter = digest;
+  }
   
   public void filterByTimestamp(long timestamp, long range)
   {
@@ -1096,6 +1324,15 @@ public class VersionDAO extends AbstractDAO
   {
    if (null == nameFilter)
     throw new IllegalStateException("Name filter is not set when matching versions");
+   else if (null != digestFilter)
+   {
+    if (null == sizeFilter)
+     throw new IllegalStateException("Size filter is not set when matching versions by digest");
+    stmt.setBytes(1, digestFilter);
+    stmt.setLong(2, sizeFilter);
+    stmt.setLong(3, nameFilter);
+    stmt.setLong(4, nameFilter);
+   }
    else if (null == sizeFilter)
    {
     stmt.setLong(1, nameFilter);
@@ -1126,11 +1363,13 @@ public class VersionDAO extends AbstractDAO
     + (null != nameFilter || null != sizeFilter || null != timestampFrom || null != timestampTo ? " with" : "")
     + (null != nameFilter ? " name '" + nameFilter + '\'' : "")
     + (null != sizeFilter ? " size = " + sizeFilter : "")
+    + (null != digestFilter ? " matching digest" : "")
     + (null != timestampFrom ? " modified on or after " + timestampFrom : "")
     + (null != timestampTo ? " modified on or before " + timestampTo : "");
   }
  
   private Long nameFilter, sizeFilter;
+  private byte[] digestFilter;
   private Timestamp timestampFrom, timestampTo;
  }
 
@@ -1532,7 +1771,9 @@ public class VersionDAO extends AbstractDAO
   	throws DBException
   {
    InputStream in = null;
-   if (null != image)
+   if (0L != packId)
+    in = packs.openImage(packId, packOffset, packedLength);
+   else if (null != image)
     try
     {
      in = new FilterInputStream(image.getBinaryStream()) {
@@ -1549,7 +1790,7 @@ public class VersionDAO extends AbstractDAO
         {
          try
          {
-          savedStmt.close();
+          releaseSavedStatement();
          }
          catch (SQLException ex)
          {
@@ -1557,7 +1798,6 @@ public class VersionDAO extends AbstractDAO
          }
          finally
          {
-          savedStmt = null;
           image = null;
          }
         }
@@ -1578,6 +1818,11 @@ public class VersionDAO extends AbstractDAO
    else
     sql = prepareDeltaSQL(RETRIEVE_DELTA_SQL, t);
   }
+
+  public void setPacks(PackDAO packs)
+  {
+   this.packs = packs;
+  }
  
   protected BLOBAccess(Manager mgr, VersionDTO version)
   {
@@ -1589,10 +1834,15 @@ public class VersionDAO extends AbstractDAO
   protected void handleResults(ResultSet rs)
   	throws SQLException, DBException
   {
-   if (rs.next())
-    image = rs.getBlob(1);
-   else
+   if (!rs.next())
     throw new NoSuchRecordException(TABLE_NAME, getPrimaryKeyString()); 
+   image = rs.getBlob(1);
+   if (null == deltaType && null == image && null != packs)
+   {
+    packId = rs.getLong(2);
+    packOffset = rs.getLong(3);
+    packedLength = rs.getLong(4);
+   }
   }
  
   /* (non-Javadoc)
@@ -1609,14 +1859,33 @@ public class VersionDAO extends AbstractDAO
   @Override
   protected void close(Statement stmt) throws SQLException
   {
-   if (null != savedStmt)
-    try { savedStmt.close(); } catch (SQLException ignored) {}
+   if (null == image)
+   {
+    // no LOB to read, the statement can be reused
+    super.close(stmt);
+    return;
+   }
+   try { releaseSavedStatement(); } catch (SQLException ignored) {}
    savedStmt = stmt;
   }
+
+  /**
+   * Returns the statement kept open while the LOB is read to the
+   * manager's {@link Manager#getStatementCache() cache}.
+   */
+  private void releaseSavedStatement() throws SQLException
+  {
+   Statement stmt = savedStmt;
+   savedStmt = null;
+   if (null != stmt)
+    super.close(stmt);
+  }
  
   private Statement savedStmt;
   private Blob image;
   private Type deltaType;
+  private PackDAO packs;
+  private long packId, packOffset, packedLength;
  }
  
  protected class Topography implements SimpleTopography<VersionDTO>
@@ -1653,9 +1922,9 @@ public class VersionDAO extends AbstractDAO
   * DAO classes of schema elements that this table depends on. 
   */
  @SuppressWarnings("rawtypes")
- protected static final Class[] DEPENDENCIES = new Class[] { NodeNameDAO.class, FileDAO.class };
+ protected static final Class[] DEPENDENCIES = new Class[] { NodeNameDAO.class, FileDAO.class, PackDAO.class };
 
- protected static final int SCHEMA_VERSION = 2;
+ protected static final int SCHEMA_VERSION = 3;
 
  /**
   * Name of the Version table.
@@ -1684,9 +1953,10 @@ public class VersionDAO extends AbstractDAO
    ", CONSTRAINT FK_Version_name FOREIGN KEY (name) REFERENCES NodeName ON DELETE RESTRICT)";
    */
 
- /**
+ /*
   * DDL of the Version table, version 2.
-  */
+  * 
+ @Deprecated
  protected static final String DDL_V2 = "CREATE TABLE " + TABLE_NAME +
    "( file BIGINT" +
    ", id INTEGER" +
@@ -1703,6 +1973,38 @@ public class VersionDAO extends AbstractDAO
    ", CONSTRAINT FK_file FOREIGN KEY (file) REFERENCES File ON DELETE RESTRICT" +
    ", CONSTRAINT FK_derived FOREIGN KEY (file, derived) REFERENCES Version(file, id) ON DELETE RESTRICT" +
    ", CONSTRAINT FK_Version_name FOREIGN KEY (name) REFERENCES NodeName ON DELETE RESTRICT)";
+  */
+
+ /**
+  * DDL of the constraint that refers versions to their image packs.
+  */
+ protected static final String FK_PACK_DDL =
+  "CONSTRAINT FK_Version_pack FOREIGN KEY (pack) REFERENCES " + PackDAO.TABLE_NAME + " ON DELETE RESTRICT";
+
+ /**
+  * DDL of the Version table, version 3. Images of small files may be
+  * stored in {@link PackDAO packs} at <code>pack_offset</code> instead
+  * of the <code>image</code> column.
+  */
+ protected static final String DDL_V3 = "CREATE TABLE " + TABLE_NAME +
+   "( file BIGINT" +
+   ", id INTEGER" +
+   ", name BIGINT" +
+   ", size BIGINT" +
+   ", digest BINARY(64)" +
+   ", modified TIMESTAMP NOT NULL" +
+   ", derived BIGINT" +
+   ", image BLOB" +
+   ", cdelta BLOB" +
+   ", fdelta BLOB" +
+   ", rdelta BLOB" +
+   ", pack BIGINT" +
+   ", pack_offset BIGINT" +
+   ", PRIMARY KEY (file, id)" +
+   ", CONSTRAINT FK_file FOREIGN KEY (file) REFERENCES File ON DELETE RESTRICT" +
+   ", CONSTRAINT FK_derived FOREIGN KEY (file, derived) REFERENCES Version(file, id) ON DELETE RESTRICT" +
+   ", CONSTRAINT FK_Version_name FOREIGN KEY (name) REFERENCES NodeName ON DELETE RESTRICT" +
+   ", " + FK_PACK_DDL + ")";
 
  /**
   * DDL of the current version constraint. Depends on the schema for Version table.
@@ -1716,7 +2018,7 @@ public class VersionDAO extends AbstractDAO
   * Sequence of schema DDL statements for this table.
   */
  protected static final String[] SCHEMA_SCRIPT = {
-  DDL_V2,
+  DDL_V3,
   "CREATE INDEX I_Version_modified ON " + TABLE_NAME + "(modified)",
   "CREATE INDEX I_Version_name ON " + TABLE_NAME + "(name)",
   "CREATE HASH INDEX I_Version_digest ON " + TABLE_NAME + "(digest)",
@@ -1736,17 +2038,23 @@ public class VersionDAO extends AbstractDAO
    + TABLE_NAME + " v WHERE v.file=f.id)"
    + " WHERE EXISTS (SELECT * FROM " + FileDAO.TABLE_NAME + "_v1_deleted fm WHERE f.id = fm.id)",
    "DROP TABLE " + FileDAO.TABLE_NAME + "_v1_deleted"
+  },
+  { // V2 TO V3
+   "ALTER TABLE " + TABLE_NAME + " ADD COLUMN pack BIGINT",
+   "ALTER TABLE " + TABLE_NAME + " ADD COLUMN pack_offset BIGINT",
+   "ALTER TABLE " + TABLE_NAME + " ADD " + FK_PACK_DDL
   }
  };
                                
  protected static final String DATA_FIELDS = 
-  "name, size, digest, modified, derived, image IS NOT NULL AS has_image";
+  "name, size, digest, modified, derived, (image IS NOT NULL OR pack IS NOT NULL) AS has_image";
 
  protected static final String DATA_FIELDS_WITH_ID = 
   DATA_FIELDS + ", file, id";
 
  protected static final String PREFIXED_DATA_FIELDS_WITH_ID = 
-  "v.name, v.size, v.digest, v.modified, v.derived, v.image IS NOT NULL AS has_image, v.file, v.id";
+  "v.name, v.size, v.digest, v.modified, v.derived,"
+  + " (v.image IS NOT NULL OR v.pack IS NOT NULL) AS has_image, v.file, v.id";
  
  /**
   * SQL statement for loading version objects.
@@ -1826,7 +2134,8 @@ public class VersionDAO extends AbstractDAO
   * a version can be deleted. Parameters are components of the version's primary key.
   */
  protected static final String NEED_IMAGE_XFER_SQL =
-  "SELECT v.image IS NOT NULL AND 1 = COUNT(o.image) AND 1 < COUNT(*)" +
+  "SELECT (v.image IS NOT NULL OR v.pack IS NOT NULL)" +
+  " AND 1 = COUNT(o.image) + COUNT(o.pack) AND 1 < COUNT(*)" +
   " FROM " + TABLE_NAME + " v JOIN " + TABLE_NAME + " o ON o.file=v.file" +
   " WHERE v.file = ? AND v.id = ?";
 
@@ -1860,6 +2169,19 @@ public class VersionDAO extends AbstractDAO
  protected static final String PURGE_OBSOLETE_SQL =
   "DELETE FROM " + TABLE_NAME + " WHERE file = ? AND modified < ?";
 
+ /**
+  * A query that finds the image pack of a version.
+  * Parameters are components of the version's primary key.
+  */
+ protected static final String FIND_PACK_SQL =
+  "SELECT pack FROM " + TABLE_NAME + " WHERE file = ? AND id = ? AND pack IS NOT NULL";
+
+ /**
+  * A query that finds the image packs of a file's obsolete versions.
+  */
+ protected static final String FIND_FILE_PACKS_SQL =
+  "SELECT DISTINCT pack FROM " + TABLE_NAME + " WHERE file = ? AND modified < ? AND pack IS NOT NULL";
+
  /**
   * SQL statement for finding version objects derived from a particular file version.
   */
@@ -1878,6 +2200,14 @@ public class VersionDAO extends AbstractDAO
 // NOTE: cannot do "  AND (v.modified >= ? OR ? IS NULL) AND (v.modified <= ? OR ? IS NULL)";
 // for open-ended time ranges - this is VERY SLOW with H2
 
+ /**
+  * SQL statement for loading version objects matching digest, size, and name.
+  */
+ protected static final String FIND_BY_DIGEST_SQL =
+  "SELECT " + PREFIXED_DATA_FIELDS_WITH_ID +
+  " FROM " + TABLE_NAME + " v JOIN " + FileDAO.TABLE_NAME + " f ON v.file=f.id" +
+  " WHERE v.digest = ? AND v.size = ? AND (v.name = ? OR (v.name IS NULL AND f.name = ?))";
+
  /**
   * SQL statement for loading version objects matching name, within a time range.
   */
@@ -1919,6 +2249,25 @@ public class VersionDAO extends AbstractDAO
   + " f JOIN " + TABLE_NAME + " c ON c.file=f.id AND c.id=f.current"
   + " WHERE c.size IS NOT NULL";
 
+ /**
+  * SQL statement for iterating over existing files named by children
+  * of a naming node.
+  */
+ protected static final String LOAD_EXISTING_CHILD_FILES_SQL =
+  "SELECT " + FileDAO.PREFIXED_SELECT_FIELDS + " FROM " + FileDAO.TABLE_NAME
+  + " f JOIN " + TABLE_NAME + " c ON c.file=f.id AND c.id=f.current"
+  + " JOIN " + NodeNameDAO.TABLE_NAME + " n ON n." + NodeNameDAO.ID_FIELD_NAME + "=f." + FileDAO.NAME_FIELD_NAME
+  + " WHERE c.size IS NOT NULL AND n." + NodeNameDAO.PARENT_FIELD_NAME + " = ?";
+
+ /**
+  * SQL statement for iterating over existing files named by root nodes.
+  */
+ protected static final String LOAD_EXISTING_ROOT_FILES_SQL =
+  "SELECT " + FileDAO.PREFIXED_SELECT_FIELDS + " FROM " + FileDAO.TABLE_NAME
+  + " f JOIN " + TABLE_NAME + " c ON c.file=f.id AND c.id=f.current"
+  + " JOIN " + NodeNameDAO.TABLE_NAME + " n ON n." + NodeNameDAO.ID_FIELD_NAME + "=f." + FileDAO.NAME_FIELD_NAME
+  + " WHERE c.size IS NOT NULL AND n." + NodeNameDAO.PARENT_FIELD_NAME + " IS NULL";
+
  /**
   * SQL statement for inserting version objects.
   */
@@ -1949,7 +2298,14 @@ public class VersionDAO extends AbstractDAO
   * SQL statement for inserting image LOBs.
   */
  protected static final String SAVE_IMAGE_SQL =
-  "UPDATE " + TABLE_NAME + " SET image = ? WHERE file = ? AND id = ? AND image IS NULL";
+  "UPDATE " + TABLE_NAME + " SET image = ? WHERE file = ? AND id = ? AND image IS NULL AND pack IS NULL";
+
+ /**
+  * SQL statement for saving the location of a packed image.
+  */
+ protected static final String SAVE_PACKED_IMAGE_SQL =
+  "UPDATE " + TABLE_NAME + " SET pack = ?, pack_offset = ?"
+  + " WHERE file = ? AND id = ? AND image IS NULL AND pack IS NULL";
 
  /**
   * SQL statement template for inserting delta LOBs.
@@ -1961,7 +2317,7 @@ public class VersionDAO extends AbstractDAO
   * SQL statement for retrieving image LOBs.
   */
  protected static final String RETRIEVE_IMAGE_SQL =
-  "SELECT image FROM " + TABLE_NAME + " WHERE file = ? AND id = ?";
+  "SELECT image, pack, pack_offset, size FROM " + TABLE_NAME + " WHERE file = ? AND id = ?";
 
  /**
   * SQL statement template for retrieving delta LOBs.
@@ -1995,5 +2351,12 @@ public class VersionDAO extends AbstractDAO
   return String.format(template, Character.toLowerCase(t.toString().charAt(0)));
  }
 
+ private void fireVersionRemoved(VersionDTO version)
+ {
+  for (VersionListener listener : listeners)
+   listener.versionRemoved(version);
+ }
+
  private SchemaUpgrades upgrades;
+ private final List<VersionListener> listeners = new CopyOnWriteArrayList<VersionListener>();
 }
@@ -0,0 +1,343 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.diff;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Passes a stream of bytes from one thread to another in blocks of
+ * a fixed size. The {@link #getSink() writing end} fills a block and
+ * hands it over to the {@link #getSource() reading end} as a whole,
+ * then continues with the next free block. The number of blocks is
+ * limited, so the writer waits for the reader to release a block once
+ * all blocks are filled. Unlike {@link java.io.PipedInputStream}, the
+ * threads wait on each other only when a block changes hands, and
+ * never poll. The writer must {@link OutputStream#close() close} its
+ * end when done, or the reader will wait for more data indefinitely.
+ * If the reader closes its end first, further writes fail.
+ */
+public class BlockPipe
+{
+ /**
+  * Returns the writing end of this pipe. The writing end also
+  * implements {@link ByteSink}.
+  */
+ public Sink getSink()
+ {
+  return sink;
+ }
+
+ /**
+  * Returns the reading end of this pipe.
+  */
+ public InputStream getSource()
+ {
+  return source;
+ }
+
+ /**
+  * Returns the size of blocks that this pipe transfers, in bytes.
+  */
+ public int getBlockSize()
+ {
+  return blockSize;
+ }
+
+ /**
+  * Returns the maximum number of blocks that this pipe allocates.
+  */
+ public int getBlockCount()
+ {
+  return blockCount;
+ }
+
+ /**
+  * Creates a pipe with specific dimensions.
+  * @param blockSize size of blocks that this pipe transfers, in bytes
+  * @param blockCount maximum number of blocks allocated by the pipe,
+  * must be at least <code>2</code> so that both ends can work at
+  * the same time
+  */
+ public BlockPipe(int blockSize, int blockCount)
+ {
+  if (0 >= blockSize)
+   throw new IllegalArgumentException("Invalid block size: " + blockSize);
+  if (2 > blockCount)
+   throw new IllegalArgumentException("A pipe needs at least 2 blocks, requested " + blockCount);
+  this.blockSize = blockSize;
+  this.blockCount = blockCount;
+ }
+
+ /**
+  * Creates a pipe with {@link #DEFAULT_BLOCK_COUNT} blocks of
+  * {@link #DEFAULT_BLOCK_SIZE} bytes.
+  */
+ public BlockPipe()
+ {
+  this(DEFAULT_BLOCK_SIZE, DEFAULT_BLOCK_COUNT);
+ }
+
+ /** Default size of blocks, in bytes. */
+ public static final int DEFAULT_BLOCK_SIZE = 65536;
+
+ /** Default number of blocks allocated by a pipe. */
+ public static final int DEFAULT_BLOCK_COUNT = 4;
+
+ /**
+  * The writing end of a {@link BlockPipe}.
+  */
+ public class Sink extends OutputStream implements ByteSink
+ {
+  public void writeByte(int value)
+  	throws IOException
+  {
+   write(value);
+  }
+
+  @Override
+  public void write(int b)
+  	throws IOException
+  {
+   if (null == block)
+    block = nextFree();
+   block.data[block.length++] = (byte)b;
+   if (block.data.length == block.length)
+    handOver();
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length)
+  	throws IOException
+  {
+   if (0 > offset || 0 > length || buffer.length - length < offset)
+    throw new IndexOutOfBoundsException("offset = " + offset + ", length = " + length
+      + ", buffer size = " + buffer.length);
+   while (0 < length)
+   {
+    if (null == block)
+     block = nextFree();
+    int count = block.data.length - block.length;
+    if (count > length)
+     count = length;
+    System.arraycopy(buffer, offset, block.data, block.length, count);
+    block.length += count;
+    offset += count;
+    length -= count;
+    if (block.data.length == block.length)
+     handOver();
+   }
+  }
+
+  /**
+   * Hands over a partially filled block, if any, to the reader.
+   */
+  @Override
+  public void flush()
+  	throws IOException
+  {
+   if (closed)
+    throw new IOException("Pipe closed");
+   if (null != block && 0 < block.length)
+    handOver();
+  }
+
+  /**
+   * Hands over any remaining data and signals the end of stream
+   * to the reader. Has no effect if this end is already closed.
+   */
+  @Override
+  public void close()
+  	throws IOException
+  {
+   if (closed)
+    return;
+   try
+   {
+    if (null != block && 0 < block.length && !source.closed)
+     handOver();
+   }
+   finally
+   {
+    closed = true;
+    block = null;
+    filled.add(END);
+   }
+  }
+
+  private Block nextFree()
+  	throws IOException
+  {
+   if (closed)
+    throw new IOException("Pipe closed");
+   Block next = free.poll();
+   if (null == next)
+   {
+    if (blockCount > allocated)
+    {
+     allocated++;
+     next = new Block(new byte[blockSize]);
+    }
+    else
+     try
+     {
+      next = free.take();
+     }
+     catch (InterruptedException interrupt)
+     {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the reader");
+     }
+   }
+   if (source.closed)
+    throw new IOException("Read end of the pipe has been closed");
+   next.length = 0;
+   return next;
+  }
+
+  private void handOver()
+  {
+   filled.add(block);
+   block = null;
+  }
+
+  private Block block;
+  private int allocated;
+  private volatile boolean closed;
+ }
+
+ private class Source extends InputStream
+ {
+  @Override
+  public int read()
+  	throws IOException
+  {
+   if (!nextFilled())
+    return -1;
+   int value = block.data[position++] & 0xFF;
+   if (block.length == position)
+    release();
+   return value;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length)
+  	throws IOException
+  {
+   if (0 > offset || 0 > length || buffer.length - length < offset)
+    throw new IndexOutOfBoundsException("offset = " + offset + ", length = " + length
+      + ", buffer size = " + buffer.length);
+   if (0 == length)
+    return 0;
+   if (!nextFilled())
+    return -1;
+   int count = block.length - position;
+   if (count > length)
+    count = length;
+   System.arraycopy(block.data, position, buffer, offset, count);
+   position += count;
+   if (block.length == position)
+    release();
+   return count;
+  }
+
+  @Override
+  public int available()
+  	throws IOException
+  {
+   if (closed)
+    throw new IOException("Pipe closed");
+   return null == block ? 0 : block.length - position;
+  }
+
+  @Override
+  public void close()
+  {
+   if (closed)
+    return;
+   closed = true;
+   // wake up the writer if it waits for a free block
+   free.add(null == block ? new Block(new byte[0]) : block);
+   block = null;
+  }
+
+  private boolean nextFilled()
+  	throws IOException
+  {
+   if (closed)
+    throw new IOException("Pipe closed");
+   if (null != block)
+    return true;
+   if (ended)
+    return false;
+   try
+   {
+    block = filled.take();
+   }
+   catch (InterruptedException interrupt)
+   {
+    Thread.currentThread().interrupt();
+    throw new InterruptedIOException("Interrupted while waiting for the writer");
+   }
+   if (END == block)
+   {
+    block = null;
+    ended = true;
+    return false;
+   }
+   position = 0;
+   return true;
+  }
+
+  private void release()
+  {
+   free.add(block);
+   block = null;
+  }
+
+  private Block block;
+  private int position;
+  private boolean ended;
+  private volatile boolean closed;
+ }
+
+ private static class Block
+ {
+  Block(byte[] data)
+  {
+   this.data = data;
+  }
+
+  final byte[] data;
+  int length;
+ }
+
+ private static final Block END = new Block(new byte[0]);
+
+ private final int blockSize, blockCount;
+ private final BlockingQueue<Block> filled = new LinkedBlockingQueue<Block>();
+ private final BlockingQueue<Block> free = new LinkedBlockingQueue<Block>();
+ private final Sink sink = new Sink();
+ private final Source source = new Source();
+}
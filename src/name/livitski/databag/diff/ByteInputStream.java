@@ -23,6 +23,7 @@ import java.io.EOFException;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  * A wrapper for {@link InputStream} that implements 
@@ -117,6 +118,20 @@ public class ByteInputStream extends FilterInputStream
   buf[--pos] = (byte)val;
  }
 
+ /**
+  * Returns a buffer that wraps the part of the ring buffer
+  * between the current position and either the tail or the
+  * end of the array, whichever comes first. Fills the ring buffer
+  * if it has no data left.
+  */
+ public ByteBuffer getAvailableRegion() throws IOException
+ {
+  if (pos == tail)
+   fill();
+  int end = pos <= tail ? tail : buf.length;
+  return ByteBuffer.wrap(buf, pos, end - pos);
+ }
+
  public byte readByte() throws IOException
  {
   int read = read();
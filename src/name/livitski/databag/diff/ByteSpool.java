@@ -0,0 +1,228 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.diff;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores a growing sequence of bytes for random reads. Bytes are
+ * {@link #append appended} to blocks in memory until their total
+ * size exceeds the {@link #getMemoryLimit() memory limit}. After that,
+ * stored bytes are moved to a temporary file, and further bytes are
+ * written to that file as each block fills up. Only the last block
+ * then stays in memory. The file is deleted when this object is
+ * {@link #close() closed}. Reads may run in a different thread than
+ * appends, but not at the same time with them.
+ */
+public class ByteSpool implements Closeable
+{
+ /**
+  * Appends bytes to this spool.
+  * @param buf buffer containing the bytes
+  * @param off offset of the bytes in the buffer
+  * @param len number of bytes to append
+  * @return the position of the first appended byte in this spool
+  * @throws IOException if there is an error writing the spool file
+  */
+ public long append(byte[] buf, int off, int len)
+ 	throws IOException
+ {
+  if (0 > off || 0 > len || buf.length - len < off)
+   throw new IndexOutOfBoundsException("offset = " + off + ", length = " + len
+     + ", buffer size = " + buf.length);
+  if (null == blocks)
+   throw new IOException("Spool closed");
+  final long position = size;
+  while (0 < len)
+  {
+   int at = (int)((size - memoryStart) % BLOCK_SIZE);
+   if (0 == at && size - memoryStart == (long)BLOCK_SIZE * blocks.size())
+    nextBlock();
+   byte[] block = blocks.get(blocks.size() - 1);
+   int count = Math.min(len, BLOCK_SIZE - at);
+   System.arraycopy(buf, off, block, at, count);
+   size += count;
+   off += count;
+   len -= count;
+  }
+  return position;
+ }
+
+ /**
+  * Reads stored bytes.
+  * @param position position of the first byte to read in this spool
+  * @param buf the buffer to receive bytes
+  * @param off offset in the buffer to store bytes at
+  * @param len maximum number of bytes to read
+  * @return the number of bytes read, which is positive unless
+  * <code>len</code> is zero, or <code>-1</code> if the position is
+  * at or beyond the end of stored data
+  * @throws IOException if there is an error reading the spool file
+  */
+ public int read(long position, byte[] buf, int off, int len)
+ 	throws IOException
+ {
+  if (0 > off || 0 > len || buf.length - len < off || 0L > position)
+   throw new IndexOutOfBoundsException("position = " + position + ", offset = " + off
+     + ", length = " + len + ", buffer size = " + buf.length);
+  if (null == blocks)
+   throw new IOException("Spool closed");
+  if (size <= position)
+   return -1;
+  if (memoryStart <= position)
+  {
+   long relative = position - memoryStart;
+   int at = (int)(relative % BLOCK_SIZE);
+   byte[] block = blocks.get((int)(relative / BLOCK_SIZE));
+   int count = (int)Math.min(Math.min(len, BLOCK_SIZE - at), size - position);
+   System.arraycopy(block, at, buf, off, count);
+   return count;
+  }
+  int count = (int)Math.min(len, memoryStart - position);
+  synchronized (file)
+  {
+   file.seek(position);
+   return file.read(buf, off, count);
+  }
+ }
+
+ /**
+  * Returns the number of bytes stored in this spool.
+  */
+ public long getSize()
+ {
+  return size;
+ }
+
+ /**
+  * Returns the number of bytes that this spool keeps in memory.
+  */
+ public long getMemorySize()
+ {
+  return null == blocks ? 0L : (long)BLOCK_SIZE * blocks.size();
+ }
+
+ /**
+  * Returns the number of bytes this spool may keep in memory
+  * before moving them to a file.
+  */
+ public long getMemoryLimit()
+ {
+  return memoryLimit;
+ }
+
+ /**
+  * Tells whether this spool has moved its contents to a file.
+  */
+ public boolean isSpooled()
+ {
+  return null != file;
+ }
+
+ /**
+  * Discards the contents of this spool and deletes its file, if any.
+  * The spool cannot be used after it is closed.
+  */
+ public void close()
+ 	throws IOException
+ {
+  blocks = null;
+  if (null == file)
+   return;
+  try
+  {
+   file.close();
+  }
+  finally
+  {
+   file = null;
+   if (!location.delete() && location.exists())
+    throw new IOException("Could not delete spool file " + location);
+  }
+ }
+
+ /**
+  * Creates an empty spool.
+  * @param memoryLimit the number of bytes this spool may keep in memory
+  * before moving them to a file
+  */
+ public ByteSpool(long memoryLimit)
+ {
+  if (0L > memoryLimit)
+   throw new IllegalArgumentException("Invalid memory limit: " + memoryLimit);
+  this.memoryLimit = memoryLimit;
+ }
+
+ /** Size of blocks that a spool allocates in memory, in bytes. */
+ public static final int BLOCK_SIZE = 65536;
+
+ /** Name prefix of the files that store spooled bytes. */
+ public static final String FILE_PREFIX = "databag";
+
+ private void nextBlock()
+ 	throws IOException
+ {
+  if (null == file && memoryLimit < (long)BLOCK_SIZE * (blocks.size() + 1))
+  {
+   location = File.createTempFile(FILE_PREFIX, ".spool");
+   try
+   {
+    file = new RandomAccessFile(location, "rw");
+   }
+   catch (IOException fail)
+   {
+    location.delete();
+    throw fail;
+   }
+  }
+  if (null == file)
+   blocks.add(new byte[BLOCK_SIZE]);
+  else
+  {
+   // move the filled blocks to the file, keep one of them for reuse
+   synchronized (file)
+   {
+    file.seek(memoryStart);
+    for (byte[] block : blocks)
+     file.write(block);
+   }
+   memoryStart = size;
+   if (blocks.isEmpty())
+    blocks.add(new byte[BLOCK_SIZE]);
+   else
+   {
+    byte[] reused = blocks.get(0);
+    blocks.clear();
+    blocks.add(reused);
+   }
+  }
+ }
+
+ private final long memoryLimit;
+ private List<byte[]> blocks = new ArrayList<byte[]>();
+ private long size, memoryStart;
+ private File location;
+ private RandomAccessFile file;
+}
@@ -0,0 +1,944 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.diff;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Implements differencing based on content-defined chunking. Unlike
+ * {@link Differencer}, which looks for matches within a limited window
+ * of both streams, this class splits both inputs into chunks whose
+ * boundaries are determined by a rolling Gear fingerprint of their
+ * contents, and indexes the chunks of the &quot;original&quot; input
+ * by hashes of their contents. Chunks of the &quot;updated&quot; input
+ * are then looked up in that index, so that matches are found
+ * regardless of the distance between them. Matching chunks are verified
+ * byte by byte, the longest sequence of matches that appears in the
+ * same order within both inputs is selected, and each match is extended
+ * into the adjacent unmatched data. The results are written in the same
+ * format as that produced by {@link Differencer}, so they can be applied
+ * with {@link Restorer} and accumulated with {@link CumulativeDelta}.
+ * Both inputs must be {@link SeekableByteSource seekable}, since this
+ * algorithm reads them more than once and out of order.
+ * This class is best suited for comparing large files with distant
+ * changes. It is not thread-safe.
+ * @see #compare()
+ * @see MappedByteSource
+ */
+public class ChunkingDifferencer
+{
+ /**
+  * Compares two sources specified by {@link #setInput1 input1}
+  * and {@link #setInput2 input2} properties and stores delta information
+  * in {@link #setDelta delta sinks}. All sources and sinks must be
+  * assigned before this method is run. Note that input sources
+  * and output sinks remain open upon method completion regardless of its status.
+  * @return comparison status and statistics
+  * @throws IOException if there is an error reading data or storing the output
+  * @throws IllegalStateException if some of the required properties listed
+  * above were not set
+  */
+ public DiffResult compare()
+ 	throws IOException
+ {
+  // check required properties
+  if (null == commonDelta)
+   throw new IllegalStateException("Property commonDelta is required");
+  for (int i = 0; i < INPUTS.length; i++)
+  {
+   if (null == sources[i])
+    throw new IllegalStateException("Property input" + (1 + i) + " is required");
+   else if (null == deltas[i])
+    throw new IllegalStateException("Property delta[" + INPUTS[i] + "] is required");
+  }
+  DiffResult result = new DiffResult();
+  result.setDeltaSizeLimit(sizeLimit);
+  buffer = new byte[Differencer.BUFFER_SIZE];
+  try
+  {
+   Chunks original = split(sources[0]);
+   Chunks updated = null == fingerprint || !fingerprint.fits(this, sources[1])
+     ? split(sources[1]) : fingerprint.chunks;
+   original.index();
+   Spans spans = select(original, updated);
+   extend(spans);
+   if (movesEnabled)
+   {
+    spans = addMoves(original, updated, spans);
+    commonDelta.setMovesAllowed(!spans.isOrdered());
+   }
+   if (!write(result, spans))
+    return result;
+   // terminate deltas
+   for (Delta.Type type : Delta.Type.values())
+   {
+    DeltaWriter delta;
+    if (Delta.Type.COMMON == type)
+     delta = commonDelta;
+    else
+     delta = deltas[type.getTypeMask()];
+    delta.terminate();
+    result.setDeltaSize(type, delta.getSize());
+   }
+  }
+  finally
+  {
+   reset();
+  }
+  return result;
+ }
+
+ /**
+  * Returns current limit on the total size of generated deltas.
+  * @see #setSizeLimit(long)
+  */
+ public long getSizeLimit()
+ {
+  return sizeLimit;
+ }
+
+ /**
+  * Sets the approximate limit on the total size of deltas produced
+  * during a comparison. Once that limit is exceeded,
+  * the comparison is {@link DiffResult#isAborted() aborted}.
+  * The size limit is effective for one {@link #compare()}
+  * call and is removed when that method exits.
+  * @param sizeLimit the new delta size limit or
+  * <code>0</code> if there is no limit
+  * @see Differencer#setSizeLimit(long)
+  */
+ public void setSizeLimit(long sizeLimit)
+ {
+  this.sizeLimit = sizeLimit;
+ }
+
+ /**
+  * Tells whether matching blocks that appear in different order
+  * within the inputs are reported as moved fragments.
+  * @see #setMovesEnabled(boolean)
+  */
+ public boolean isMovesEnabled()
+ {
+  return movesEnabled;
+ }
+
+ /**
+  * Enables or disables detection of blocks that were moved, i.e.
+  * appear in different order within the inputs. Data outside of
+  * the longest ordered sequence of matches is then looked up among
+  * unmatched chunks of the original input and, if found, stored in
+  * the common delta as {@link CommonDeltaWriter#setMovesAllowed(boolean)
+  * moved fragments}. Deltas with moved fragments require a
+  * {@link SeekableByteSource seekable source} to be
+  * {@link Restorer#setSource restored} and cannot be read by
+  * earlier versions of this library. Disabled by default.
+  */
+ public void setMovesEnabled(boolean movesEnabled)
+ {
+  this.movesEnabled = movesEnabled;
+ }
+
+ /**
+  * Returns the minimum size of a chunk, in bytes.
+  * @see #setChunkSizes(int, int, int)
+  */
+ public int getMinChunkSize()
+ {
+  return minChunkSize;
+ }
+
+ /**
+  * Returns the expected average size of a chunk, in bytes.
+  * @see #setChunkSizes(int, int, int)
+  */
+ public int getAverageChunkSize()
+ {
+  return averageChunkSize;
+ }
+
+ /**
+  * Returns the maximum size of a chunk, in bytes.
+  * @see #setChunkSizes(int, int, int)
+  */
+ public int getMaxChunkSize()
+ {
+  return maxChunkSize;
+ }
+
+ /**
+  * Changes the chunk size parameters. Smaller chunks allow this
+  * object to find shorter matches at the expense of a larger index.
+  * Chunks of the minimum size or smaller that differ in a single
+  * byte are not matched at all, but the adjacent matches are
+  * usually extended over their common parts.
+  * @param min the minimum size of a chunk, at least
+  * {@link #MIN_CHUNK_SIZE_LIMIT} bytes
+  * @param average the expected average size of a chunk,
+  * must be a power of 2 greater than <code>min</code>
+  * @param max the maximum size of a chunk, must be greater
+  * than <code>average</code>
+  */
+ public void setChunkSizes(int min, int average, int max)
+ {
+  if (MIN_CHUNK_SIZE_LIMIT > min)
+   throw new IllegalArgumentException("Minimum chunk size " + min
+     + " is less than " + MIN_CHUNK_SIZE_LIMIT);
+  if (min >= average || 1 != Integer.bitCount(average))
+   throw new IllegalArgumentException("Average chunk size " + average
+     + " must be a power of 2 greater than the minimum size " + min);
+  if (average >= max)
+   throw new IllegalArgumentException("Maximum chunk size " + max
+     + " must be greater than the average size " + average);
+  int bits = Integer.numberOfTrailingZeros(average);
+  smallChunkMask = -1L << Long.SIZE - bits - NORMALIZATION_LEVEL;
+  largeChunkMask = -1L << Long.SIZE - bits + NORMALIZATION_LEVEL;
+  minChunkSize = min;
+  averageChunkSize = average;
+  maxChunkSize = max;
+ }
+
+ /**
+  * Supplies the destinations for generated delta streams.
+  * Each {@link Delta.Type delta types} must have assigned
+  * a destination before a comparison can be run.
+  */
+ public void setDelta(Delta.Type type, ByteSink delta)
+ {
+  if (Delta.Type.COMMON == type)
+   commonDelta = new CommonDeltaWriter(delta);
+  else
+   deltas[type.getTypeMask()] = new DirectionalDeltaWriter(delta, type);
+ }
+
+ /**
+  * Specifies the &quot;original&quot; version of a binary image.
+  */
+ public void setInput1(SeekableByteSource input1)
+ {
+  sources[0] = input1;
+ }
+
+ /**
+  * Specifies the &quot;updated&quot; version of a binary image.
+  */
+ public void setInput2(SeekableByteSource input2)
+ {
+  sources[1] = input2;
+ }
+
+ /**
+  * Specifies the &quot;updated&quot; version of a binary image along
+  * with its chunks computed in advance by {@link #fingerprint}. The
+  * chunks are ignored if the source's size or the chunk sizes in
+  * effect differ from those of the fingerprint.
+  * @param input2 the updated version
+  * @param fingerprint chunks of the updated version, or
+  * <code>null</code> to compute them during the comparison
+  */
+ public void setInput2(SeekableByteSource input2, Fingerprint fingerprint)
+ {
+  sources[1] = input2;
+  this.fingerprint = fingerprint;
+ }
+
+ /**
+  * Splits a source into content-defined chunks using the current
+  * {@link #setChunkSizes chunk sizes}, so that the chunks can be
+  * {@link #setInput2(SeekableByteSource, Fingerprint) reused} when
+  * the source is compared later. This method reads the whole source
+  * and does not depend on other properties of this object, thus it
+  * can be called on a different thread than the comparison.
+  * @param source the source to split, read from the beginning
+  * @return the source's chunks
+  * @throws IOException if there is an error reading the source
+  */
+ public Fingerprint fingerprint(SeekableByteSource source)
+ 	throws IOException
+ {
+  return new Fingerprint(this, source.getSize(), split(source));
+ }
+
+ /**
+  * Content-defined chunks of a source computed by
+  * {@link ChunkingDifferencer#fingerprint}.
+  */
+ public static final class Fingerprint
+ {
+  /**
+   * Returns the size of the source, in bytes.
+   */
+  public long getSize()
+  {
+   return size;
+  }
+
+  private boolean fits(ChunkingDifferencer diff, SeekableByteSource source)
+  {
+   return size == source.getSize() && minChunkSize == diff.minChunkSize
+     && averageChunkSize == diff.averageChunkSize && maxChunkSize == diff.maxChunkSize;
+  }
+
+  private Fingerprint(ChunkingDifferencer diff, long size, Chunks chunks)
+  {
+   this.size = size;
+   this.chunks = chunks;
+   this.minChunkSize = diff.minChunkSize;
+   this.averageChunkSize = diff.averageChunkSize;
+   this.maxChunkSize = diff.maxChunkSize;
+  }
+
+  private final long size;
+  private final Chunks chunks;
+  private final int minChunkSize, averageChunkSize, maxChunkSize;
+ }
+
+ public ChunkingDifferencer()
+ {
+  reset();
+  setChunkSizes(DEFAULT_MIN_CHUNK_SIZE, DEFAULT_AVERAGE_CHUNK_SIZE, DEFAULT_MAX_CHUNK_SIZE);
+ }
+
+ /** Default {@link #getMinChunkSize() minimum chunk size}. */
+ public static final int DEFAULT_MIN_CHUNK_SIZE = 2048;
+ /** Default {@link #getAverageChunkSize() average chunk size}. */
+ public static final int DEFAULT_AVERAGE_CHUNK_SIZE = 8192;
+ /** Default {@link #getMaxChunkSize() maximum chunk size}. */
+ public static final int DEFAULT_MAX_CHUNK_SIZE = 65536;
+ /** The smallest allowed {@link #getMinChunkSize() minimum chunk size}. */
+ public static final int MIN_CHUNK_SIZE_LIMIT = 64;
+ /**
+  * Maximum number of index entries with matching hashes verified
+  * for each chunk of the updated input.
+  */
+ public static final int MAX_CANDIDATES = 8;
+
+ protected void reset()
+ {
+  sources = new SeekableByteSource[INPUTS.length];
+  fingerprint = null;
+  deltas = new DirectionalDeltaWriter[INPUTS.length];
+  commonDelta = null;
+  sizeLimit = 0;
+  buffer = null;
+ }
+
+ /**
+  * Splits a source into chunks and computes hashes of their contents.
+  * A chunk ends where the masked Gear fingerprint of preceding bytes
+  * is zero. Normalized chunking is used: a mask with more bits is
+  * applied until the chunk reaches its average size, and a mask with
+  * fewer bits is applied after that, which narrows the distribution
+  * of chunk sizes.
+  */
+ private Chunks split(SeekableByteSource source)
+ 	throws IOException
+ {
+  source.seek(0L);
+  Chunks chunks = new Chunks((int)(source.getSize() / averageChunkSize) + 1);
+  long start = 0L;
+  int length = 0;
+  long fingerprint = 0L;
+  long hash = FNV_OFFSET_BASIS;
+  while (source.hasData())
+  {
+   ByteBuffer region = source.getAvailableRegion();
+   int from = region.position();
+   int to = region.limit();
+   for (int i = from; i < to; i++)
+   {
+    int b = region.get(i) & 0xFF;
+    fingerprint = (fingerprint << 1) + GEAR[b];
+    hash = (hash ^ b) * FNV_PRIME;
+    if (++length < minChunkSize)
+     continue;
+    if (length < maxChunkSize
+      && 0L != (fingerprint & (length < averageChunkSize ? smallChunkMask : largeChunkMask)))
+     continue;
+    chunks.add(start, length, hash);
+    start += length;
+    length = 0;
+    hash = FNV_OFFSET_BASIS;
+   }
+   source.skipBytes(to - from);
+  }
+  if (0 < length)
+   chunks.add(start, length, hash);
+  return chunks;
+ }
+
+ /**
+  * Finds chunks of the updated input that also occur in the original
+  * input and selects a sequence of such matches that has the largest
+  * total length and appears in the same order within both inputs.
+  * That is the heaviest increasing subsequence of matching pairs,
+  * which is found using a tree of prefix maximums over chunk indexes
+  * of the original input. Adjacent matches are merged.
+  */
+ private Spans select(Chunks original, Chunks updated)
+ 	throws IOException
+ {
+  // build the sequences of matches
+  Matches matches = new Matches(updated.count);
+  PrefixMaximums best = new PrefixMaximums(original.count);
+  int[] candidates = new int[MAX_CANDIDATES];
+  long[] scores = new long[MAX_CANDIDATES];
+  int[] links = new int[MAX_CANDIDATES];
+  int expected = 0;
+  for (int j = 0; j < updated.count; j++)
+  {
+   long hash = updated.hashes[j];
+   int length = updated.lengths[j];
+   int found = 0;
+   // try the chunk that follows the previous match first
+   if (expected < original.count && hash == original.hashes[expected]
+     && length == original.lengths[expected]
+     && same(original.offsets[expected], updated.offsets[j], length))
+    candidates[found++] = expected;
+   for (int i = original.first(hash); 0 <= i && MAX_CANDIDATES > found; i = original.next[i])
+    if (i != expected && hash == original.hashes[i] && length == original.lengths[i]
+      && same(original.offsets[i], updated.offsets[j], length))
+     candidates[found++] = i;
+   // scores must not depend on other candidates for the same chunk
+   for (int k = 0; k < found; k++)
+   {
+    int link = best.find(candidates[k]);
+    links[k] = link;
+    scores[k] = length + (0 > link ? 0L : matches.scores[link]);
+   }
+   for (int k = 0; k < found; k++)
+    best.offer(candidates[k], scores[k], matches.add(candidates[k], j, scores[k], links[k]));
+   long top = 0L;
+   for (int k = 0; k < found; k++)
+    if (scores[k] > top)
+    {
+     top = scores[k];
+     expected = candidates[k] + 1;
+    }
+  }
+  // trace the best sequence backwards, merging adjacent matches
+  Spans spans = new Spans();
+  int last = best.find(original.count);
+  int spanEnd = -1;
+  for (int m = last; 0 <= m; m = matches.links[m])
+  {
+   int i = matches.originals[m];
+   int j = matches.updates[m];
+   int link = matches.links[m];
+   if (0 > spanEnd)
+    spanEnd = m;
+   if (0 <= link && matches.originals[link] == i - 1 && matches.updates[link] == j - 1)
+    continue;
+   int endI = matches.originals[spanEnd];
+   long end = original.offsets[endI] + original.lengths[endI];
+   spans.add(original.offsets[i], updated.offsets[j], end - original.offsets[i]);
+   spanEnd = -1;
+  }
+  spans.reverse();
+  return spans;
+ }
+
+ /**
+  * Extends each selected span backward and forward over the bytes
+  * that match within the adjacent unmatched regions of both inputs.
+  */
+ private void extend(Spans spans)
+ 	throws IOException
+ {
+  long end1 = 0L, end2 = 0L;
+  for (int k = 0; k < spans.count; k++)
+  {
+   long start1 = spans.starts1[k];
+   long start2 = spans.starts2[k];
+   long limit = start1 - end1;
+   if (start2 - end2 < limit)
+    limit = start2 - end2;
+   long back = matchBackward(start1, start2, limit);
+   spans.starts1[k] = start1 -= back;
+   spans.starts2[k] = start2 -= back;
+   end1 = start1 + spans.lengths[k] + back;
+   end2 = start2 + spans.lengths[k] + back;
+   limit = (k + 1 < spans.count ? spans.starts1[k + 1] : sources[0].getSize()) - end1;
+   long gap2 = (k + 1 < spans.count ? spans.starts2[k + 1] : sources[1].getSize()) - end2;
+   if (gap2 < limit)
+    limit = gap2;
+   sources[0].seek(end1);
+   sources[1].seek(end2);
+   long forward = Differencer.match(sources[0], sources[1], limit);
+   end1 += forward;
+   end2 += forward;
+   spans.lengths[k] = end1 - start1;
+  }
+ }
+
+ /**
+  * Matches chunks of the updated input that are not covered by the
+  * selected spans with chunks of the original input that are not
+  * covered either, regardless of their order. Each original chunk is
+  * matched only once, so that the spans do not overlap within
+  * either input. Adjacent matches are merged.
+  * @return the selected spans combined with new matches in the order
+  * of the updated input
+  */
+ private Spans addMoves(Chunks original, Chunks updated, Spans spans)
+ 	throws IOException
+ {
+  boolean[] used = spans.covers(original, true);
+  boolean[] matched = spans.covers(updated, false);
+  Spans moves = new Spans();
+  int lastI = -2, lastJ = -2;
+  for (int j = 0; j < updated.count; j++)
+  {
+   if (matched[j])
+    continue;
+   long hash = updated.hashes[j];
+   int length = updated.lengths[j];
+   int found = -1;
+   int verified = 0;
+   for (int i = original.first(hash); 0 <= i && MAX_CANDIDATES > verified; i = original.next[i])
+    if (!used[i] && hash == original.hashes[i] && length == original.lengths[i])
+    {
+     verified++;
+     if (same(original.offsets[i], updated.offsets[j], length))
+     {
+      found = i;
+      break;
+     }
+    }
+   if (0 > found)
+    continue;
+   used[found] = true;
+   if (lastI + 1 == found && lastJ + 1 == j)
+    moves.lengths[moves.count - 1] += length;
+   else
+    moves.add(original.offsets[found], updated.offsets[j], length);
+   lastI = found;
+   lastJ = j;
+  }
+  if (0 == moves.count)
+   return spans;
+  // merge in the order of the updated input
+  Spans merged = new Spans();
+  for (int k = 0, m = 0; k < spans.count || m < moves.count;)
+   if (m == moves.count || k < spans.count && spans.starts2[k] < moves.starts2[m])
+   {
+    merged.add(spans.starts1[k], spans.starts2[k], spans.lengths[k]);
+    k++;
+   }
+   else
+   {
+    merged.add(moves.starts1[m], moves.starts2[m], moves.lengths[m]);
+    m++;
+   }
+  return merged;
+ }
+
+ /**
+  * Writes the selected spans to the common delta and the data between
+  * them to the directional deltas. The spans must be in the order of
+  * the updated input.
+  * @return <code>false</code> if the comparison has been aborted
+  */
+ private boolean write(DiffResult result, Spans spans)
+ 	throws IOException
+ {
+  long position = 0L;
+  for (int k = 0; k < spans.count; k++)
+  {
+   long start1 = spans.starts1[k];
+   long start2 = spans.starts2[k];
+   if (!copyUnique(result, 1, position, start2 - position))
+    return false;
+   long length = spans.lengths[k];
+   commonDelta.writeFragment(start1, start2, length);
+   result.setDeltaSize(Delta.Type.COMMON, commonDelta.getSize());
+   result.setFragmentCount(Delta.Type.COMMON, commonDelta.getFragmentCount());
+   if (0 < sizeLimit && result.getDeltaSizeTotal() > sizeLimit)
+   {
+    result.setAborted(true);
+    return false;
+   }
+   position = start2 + length;
+  }
+  if (!copyUnique(result, 1, position, sources[1].getSize() - position))
+   return false;
+  // data that remains in the original input, which may be out of order
+  position = 0L;
+  for (int k : spans.orderOfOriginal())
+  {
+   if (!copyUnique(result, 0, position, spans.starts1[k] - position))
+    return false;
+   position = spans.starts1[k] + spans.lengths[k];
+  }
+  return copyUnique(result, 0, position, sources[0].getSize() - position);
+ }
+
+ private boolean copyUnique(DiffResult result, int index, long offset, long length)
+ 	throws IOException
+ {
+  DirectionalDeltaWriter delta = deltas[index];
+  Delta.Type type = INPUTS[index];
+  SeekableByteSource source = sources[index];
+  source.seek(offset);
+  while (0L < length)
+  {
+   int count = buffer.length < length ? buffer.length : (int)length;
+   if (0 < sizeLimit && result.getDeltaSizeTotal() + count >= sizeLimit)
+   {
+    result.setDeltaSize(type, result.getDeltaSize(type) + count);
+    result.setAborted(true);
+    return false;
+   }
+   readFully(source, buffer, 0, count);
+   delta.writeFragment(offset, buffer, 0, count);
+   result.setDeltaSize(type, delta.getSize());
+   result.setFragmentCount(type, delta.getFragmentCount());
+   result.setDeltaDataSize(type, delta.getDataCount());
+   offset += count;
+   length -= count;
+  }
+  return true;
+ }
+
+ /**
+  * Tells whether the inputs contain identical sequences of bytes
+  * at specified offsets.
+  */
+ private boolean same(long offset1, long offset2, int length)
+ 	throws IOException
+ {
+  sources[0].seek(offset1);
+  sources[1].seek(offset2);
+  return length == Differencer.match(sources[0], sources[1], length);
+ }
+
+ /**
+  * Returns the number of identical bytes that precede specified
+  * offsets in both inputs, up to a limit.
+  */
+ private long matchBackward(long end1, long end2, long limit)
+ 	throws IOException
+ {
+  if (null == reverseBuffer || reverseBuffer.length != buffer.length)
+   reverseBuffer = new byte[buffer.length];
+  long count = 0L;
+  while (count < limit)
+  {
+   int length = buffer.length < limit - count ? buffer.length : (int)(limit - count);
+   sources[0].seek(end1 - count - length);
+   readFully(sources[0], buffer, 0, length);
+   sources[1].seek(end2 - count - length);
+   readFully(sources[1], reverseBuffer, 0, length);
+   for (int i = length; 0 < i--; count++)
+    if (buffer[i] != reverseBuffer[i])
+     return count;
+  }
+  return count;
+ }
+
+ private static void readFully(ByteSource source, byte[] buf, int offset, int length)
+ 	throws IOException
+ {
+  while (0 < length)
+  {
+   int read = source.read(buf, offset, length);
+   if (0 > read)
+    throw new EOFException("Unexpected end of data reading " + source);
+   offset += read;
+   length -= read;
+  }
+ }
+
+ private static int slot(long hash, int tableSize)
+ {
+  return (int)(hash ^ hash >>> 32) & tableSize - 1;
+ }
+
+ private static int grow(int length)
+ {
+  int size = length + (length >> 1) + 16;
+  return 0 > size ? Integer.MAX_VALUE : size;
+ }
+
+ /**
+  * Stores offsets, lengths, and content hashes of chunks in an input.
+  */
+ private static class Chunks
+ {
+  void add(long offset, int length, long hash)
+  {
+   if (offsets.length == count)
+   {
+    int size = grow(count);
+    offsets = Arrays.copyOf(offsets, size);
+    lengths = Arrays.copyOf(lengths, size);
+    hashes = Arrays.copyOf(hashes, size);
+   }
+   offsets[count] = offset;
+   lengths[count] = length;
+   hashes[count] = hash;
+   count++;
+  }
+
+  /**
+   * Builds a hash index of the chunks, to be searched with
+   * {@link #first(long)} and {@link #next}.
+   */
+  void index()
+  {
+   int tableSize = 16;
+   while (tableSize < count << 1 && 0 < tableSize << 1)
+    tableSize <<= 1;
+   heads = new int[tableSize];
+   Arrays.fill(heads, -1);
+   next = new int[count];
+   for (int i = 0; i < count; i++)
+   {
+    int slot = slot(hashes[i], tableSize);
+    next[i] = heads[slot];
+    heads[slot] = i;
+   }
+  }
+
+  /**
+   * Returns the index of the first chunk in a chain that may have
+   * the argument hash, or <code>-1</code> if there is no such chunk.
+   */
+  int first(long hash)
+  {
+   return heads[slot(hash, heads.length)];
+  }
+
+  Chunks(int capacity)
+  {
+   offsets = new long[capacity];
+   lengths = new int[capacity];
+   hashes = new long[capacity];
+  }
+
+  long[] offsets;
+  int[] lengths;
+  long[] hashes;
+  int count;
+  int[] heads, next;
+ }
+
+ /**
+  * Stores matching pairs of chunks along with the total length of
+  * the best sequence of matches that ends at each pair and a link
+  * to the preceding pair in that sequence.
+  */
+ private static class Matches
+ {
+  int add(int original, int update, long score, int link)
+  {
+   if (originals.length == count)
+   {
+    int size = grow(count);
+    originals = Arrays.copyOf(originals, size);
+    updates = Arrays.copyOf(updates, size);
+    scores = Arrays.copyOf(scores, size);
+    links = Arrays.copyOf(links, size);
+   }
+   originals[count] = original;
+   updates[count] = update;
+   scores[count] = score;
+   links[count] = link;
+   return count++;
+  }
+
+  Matches(int capacity)
+  {
+   originals = new int[capacity];
+   updates = new int[capacity];
+   scores = new long[capacity];
+   links = new int[capacity];
+  }
+
+  int[] originals, updates;
+  long[] scores;
+  int[] links;
+  int count;
+ }
+
+ /**
+  * A binary indexed tree that finds the best-scoring match among those
+  * with original chunk indexes below a bound.
+  */
+ private static class PrefixMaximums
+ {
+  /**
+   * Returns the match with the highest score among those offered
+   * at indexes less than the argument, or <code>-1</code> if there
+   * is no such match.
+   */
+  int find(int bound)
+  {
+   long score = 0L;
+   int match = -1;
+   for (int i = bound; 0 < i; i -= i & -i)
+    if (score < scores[i])
+    {
+     score = scores[i];
+     match = matches[i];
+    }
+   return match;
+  }
+
+  void offer(int index, long score, int match)
+  {
+   for (int i = index + 1; i < scores.length; i += i & -i)
+    if (score > scores[i])
+    {
+     scores[i] = score;
+     matches[i] = match;
+    }
+  }
+
+  PrefixMaximums(int size)
+  {
+   scores = new long[size + 1];
+   matches = new int[size + 1];
+  }
+
+  private long[] scores;
+  private int[] matches;
+ }
+
+ /**
+  * Stores common regions of both inputs.
+  */
+ private static class Spans
+ {
+  void add(long start1, long start2, long length)
+  {
+   if (starts1.length == count)
+   {
+    int size = grow(count);
+    starts1 = Arrays.copyOf(starts1, size);
+    starts2 = Arrays.copyOf(starts2, size);
+    lengths = Arrays.copyOf(lengths, size);
+   }
+   starts1[count] = start1;
+   starts2[count] = start2;
+   lengths[count] = length;
+   count++;
+  }
+
+  void reverse()
+  {
+   for (int i = 0, j = count - 1; i < j; i++, j--)
+   {
+    long temp = starts1[i];
+    starts1[i] = starts1[j];
+    starts1[j] = temp;
+    temp = starts2[i];
+    starts2[i] = starts2[j];
+    starts2[j] = temp;
+    temp = lengths[i];
+    lengths[i] = lengths[j];
+    lengths[j] = temp;
+   }
+  }
+
+  /**
+   * Tells whether the spans appear in the same order within both inputs.
+   */
+  boolean isOrdered()
+  {
+   for (int k = 1; k < count; k++)
+    if (starts1[k - 1] + lengths[k - 1] > starts1[k])
+     return false;
+   return true;
+  }
+
+  /**
+   * Returns indexes of the spans sorted by their offsets within
+   * the first input.
+   */
+  Integer[] orderOfOriginal()
+  {
+   Integer[] order = new Integer[count];
+   for (int k = 0; k < count; k++)
+    order[k] = k;
+   Arrays.sort(order, new Comparator<Integer>() {
+    public int compare(Integer k1, Integer k2)
+    {
+     long start1 = starts1[k1], start2 = starts1[k2];
+     return start1 < start2 ? -1 : start1 == start2 ? 0 : 1;
+    }
+   });
+   return order;
+  }
+
+  /**
+   * Flags the chunks that intersect any of these spans. The spans
+   * must be sorted by their offsets within the input being checked.
+   * @param chunks chunks of either input
+   * @param original <code>true</code> to check chunks of the
+   * first input, <code>false</code> for the second input
+   */
+  boolean[] covers(Chunks chunks, boolean original)
+  {
+   long[] starts = original ? starts1 : starts2;
+   boolean[] covered = new boolean[chunks.count];
+   for (int i = 0, k = 0; i < chunks.count; i++)
+   {
+    long offset = chunks.offsets[i];
+    while (k < count && starts[k] + lengths[k] <= offset)
+     k++;
+    covered[i] = k < count && starts[k] < offset + chunks.lengths[i];
+   }
+   return covered;
+  }
+
+  long[] starts1 = new long[16], starts2 = new long[16], lengths = new long[16];
+  int count;
+ }
+
+ private static final Delta.Type[] INPUTS = { Delta.Type.REVERSE, Delta.Type.FORWARD };
+ // number of mask bits added before and removed after the average chunk size
+ private static final int NORMALIZATION_LEVEL = 2;
+ private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+ private static final long FNV_PRIME = 0x100000001b3L;
+ // fixed seed keeps chunk boundaries reproducible
+ private static final long GEAR_SEED = 0x5DEECE66DL;
+ private static final long[] GEAR = new long[256];
+ static
+ {
+  Random random = new Random(GEAR_SEED);
+  for (int i = 0; i < GEAR.length; i++)
+   GEAR[i] = random.nextLong();
+ }
+
+ private long sizeLimit;
+ private boolean movesEnabled;
+ private int minChunkSize, averageChunkSize, maxChunkSize;
+ private long smallChunkMask, largeChunkMask;
+ private CommonDeltaWriter commonDelta;
+ private DirectionalDeltaWriter[] deltas;
+ private SeekableByteSource[] sources;
+ private Fingerprint fingerprint;
+ private byte[] buffer, reverseBuffer;
+}
@@ -48,6 +48,15 @@ public class CommonDeltaReader extends DeltaReader
   return length;
  }
 
+ /**
+  * Tells whether this delta may contain
+  * {@link CommonDeltaWriter#setMovesAllowed(boolean) moved fragments}.
+  */
+ public boolean isMovesAllowed()
+ {
+  return movesAllowed;
+ }
+
  /* (non-Javadoc)
   * @see name.livitski.databag.diff.DeltaReader#readFragment(name.livitski.databag.diff.PositiveLongContainer)
   */
@@ -62,11 +71,13 @@ public class CommonDeltaReader extends DeltaReader
    length = plc.longValue();
  }
 
- protected CommonDeltaReader(ByteSource in)
+ protected CommonDeltaReader(ByteSource in, boolean movesAllowed)
  {
   super(Type.COMMON, in);
+  this.movesAllowed = movesAllowed;
  }
 
  private long[] offsets = new long[2];
  private long length;
+ private boolean movesAllowed;
 }
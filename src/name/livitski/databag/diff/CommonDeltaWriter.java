@@ -38,6 +38,38 @@ public class CommonDeltaWriter extends DeltaWriter
   super(out, Type.COMMON);
  }
 
+ /**
+  * Tells whether this delta may contain moved fragments.
+  * @see #setMovesAllowed(boolean)
+  */
+ public boolean isMovesAllowed()
+ {
+  return movesAllowed;
+ }
+
+ /**
+  * Allows this delta to contain fragments with offsets in the original
+  * image that are out of order. Such fragments must still be written
+  * in the order of their offsets in the modified image. Deltas with
+  * moved fragments can be applied by a {@link Restorer} only if its
+  * source is a {@link SeekableByteSource}. This property must be set
+  * before the first fragment is written. It is stored in the delta's
+  * {@link Delta#MOVES_FLAG magic number}, which earlier versions of
+  * this package do not recognize.
+  */
+ public void setMovesAllowed(boolean movesAllowed)
+ {
+  if (0L < getSize())
+   throw new IllegalStateException("Cannot change format of " + this + " after writing to it");
+  this.movesAllowed = movesAllowed;
+ }
+
+ @Override
+ protected int magicNumber()
+ {
+  return movesAllowed ? super.magicNumber() | MOVES_FLAG : super.magicNumber();
+ }
+
  public void writeFragment(long reverseOffset, long forwardOffset, long length)
  	throws IOException
  {
@@ -53,4 +85,6 @@ public class CommonDeltaWriter extends DeltaWriter
   written(value.getEncodedSize());
   fragmentAdded();
  }
+
+ private boolean movesAllowed;
 }
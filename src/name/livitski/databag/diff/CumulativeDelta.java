@@ -19,8 +19,10 @@
     
 package name.livitski.databag.diff;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.Arrays;
 
 import static name.livitski.databag.diff.Delta.Type.*;
 
@@ -29,32 +31,39 @@ import static name.livitski.databag.diff.Delta.Type.*;
  * {@link Restorer} with {@link EffectiveDelta} equivalent
  * to applying all accumulated deltas in a sequence.
  * Note that deltas are {@link #addPriorDelta added}
- * in the reverse order of their effective application. 
+ * in the reverse order of their effective application.
+ * Fragments are kept in tables of primitive values sorted
+ * by their offsets in the resulting image, and each added delta
+ * produces new tables that replace the old ones in bulk.
+ * Data of directional fragments is kept in a {@link ByteSpool},
+ * which moves it to a temporary file once it exceeds the
+ * {@link #CumulativeDelta(long) spill threshold}. Instances
+ * that may spill their data must be {@link #close() closed}
+ * when no longer used.
  */
-public class CumulativeDelta implements EffectiveDelta
+public class CumulativeDelta implements EffectiveDelta, Closeable
 {
  /**
   * Adds a delta that precedes changes stored in this
   * object on the path from some initial image. Note that
   * both delta sources contained in the argument will
   * be read by this method and relevant information
-  * stored in memory to produce a cumulative delta. 
+  * stored in memory to produce a cumulative delta.
+  * If this method fails, the object retains its fragments,
+  * but may keep some of the argument's data in its spool.
   * @param prior preceding delta information
   * @throws IOException if there is an error reading
   * preceding delta information
   * @throws DeltaFormatException if preceding deltas contain
   * invalid data
-  * @throws OutOfMemoryError if the new cumulative delta
-  * won't fit in memory
+  * @throws OutOfMemoryError if the fragment tables of the new
+  * cumulative delta won't fit in memory
   */
  public void addPriorDelta(EffectiveDelta prior)
  	throws IOException, DeltaFormatException
  {
   CommonDeltaSource common = prior.getCommonDelta();
   DirectionalDeltaSource directional = prior.getDirectionalDelta();
-  long pos = 0L;
-  long nextCommon = -1L;
-  long nextDirectional = -1L;
   Delta.Type direction = directional.getType();
   Delta.Type reverseDirection;
   switch (direction)
@@ -68,70 +77,83 @@ public class CumulativeDelta implements EffectiveDelta
   default:
    throw new IllegalArgumentException("Unrecognized type of directional delta: " + direction);
   }
-  commonCursor = this.common;
-  forwardCursor = this.forward;
-  for (;;)
-  {
-   // read next common fragment if outdated
-   if (nextCommon < pos)
-   {
-    if (common.nextFragment())
-     nextCommon = common.getOffset(direction);
-    else
-     // no fragment, signal end of delta
-     nextCommon = -1L;
-   }
-   // read next directional fragment if outdated
-   if (nextDirectional < pos)
-   {
-    if (directional.nextFragment())
-     nextDirectional = directional.getOffset();
-    else
-     // no fragment, signal end of delta
-     nextDirectional = -1L;
-   }
-   // if both deltas have been read completely, exit
-   if (0L > nextCommon && 0L > nextDirectional)
-    break;
-   if (pos == nextCommon)
-    pos = processFragment(pos, common, reverseDirection, commonFactory);
-   else if (pos == nextDirectional)
-    pos = processFragment(pos, directional, reverseDirection, forwardFactory);
-   else
-    // gap in deltas: this is an error
-    throw new DeltaFormatException("Gap in deltas at position " + pos
-      + ", next common fragment starts at " + nextCommon
-      + ", next " + direction + " starts at " + nextDirectional);
-  }
-  if (commonCursor.next != this.common)
-   throw new DeltaFormatException("Missing data for " + commonCursor.next);
+  CommonTable newCommon = new CommonTable(this.common.count);
+  DirectionalTable newForward = new DirectionalTable(empty ? 0 : this.forward.count);
+  if (!empty && moves)
+   rebase(common, directional, reverseDirection, newCommon, newForward);
+  else
+   overlay(common, directional, reverseDirection, newCommon, newForward);
+  this.forward = empty ? newForward : DirectionalTable.merge(this.forward, newForward);
+  this.common = newCommon;
+  moves = newCommon.moves;
   empty = false;
  }
 
+ /**
+  * Tells whether this delta contains
+  * {@link CommonDeltaWriter#setMovesAllowed(boolean) moved fragments},
+  * either because some of the accumulated deltas do, or because
+  * a combination of deltas moved some data. Such delta can only
+  * be applied to a {@link SeekableByteSource}.
+  */
+ public boolean hasMoves()
+ {
+  return moves;
+ }
+
  /**
   * Returns the estimated memory footprint of this delta.
-  * @return estimated memory footprint of this delta or
-  * a negative value if the delta is too large for the range of
-  * positive long values
+  * Fragment data that has been moved to a file does not count.
+  * @return estimated memory footprint of this delta
   */
  public long getEstimatedSize()
  {
-  if (0 > forwardCount || 0 > commonCount || 0L > dataSize)
-   return -1L;
-  else
-   return  DIRECTIONAL_INSTANCE_SIZE_ESTIMATE * (long)forwardCount
-    	+ COMMON_INSTANCE_SIZE_ESTIMATE * (long)commonCount
-    	+ dataSize;
+  return COMMON_ENTRY_SIZE * (long)common.capacity()
+  	+ DIRECTIONAL_ENTRY_SIZE * (long)forward.capacity()
+  	+ data.getMemorySize();
+ }
+
+ /**
+  * Tells whether this delta has moved the data of its directional
+  * fragments to a temporary file.
+  */
+ public boolean isSpilled()
+ {
+  return data.isSpooled();
+ }
+
+ /**
+  * Releases the temporary file that stores data of this delta,
+  * if any. This delta cannot be used after it is closed.
+  * @throws IOException if the file could not be deleted
+  */
+ public void close()
+ 	throws IOException
+ {
+  data.close();
  }
 
  /**
-  * Creates an empty cumulative delta. Such
-  * delta cannot be applied until at least one
+  * Creates an empty cumulative delta that keeps all its data
+  * in memory. Such delta cannot be applied until at least one
   * element is {@link #addPriorDelta(EffectiveDelta) added}
   * to it.
   */
  public CumulativeDelta()
  {
+  this(Long.MAX_VALUE);
+ }
+
+ /**
+  * Creates an empty cumulative delta that moves data of its
+  * directional fragments to a temporary file when the data
+  * no longer fits within a threshold.
+  * @param spillThreshold the number of bytes of fragment data
+  * this delta may keep in memory
+  */
+ public CumulativeDelta(long spillThreshold)
+ {
+  data = new ByteSpool(spillThreshold);
  }
 
  /* (non-Javadoc)
@@ -141,27 +163,18 @@ public class CumulativeDelta implements EffectiveDelta
  {
   if (empty)
    throw new IllegalStateException("No element(s) have been added to cumulative delta");
+  final CommonTable table = common;
   return new CommonDeltaSource() {
-   private CommonFragment fragment = common;
-   private int number = 0;
+   private int index = -1;
    
    public boolean nextFragment()
    {
-    if (null == fragment)
+    if (table.count <= index)
      return false;
-    else
-     fragment = fragment.next();
-    if (0L > fragment.offset)
-    {
-     number = 0;
-     fragment = null;
-     return false;
-    }
-    else
-    {
-     number++;
+    if (table.count > ++index)
      return true;
-    }
+    index = table.count;
+    return false;
    }
    
    public Delta.Type getType()
@@ -171,12 +184,12 @@ public class CumulativeDelta implements EffectiveDelta
    
    public int getFragmentNumber()
    {
-    return number;
+    return table.count > index ? index + 1 : 0;
    }
    
    public final long getReverseOffset()
    {
-    return fragment.oldOffset;
+    return table.oldOffsets[index];
    }
    
    public long getOffset(Delta.Type type)
@@ -194,12 +207,12 @@ public class CumulativeDelta implements EffectiveDelta
    
    public long getLength()
    {
-    return fragment.length;
+    return table.lengths[index];
    }
    
    public final long getForwardOffset()
    {
-    return fragment.offset;
+    return table.offsets[index];
    }
   };
  }
@@ -211,30 +224,21 @@ public class CumulativeDelta implements EffectiveDelta
  {
   if (empty)
    throw new IllegalStateException("No element(s) have been added to cumulative delta");
+  final DirectionalTable table = forward;
   return new DirectionalDeltaSource()
   {
-   private DirectionalFragment fragment = forward;
-   private int number = 0;
+   private int index = -1;
    private int dataAt = 0;
 
    public boolean nextFragment()
    {
-    if (null == fragment)
+    if (table.count <= index)
      return false;
-    else
-     fragment = fragment.next();
     dataAt = 0;
-    if (0L > fragment.offset)
-    {
-     number = 0;
-     fragment = null;
-     return false;
-    }
-    else
-    {
-     number++;
+    if (table.count > ++index)
      return true;
-    }
+    index = table.count;
+    return false;
    }
    
    public Delta.Type getType()
@@ -244,16 +248,22 @@ public class CumulativeDelta implements EffectiveDelta
    
    public int getFragmentNumber()
    {
-    return number;
+    return table.count > index ? index + 1 : 0;
    }
    
    public int read(byte[] buf, int off, int len)
+   	throws IOException
    {
-    if (fragment.data.length <= dataAt)
+    int length = table.lengths[index];
+    if (length <= dataAt)
      return -1;
-    else if (fragment.data.length < len + dataAt)
-     len = fragment.data.length - dataAt;
-    System.arraycopy(fragment.data, dataAt, buf, off, len);
+    else if (length < len + dataAt)
+     len = length - dataAt;
+    if (0 == len)
+     return 0;
+    len = data.read(table.positions[index] + dataAt, buf, off, len);
+    if (0 >= len)
+     throw new IOException("Data of " + table.describe(index) + " is missing");
     dataAt += len;
     return len;
    }
@@ -262,25 +272,27 @@ public class CumulativeDelta implements EffectiveDelta
    {
     if (0 > len)
      throw new IllegalArgumentException(Integer.toString(len));
-    else if (fragment.data.length < len + dataAt)
-     len = fragment.data.length - dataAt;
+    int length = table.lengths[index];
+    if (length < len + dataAt)
+     len = length - dataAt;
     dataAt += len;
     return len;
    }
    
    public int read(byte[] buf)
+   	throws IOException
    {
     return read(buf, 0, buf.length);
    }
    
    public long getOffset()
    {
-    return fragment.offset;
+    return table.offsets[index];
    }
    
    public int getLength()
    {
-    return fragment.data.length;
+    return table.lengths[index];
    }
   };
  }
@@ -290,288 +302,355 @@ public class CumulativeDelta implements EffectiveDelta
  {
   PrintStream out = System.out;
   out.printf("common fragment list:%n===========================%n");
-  long pdo = -1L;
-  for (CommonFragment f = common.next(); common != f; f = f.next())
-  {
-   out.printf("%s pd %d%n", f, f.previousDirectional.offset);
-   if (pdo > f.previousDirectional.offset)
-    out.printf("ERROR: PDO %d < %d%n", f.previousDirectional.offset, pdo);
-   else
-    pdo = f.previousDirectional.offset;
-  }
+  for (int i = 0; common.count > i; i++)
+   out.printf("%s%n", common.describe(i));
   out.println("===========================");
  }
 
- private long processFragment(long pos, DeltaSource source, Delta.Type other, FragmentFactory factory)
+ /**
+  * Replaces each common fragment of this delta with the parts of
+  * a preceding delta that cover its original data. Fragments of
+  * the preceding delta are read in order of its target image, which
+  * is the original image of this delta, so the parts are found
+  * by a single pass over them. This only works when common fragments
+  * of this delta are in order of their original offsets, i.e. this
+  * delta {@link #hasMoves() has no moves}.
+  */
+ private void overlay(CommonDeltaSource common, DirectionalDeltaSource directional,
+   Delta.Type other, CommonTable newCommon, DirectionalTable newForward)
  	throws IOException, DeltaFormatException
  {
-  long otherOffset, length;
-  if (source instanceof CommonDeltaSource)
-  {
-   CommonDeltaSource commonSource = (CommonDeltaSource) source;
-   length = commonSource.getLength();
-   otherOffset = commonSource.getOffset(other);
-  }
-  else if (source instanceof DirectionalDeltaSource)
+  final CommonTable top = this.common;
+  final Delta.Type direction = directional.getType();
+  boolean commonNext = common.nextFragment();
+  boolean directionalNext = directional.nextFragment();
+  // index of the first fragment of this delta that may intersect the next fragment
+  int next = 0;
+  for (long pos = 0L, end; commonNext || directionalNext; pos = end)
   {
-   length = ((DirectionalDeltaSource) source).getLength();
-   otherOffset = -1L;
+   if (commonNext && pos == common.getOffset(direction))
+   {
+    end = pos + common.getLength();
+    long otherOffset = common.getOffset(other);
+    if (empty)
+     newCommon.add(pos, otherOffset, end - pos);
+    else for (; top.count > next && end > top.oldOffsets[next]; next++)
+    {
+     long from = Math.max(pos, top.oldOffsets[next]);
+     long topEnd = top.oldOffsets[next] + top.lengths[next];
+     long to = Math.min(end, topEnd);
+     if (from < to)
+      newCommon.add(top.offsets[next] + from - top.oldOffsets[next], otherOffset + from - pos, to - from);
+     if (topEnd > end)
+      break;
+    }
+    commonNext = common.nextFragment();
+   }
+   else if (directionalNext && pos == directional.getOffset())
+   {
+    int length = directional.getLength();
+    end = pos + length;
+    if (empty)
+     newForward.add(pos, spool(directional, length, -1L), length);
+    else for (long at = pos; top.count > next && end > top.oldOffsets[next]; next++)
+    {
+     long from = Math.max(pos, top.oldOffsets[next]);
+     long topEnd = top.oldOffsets[next] + top.lengths[next];
+     long to = Math.min(end, topEnd);
+     if (from < to)
+     {
+      skip(directional, (int)(from - at), length);
+      newForward.add(top.offsets[next] + from - top.oldOffsets[next],
+	spool(directional, (int)(to - from), from - pos), (int)(to - from));
+      at = to;
+     }
+     if (topEnd > end)
+      break;
+    }
+    directionalNext = directional.nextFragment();
+   }
+   else
+    // gap in deltas: this is an error
+    throw new DeltaFormatException("Gap in deltas at position " + pos
+      + ", next common fragment starts at " + (commonNext ? common.getOffset(direction) : -1L)
+      + ", next " + direction + " starts at " + (directionalNext ? directional.getOffset() : -1L));
+   if (0 > end)
+    throw new DeltaFormatException("Fragment lengths caused an arithmetic overflow of image position: " + end);
   }
-  else
-   throw new UnsupportedOperationException(source.getClass().getName());
-  // Is there a top layer?
-  if (empty)
-   factory.createFragment(pos, otherOffset, length, source);
-  else
-   overlayFragment(pos, otherOffset, length, source, factory);
-  pos += length;
-  if (0 > pos)
-   throw new DeltaFormatException("Common fragment " + source.getFragmentNumber()
-     + " with length " + length + " caused an arithmetic overflow of image position: " + pos);
-  return pos; // new scan position
+  if (!empty && top.count > next)
+   throw new DeltaFormatException("Missing data for " + top.describe(next));
  }
 
- private void overlayFragment(final long pos, long otherOffset,
-   long length, DeltaSource source, FragmentFactory factory)
+ /**
+  * Adds a preceding delta when common fragments of this delta are
+  * out of order in the image that the preceding delta restores.
+  * The preceding delta is read into tables sorted by offsets in that
+  * image, with its directional data added to the spool, then parts of
+  * preceding delta that cover the original data of each common fragment
+  * of this delta are found by binary search.
+  */
+ private void rebase(CommonDeltaSource common, DirectionalDeltaSource directional,
+   Delta.Type other, CommonTable newCommon, DirectionalTable newForward)
  	throws IOException, DeltaFormatException
  {
-  // There is a top layer, find its intersecting common fragments
-  CommonFragment topFragment = commonCursor.next(); 
-  if (pos > topFragment.oldOffset && common != topFragment)
-   throw new IllegalStateException("Unexpected common fragment at " + topFragment.oldOffset
-     + " listed before " + pos);
-  long endPos = pos + length;
-  long lastPos = pos; 
-  CommonFragment endFragment = null;
-  // For each intersecting common fragment
-  while (endPos > topFragment.oldOffset && common != topFragment)
+  // read the preceding delta in the order of its target image
+  CommonTable priorCommon = new CommonTable(0);
+  DirectionalTable priorForward = new DirectionalTable(0);
+  Delta.Type direction = directional.getType();
+  boolean commonNext = common.nextFragment();
+  boolean directionalNext = directional.nextFragment();
+  for (long pos = 0L; commonNext || directionalNext;)
   {
-   // Remove this fragment
-   commonCursor.removeNext();
-   if (0 < commonCount)
-    commonCount--;
-   else if (0 == commonCount)
-    throw new IllegalStateException("Underflow of commonCount after removing " + topFragment);
-   // Update the forward cursor
-   forwardCursor = topFragment.previousDirectional;
-   // Calculate intersection boundaries
-   long intEnd = topFragment.oldOffset + topFragment.length;
-   // Does it fit within bottom layer fragment?
-   if (endPos < intEnd)
+   if (commonNext && pos == common.getOffset(direction))
    {
-    // No, adjust the boundary and save this fragment
-    intEnd = endPos;
-    endFragment = topFragment;
+    priorCommon.add(pos, common.getOffset(other), common.getLength());
+    pos += common.getLength();
+    commonNext = common.nextFragment();
    }
-   factory.createOverlay(pos, lastPos, otherOffset, length, intEnd, source, topFragment);
-   // Select next fragment 
-   topFragment = commonCursor.next();
-   // advance pos past the new overlay
-   lastPos = intEnd;
+   else if (directionalNext && pos == directional.getOffset())
+   {
+    int length = directional.getLength();
+    priorForward.add(pos, spool(directional, length, -1L), length);
+    pos += length;
+    directionalNext = directional.nextFragment();
+   }
+   else
+    throw new DeltaFormatException("Gap in deltas at position " + pos
+      + ", next common fragment starts at " + (commonNext ? common.getOffset(direction) : -1L)
+      + ", next " + direction + " starts at " + (directionalNext ? directional.getOffset() : -1L));
+   if (0 > pos)
+    throw new DeltaFormatException("Fragment lengths caused an arithmetic overflow of image position: " + pos);
   }
-  // Was there leftover from last fragment?
-  if (null != endFragment) 
+  // replace common fragments in the order of resulting image
+  final CommonTable top = this.common;
+  for (int i = 0; top.count > i; i++)
   {
-   // Yes, make another fragment from it
-   endPos -= endFragment.oldOffset;
-   endFragment.length -= endPos;
-   endFragment.offset += endPos;
-   endFragment.previousDirectional = forwardCursor;
-   endFragment.oldOffset += endPos;
-   commonCursor.add(endFragment);
-   commonCount++;
+   long at = top.oldOffsets[i];
+   final long end = at + top.lengths[i];
+   while (at < end)
+   {
+    long offset = top.offsets[i] + at - top.oldOffsets[i];
+    long stop;
+    int ci = floor(priorCommon.offsets, priorCommon.count, at);
+    int di;
+    if (0 <= ci && priorCommon.offsets[ci] + priorCommon.lengths[ci] > at)
+    {
+     stop = Math.min(end, priorCommon.offsets[ci] + priorCommon.lengths[ci]);
+     newCommon.add(offset, priorCommon.oldOffsets[ci] + at - priorCommon.offsets[ci], stop - at);
+    }
+    else if (0 <= (di = floor(priorForward.offsets, priorForward.count, at))
+      && priorForward.offsets[di] + priorForward.lengths[di] > at)
+    {
+     stop = Math.min(end, priorForward.offsets[di] + priorForward.lengths[di]);
+     newForward.add(offset, priorForward.positions[di] + at - priorForward.offsets[di], (int)(stop - at));
+    }
+    else
+     throw new DeltaFormatException("Missing data for " + top.describe(i));
+    at = stop;
+   }
   }
  }
 
- static abstract class Fragment<T extends Fragment<T>>
+ /**
+  * Returns the index of the last element of a sorted array that
+  * does not exceed a key, or <code>-1</code> if all elements do.
+  */
+ private static int floor(long[] keys, int count, long key)
  {
-  @SuppressWarnings("unchecked")
-  public T next()
-  {
-   return (T)next;
-  }
-
-  public void removeNext()
+  int low = 0, high = count;
+  while (low < high)
   {
-   Fragment<T> removed = next;
-   next = removed.next;
-   removed.next = removed;
+   int middle = (low + high) >>> 1;
+   if (keys[middle] <= key)
+    low = middle + 1;
+   else
+    high = middle;
   }
+  return low - 1;
+ }
 
-  public void add(T next)
+ /**
+  * Skips a number of bytes in the current directional fragment.
+  */
+ private static void skip(DirectionalDeltaSource source, int count, long length)
+ 	throws IOException, DeltaFormatException
+ {
+  for (int skip = count; 0 < skip;)
   {
-   if (next != next.next)
-    throw new IllegalStateException();
-   next.next = this.next;
-   this.next = next;
+   int skipped = source.skipBytes(skip);
+   if (0 < skipped)
+    skip -= skipped;
+   else if (0 >= source.read(new byte[1]))
+    throw new DeltaFormatException("Directional fragment " + source.getFragmentNumber()
+      + " with stated length " + length + " allowed to skip no more than "
+      + (count - skip) + " byte(s)");
+   else
+    skip--;
   }
+ }
 
-  public Fragment(long offset)
+ /**
+  * Appends the data of a directional fragment to the spool.
+  * @return position of the data in the spool
+  */
+ private long spool(DirectionalDeltaSource source, int length, long toSkip)
+ 	throws IOException, DeltaFormatException
+ {
+  long position = data.getSize();
+  if (null == buffer)
+   buffer = new byte[ByteSpool.BLOCK_SIZE];
+  for (int at = 0; length > at;)
   {
-   this.offset = offset;
-   this.next = this;
+   int read = source.read(buffer, 0, Math.min(buffer.length, length - at));
+   if (0 >= read)
+    throw new DeltaFormatException("Directional fragment " + source.getFragmentNumber()
+      + " with stated length " + length + " allowed to read no more than "
+      + at + " byte(s)" + (0 > toSkip ? "" : " at position " + toSkip));
+   data.append(buffer, 0, read);
+   at += read;
   }
- 
-  long offset;
-  Fragment<T> next;
+  return position;
  }
 
- static final int FRAGMENT_INSTANCE_SIZE_ESTIMATE = 32;
-
- static class DirectionalFragment extends Fragment<DirectionalFragment>
+ /**
+  * Common fragments sorted by their offsets in the resulting image.
+  * Each fragment takes {@link CumulativeDelta#COMMON_ENTRY_SIZE} bytes
+  * of the tables' capacity.
+  */
+ static final class CommonTable
  {
-  public DirectionalFragment(long offset, byte[] data)
+  void add(long offset, long oldOffset, long length)
   {
-   super(offset);
-   this.data = data;
+   if (offsets.length == count)
+   {
+    int capacity = grow(count);
+    offsets = Arrays.copyOf(offsets, capacity);
+    oldOffsets = Arrays.copyOf(oldOffsets, capacity);
+    lengths = Arrays.copyOf(lengths, capacity);
+   }
+   offsets[count] = offset;
+   oldOffsets[count] = oldOffset;
+   lengths[count] = length;
+   count++;
+   if (orderedUpTo > oldOffset)
+    moves = true;
+   else
+    orderedUpTo = oldOffset + length;
   }
 
-  @Override
-  public String toString()
+  int capacity()
   {
-   return "directional fragment at " + offset +
-   	(null == data ? "with no data" : "with length " + data.length);
+   return offsets.length;
   }
 
-  byte[] data;
- }
-
- static final int DIRECTIONAL_INSTANCE_SIZE_ESTIMATE = 36 + FRAGMENT_INSTANCE_SIZE_ESTIMATE;
-
- static class CommonFragment extends Fragment<CommonFragment>
- {
-  public CommonFragment(long oldOffset, long offset, long length, DirectionalFragment previousDirectional)
+  String describe(int index)
   {
-   super(offset);
-   this.oldOffset = oldOffset;
-   this.length = length;
-   this.previousDirectional = previousDirectional;
+   return "common fragment at " + offsets[index] + " with length " + lengths[index]
+   	+ " mapped to " + oldOffsets[index];
   }
 
-  @Override
-  public String toString()
+  CommonTable(int capacity)
   {
-   return "common fragment at " + offset + " with length " + length + " mapped to " + oldOffset;
+   offsets = new long[capacity];
+   oldOffsets = new long[capacity];
+   lengths = new long[capacity];
   }
 
-  long oldOffset, length;
-  DirectionalFragment previousDirectional;
+  long[] offsets, oldOffsets, lengths;
+  int count;
+  /** Tells whether the original offsets of fragments are out of order. */
+  boolean moves;
+  private long orderedUpTo;
  }
 
- static final int COMMON_INSTANCE_SIZE_ESTIMATE = 24 + FRAGMENT_INSTANCE_SIZE_ESTIMATE;
-
- private interface FragmentFactory
- {
-  void createFragment(long pos, long otherOffset, long length, DeltaSource source)
-	throws IOException, DeltaFormatException;
-  void createOverlay(long pos, long lastPos, long otherOffset,
-    long length, long intEnd, DeltaSource source, CommonFragment topFragment)
-  	throws IOException, DeltaFormatException;
- }
+ static final int COMMON_ENTRY_SIZE = 3 * 8;
 
- private FragmentFactory forwardFactory = new FragmentFactory()
+ /**
+  * Directional fragments sorted by their offsets in the resulting image.
+  * Fragment data is stored in the spool at the fragment's position.
+  * Each fragment takes {@link CumulativeDelta#DIRECTIONAL_ENTRY_SIZE} bytes
+  * of the tables' capacity.
+  */
+ static final class DirectionalTable
  {
-  public void createOverlay(long pos, long lastPos, long otherOffset,
-    long length, long intEnd, DeltaSource _source, CommonFragment topFragment)
-    throws IOException, DeltaFormatException
+  static DirectionalTable merge(DirectionalTable first, DirectionalTable second)
   {
-   DirectionalDeltaSource source = (DirectionalDeltaSource)_source;
-   // Skip overlayed data 
-   long toSkip = topFragment.oldOffset - lastPos;
-   for (long skip = toSkip; 0L < skip;)
+   DirectionalTable merged = new DirectionalTable(first.count + second.count);
+   int i = 0, j = 0;
+   while (first.count > i || second.count > j)
    {
-    int skipped = source.skipBytes(Integer.MAX_VALUE < skip ? Integer.MAX_VALUE : (int)skip);
-    if (0 < skipped)
-     skip -= skipped;
-    else if (0 >= source.read(new byte[1]))
-     throw new DeltaFormatException("Directional fragment " + source.getFragmentNumber()
-   + " with stated length " + length + " allowed to skip no more than "
-   + (toSkip - skip) + " byte(s)");
+    DirectionalTable from;
+    int index;
+    if (second.count <= j || first.count > i && first.offsets[i] <= second.offsets[j])
+    {
+     from = first;
+     index = i++;
+    }
     else
-     skip--;
+    {
+     from = second;
+     index = j++;
+    }
+    int at = merged.count++;
+    merged.offsets[at] = from.offsets[index];
+    merged.positions[at] = from.positions[index];
+    merged.lengths[at] = from.lengths[index];
    }
-   // Read the intersection data
-   long offset = topFragment.offset;
-   byte[] buf = new byte[(int)(intEnd - topFragment.oldOffset)];
-   DirectionalFragment fragment = addFragment(length, toSkip, offset, source, buf);
-   for (
-    CommonFragment updated = commonCursor.next();
-    updated.previousDirectional == topFragment.previousDirectional;
-    updated = updated.next())
-    	updated.previousDirectional = fragment;
-  }
-
-  public void createFragment(long pos, long otherOffset, long length, DeltaSource _source)
-  	throws IOException, DeltaFormatException
-  {
-   DirectionalDeltaSource source = (DirectionalDeltaSource) _source;
-   long offset = source.getOffset();
-   byte[] buf = new byte[(int)length];
-   addFragment(length, -1L, offset, source, buf);
+   return merged;
   }
 
-  private DirectionalFragment addFragment(long length,
-    long toSkip, long offset, DirectionalDeltaSource source, byte[] buf)
-    throws IOException, DeltaFormatException
+  void add(long offset, long position, int length)
   {
-   for (int at = 0; buf.length > at;)
+   if (offsets.length == count)
    {
-    int read = source.read(buf, at, buf.length - at);
-    if (0 >= read)
-    {
-      throw new DeltaFormatException("Directional fragment " + source.getFragmentNumber()
-       + " with stated length " + length + " allowed to read no more than "
-       + at + " byte(s)" + (0 > toSkip ? "" : " at position " + toSkip));
-    }
-    at += read;
+    int capacity = grow(count);
+    offsets = Arrays.copyOf(offsets, capacity);
+    positions = Arrays.copyOf(positions, capacity);
+    lengths = Arrays.copyOf(lengths, capacity);
    }
-   // Create a directional fragment and replace the common fragment
-   DirectionalFragment fragment = new DirectionalFragment(offset, buf);
-   forwardCursor.add(fragment);
-   if (0 <= forwardCount)
-    forwardCount++;
-   if (0 <= dataSize)
-    dataSize += length;
-   forwardCursor = fragment;
-   return fragment;
+   offsets[count] = offset;
+   positions[count] = position;
+   lengths[count] = length;
+   count++;
   }
- };
- 
- private final FragmentFactory commonFactory = new FragmentFactory()
- {
-  public void createOverlay(long pos, long lastPos, long otherOffset,
-    long length, long intEnd, DeltaSource source, CommonFragment topFragment)
-    throws IOException, DeltaFormatException
+
+  int capacity()
   {
-   add(
-    new CommonFragment(otherOffset + topFragment.oldOffset - pos,
-      topFragment.offset,
-      intEnd - topFragment.oldOffset,
-      forwardCursor)
-   );
+   return offsets.length;
   }
 
-  public void createFragment(long pos, long otherOffset, long length, DeltaSource source)
+  String describe(int index)
   {
-   add(
-    new CommonFragment(otherOffset, pos, length, forwardCursor)
-   );
+   return "directional fragment at " + offsets[index] + " with length " + lengths[index]
+   	+ " stored at " + positions[index];
   }
 
-  private void add(CommonFragment fragment)
+  DirectionalTable(int capacity)
   {
-   commonCursor.add(fragment);
-   if (0 <= commonCount)
-    commonCount++;
-   commonCursor = fragment;
+   offsets = new long[capacity];
+   positions = new long[capacity];
+   lengths = new int[capacity];
   }
- };
-
- final DirectionalFragment forward = new DirectionalFragment(-1L, null);
- final CommonFragment common = new CommonFragment(-1L, -1L, 0L, null);
- private DirectionalFragment forwardCursor;
- private CommonFragment commonCursor;
- private int commonCount, forwardCount;
- private long dataSize;
+
+  long[] offsets, positions;
+  int[] lengths;
+  int count;
+ }
+
+ static final int DIRECTIONAL_ENTRY_SIZE = 2 * 8 + 4;
+
+ private static int grow(int capacity)
+ {
+  int grown = capacity + (capacity >> 1) + 16;
+  if (0 > grown)
+   throw new OutOfMemoryError("Too many fragments in a cumulative delta: " + capacity);
+  return grown;
+ }
+
+ CommonTable common = new CommonTable(0);
+ DirectionalTable forward = new DirectionalTable(0);
+ private final ByteSpool data;
+ private byte[] buffer;
  private boolean empty = true;
+ private boolean moves;
 }
@@ -71,5 +71,15 @@ public abstract class Delta
 
  public static final PositiveLongContainer TERMINATOR = new PositiveLongContainer.Marker(0);
 
+ /**
+  * Bit that is set in the magic number of a common delta with
+  * moved fragments. Fragments of such delta follow in the order
+  * of their offsets in the modified image, but their offsets in
+  * the original image may go back. Regions of either image covered
+  * by the fragments still do not overlap.
+  * @see CommonDeltaWriter#setMovesAllowed(boolean)
+  */
+ public static final int MOVES_FLAG = 0x08;
+
  private Type type;
 }
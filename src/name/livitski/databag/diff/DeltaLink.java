@@ -30,7 +30,10 @@ public class DeltaLink implements EffectiveDelta
 {
  /**
   * Creates a link by reading delta information from two
-  * {@link ByteSource byte sources}.
+  * {@link ByteSource byte sources}. If the common delta contains
+  * {@link CommonDeltaWriter#setMovesAllowed(boolean) moved fragments}
+  * and the link is directed backwards, those fragments are
+  * {@link SortedCommonDelta sorted} in the order of the original image.
   * @return new link object
   */
  public static DeltaLink read(ByteSource commonSource, ByteSource directionalSource)
@@ -42,7 +45,11 @@ public class DeltaLink implements EffectiveDelta
   DeltaReader directional = DeltaReader.readSource(directionalSource);
   if (!(directional instanceof DirectionalDeltaSource))
    throw new DeltaFormatException("Expected forward or reverse delta source, got " + directional);
-  DeltaLink link = new DeltaLink((CommonDeltaSource)common, (DirectionalDeltaSource)directional);
+  CommonDeltaSource fragments = (CommonDeltaSource)common;
+  // moved fragments are stored in the order of the modified image
+  if (((CommonDeltaReader)common).isMovesAllowed() && Delta.Type.REVERSE == directional.getType())
+   fragments = new SortedCommonDelta(fragments, Delta.Type.REVERSE);
+  DeltaLink link = new DeltaLink(fragments, (DirectionalDeltaSource)directional);
   return link;
  }
 
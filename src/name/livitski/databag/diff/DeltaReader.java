@@ -40,9 +40,11 @@ public abstract class DeltaReader extends Delta
 	throws IOException, DeltaFormatException
  {
   byte magic = in.readByte();
+  if ((byte)(Type.COMMON.getMagicNumber() | MOVES_FLAG) == magic)
+   return new CommonDeltaReader(in, true);
   Type type = Type.magic(magic);
   if (Type.COMMON == type)
-   return new CommonDeltaReader(in);
+   return new CommonDeltaReader(in, false);
   else
    return new DirectionalDeltaReader(type, in);
  }
@@ -65,11 +65,19 @@ public abstract class DeltaWriter extends Delta
  {
   if (headerWritten)
    return;
-  out.writeByte(getType().getMagicNumber());
+  out.writeByte(magicNumber());
   written(1);
   headerWritten = true;
  }
 
+ /**
+  * Returns the magic number that starts this delta.
+  */
+ protected int magicNumber()
+ {
+  return getType().getMagicNumber();
+ }
+
  protected void written(int incr)
  {
   size += incr;
@@ -21,6 +21,7 @@ package name.livitski.databag.diff;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import name.livitski.databag.diff.Delta.Type;
 
@@ -405,26 +406,51 @@ public class Differencer
   */
  // TODO: scan both forward and backward to reduce chance of footprint blocking
  // (requires returning start position offset along with match size)
- private static long match(RepeatableByteSource s1, RepeatableByteSource s2, long limit)
+ static long match(RepeatableByteSource s1, RepeatableByteSource s2, long limit)
  	throws IOException
  {
   long count = 0;
-  while (s1.hasData() && s2.hasData() && count < limit)
+  while (count < limit)
   {
-   byte b = s1.readByte();
-   byte b2 = s2.readByte();
-   if (b2 == b)
-    count++;
-   else
-   {
-    s1.pushback(b);
-    s2.pushback(b2);
+   ByteBuffer region1 = s1.getAvailableRegion();
+   ByteBuffer region2 = s2.getAvailableRegion();
+   int length = region1.remaining();
+   if (region2.remaining() < length)
+    length = region2.remaining();
+   if (limit - count < length)
+    length = (int)(limit - count);
+   if (0 == length)
+    break;
+   int same = mismatch(region1, region2, length);
+   s1.skipBytes(same);
+   s2.skipBytes(same);
+   count += same;
+   if (same < length)
     break;
-   }
   }
   return count;
  }
 
+ /**
+  * Returns the length of the common prefix of data remaining
+  * in two buffers, comparing no more than <code>length</code> bytes.
+  * Both heap buffers, such as {@link ByteInputStream} regions, and
+  * {@link MappedByteSource mapped files} are compared eight bytes
+  * at a time until the first difference is found, then byte by byte
+  * to locate it. Neither buffer's position changes.
+  */
+ private static int mismatch(ByteBuffer b1, ByteBuffer b2, int length)
+ {
+  int i = 0;
+  int p1 = b1.position(), p2 = b2.position();
+  for (int words = length - 7; i < words; i += 8)
+   if (b1.getLong(p1 + i) != b2.getLong(p2 + i))
+    break;
+  while (i < length && b1.get(p1 + i) == b2.get(p2 + i))
+   i++;
+  return i;
+ }
+
  /**
   * Returns current limit on the total size of generated deltas.
   * @see #setSizeLimit(long)
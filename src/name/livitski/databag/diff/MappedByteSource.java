@@ -0,0 +1,443 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.diff;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * Implements {@link SeekableByteSource} over a memory-mapped file.
+ * Unlike {@link ByteInputStream}, this class does not copy data into
+ * a buffer on the heap. Files are mapped in windows of limited size,
+ * so that files larger than 2 GB can be processed. To keep results
+ * of differencing operations identical to those obtained with a
+ * {@link ByteInputStream}, this source enforces the same mark limit
+ * as a {@link ByteInputStream} with the same buffer size would.
+ * If the file is truncated while it is mapped, reading the missing
+ * data makes the JVM throw an {@link InternalError}. Methods of this
+ * class report such errors as {@link IOException}s when they catch
+ * them, but compiled code may receive the error after the read has
+ * returned. Callers should therefore also catch it around the entire
+ * processing of a mapped file, and may convert it with
+ * {@link #truncated(InternalError)}.
+ * This class is not thread-safe.
+ */
+public class MappedByteSource implements SeekableByteSource, Closeable
+{
+ /**
+  * Creates a source that reads a file opened by the caller.
+  * The caller remains responsible for closing the channel,
+  * but must not do that before this source is {@link #close() closed}.
+  * @param channel the channel to read data from, starting at
+  * the beginning of the file
+  * @param bufferSize the size of a {@link ByteInputStream} buffer
+  * that would have the same mark limit as this source, the
+  * actual mark limit is two bytes less
+  * @param windowSize the maximum size of a mapped region of the file,
+  * must be greater than the mark limit
+  * @throws IOException if there is an error querying the file size
+  */
+ public MappedByteSource(FileChannel channel, int bufferSize, int windowSize)
+ 	throws IOException
+ {
+  if (3 > bufferSize)
+   throw new IllegalArgumentException("Buffer size to small: " + bufferSize);
+  if (bufferSize > windowSize)
+   throw new IllegalArgumentException("Window size " + windowSize
+     + " cannot be less than the buffer size " + bufferSize);
+  this.channel = channel;
+  this.size = channel.size();
+  this.markLimit = bufferSize - 2;
+  this.windowSize = windowSize;
+ }
+
+ /**
+  * Creates a source that reads a file opened by the caller
+  * using the {@link #DEFAULT_WINDOW_SIZE default window size}.
+  * @see #MappedByteSource(FileChannel, int, int)
+  */
+ public MappedByteSource(FileChannel channel, int bufferSize)
+ 	throws IOException
+ {
+  this(channel, bufferSize,
+    DEFAULT_WINDOW_SIZE < bufferSize ? bufferSize : DEFAULT_WINDOW_SIZE);
+ }
+
+ /**
+  * Opens a file and creates a source that reads it. The file
+  * is closed when this source is {@link #close() closed}, or
+  * right away if the source cannot be created.
+  * @see #MappedByteSource(FileChannel, int, int)
+  */
+ public static MappedByteSource open(File file, int bufferSize)
+ 	throws IOException
+ {
+  FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+  MappedByteSource source = null;
+  try
+  {
+   source = new MappedByteSource(channel, bufferSize);
+   source.ownChannel = true;
+   return source;
+  }
+  finally
+  {
+   if (null == source)
+    channel.close();
+  }
+ }
+
+ /**
+  * Makes this source compute a digest of the file's contents as
+  * they are read. Must be called before any data is read.
+  * Call {@link #finishDigest()} when done reading to complete
+  * the digest.
+  * @param digest the object that receives data read from the file
+  */
+ public void setDigest(MessageDigest digest)
+ {
+  if (0L < highWater)
+   throw new IllegalStateException("Cannot set digest after reading from " + this);
+  this.digest = digest;
+ }
+
+ /**
+  * Passes the remaining contents of the file to the
+  * {@link #setDigest digest object}, if any.
+  * Does not change the current position within this source.
+  * @throws IOException if there is an error reading the file
+  */
+ public void finishDigest()
+ 	throws IOException
+ {
+  checkOpen();
+  digestUpTo(size);
+ }
+
+ /**
+  * Returns the size of the underlying file at the time
+  * this source was created.
+  */
+ public long getSize()
+ {
+  return size;
+ }
+
+ /**
+  * Returns the offset of the next byte to be read from the file.
+  */
+ public long getPosition()
+ {
+  return position;
+ }
+
+ /**
+  * Moves the read position within the file. Positioning
+  * the source does not affect {@link #setDigest digest computation},
+  * which always proceeds in the file order.
+  */
+ public void seek(long position) throws IOException
+ {
+  if (0L > position || size < position)
+   throw new IndexOutOfBoundsException("Position " + position
+     + " is out of range for a file of " + size + " byte(s)");
+  checkOpen();
+  this.position = position;
+  mark = -1L;
+ }
+
+ public boolean hasData() throws IOException
+ {
+  checkOpen();
+  return size > position;
+ }
+
+ public byte readByte() throws IOException
+ {
+  checkOpen();
+  if (size <= position)
+   throw new EOFException();
+  mapWindow();
+  byte read;
+  try
+  {
+   read = window.get((int)(position - windowStart));
+  }
+  catch (InternalError fault)
+  {
+   throw truncated(fault);
+  }
+  advance(1);
+  return read;
+ }
+
+ /**
+  * This implementation moves the read position back by one byte,
+  * assuming that the argument is the byte that has just been read.
+  * Since the data is re-read from the file, there is no limit
+  * on the number of bytes pushed back other than the beginning
+  * of the file.
+  */
+ public void pushback(byte val) throws IOException
+ {
+  checkOpen();
+  if (0L == position)
+   throw new IOException("Cannot push back a byte at the beginning of file");
+  position--;
+ }
+
+ public int read(byte[] buf) throws IOException
+ {
+  return read(buf, 0, buf.length);
+ }
+
+ public int read(byte[] buf, int offset, int length) throws IOException
+ {
+  if (0 > length)
+   throw new IndexOutOfBoundsException(Integer.toString(length));
+  checkOpen();
+  if (0 == length)
+   return 0;
+  else if (size <= position)
+   return -1;
+  int total = 0;
+  while (total < length && size > position)
+  {
+   mapWindow();
+   ByteBuffer slice = window.duplicate();
+   slice.position((int)(position - windowStart));
+   int count = slice.remaining();
+   if (length - total < count)
+    count = length - total;
+   try
+   {
+    slice.get(buf, offset + total, count);
+   }
+   catch (InternalError fault)
+   {
+    throw truncated(fault);
+   }
+   advance(count);
+   total += count;
+  }
+  return total;
+ }
+
+ /**
+  * Returns a view of the mapped region of the file starting
+  * at the current position.
+  */
+ public ByteBuffer getAvailableRegion() throws IOException
+ {
+  checkOpen();
+  if (size <= position)
+   return ByteBuffer.allocate(0);
+  mapWindow();
+  ByteBuffer region = window.duplicate();
+  region.position((int)(position - windowStart));
+  return region;
+ }
+
+ public int skipBytes(int count) throws IOException
+ {
+  if (0 > count)
+   throw new IndexOutOfBoundsException(Integer.toString(count));
+  checkOpen();
+  long remaining = size - position;
+  if (remaining < count)
+   count = (int)remaining;
+  position += count;
+  return count;
+ }
+
+ /**
+  * Current implementation does not honor the actual
+  * value of the argument, using the mark limit set
+  * by the constructor instead.
+  * @param readlimit must not exceed <code>bufferSize - 2</code>
+  */
+ public void mark(int readlimit)
+ {
+  if (markLimit < readlimit)
+   throw new UnsupportedOperationException(
+     "Mark limit " + readlimit + " exceeds the maximum for this source " + markLimit);
+  mark = position;
+ }
+
+ public void reset() throws IOException
+ {
+  checkOpen();
+  if (0 > getReadLimit())
+   throw new IOException("This source has no valid mark");
+  position = mark;
+  mark = -1L;
+ }
+
+ public int getReadLimit()
+ {
+  if (0L > mark)
+   return -1;
+  long free = markLimit - (position - mark);
+  if (0L > free)
+  {
+   mark = -1L;
+   return -1;
+  }
+  return free > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int)free;
+ }
+
+ /**
+  * Releases the mapped region of the file and closes the file
+  * if it has been opened by this object.
+  */
+ public void close() throws IOException
+ {
+  window = null;
+  mark = -1L;
+  if (null != channel)
+  {
+   FileChannel channel = this.channel;
+   this.channel = null;
+   if (ownChannel)
+    channel.close();
+  }
+ }
+
+ @Override
+ public String toString()
+ {
+  return "mapped source of " + size + " byte(s) at position " + position;
+ }
+
+ /**
+  * Converts an error reading a mapped region of a file into an
+  * exception that reports the file as unreadable. The JVM throws
+  * such errors when the mapped file is truncated by another process.
+  * @param fault the error thrown while reading mapped data
+  * @return the exception to throw
+  */
+ public static IOException truncated(InternalError fault)
+ {
+  return (IOException)new IOException("Mapped file could not be read, it may have been truncated")
+  	.initCause(fault);
+ }
+
+ /**
+  * The default limit on the size of a mapped region of the file.
+  */
+ public static final int DEFAULT_WINDOW_SIZE = 1 << 26;
+
+ /**
+  * Makes sure that the byte at current position is mapped. When
+  * mapping a new region, attempts to retain the marked byte and one
+  * byte before the current position within that region.
+  */
+ private void mapWindow()
+ 	throws IOException
+ {
+  if (null != window && windowStart <= position && windowStart + window.limit() > position)
+   return;
+  long start = 0L < position ? position - 1 : 0L;
+  if (0 <= getReadLimit() && mark < start)
+   start = mark;
+  digestUpTo(start);
+  window = null;
+  long length = size - start;
+  if (windowSize < length)
+   length = windowSize;
+  window = map(start, length);
+  windowStart = start;
+ }
+
+ private MappedByteBuffer map(long start, long length)
+ 	throws IOException
+ {
+  return channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+ }
+
+ private void advance(int count)
+ {
+  position += count;
+  if (highWater < position)
+   highWater = position;
+ }
+
+ /**
+  * Passes the file contents up to a position to the digest object.
+  */
+ private void digestUpTo(long end)
+ 	throws IOException
+ {
+  if (null == digest)
+   return;
+  while (digested < end)
+  {
+   ByteBuffer slice;
+   long sliceStart;
+   if (null != window && windowStart <= digested && windowStart + window.limit() > digested)
+   {
+    slice = window.duplicate();
+    sliceStart = windowStart;
+   }
+   else
+   {
+    long length = end - digested;
+    if (windowSize < length)
+     length = windowSize;
+    slice = map(digested, length);
+    sliceStart = digested;
+   }
+   slice.position((int)(digested - sliceStart));
+   if (end - sliceStart < slice.limit())
+    slice.limit((int)(end - sliceStart));
+   digested += slice.remaining();
+   try
+   {
+    digest.update(slice);
+   }
+   catch (InternalError fault)
+   {
+    throw truncated(fault);
+   }
+  }
+ }
+
+ private void checkOpen() throws IOException
+ {
+  if (null == channel)
+   throw new IOException("Source is closed");
+ }
+
+ private FileChannel channel;
+ private boolean ownChannel;
+ private final long size;
+ private final int markLimit, windowSize;
+ private MappedByteBuffer window;
+ private long windowStart, position, highWater, digested;
+ private long mark = -1L;
+ private MessageDigest digest;
+}
@@ -21,6 +21,7 @@ package name.livitski.databag.diff;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Defines a byte source that can repeat parts of
@@ -66,4 +67,22 @@ public interface RepeatableByteSource extends ByteSource
   * read limit has been exceeded. 
   */
  int getReadLimit();
+ 
+ /**
+  * Exposes a contiguous region of data that follows the current
+  * position of this source, so that callers can examine it in bulk
+  * rather than one byte at a time. The buffer's
+  * {@link ByteBuffer#position() position} points at the next byte
+  * to be read from this source, its {@link ByteBuffer#limit() limit}
+  * is at the end of data that can be examined without reading
+  * the underlying medium. Operations on the buffer do not affect the
+  * position of this source: callers should {@link #skipBytes(int) skip}
+  * the bytes they consume. The buffer must not be modified and becomes
+  * invalid after any other operation on this source.
+  * @return a buffer with data following the current position, which
+  * has no bytes {@link ByteBuffer#remaining() remaining} only when
+  * this source has no more data
+  * @throws IOException if there is an error reading data
+  */
+ ByteBuffer getAvailableRegion() throws IOException;
 }
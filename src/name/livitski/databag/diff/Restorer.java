@@ -98,11 +98,22 @@ public class Restorer
       long from = direction == Delta.Type.FORWARD
       	? common.getReverseOffset()
       	: common.getForwardOffset();
+      // go directly to the fragment if the source allows that
+      if (srcpos != from && source instanceof SeekableByteSource)
+      {
+       SeekableByteSource seekable = (SeekableByteSource)source;
+       if (seekable.getSize() < from)
+        throw new DeltaFormatException(
+ 	 "No data in source image for common fragment " + common.getFragmentNumber()
+ 	 + " starting at " + from + ", image ends at " + seekable.getSize());
+       seekable.seek(from);
+       srcpos = from;
+      }
       // fail if already been there
-      if (srcpos > from)
+      else if (srcpos > from)
        throw new DeltaFormatException(
  	 "Common fragment " + common.getFragmentNumber() + " overlaps with previous common fragment at positions "
- 	 + from + " to " + srcpos);
+ 	 + from + " to " + srcpos + ", a seekable source is required to apply moved fragments");
       // move forward if the fragment is ahead
       while (srcpos < from)
       {
@@ -175,6 +186,8 @@ public class Restorer
 
  /**
   * Specifies the source of different version's image to use as restoration base.
+  * Deltas with {@link CommonDeltaWriter#setMovesAllowed(boolean) moved fragments}
+  * can only be applied to a {@link SeekableByteSource}.
   * @see #setDelta
   * @see #restore(ByteSink) 
   */
@@ -0,0 +1,50 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.diff;
+
+import java.io.IOException;
+
+/**
+ * A {@link RepeatableByteSource} of known size that can be
+ * positioned at an arbitrary offset, such as a file.
+ */
+public interface SeekableByteSource extends RepeatableByteSource
+{
+ /**
+  * Returns the number of bytes in this source.
+  */
+ long getSize();
+
+ /**
+  * Returns the offset of the next byte to be read from this source.
+  */
+ long getPosition();
+
+ /**
+  * Moves the read position of this source. Any mark set
+  * on this source is discarded.
+  * @param position offset of the next byte to be read,
+  * may be equal to the {@link #getSize() size} of this source
+  * @throws IOException if there is an error accessing the data
+  * @throws IndexOutOfBoundsException if the argument is negative
+  * or exceeds the size of this source
+  */
+ void seek(long position) throws IOException;
+}
@@ -0,0 +1,124 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.diff;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Presents the fragments of a common delta in the order of their
+ * offsets in either image. Used to apply a common delta with
+ * {@link CommonDeltaWriter#setMovesAllowed(boolean) moved fragments}
+ * in the reverse direction. All fragments are read into memory
+ * when this object is created.
+ */
+public class SortedCommonDelta implements CommonDeltaSource
+{
+ /**
+  * Reads all fragments of a common delta and sorts them.
+  * @param source the common delta to read from
+  * @param order selects the image whose offsets determine the order
+  * of fragments: {@link Delta.Type#FORWARD} or {@link Delta.Type#REVERSE}
+  * @throws IOException if there is an error reading the source
+  * @throws DeltaFormatException if the source contains invalid data
+  */
+ public SortedCommonDelta(CommonDeltaSource source, Delta.Type order)
+ 	throws IOException, DeltaFormatException
+ {
+  if (Delta.Type.COMMON == order)
+   throw new IllegalArgumentException("Fragments cannot be sorted in order of " + order + " offsets");
+  this.order = order;
+  while (source.nextFragment())
+   fragments.add(new Fragment(source.getReverseOffset(), source.getForwardOffset(), source.getLength()));
+  Collections.sort(fragments);
+ }
+
+ public Delta.Type getType()
+ {
+  return Delta.Type.COMMON;
+ }
+
+ public boolean nextFragment()
+ {
+  if (fragments.size() <= number)
+   return false;
+  current = fragments.get(number++);
+  return true;
+ }
+
+ public int getFragmentNumber()
+ {
+  return number;
+ }
+
+ public long getOffset(Delta.Type type)
+ {
+  switch (type)
+  {
+  case FORWARD:
+   return getForwardOffset();
+  case REVERSE:
+   return getReverseOffset();
+  default:
+   throw new IllegalArgumentException(String.valueOf(type));
+  }
+ }
+
+ public long getForwardOffset()
+ {
+  return current.forwardOffset;
+ }
+
+ public long getReverseOffset()
+ {
+  return current.reverseOffset;
+ }
+
+ public long getLength()
+ {
+  return current.length;
+ }
+
+ private class Fragment implements Comparable<Fragment>
+ {
+  public int compareTo(Fragment other)
+  {
+   long key = Delta.Type.FORWARD == order ? forwardOffset : reverseOffset;
+   long otherKey = Delta.Type.FORWARD == order ? other.forwardOffset : other.reverseOffset;
+   return key < otherKey ? -1 : key == otherKey ? 0 : 1;
+  }
+
+  Fragment(long reverseOffset, long forwardOffset, long length)
+  {
+   this.reverseOffset = reverseOffset;
+   this.forwardOffset = forwardOffset;
+   this.length = length;
+  }
+
+  final long reverseOffset, forwardOffset, length;
+ }
+
+ private final Delta.Type order;
+ private final List<Fragment> fragments = new ArrayList<Fragment>();
+ private Fragment current;
+ private int number;
+}
@@ -0,0 +1,143 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.app.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Implements the {@link DirectoryScanner} with the file attribute API
+ * of Java 7. Reads the attributes of each directory entry in a single
+ * query as it lists the directory, and tells links to ancestor
+ * directories by their file keys rather than canonical paths.
+ * Falls back to the superclass for entries whose attributes
+ * cannot be read, such as broken links, and for file systems that
+ * do not provide file keys. Requires Java 7 or newer.
+ * @see DirectoryScanner#newInstance(File)
+ */
+public class FileAttributeScanner extends DirectoryScanner
+{
+ /**
+  * Creates a scanner that enumerates descendant files
+  * of a directory. 
+  * @param root the root directory of a replica to scan or
+  * <code>null</code> to create a dummy scanner that never finds
+  * files
+  */
+ public FileAttributeScanner(File root)
+ {
+  super(root);
+ }
+
+ @Override
+ protected Entry describe(File file)
+ 	throws IOException
+ {
+  Entry entry = readEntry(file.toPath());
+  return null == entry ? super.describe(file) : entry;
+ }
+
+ @Override
+ protected List<Entry> list(File dir)
+ 	throws IOException
+ {
+  List<Entry> list = new ArrayList<Entry>();
+  DirectoryStream<Path> stream;
+  try
+  {
+   stream = Files.newDirectoryStream(dir.toPath());
+  }
+  catch (IOException unreadable)
+  {
+   return null;
+  }
+  try
+  {
+   for (Path path : stream)
+   {
+    Entry entry = readEntry(path);
+    if (null == entry)
+    {
+     File file = path.toFile();
+     entry = new Entry(file, file.isDirectory());
+    }
+    list.add(entry);
+   }
+  }
+  catch (DirectoryIteratorException unreadable)
+  {
+   return null;
+  }
+  finally
+  {
+   stream.close();
+  }
+  return list;
+ }
+
+ /**
+  * Reads the attributes of a file, following links.
+  * @return the entry with the attributes or <code>null</code>
+  * if they cannot be read
+  */
+ private Entry readEntry(Path path)
+ {
+  try
+  {
+   return new AttributeEntry(path.toFile(), Files.readAttributes(path, BasicFileAttributes.class));
+  }
+  catch (IOException unreadable)
+  {
+   return null;
+  }
+ }
+
+ private static class AttributeEntry extends Entry
+ {
+  @Override
+  public Object directoryKey()
+  	throws IOException
+  {
+   Object key = attributes.fileKey();
+   return null == key ? super.directoryKey() : key;
+  }
+
+  @Override
+  public LocalFileInfo snapshot()
+  {
+   return new LocalFileInfo(getFile(), attributes.size(), attributes.lastModifiedTime().toMillis());
+  }
+
+  AttributeEntry(File file, BasicFileAttributes attributes)
+  {
+   super(file, attributes.isDirectory());
+   this.attributes = attributes;
+  }
+
+  private final BasicFileAttributes attributes;
+ }
+}
@@ -0,0 +1,182 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.app.sync;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Implements the {@link ReplicaWatcher} with a
+ * {@link WatchService} of the default file system. Each directory
+ * of the watched tree is registered with the service, and
+ * directories created later are registered as they are reported.
+ * Changes within a directory created between its parent's
+ * notification and its registration are covered by reporting
+ * the new directory itself, which the caller synchronizes along
+ * with its contents. Requires Java 7 or newer.
+ */
+public class WatchServiceWatcher extends ReplicaWatcher
+{
+ @Override
+ public void watch(File root)
+ 	throws IOException
+ {
+  if (null != service)
+   throw new IllegalStateException("Already watching " + this.root);
+  this.root = root.toPath();
+  service = this.root.getFileSystem().newWatchService();
+  register(this.root);
+ }
+
+ @Override
+ public Set<File> awaitChanges(long timeout, long quietPeriod)
+ 	throws IOException, InterruptedException
+ {
+  if (null == service)
+   throw new IllegalStateException("Not watching any directory");
+  Set<File> changes = new LinkedHashSet<File>();
+  boolean complete = true;
+  WatchKey key = service.poll(timeout, TimeUnit.MILLISECONDS);
+  // limit the delay of a batch when changes keep coming
+  long batchEnd = System.currentTimeMillis() + quietPeriod * MAX_BATCH_PERIODS;
+  while (null != key)
+  {
+   if (!collect(key, changes))
+    complete = false;
+   long wait = Math.min(quietPeriod, batchEnd - System.currentTimeMillis());
+   if (0L >= wait)
+    break;
+   key = service.poll(wait, TimeUnit.MILLISECONDS);
+  }
+  if (!complete)
+  {
+   log().fine("Change notifications have been lost in " + root);
+   return null;
+  }
+  return changes;
+ }
+
+ public void close()
+ 	throws IOException
+ {
+  if (null != service)
+  {
+   service.close();
+   keys.clear();
+  }
+ }
+
+ /**
+  * Adds the locations of changes signalled by a key to a batch and
+  * registers the newly created directories.
+  * @return <code>false</code> if some of the notifications have been
+  * lost
+  */
+ protected boolean collect(WatchKey key, Set<File> changes)
+ 	throws IOException
+ {
+  boolean complete = true;
+  Path dir = keys.get(key);
+  for (WatchEvent<?> event : key.pollEvents())
+  {
+   if (OVERFLOW == event.kind())
+    complete = false;
+   else if (null != dir)
+   {
+    Path child = dir.resolve((Path)event.context());
+    changes.add(root.relativize(child).toFile());
+    if (ENTRY_CREATE == event.kind() && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS))
+     register(child);
+   }
+  }
+  // keys of deleted directories become invalid
+  if (!key.reset())
+   keys.remove(key);
+  return complete;
+ }
+
+ /**
+  * Registers a directory and its subdirectories with the watch
+  * service. Directories that cannot be registered are skipped with
+  * a warning, since the changes within them will be found by
+  * rescanning the replica.
+  */
+ protected void register(Path start)
+ 	throws IOException
+ {
+  Files.walkFileTree(start, EnumSet.noneOf(FileVisitOption.class), Integer.MAX_VALUE,
+    new SimpleFileVisitor<Path>()
+    {
+     @Override
+     public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+     {
+      try
+      {
+       keys.put(dir.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+       return FileVisitResult.CONTINUE;
+      }
+      catch (IOException e)
+      {
+       log().log(Level.WARNING, "Could not watch directory " + dir + ": " + e.getMessage(), e);
+       return FileVisitResult.SKIP_SUBTREE;
+      }
+     }
+
+     @Override
+     public FileVisitResult visitFileFailed(Path file, IOException e)
+     {
+      // the entry may have been deleted since it was listed
+      log().log(Level.FINE, "Could not access " + file, e);
+      return FileVisitResult.CONTINUE;
+     }
+    });
+ }
+
+ /**
+  * Maximum duration of a batch of changes, in quiet periods.
+  */
+ protected static final int MAX_BATCH_PERIODS = 10;
+
+ private Path root;
+ private WatchService service;
+ private final Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+}
@@ -0,0 +1,174 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.app.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the results of {@link PathMatcher} and
+ * {@link CompositePathFilter} with straightforward evaluation
+ * of their patterns.
+ */
+public class PathFilterTest
+{
+ @Test
+ public void testPathMatcher()
+ {
+  Random random = new Random(SEED);
+  for (int i = 0; i < ROUNDS; i++)
+  {
+   boolean caseSensitive = random.nextBoolean();
+   String[] pattern = randomPath(random, PATTERN_ELEMENTS);
+   PathMatcher matcher = new PathMatcher(join(pattern), caseSensitive);
+   for (int j = 0; j < PATHS_PER_ROUND; j++)
+   {
+    String[] path = randomPath(random, NAMES);
+    assertEquals(matcher + " matching " + join(path),
+      matches(pattern, 0, path, 0, caseSensitive), matcher.pathMatches(path));
+   }
+  }
+ }
+
+ @Test
+ public void testCompositeFilter()
+ {
+  Random random = new Random(SEED);
+  for (int i = 0; i < ROUNDS; i++)
+  {
+   CompositePathFilter.Operator type = random.nextBoolean()
+     ? CompositePathFilter.Operator.AND : CompositePathFilter.Operator.OR;
+   boolean inverted = random.nextBoolean();
+   CompositePathFilter filter = new CompositePathFilter(type, inverted);
+   List<PathMatcher> elements = new ArrayList<PathMatcher>();
+   for (int count = random.nextInt(6); 0 < count; count--)
+   {
+    PathMatcher element = new PathMatcher(join(randomPath(random, PATTERN_ELEMENTS)), random.nextBoolean());
+    elements.add(element);
+    filter.addElement(element);
+   }
+   for (int j = 0; j < PATHS_PER_ROUND; j++)
+   {
+    String[] path = randomPath(random, NAMES);
+    boolean expected = type.getStartValue();
+    for (PathMatcher element : elements)
+     expected = type.evaluate(expected, element.pathMatches(path));
+    assertEquals(type + " filter " + elements + " matching " + join(path),
+      inverted != expected, filter.pathMatches(path));
+   }
+  }
+ }
+
+ @Test
+ public void testDescendantCoverage()
+ {
+  Random random = new Random(SEED);
+  List<String[]> descendants = new ArrayList<String[]>();
+  addDescendants(new String[0], descendants);
+  int pruned = 0;
+  for (int i = 0; i < ROUNDS / 10; i++)
+  {
+   CompositePathFilter filter = new CompositePathFilter(random.nextBoolean()
+     ? CompositePathFilter.Operator.AND : CompositePathFilter.Operator.OR, random.nextBoolean());
+   for (int count = random.nextInt(4); 0 < count; count--)
+    filter.addElement(new PathMatcher(join(randomPath(random, PATTERN_ELEMENTS)), random.nextBoolean()));
+   PathFilter[] filters = { filter, new PathMatcher(join(randomPath(random, PATTERN_ELEMENTS)), random.nextBoolean()) };
+   for (PathFilter tested : filters)
+    for (int j = 0; j < PATHS_PER_ROUND / 10; j++)
+    {
+     String[] dir = randomPath(random, NAMES);
+     PathFilter.Coverage coverage = tested.descendantCoverage(dir);
+     if (PathFilter.Coverage.NONE == coverage)
+      pruned++;
+     if (PathFilter.Coverage.SOME == coverage)
+      continue;
+     for (String[] rest : descendants)
+     {
+      String[] path = new String[dir.length + rest.length];
+      System.arraycopy(dir, 0, path, 0, dir.length);
+      System.arraycopy(rest, 0, path, dir.length, rest.length);
+      assertEquals(tested + " reported " + coverage + " for " + join(dir) + ", matching " + join(path),
+        PathFilter.Coverage.ALL == coverage, tested.pathMatches(path));
+     }
+    }
+  }
+  assertTrue("No directories pruned", 0 < pruned);
+ }
+
+ private static void addDescendants(String[] parent, List<String[]> descendants)
+ {
+  if (3 <= parent.length)
+   return;
+  for (String name : NAMES)
+  {
+   String[] path = new String[parent.length + 1];
+   System.arraycopy(parent, 0, path, 0, parent.length);
+   path[parent.length] = name;
+   descendants.add(path);
+   addDescendants(path, descendants);
+  }
+ }
+
+ private static boolean matches(String[] pattern, int p, String[] path, int s, boolean caseSensitive)
+ {
+  if (pattern.length == p)
+   return path.length == s;
+  if ("**".equals(pattern[p]))
+  {
+   for (int skip = s; skip <= path.length; skip++)
+    if (matches(pattern, p + 1, path, skip, caseSensitive))
+     return true;
+   return false;
+  }
+  return path.length > s && PathMatcher.match(pattern[p], path[s], caseSensitive)
+    && matches(pattern, p + 1, path, s + 1, caseSensitive);
+ }
+
+ private static String[] randomPath(Random random, String[] elements)
+ {
+  String[] path = new String[1 + random.nextInt(4)];
+  for (int i = 0; i < path.length; i++)
+   path[i] = elements[random.nextInt(elements.length)];
+  return path;
+ }
+
+ private static String join(String[] path)
+ {
+  StringBuilder buf = new StringBuilder();
+  for (String element : path)
+  {
+   if (0 < buf.length())
+    buf.append('/');
+   buf.append(element);
+  }
+  return buf.toString();
+ }
+
+ private static final long SEED = 20161017L;
+ private static final int ROUNDS = 2000;
+ private static final int PATHS_PER_ROUND = 50;
+ private static final String[] NAMES = { "a", "A", "b", "ab", "aB", "ba", "abc" };
+ private static final String[] PATTERN_ELEMENTS = { "a", "A", "b", "ab", "*", "**", "a*", "*b", "?", "?b", "a?c", "*B*" };
+}
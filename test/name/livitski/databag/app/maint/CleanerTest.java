@@ -0,0 +1,340 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.app.maint;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import name.livitski.databag.app.Configuration;
+import name.livitski.databag.app.filter.PathMatcher;
+import name.livitski.databag.app.sync.RestoreService;
+import name.livitski.databag.app.sync.SyncService;
+import name.livitski.databag.db.AbstractDBTest;
+import name.livitski.databag.db.Cursor;
+import name.livitski.databag.db.Manager;
+import name.livitski.databag.db.schema.FileDAO;
+import name.livitski.databag.db.schema.FileDTO;
+import name.livitski.databag.db.schema.VersionDAO;
+import name.livitski.databag.db.schema.VersionDTO;
+
+/**
+ * Tests the maintenance operations of {@link Cleaner} on a bag
+ * with a long chain of versions.
+ */
+public class CleanerTest extends AbstractDBTest
+{
+ @After
+ public void cleanUp()
+ {
+  for (int i = cleanup.size(); 0 < i--;)
+   delete(cleanup.get(i));
+  cleanup.clear();
+ }
+
+ /**
+  * Builds a chain of versions longer than the keyframe limit, then
+  * makes sure that {@link Cleaner#addKeyframes()} stores the images
+  * of the versions that bring every other version within the limit,
+  * and that all versions are restored intact afterwards.
+  */
+ @Test
+ public void testAddKeyframes()
+ 	throws Exception
+ {
+  Configuration config = new Configuration();
+  // let the chain grow beyond the limit during sync
+  config.setParameterValue(Configuration.KEYFRAME_INTERVAL, 0);
+  Random random = new Random(1L);
+  File bag = createBag(), replica = createTempDir("dbagreplica");
+  File file = new File(replica, FILE_NAME);
+  byte[] data = new byte[FILE_SIZE];
+  random.nextBytes(data);
+  List<byte[]> contents = new ArrayList<byte[]>(CHAIN_LENGTH);
+  Manager db = openBag(bag);
+  try
+  {
+   Number replicaId = new ReplicaManager(db, config)
+   	.registerNewReplica(USER, HOST, replica.getCanonicalPath());
+   long modified = System.currentTimeMillis() - CHAIN_LENGTH * 10000L;
+   for (int i = 0; CHAIN_LENGTH > i; i++)
+   {
+    if (0 < i)
+     data = insertBytes(data, random);
+    write(file, data);
+    file.setLastModified(modified += 10000L);
+    contents.add(data);
+    SyncService service = new SyncService(db, replicaId, config);
+    try
+    {
+     service.synchronize((PathMatcher)null);
+    }
+    finally
+    {
+     service.close();
+    }
+   }
+   // versions of the file, ordered by their distance from the image
+   List<VersionDTO> chain = loadChain(db);
+   assertEquals("number of versions", CHAIN_LENGTH, chain.size());
+   for (int i = 1; CHAIN_LENGTH > i; i++)
+    assertFalse("image of version at distance " + i, chain.get(i).isImageAvailable());
+   Cleaner cleaner = new Cleaner(db, config, null);
+   try
+   {
+    cleaner.setKeyframeLimit(KEYFRAME_LIMIT);
+    assertEquals("keyframes stored", KEYFRAMES.length, cleaner.addKeyframes());
+    // running again adds nothing
+    assertEquals("keyframes stored again", 0L, cleaner.addKeyframes());
+   }
+   finally
+   {
+    cleaner.close();
+   }
+   Map<Integer, VersionDTO> cleaned = loadVersions(db);
+   int next = 0;
+   for (int i = 0; CHAIN_LENGTH > i; i++)
+   {
+    boolean expected = 0 == i || KEYFRAMES.length > next && KEYFRAMES[next] == i;
+    if (0 < i && expected)
+     next++;
+    assertEquals("image of version at distance " + i,
+      expected, cleaned.get(chain.get(i).getId()).isImageAvailable());
+   }
+   // restore every version, older ones first
+   File restored = new File(createTempDir("dbagrestore"), FILE_NAME);
+   List<VersionDTO> versions = new ArrayList<VersionDTO>(chain);
+   sortById(versions);
+   RestoreService restorer = new RestoreService(db, null, config);
+   try
+   {
+    for (int i = 0; versions.size() > i; i++)
+    {
+     VersionDTO version = versions.get(i);
+     restorer.restore(version.getFileId(), version.getId(), restored);
+     assertArrayEquals("contents of version " + version.getId(), contents.get(i), read(restored));
+     restored.delete();
+    }
+   }
+   finally
+   {
+    restorer.close();
+   }
+  }
+  finally
+  {
+   db.close();
+  }
+ }
+
+ /**
+  * Loads the versions of the only file in a bag, starting with the
+  * one that has an image and following the deltas from it.
+  */
+ protected List<VersionDTO> loadChain(Manager db)
+ 	throws Exception
+ {
+  Map<Integer, VersionDTO> versions = loadVersions(db);
+  VersionDTO image = null;
+  for (VersionDTO version : versions.values())
+   if (version.isImageAvailable())
+   {
+    assertNull("more than one image of the file", image);
+    image = version;
+   }
+  assertNotNull("no image of the file", image);
+  List<VersionDTO> chain = new ArrayList<VersionDTO>(versions.size());
+  chain.add(image);
+  for (VersionDTO last = image; null != last;)
+  {
+   VersionDTO next = null;
+   for (VersionDTO version : versions.values())
+    if (!chain.contains(version)
+      && (version.getBaseVersionId() == last.getId() || last.getBaseVersionId() == version.getId()))
+    {
+     assertNull("versions branch at " + last, next);
+     next = version;
+    }
+   if (null != next)
+    chain.add(next);
+   last = next;
+  }
+  return chain;
+ }
+
+ /**
+  * Loads the versions of the only file in a bag, keyed by their
+  * identities.
+  */
+ protected Map<Integer, VersionDTO> loadVersions(Manager db)
+ 	throws Exception
+ {
+  Cursor<FileDTO> files = db.findDAO(FileDAO.class).fetchAllFiles();
+  FileDTO file;
+  try
+  {
+   file = files.next();
+   assertNotNull("no files in the bag", file);
+   assertNull("more than one file in the bag", files.next());
+  }
+  finally
+  {
+   files.close();
+  }
+  Map<Integer, VersionDTO> versions = new HashMap<Integer, VersionDTO>();
+  Cursor<VersionDTO> cursor = db.findDAO(VersionDAO.class).findVersions(file, null);
+  try
+  {
+   for (VersionDTO version; null != (version = cursor.next());)
+    versions.put(version.getId(), version);
+  }
+  finally
+  {
+   cursor.close();
+  }
+  return versions;
+ }
+
+ protected File createBag()
+ 	throws Exception
+ {
+  File location = createTempDir("dbagclean");
+  location.delete();
+  Manager db = new Manager();
+  db.setLocation(location);
+  db.create();
+  db.close();
+  return location;
+ }
+
+ protected Manager openBag(File bag)
+ 	throws Exception
+ {
+  Manager db = new Manager();
+  db.setLocation(bag);
+  db.open();
+  return db;
+ }
+
+ protected File createTempDir(String prefix)
+ 	throws IOException
+ {
+  File dir = File.createTempFile(prefix, "");
+  dir.delete();
+  cleanup.add(dir);
+  if (!dir.mkdirs())
+   throw new IOException("Could not create directory " + dir);
+  return dir;
+ }
+
+ /**
+  * Returns a copy of data with random bytes inserted at a random
+  * position.
+  */
+ protected static byte[] insertBytes(byte[] data, Random random)
+ {
+  byte[] insert = new byte[50];
+  random.nextBytes(insert);
+  int at = random.nextInt(data.length);
+  byte[] updated = new byte[data.length + insert.length];
+  System.arraycopy(data, 0, updated, 0, at);
+  System.arraycopy(insert, 0, updated, at, insert.length);
+  System.arraycopy(data, at, updated, at + insert.length, data.length - at);
+  return updated;
+ }
+
+ protected static void write(File file, byte[] data)
+ 	throws IOException
+ {
+  FileOutputStream out = new FileOutputStream(file);
+  try
+  {
+   out.write(data);
+  }
+  finally
+  {
+   out.close();
+  }
+ }
+
+ protected static byte[] read(File file)
+ 	throws IOException
+ {
+  RandomAccessFile in = new RandomAccessFile(file, "r");
+  try
+  {
+   byte[] data = new byte[(int)in.length()];
+   in.readFully(data);
+   return data;
+  }
+  finally
+  {
+   in.close();
+  }
+ }
+
+ private static void sortById(List<VersionDTO> versions)
+ {
+  Collections.sort(versions, new Comparator<VersionDTO>() {
+   public int compare(VersionDTO v1, VersionDTO v2)
+   {
+    return v1.getId() < v2.getId() ? -1 : v1.getId() == v2.getId() ? 0 : 1;
+   }
+  });
+ }
+
+ private static void delete(File file)
+ {
+  File[] entries = file.listFiles();
+  if (null != entries)
+   for (File entry : entries)
+    delete(entry);
+  file.delete();
+ }
+
+ protected static final String USER = "tester", HOST = "localhost";
+ protected static final String FILE_NAME = "chain.bin";
+ protected static final int FILE_SIZE = 30000;
+ protected static final int CHAIN_LENGTH = 20;
+ protected static final int KEYFRAME_LIMIT = 4;
+ /**
+  * Distances from the original image of the versions that
+  * {@link Cleaner#addKeyframes()} is expected to store. The farthest
+  * version, at 19, gets covered by the image at 15, which reaches
+  * down to 11. The next uncovered version, at 10, gets covered by
+  * the image at 6, which reaches down to 2.
+  */
+ protected static final int[] KEYFRAMES = { 6, 15 };
+
+ private final List<File> cleanup = new ArrayList<File>();
+}
@@ -0,0 +1,165 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+package name.livitski.databag.app.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Random;
+
+import name.livitski.databag.db.schema.FileDTO;
+import name.livitski.databag.db.schema.VersionDTO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that the {@link ImageCache} returns stored images only for
+ * the versions they were built from.
+ */
+public class ImageCacheTest
+{
+ @Test
+ public void testStoredImage()
+ 	throws Exception
+ {
+  VersionDTO version = version(DIGEST);
+  byte[] image = store(version);
+  CumulativeDeltaStats stats = new CumulativeDeltaStats();
+  InputStream cached = cache.open(version, stats);
+  assertNotNull("image not cached", cached);
+  assertTrue("cached image", Arrays.equals(image, readAll(cached)));
+  assertEquals(CHAIN_SIZE, stats.getDeltaChainSize());
+  assertEquals(CHAIN_LENGTH, stats.getDeltaChainLength());
+ }
+
+ /**
+  * Makes sure that a version that reuses the id of a purged version
+  * is not served the image of its predecessor.
+  */
+ @Test
+ public void testReusedId()
+ 	throws Exception
+ {
+  store(version(DIGEST));
+  byte[] other = DIGEST.clone();
+  other[0] ^= 1;
+  assertNull("image of a different digest", cache.open(version(other), new CumulativeDeltaStats()));
+  assertNull("discarded entry", cache.open(version(DIGEST), new CumulativeDeltaStats()));
+  store(version(DIGEST));
+  VersionDTO touched = version(DIGEST);
+  touched.setModifiedTime(new Timestamp(MODIFIED + 1000L));
+  assertNull("image of a different time", cache.open(touched, new CumulativeDeltaStats()));
+ }
+
+ @Test
+ public void testVersionRemoved()
+ 	throws Exception
+ {
+  VersionDTO version = version(DIGEST);
+  store(version);
+  cache.versionRemoved(version);
+  assertNull("image of a removed version", cache.open(version, new CumulativeDeltaStats()));
+ }
+
+ @Before
+ public void setUp()
+ 	throws IOException
+ {
+  directory = File.createTempFile("dbagcache", "");
+  directory.delete();
+  cache = new ImageCache(directory, 1L << 20);
+ }
+
+ @After
+ public void tearDown()
+ {
+  File[] entries = directory.listFiles();
+  if (null != entries)
+   for (File entry : entries)
+    entry.delete();
+  directory.delete();
+ }
+
+ private byte[] store(VersionDTO version)
+ 	throws IOException
+ {
+  byte[] image = new byte[(int)version.getSize()];
+  new Random(SEED).nextBytes(image);
+  CumulativeDeltaStats stats = new CumulativeDeltaStats();
+  stats.setDeltaChainSize(CHAIN_SIZE);
+  stats.setDeltaChainLength(CHAIN_LENGTH);
+  InputStream in = cache.store(version, stats, new ByteArrayInputStream(image));
+  readAll(in);
+  return image;
+ }
+
+ private static byte[] readAll(InputStream in)
+ 	throws IOException
+ {
+  try
+  {
+   ByteArrayOutputStream out = new ByteArrayOutputStream();
+   byte[] buf = new byte[1000];
+   for (int read; 0 <= (read = in.read(buf));)
+    out.write(buf, 0, read);
+   return out.toByteArray();
+  }
+  finally
+  {
+   in.close();
+  }
+ }
+
+ private static VersionDTO version(byte[] digest)
+ {
+  TestVersion version = new TestVersion();
+  version.setSize(SIZE);
+  version.setDigest(digest);
+  version.setModifiedTime(new Timestamp(MODIFIED));
+  return version;
+ }
+
+ private static class TestVersion extends VersionDTO
+ {
+  TestVersion()
+  {
+   super(new FileDTO());
+   setFileId(3L);
+   setId(5);
+  }
+ }
+
+ private static final long SEED = 11L;
+ private static final int SIZE = 5000;
+ private static final long MODIFIED = 1400000000000L;
+ private static final long CHAIN_SIZE = 777L;
+ private static final int CHAIN_LENGTH = 4;
+ private static final byte[] DIGEST = { 1, 2, 3, 4, 5, 6, 7, 8 };
+
+ private File directory;
+ private ImageCache cache;
+}
@@ -0,0 +1,912 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.app.sync;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeNotNull;
+import static org.junit.Assume.assumeTrue;
+
+import name.livitski.databag.app.Configuration;
+import name.livitski.databag.app.filter.FilterDefInline;
+import name.livitski.databag.app.filter.FilterFactory;
+import name.livitski.databag.app.filter.FilterSpec;
+import name.livitski.databag.app.filter.PathMatcher;
+import name.livitski.databag.app.info.ReplicaInfo;
+import name.livitski.databag.app.info.Replicas;
+import name.livitski.databag.app.maint.ReplicaManager;
+import name.livitski.databag.db.AbstractDBTest;
+import name.livitski.databag.db.Cursor;
+import name.livitski.databag.db.DBException;
+import name.livitski.databag.db.Manager;
+import name.livitski.databag.db.schema.FileDAO;
+import name.livitski.databag.db.schema.FileDTO;
+import name.livitski.databag.db.schema.NodeNameDAO;
+import name.livitski.databag.db.schema.VersionDAO;
+import name.livitski.databag.db.schema.VersionDTO;
+import name.livitski.databag.diff.ChunkingDifferencer;
+
+/**
+ * Synchronizes generated replicas with separate bags and compares
+ * the contents of those bags, or the files restored from them.
+ */
+public class SyncServiceTest extends AbstractDBTest
+{
+ @After
+ public void cleanUp()
+ {
+  for (int i = cleanup.size(); 0 < i--;)
+   delete(cleanup.get(i));
+  cleanup.clear();
+ }
+
+ /**
+  * Makes sure that reading local files on worker threads stores the
+  * same versions, digests, and deltas as reading them on a single thread.
+  */
+ @Test
+ public void testThreadsStoreSameContents()
+ 	throws Exception
+ {
+  File replica = createReplica(new Random(1L));
+  Configuration serial = new Configuration();
+  serial.setParameterValue(Configuration.SYNC_THREADS, 1);
+  serial.setParameterValue(Configuration.CHUNKING_THRESHOLD, CHUNKING_THRESHOLD);
+  Configuration parallel = new Configuration();
+  parallel.setParameterValue(Configuration.SYNC_THREADS, 4);
+  parallel.setParameterValue(Configuration.CHUNKING_THRESHOLD, CHUNKING_THRESHOLD);
+  File bag1 = createBag(), bag4 = createBag();
+  sync(bag1, replica, serial);
+  sync(bag4, replica, parallel);
+  modifyReplica(replica, new Random(2L));
+  sync(bag1, replica, serial);
+  sync(bag4, replica, parallel);
+  SortedMap<String, String> expected = describe(bag1);
+  assertFalse("Empty bag", expected.isEmpty());
+  assertEquals(expected, describe(bag4));
+ }
+
+ /**
+  * Makes sure that files touched, but not changed, do not get new
+  * versions, while a file changed without changing its size does,
+  * whether or not files are read on worker threads.
+  */
+ @Test
+ public void testTouchedFilesUnchanged()
+ 	throws Exception
+ {
+  for (int threads : new int[] { 1, 4 })
+  {
+   File replica = createReplica(new Random(13L));
+   Configuration config = new Configuration();
+   config.setParameterValue(Configuration.SYNC_THREADS, threads);
+   config.setParameterValue(Configuration.CHUNKING_THRESHOLD, CHUNKING_THRESHOLD);
+   File bag = createBag();
+   sync(bag, replica, config);
+   SortedMap<String, String> expected = describe(bag);
+   long later = System.currentTimeMillis() + 10000L;
+   for (int i = 0; i < FILE_COUNT; i++)
+    new File(replica, pathTo(i).getPath()).setLastModified(later);
+   File changed = new File(replica, pathTo(1).getPath());
+   byte[] data = read(changed);
+   data[data.length / 2] ^= 1;
+   write(changed, data);
+   changed.setLastModified(later);
+   sync(bag, replica, config);
+   SortedMap<String, String> actual = describe(bag);
+   String changedVersions = actual.remove(pathTo(1).getPath());
+   assertTrue(threads + " thread(s): " + changedVersions,
+     changedVersions.length() > expected.remove(pathTo(1).getPath()).length());
+   assertEquals(threads + " thread(s)", expected, actual);
+  }
+ }
+
+ /**
+  * Makes sure that deltas are not built for files touched, but not
+  * changed, when their digests are not computed in advance.
+  */
+ @Test
+ public void testTouchedFilesNotCompared()
+ 	throws Exception
+ {
+  File replica = createReplica(new Random(15L));
+  Configuration config = new Configuration();
+  File bag = createBag();
+  sync(bag, replica, config);
+  long later = System.currentTimeMillis() + 10000L;
+  for (int i = 0; i < FILE_COUNT; i++)
+   new File(replica, pathTo(i).getPath()).setLastModified(later);
+  File changed = new File(replica, pathTo(2).getPath()).getCanonicalFile();
+  byte[] data = read(changed);
+  data[data.length / 2] ^= 1;
+  write(changed, data);
+  changed.setLastModified(later);
+  final List<File> compared = new ArrayList<File>();
+  Manager db = new Manager();
+  db.setLocation(bag);
+  db.open();
+  try
+  {
+   Number id = new ReplicaFinder(db, config).findReplicaId(replica);
+   SyncService service = new SyncService(db, id, config)
+   {
+    @Override
+    protected ImageBuilder newImageBuilder(Manager db)
+    	throws DBException
+    {
+     return new ImageBuilder(db)
+     {
+      @Override
+      public boolean buildDeltas(File file, MessageDigest digest,
+        ChunkingDifferencer.Fingerprint chunks, DeltaStore target)
+      	throws IOException, DBException
+      {
+       compared.add(file.getCanonicalFile());
+       return super.buildDeltas(file, digest, chunks, target);
+      }
+     };
+    }
+   };
+   try
+   {
+    service.synchronize((PathMatcher)null);
+   }
+   finally
+   {
+    service.close();
+   }
+  }
+  finally
+  {
+   db.close();
+  }
+  assertEquals(Arrays.asList(changed), compared);
+ }
+
+ /**
+  * Makes sure that walking the replica one directory at a time stores
+  * the same versions as scanning it in full, when only some of the
+  * nested directories and files pass the filter.
+  */
+ @Test
+ public void testStreamingSameAsScan()
+ 	throws Exception
+ {
+  File replica = createReplica(new Random(3L));
+  Configuration scan = new Configuration();
+  scan.setParameterValue(Configuration.SELECTED_FILTER, new FilterSpec(FILTER_NAME, false));
+  Configuration walk = new Configuration();
+  walk.setParameterValue(Configuration.SELECTED_FILTER, new FilterSpec(FILTER_NAME, false));
+  walk.setParameterValue(Configuration.STREAMING_SYNC, true);
+  String include = "a/**" + File.pathSeparator + "*.txt" + File.pathSeparator + "f2*";
+  String exclude = "a/b/f1*" + File.pathSeparator + "**/*.tmp";
+  File scanned = createBag(), walked = createBag();
+  defineFilter(scanned, include, exclude);
+  defineFilter(walked, include, exclude);
+  write(new File(replica, "a/b/skipped.tmp"), new byte[10]);
+  sync(scanned, replica, scan);
+  sync(walked, replica, walk);
+  modifyReplica(replica, new Random(4L));
+  sync(scanned, replica, scan);
+  sync(walked, replica, walk);
+  SortedMap<String, String> expected = describe(scanned);
+  assertTrue(expected.containsKey(new File("a/f1.bin").getPath()));
+  assertTrue(expected.containsKey(new File("f20.bin").getPath()));
+  assertFalse(expected.containsKey(new File("f4.bin").getPath()));
+  assertFalse(expected.containsKey(new File("a/b/f14.bin").getPath()));
+  assertFalse(expected.containsKey(new File("a/b/skipped.tmp").getPath()));
+  assertEquals(expected, describe(walked));
+ }
+
+ /**
+  * Makes sure that the walk adds new files as it finds them, rather
+  * than after all known files, with files batched or not.
+  */
+ @Test
+ public void testStreamingAddsNewFilesEarly()
+ 	throws Exception
+ {
+  File replica = createReplica(new Random(14L));
+  Configuration config = new Configuration();
+  config.setParameterValue(Configuration.STREAMING_SYNC, true);
+  File bag = createBag();
+  sync(bag, replica, config);
+  final File root = replica.getCanonicalFile();
+  File known = new File(root, pathTo(3).getPath());
+  for (int batch : new int[] { 5, 1 })
+  {
+   File added = new File(new File(root, DIRECTORIES[1]), "new" + batch + ".txt");
+   write(added, "new file".getBytes("US-ASCII"));
+   config.setParameterValue(Configuration.NEW_FILE_BATCH_SIZE, batch);
+   final List<File> events = new ArrayList<File>();
+   Manager db = new Manager();
+   db.setLocation(bag);
+   db.open();
+   try
+   {
+    Number id = new ReplicaFinder(db, config).findReplicaId(replica);
+    SyncService service = new SyncService(db, id, config)
+    {
+     @Override
+     protected void syncToLocal(FileDTO record, LocalFileInfo prepared)
+     	throws IOException, DBException
+     {
+      events.add(prepared.getFile());
+      super.syncToLocal(record, prepared);
+     }
+
+     @Override
+     protected void addNewFile(File path, LocalFileInfo prepared, boolean deleteObsolete)
+     	throws IOException, DBException
+     {
+      events.add(new File(root, path.getPath()));
+      super.addNewFile(path, prepared, deleteObsolete);
+     }
+    };
+    try
+    {
+     service.synchronize((PathMatcher)null);
+    }
+    finally
+    {
+     service.close();
+    }
+   }
+   finally
+   {
+    db.close();
+   }
+   assertTrue(events.toString(), events.contains(known));
+   assertTrue(batch + " file(s) per batch: " + events,
+     events.contains(added) && events.indexOf(added) < events.indexOf(known));
+  }
+ }
+
+ /**
+  * Makes sure that synchronizing a set of changed locations stores
+  * the same versions as a full synchronization for the files at or
+  * below those locations, and leaves other files alone.
+  */
+ @Test
+ public void testChangedLocationsSync()
+ 	throws Exception
+ {
+  File replica = createReplica(new Random(5L));
+  Configuration config = new Configuration();
+  File partial = createBag(), full = createBag();
+  sync(partial, replica, config);
+  sync(full, replica, config);
+  SortedMap<String, String> before = describe(partial);
+  modifyReplica(replica, new Random(6L));
+  addDirectory(replica);
+  Set<File> changes = new HashSet<File>();
+  // leave out one of the modified files
+  for (int i = 2; i < FILE_COUNT; i += 2)
+   changes.add(pathTo(i));
+  changes.add(new File(DIRECTORIES[1], "new.txt"));
+  changes.add(new File(DIRECTORIES[1], "f5.bin"));
+  changes.add(new File(NEW_DIRECTORY));
+  changes.add(new File(NEW_DIRECTORY, NEW_SUBDIRECTORY));
+  sync(partial, replica, config, changes);
+  sync(full, replica, config);
+  SortedMap<String, String> expected = describe(full);
+  String skipped = pathTo(0).getPath();
+  assertFalse(expected.get(skipped).equals(before.get(skipped)));
+  expected.put(skipped, before.get(skipped));
+  assertTrue(expected.containsKey(new File(new File(NEW_DIRECTORY, NEW_SUBDIRECTORY), NEW_FILE).getPath()));
+  assertEquals(expected, describe(partial));
+ }
+
+ /**
+  * Makes sure that the changes reported by a {@link ReplicaWatcher}
+  * reach the synchronization of changed locations, so that it stores
+  * the same versions as a full synchronization.
+  */
+ @Test
+ public void testWatchedChangesSync()
+ 	throws Exception
+ {
+  ReplicaWatcher watcher = ReplicaWatcher.newInstance();
+  assumeNotNull(watcher);
+  try
+  {
+   File replica = createReplica(new Random(7L));
+   Configuration config = new Configuration();
+   File watched = createBag(), full = createBag();
+   sync(watched, replica, config);
+   sync(full, replica, config);
+   watcher.watch(replica.getCanonicalFile());
+   modifyReplica(replica, new Random(8L));
+   addDirectory(replica);
+   Set<File> changes = new HashSet<File>();
+   for (Set<File> batch; ;)
+   {
+    batch = watcher.awaitChanges(WATCH_TIMEOUT, WATCH_QUIET_PERIOD);
+    assertNotNull("Change notifications have been lost", batch);
+    if (batch.isEmpty())
+     break;
+    changes.addAll(batch);
+   }
+   assertTrue(changes.contains(new File(DIRECTORIES[1], "new.txt")));
+   assertTrue(changes.contains(new File(DIRECTORIES[1], "f5.bin")));
+   assertTrue(changes.contains(new File(NEW_DIRECTORY)));
+   sync(watched, replica, config, changes);
+   sync(full, replica, config);
+   SortedMap<String, String> expected = describe(full);
+   assertTrue(expected.containsKey(new File(new File(NEW_DIRECTORY, NEW_SUBDIRECTORY), NEW_FILE).getPath()));
+   assertEquals(expected, describe(watched));
+  }
+  finally
+  {
+   watcher.close();
+  }
+ }
+
+ /**
+  * Makes sure that the {@link DirectoryScanner#newInstance(File) scanner
+  * for the running platform} reports the same files and attributes as
+  * the basic scanner, and that neither follows a link to an ancestor
+  * directory endlessly.
+  */
+ @Test
+ public void testScannersAgree()
+ 	throws Exception
+ {
+  File replica = createReplica(new Random(12L));
+  File link = new File(new File(replica, DIRECTORIES[2]), "loop");
+  Process ln = Runtime.getRuntime().exec(new String[] { "ln", "-s", "../..", link.getPath() });
+  assumeTrue(0 == ln.waitFor());
+  try
+  {
+   DirectoryScanner basic = new DirectoryScanner(replica);
+   DirectoryScanner platform = DirectoryScanner.newInstance(replica);
+   basic.scan();
+   platform.setThreadCount(3);
+   platform.scan();
+   List<File> files = new ArrayList<File>(basic.getFiles());
+   assertEquals(files, new ArrayList<File>(platform.getFiles()));
+   assertTrue(files.contains(pathTo(2)));
+   for (File path : files)
+   {
+    assertFalse(path.getPath(), path.getPath().contains(link.getName()));
+    LocalFileInfo expected = basic.getFileInfo(path), actual = platform.getFileInfo(path);
+    assertEquals(path.getPath(), expected.getSize(), actual.getSize());
+    assertEquals(path.getPath(), expected.getModifiedTime(), actual.getModifiedTime());
+   }
+  }
+  finally
+  {
+   link.delete();
+  }
+ }
+
+ /**
+  * Makes sure that an I/O error adding one of the new files undoes
+  * the changes made for that file and does not prevent the other
+  * files of a batch from being stored, but fails the synchronization.
+  */
+ @Test
+ public void testNewFileFailureSkipped()
+ 	throws Exception
+ {
+  File replica = createReplica(new Random(9L));
+  Configuration config = new Configuration();
+  config.setParameterValue(Configuration.NEW_FILE_BATCH_SIZE, 5);
+  final File failed = pathTo(6);
+  File failing = createBag(), normal = createBag();
+  Exception failure = syncFailing(failing, replica, config, failed,
+    new IOException("Injected failure adding " + failed));
+  assertTrue(String.valueOf(failure), failure instanceof IOException);
+  assertTrue(failure.getMessage(), failure.getMessage().startsWith("1 new file(s)"));
+  sync(normal, replica, config);
+  SortedMap<String, String> expected = describe(normal);
+  assertNotNull(expected.remove(failed.getPath()));
+  assertEquals(expected, describe(failing));
+  // the next synchronization adds the file that failed
+  sync(failing, replica, config);
+  assertEquals(describe(normal), describe(failing));
+ }
+
+ /**
+  * Makes sure that a database error adding a new file, or any error
+  * when new files are not batched, stops the synchronization.
+  */
+ @Test
+ public void testNewFileFailureFatal()
+ 	throws Exception
+ {
+  File replica = createReplica(new Random(10L));
+  Configuration config = new Configuration();
+  config.setParameterValue(Configuration.NEW_FILE_BATCH_SIZE, 5);
+  File failed = pathTo(6);
+  Exception injected = new DBException("Injected failure adding " + failed);
+  assertSame(injected, syncFailing(createBag(), replica, config, failed, injected));
+  config.setParameterValue(Configuration.NEW_FILE_BATCH_SIZE, 1);
+  injected = new IOException("Injected failure adding " + failed);
+  assertSame(injected, syncFailing(createBag(), replica, config, failed, injected));
+ }
+
+ /**
+  * Synchronizes a replica, failing after a file has been stored.
+  * @return the exception thrown by the synchronization
+  */
+ private Exception syncFailing(File bag, File replica, Configuration config,
+   final File failed, final Exception failure)
+ 	throws Exception
+ {
+  Manager db = new Manager();
+  db.setLocation(bag);
+  db.open();
+  try
+  {
+   Number id = new ReplicaFinder(db, config).findReplicaId(replica);
+   SyncService service = new SyncService(db, id, config)
+   {
+    @Override
+    protected void addNewFile(File path, LocalFileInfo prepared, boolean deleteObsolete)
+    	throws IOException, DBException
+    {
+     super.addNewFile(path, prepared, deleteObsolete);
+     if (failed.equals(path))
+      if (failure instanceof IOException)
+       throw (IOException)failure;
+      else
+       throw (DBException)failure;
+    }
+   };
+   try
+   {
+    service.synchronize((PathMatcher)null);
+   }
+   catch (Exception expected)
+   {
+    return expected;
+   }
+   finally
+   {
+    service.close();
+   }
+  }
+  finally
+  {
+   db.close();
+  }
+  fail("Synchronization did not fail when adding " + failed);
+  return null;
+ }
+
+ /**
+  * Makes sure that restoring files on several threads, with some or all
+  * of them using read-only connections, or without such connections,
+  * produces the same files as restoring them on a single thread, both for the current and the earlier versions
+  * that are restored from deltas.
+  */
+ @Test
+ public void testConcurrentRestore()
+ 	throws Exception
+ {
+  File replica = createReplica(new Random(11L));
+  Configuration config = new Configuration();
+  config.setParameterValue(Configuration.CHUNKING_THRESHOLD, CHUNKING_THRESHOLD);
+  File bag = createBag();
+  sync(bag, replica, config);
+  Timestamp original = new Timestamp(System.currentTimeMillis());
+  // file times may lag behind the system clock
+  Thread.sleep(CLOCK_LAG);
+  modifyReplica(replica, new Random(12L));
+  sync(bag, replica, config);
+  Timestamp current = new Timestamp(System.currentTimeMillis() + 60000L);
+  for (Timestamp asof : new Timestamp[] { original, current })
+  {
+   SortedMap<String, String> expected = describeTree(restore(bag, asof, 1, 0));
+   assertEquals("files restored as of " + asof, FILE_COUNT, expected.size());
+   assertEquals("files restored one by one without readers as of " + asof,
+     expected, describeTree(restore(bag, asof, RESTORE_THREADS, 0)));
+   assertEquals("files restored by threads with a reader as of " + asof,
+     expected, describeTree(restore(bag, asof, RESTORE_THREADS, 1)));
+   assertEquals("files restored by threads with readers as of " + asof,
+     expected, describeTree(restore(bag, asof, RESTORE_THREADS, RESTORE_THREADS - 1)));
+  }
+ }
+
+ /**
+  * Stores a named include-exclude filter in a bag.
+  */
+ protected void defineFilter(File bag, String include, String exclude)
+ 	throws Exception
+ {
+  Manager db = new Manager();
+  db.setLocation(bag);
+  db.open();
+  try
+  {
+   new FilterFactory(db).loadFromSource(FILTER_NAME,
+     FilterDefInline.includeExcludeSource(include, exclude));
+  }
+  finally
+  {
+   db.close();
+  }
+ }
+
+ /**
+  * Creates an empty bag at a temporary location.
+  */
+ protected File createBag()
+ 	throws Exception
+ {
+  File location = File.createTempFile("dbagsync", ".db");
+  location.delete();
+  cleanup.add(location);
+  Manager db = new Manager();
+  db.setLocation(location);
+  db.create();
+  db.close();
+  return location;
+ }
+
+ /**
+  * Synchronizes all files of a replica with a bag, registering the
+  * replica with that bag if necessary.
+  */
+ protected void sync(File bag, File replica, Configuration config)
+ 	throws Exception
+ {
+  sync(bag, replica, config, null);
+ }
+
+ /**
+  * Synchronizes either all files of a replica with a bag, or the
+  * files at a set of changed locations.
+  * @param changes relative paths to the changed locations, or
+  * <code>null</code> to synchronize all files
+  */
+ protected void sync(File bag, File replica, Configuration config, Set<File> changes)
+ 	throws Exception
+ {
+  Manager db = new Manager();
+  db.setLocation(bag);
+  db.open();
+  try
+  {
+   ReplicaFinder finder = new ReplicaFinder(db, config);
+   Number id = finder.findReplicaId(replica);
+   SyncService service = new SyncService(db, id, config);
+   try
+   {
+    if (null == changes)
+     service.synchronize((PathMatcher)null);
+    else
+     service.synchronize(changes, null);
+   }
+   finally
+   {
+    service.close();
+   }
+  }
+  finally
+  {
+   db.close();
+  }
+ }
+
+ /**
+  * Restores the files of a bag as of a moment in time to a new
+  * temporary directory.
+  * @param threads the number of threads to restore files
+  * @param readers the number of read-only connections to open
+  * @return the directory with restored files
+  */
+ protected File restore(File bag, Timestamp asof, int threads, int readers)
+ 	throws Exception
+ {
+  File dest = File.createTempFile("dbagrestore", "");
+  dest.delete();
+  cleanup.add(dest);
+  if (!dest.mkdirs())
+   throw new IOException("Could not create directory " + dest);
+  Configuration config = new Configuration();
+  config.setParameterValue(Configuration.SYNC_THREADS, threads);
+  Manager db = new Manager();
+  db.setLocation(bag);
+  db.setReaderCount(readers);
+  db.open();
+  try
+  {
+   RestoreService service = new RestoreService(db, null, config);
+   try
+   {
+    service.restore(new PathMatcher("**", true), asof, dest);
+   }
+   finally
+   {
+    service.close();
+   }
+  }
+  finally
+  {
+   db.close();
+  }
+  return dest;
+ }
+
+ /**
+  * Lists the files in a directory tree along with their sizes,
+  * digests, and modification times, keyed by relative path.
+  */
+ protected SortedMap<String, String> describeTree(File root)
+ 	throws Exception
+ {
+  SortedMap<String, String> contents = new TreeMap<String, String>();
+  describeTree(root, "", contents);
+  return contents;
+ }
+
+ /**
+  * Lists versions of all files in a bag along with their sizes,
+  * digests, and the sizes of their deltas, keyed by file path.
+  */
+ protected SortedMap<String, String> describe(File bag)
+ 	throws Exception
+ {
+  SortedMap<String, String> contents = new TreeMap<String, String>();
+  Manager db = new Manager();
+  db.setLocation(bag);
+  db.open();
+  try
+  {
+   NodeNameDAO nameDAO = db.findDAO(NodeNameDAO.class);
+   VersionDAO versionDAO = db.findDAO(VersionDAO.class);
+   Cursor<FileDTO> files = db.findDAO(FileDAO.class).fetchAllFiles();
+   try
+   {
+    for (FileDTO file; null != (file = files.next());)
+    {
+     StringBuilder versions = new StringBuilder();
+     Cursor<VersionDTO> cursor = versionDAO.findVersions(file, null);
+     try
+     {
+      for (VersionDTO version; null != (version = cursor.next());)
+      {
+       if (version.isDeletionMark())
+       {
+        versions.append(version.getId()).append("<-").append(version.getBaseVersionId())
+         .append(": deleted\n");
+        continue;
+       }
+       versions.append(version.getId()).append("<-").append(version.getBaseVersionId())
+        .append(": size=").append(version.getSize())
+        .append(", digest=").append(toHex(version.getDigest()))
+        .append(", image=").append(version.isImageAvailable())
+        .append(", deltas=").append(Arrays.toString(versionDAO.retrieveDeltaSizes(version)))
+        .append('\n');
+      }
+     }
+     finally
+     {
+      cursor.close();
+     }
+     contents.put(nameDAO.toLocalFile(file.getNameId()).getPath(), versions.toString());
+    }
+   }
+   finally
+   {
+    files.close();
+   }
+  }
+  finally
+  {
+   db.close();
+  }
+  return contents;
+ }
+
+ /**
+  * Creates a directory tree with files of various sizes filled
+  * with random bytes.
+  */
+ protected File createReplica(Random random)
+ 	throws IOException
+ {
+  File root = File.createTempFile("dbagreplica", "");
+  root.delete();
+  cleanup.add(root);
+  for (String dir : DIRECTORIES)
+   if (!new File(root, dir).isDirectory() && !new File(root, dir).mkdirs())
+    throw new IOException("Could not create directory " + dir + " in " + root);
+  for (int i = 0; i < FILE_COUNT; i++)
+  {
+   byte[] data = new byte[FILE_SIZES[i % FILE_SIZES.length]];
+   random.nextBytes(data);
+   write(new File(new File(root, DIRECTORIES[i % DIRECTORIES.length]), "f" + i + ".bin"), data);
+  }
+  return root;
+ }
+
+ /**
+  * Inserts random bytes into every other file of a replica,
+  * then adds a new file and deletes an old one.
+  */
+ protected void modifyReplica(File root, Random random)
+ 	throws IOException
+ {
+  long later = System.currentTimeMillis() + 10000L;
+  for (int i = 0; i < FILE_COUNT; i += 2)
+  {
+   File file = new File(new File(root, DIRECTORIES[i % DIRECTORIES.length]), "f" + i + ".bin");
+   byte[] data = read(file);
+   byte[] insert = new byte[50];
+   random.nextBytes(insert);
+   int at = random.nextInt(data.length);
+   byte[] updated = new byte[data.length + insert.length];
+   System.arraycopy(data, 0, updated, 0, at);
+   System.arraycopy(insert, 0, updated, at, insert.length);
+   System.arraycopy(data, at, updated, at + insert.length, data.length - at);
+   write(file, updated);
+   file.setLastModified(later);
+  }
+  write(new File(root, DIRECTORIES[1] + File.separator + "new.txt"), "new file".getBytes("US-ASCII"));
+  if (!new File(new File(root, DIRECTORIES[1]), "f5.bin").delete())
+   throw new IOException("Could not delete a file from " + root);
+ }
+
+ /**
+  * Returns the relative path to one of the files in a
+  * {@link #createReplica(Random) generated replica}.
+  */
+ protected static File pathTo(int fileIndex)
+ {
+  String dir = DIRECTORIES[fileIndex % DIRECTORIES.length];
+  String name = "f" + fileIndex + ".bin";
+  return ".".equals(dir) ? new File(name) : new File(dir, name);
+ }
+
+ /**
+  * Adds a new directory with a nested directory and a file to
+  * a replica.
+  */
+ protected void addDirectory(File root)
+ 	throws IOException
+ {
+  File dir = new File(new File(root, NEW_DIRECTORY), NEW_SUBDIRECTORY);
+  if (!dir.mkdirs())
+   throw new IOException("Could not create directory " + dir);
+  write(new File(dir, NEW_FILE), "nested file".getBytes("US-ASCII"));
+ }
+
+ protected static void write(File file, byte[] data)
+ 	throws IOException
+ {
+  FileOutputStream out = new FileOutputStream(file);
+  try
+  {
+   out.write(data);
+  }
+  finally
+  {
+   out.close();
+  }
+ }
+
+ protected static byte[] read(File file)
+ 	throws IOException
+ {
+  RandomAccessFile in = new RandomAccessFile(file, "r");
+  try
+  {
+   byte[] data = new byte[(int)in.length()];
+   in.readFully(data);
+   return data;
+  }
+  finally
+  {
+   in.close();
+  }
+ }
+
+ /**
+  * Finds the replica at a location or registers a new one.
+  */
+ protected static class ReplicaFinder extends ReplicaManager
+ {
+  public Number findReplicaId(File root)
+  	throws Exception
+  {
+   String path = root.getCanonicalPath();
+   ReplicaInfo info = new Replicas(getDb(), getConfiguration()).findReplica(USER, HOST, path);
+   return null == info ? registerNewReplica(USER, HOST, path) : info.getId();
+  }
+
+  public ReplicaFinder(Manager db, Configuration config)
+  {
+   super(db, config);
+  }
+ }
+
+ private void describeTree(File dir, String prefix, SortedMap<String, String> contents)
+ 	throws Exception
+ {
+  File[] entries = dir.listFiles();
+  if (null == entries)
+   throw new IOException("Could not list directory " + dir);
+  for (File entry : entries)
+  {
+   String path = prefix + entry.getName();
+   if (entry.isDirectory())
+    describeTree(entry, path + '/', contents);
+   else
+   {
+    byte[] data = read(entry);
+    contents.put(path, "size=" + data.length
+      + ", digest=" + toHex(MessageDigest.getInstance("MD5").digest(data))
+      + ", modified=" + entry.lastModified());
+   }
+  }
+ }
+
+ private static void delete(File file)
+ {
+  File[] entries = file.listFiles();
+  if (null != entries)
+   for (File entry : entries)
+    delete(entry);
+  file.delete();
+ }
+
+ private static String toHex(byte[] data)
+ {
+  if (null == data)
+   return "null";
+  StringBuilder hex = new StringBuilder(data.length * 2);
+  for (byte b : data)
+   hex.append(Character.forDigit(b >> 4 & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+  return hex.toString();
+ }
+
+ protected static final long CHUNKING_THRESHOLD = 20000L;
+ protected static final String FILTER_NAME = "test";
+ protected static final String USER = "tester", HOST = "localhost";
+ protected static final String[] DIRECTORIES = { ".", "a", "a/b", "c" };
+ protected static final int[] FILE_SIZES = { 100, 5000, 70000, 300000 };
+ protected static final int FILE_COUNT = 24;
+ protected static final String NEW_DIRECTORY = "d", NEW_SUBDIRECTORY = "e", NEW_FILE = "g.txt";
+ protected static final long WATCH_TIMEOUT = 5000L, WATCH_QUIET_PERIOD = 500L;
+ protected static final int RESTORE_THREADS = 4;
+ protected static final long CLOCK_LAG = 100L;
+
+ private final List<File> cleanup = new ArrayList<File>();
+}
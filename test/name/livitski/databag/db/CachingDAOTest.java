@@ -0,0 +1,120 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.db;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import name.livitski.databag.db.schema.NodeNameDAO;
+import name.livitski.databag.db.schema.NodeNameDTO;
+
+/**
+ * Tests the least recently used eviction of objects from the cache
+ * of a {@link CachingDAO} using the {@link NodeNameDAO}.
+ */
+public class CachingDAOTest extends AbstractDBTest
+{
+ @Before
+ public void connect() throws Exception
+ {
+  db = openDB();
+  db.setObjectCacheCapacity(CAPACITY);
+  nameDAO = db.findDAO(NodeNameDAO.class);
+ }
+
+ @After
+ public void disconnect() throws Exception
+ {
+  if (null != db)
+   db.close();
+ }
+
+ @Test
+ public void testCapacity() throws Exception
+ {
+  List<NodeNameDTO> nodes = createNodes("lru", null);
+  assertTrue("cache size " + nameDAO.getCacheSize() + " exceeds " + CAPACITY,
+    CAPACITY >= nameDAO.getCacheSize());
+  assertTrue("no objects evicted", COUNT - CAPACITY <= nameDAO.getCacheEvictions());
+  // the most recently used object stays in the cache
+  NodeNameDTO last = nodes.get(COUNT - 1);
+  long misses = nameDAO.getCacheMisses();
+  assertSame(last, nameDAO.find(last.getId()));
+  assertEquals(misses, nameDAO.getCacheMisses());
+  // the least recently used object has been evicted and is loaded again
+  NodeNameDTO first = nodes.get(0);
+  NodeNameDTO reloaded = nameDAO.find(first.getId());
+  assertEquals(misses + 1, nameDAO.getCacheMisses());
+  assertNotSame(first, reloaded);
+  assertEquals(first.getRelativeName(), reloaded.getRelativeName());
+  assertTrue(CAPACITY >= nameDAO.getCacheSize());
+ }
+
+ @Test
+ public void testPinnedNotEvicted() throws Exception
+ {
+  Transaction txn = db.beginTransaction();
+  try
+  {
+   List<NodeNameDTO> nodes = createNodes("pinned", txn);
+   assertTrue("objects pending in a transaction were evicted",
+     COUNT < nameDAO.getCacheSize());
+   long misses = nameDAO.getCacheMisses();
+   for (NodeNameDTO node : nodes)
+    assertSame(node, nameDAO.find(node.getId()));
+   assertEquals("pending objects were loaded again", misses, nameDAO.getCacheMisses());
+   txn.commit();
+   txn = null;
+  }
+  finally
+  {
+   if (null != txn)
+    txn.abort();
+  }
+  assertTrue("cache size " + nameDAO.getCacheSize() + " exceeds " + CAPACITY + " after commit",
+    CAPACITY >= nameDAO.getCacheSize());
+ }
+
+ private List<NodeNameDTO> createNodes(String dir, Transaction txn)
+ 	throws DBException
+ {
+  List<NodeNameDTO> nodes = new ArrayList<NodeNameDTO>(COUNT);
+  for (int i = 0; COUNT > i; i++)
+  {
+   NodeNameDTO node = nameDAO.find(new File(dir, "n" + i), true);
+   assertEquals(null == txn ? CachedDTO.State.LOADED : CachedDTO.State.SAVE_PENDING, node.getState());
+   nodes.add(node);
+  }
+  return nodes;
+ }
+
+ private static final int CAPACITY = 8;
+ private static final int COUNT = 50;
+
+ private Manager db;
+ private NodeNameDAO nameDAO;
+}
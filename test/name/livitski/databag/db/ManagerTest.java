@@ -0,0 +1,250 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.db;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import name.livitski.databag.db.schema.NodeNameDAO;
+import name.livitski.databag.db.schema.NodeNameDTO;
+
+/**
+ * Tests the {@link Manager#acquireReader() read-only connections}
+ * of a {@link Manager}.
+ */
+public class ManagerTest extends AbstractDBTest
+{
+ @Before
+ public void connect() throws Exception
+ {
+  db = new Manager();
+  db.setLocation(getLocation());
+  db.setReaderCount(READER_COUNT);
+  db.open();
+  executor = Executors.newCachedThreadPool();
+ }
+
+ @After
+ public void disconnect() throws Exception
+ {
+  executor.shutdownNow();
+  if (null != db)
+   db.close();
+ }
+
+ /**
+  * Acquires and releases readers, making sure that a reader is lent
+  * to one caller at a time and that the callers wait for a reader
+  * to become available.
+  */
+ @Test
+ public void testAcquireRelease() throws Exception
+ {
+  try
+  {
+   db.setReaderCount(1);
+   fail("Changed the number of readers of an open database");
+  }
+  catch (IllegalStateException expected) {}
+  NodeNameDTO node = db.findDAO(NodeNameDAO.class).find(new File("acquire/node"), true);
+  List<Manager> readers = new ArrayList<Manager>(READER_COUNT);
+  for (int i = 0; READER_COUNT > i; i++)
+  {
+   Manager reader = db.acquireReader();
+   assertTrue(reader + " is not read-only", reader.isReadOnly());
+   assertFalse("reader lent twice", readers.contains(reader));
+   assertEquals(node.getRelativeName(),
+     reader.findDAO(NodeNameDAO.class).find(node.getId()).getRelativeName());
+   readers.add(reader);
+  }
+  try
+  {
+   readers.get(0).acquireReader();
+   fail("Acquired a reader from a reader");
+  }
+  catch (IllegalStateException expected) {}
+  // all readers are lent, the next caller waits
+  Future<Manager> waiting = executor.submit(new Callable<Manager>() {
+   public Manager call() throws Exception
+   {
+    return db.acquireReader();
+   }
+  });
+  try
+  {
+   waiting.get(WAIT_TIME, TimeUnit.MILLISECONDS);
+   fail("Acquired more than " + READER_COUNT + " readers");
+  }
+  catch (TimeoutException expected) {}
+  Manager released = readers.remove(0);
+  released.close();
+  // closing a reader again has no effect
+  released.close();
+  Manager reader = waiting.get(TIMEOUT, TimeUnit.MILLISECONDS);
+  assertSame(released, reader);
+  assertEquals(node.getRelativeName(),
+    reader.findDAO(NodeNameDAO.class).find(node.getId()).getRelativeName());
+  readers.add(reader);
+  for (Manager lent : readers)
+   lent.close();
+  // readers cannot be acquired during a transaction
+  Transaction txn = db.beginTransaction();
+  try
+  {
+   db.acquireReader();
+   fail("Acquired a reader during " + txn);
+  }
+  catch (DBException expected) {}
+  finally
+  {
+   txn.abort();
+  }
+  db.acquireReader().close();
+  // a database without readers does not lend them
+  db.close();
+  db = null;
+  db = openDB();
+  try
+  {
+   db.acquireReader();
+   fail("Acquired a reader that has not been opened");
+  }
+  catch (DBException expected) {}
+ }
+
+ /**
+  * Runs readers in several threads while the manager adds records.
+  * Under the table-level locking of the database, a reader waits
+  * for the writing transaction to finish, then sees its changes.
+  */
+ @Test
+ public void testReadersWithWriter() throws Exception
+ {
+  final NodeNameDAO nameDAO = db.findDAO(NodeNameDAO.class);
+  // a reader waits for the writing transaction
+  final Manager reader = db.acquireReader();
+  Transaction txn = db.beginTransaction();
+  final NodeNameDTO pending = nameDAO.find(new File("writer/pending"), true);
+  Future<NodeNameDTO> read;
+  try
+  {
+   read = executor.submit(new Callable<NodeNameDTO>() {
+    public NodeNameDTO call() throws Exception
+    {
+     return reader.findDAO(NodeNameDAO.class).find(pending.getId());
+    }
+   });
+   try
+   {
+    read.get(WAIT_TIME, TimeUnit.MILLISECONDS);
+    fail("Read a table while it is being written");
+   }
+   catch (TimeoutException expected) {}
+   txn.commit();
+   txn = null;
+  }
+  finally
+  {
+   if (null != txn)
+    txn.abort();
+  }
+  NodeNameDTO committed = read.get(TIMEOUT, TimeUnit.MILLISECONDS);
+  assertNotNull("committed record not found by a reader", committed);
+  assertEquals(pending.getRelativeName(), committed.getRelativeName());
+  reader.close();
+  // readers and the writer run together
+  final List<Long> written = new ArrayList<Long>();
+  List<Future<Integer>> readers = new ArrayList<Future<Integer>>(READER_COUNT);
+  for (int i = 0; READER_COUNT > i; i++)
+  {
+   // readers are acquired outside of transactions
+   final Manager concurrent = db.acquireReader();
+   readers.add(executor.submit(new Callable<Integer>() {
+    public Integer call() throws Exception
+    {
+     try
+     {
+      NodeNameDAO readerDAO = concurrent.findDAO(NodeNameDAO.class);
+      int count = 0;
+      for (int j = 0; RECORD_COUNT > j; j++)
+      {
+       Long id;
+       synchronized (written)
+       {
+        if (written.isEmpty())
+         continue;
+        id = written.get(j % written.size());
+       }
+       assertNotNull("record #" + id + " not found by a reader", readerDAO.find(id));
+       count++;
+      }
+      return count;
+     }
+     finally
+     {
+      concurrent.close();
+     }
+    }
+   }));
+  }
+  for (int i = 0; RECORD_COUNT > i; i++)
+  {
+   txn = db.beginTransaction();
+   try
+   {
+    NodeNameDTO node = nameDAO.find(new File("writer/node" + i), true);
+    txn.commit();
+    txn = null;
+    synchronized (written)
+    {
+     written.add(node.getId());
+    }
+   }
+   finally
+   {
+    if (null != txn)
+     txn.abort();
+   }
+  }
+  for (Future<Integer> result : readers)
+   result.get(TIMEOUT, TimeUnit.MILLISECONDS);
+ }
+
+ private static final int READER_COUNT = 2;
+ private static final int RECORD_COUNT = 50;
+ private static final long WAIT_TIME = 300L;
+ private static final long TIMEOUT = 10000L;
+
+ private Manager db;
+ private ExecutorService executor;
+}
@@ -0,0 +1,171 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.db.schema;
+
+import java.io.File;
+import java.sql.Timestamp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import name.livitski.databag.db.AbstractDBTest;
+import name.livitski.databag.db.IncompatibleSchemaException;
+import name.livitski.databag.db.Manager;
+import name.livitski.databag.db.SchemaVersionDAO;
+import name.livitski.databag.db.SchemaVersionDTO;
+import name.livitski.databag.db.ScriptRunner;
+
+/**
+ * Tests the states of local files recorded by the {@link LastSyncDAO}
+ * and the upgrade of its table that added those states.
+ */
+public class LastSyncTest extends AbstractDBTest
+{
+ @Before
+ public void connect() throws Exception
+ {
+  db = openDB();
+ }
+
+ @After
+ public void disconnect() throws Exception
+ {
+  if (null != db)
+   db.close();
+ }
+
+ @Test
+ public void testPreloadedStates() throws Exception
+ {
+  ReplicaDTO replica = insertReplica(db, "states");
+  VersionDTO version = insertVersion(db, new File("states/file.bin"));
+  long fileId = version.getFileId();
+  int versionId = version.getId();
+  LastSyncDAO syncDAO = db.findDAO(LastSyncDAO.class);
+  syncDAO.recordSync(replica, version, 100L, new Timestamp(10000L));
+  assertFalse("state matched before loading",
+    syncDAO.isUnchangedSince(fileId, versionId, 100L, 10000L));
+  syncDAO.preloadStates(replica);
+  try
+  {
+   assertTrue(syncDAO.isUnchangedSince(fileId, versionId, 100L, 10000L));
+   assertArrayEquals(new long[] { 100L, 10000L }, syncDAO.findPreloadedState(fileId, versionId));
+   assertFalse("size mismatch", syncDAO.isUnchangedSince(fileId, versionId, 101L, 10000L));
+   assertFalse("time mismatch", syncDAO.isUnchangedSince(fileId, versionId, 100L, 12000L));
+   assertFalse("version mismatch", syncDAO.isUnchangedSince(fileId, versionId + 1, 100L, 10000L));
+   assertNull(syncDAO.findPreloadedState(fileId, versionId + 1));
+   assertFalse("unknown file", syncDAO.isUnchangedSince(fileId + 1000L, versionId, 100L, 10000L));
+   // an update invalidates the loaded state of the file
+   syncDAO.recordSync(replica, version, 200L, new Timestamp(20000L));
+   assertFalse("old state matched after update",
+     syncDAO.isUnchangedSince(fileId, versionId, 100L, 10000L));
+   assertFalse("new state matched before reloading",
+     syncDAO.isUnchangedSince(fileId, versionId, 200L, 20000L));
+   assertNull(syncDAO.findPreloadedState(fileId, versionId));
+   syncDAO.preloadStates(replica);
+   assertTrue(syncDAO.isUnchangedSince(fileId, versionId, 200L, 20000L));
+   // a record without the local state never matches
+   syncDAO.recordSync(replica, version);
+   syncDAO.preloadStates(replica);
+   assertFalse(syncDAO.isUnchangedSince(fileId, versionId, 200L, 20000L));
+   assertEquals(-1L, syncDAO.findRecord(fileId, replica).getLocalSize());
+  }
+  finally
+  {
+   syncDAO.discardPreloadedStates();
+  }
+  assertFalse("state matched after discarding",
+    syncDAO.isUnchangedSince(fileId, versionId, 200L, 20000L));
+ }
+
+ @Test
+ public void testUpgradeV2toV3() throws Exception
+ {
+  ReplicaDTO replica = insertReplica(db, "upgrade");
+  VersionDTO version = insertVersion(db, new File("upgrade/file.bin"));
+  LastSyncDAO syncDAO = db.findDAO(LastSyncDAO.class);
+  syncDAO.recordSync(replica, version, 100L, new Timestamp(10000L));
+  // restore the version 2 layout of the table
+  new ScriptRunner(db, new Object[] {
+    "ALTER TABLE " + LastSyncDAO.TABLE_NAME + " DROP COLUMN local_modified",
+    "ALTER TABLE " + LastSyncDAO.TABLE_NAME + " DROP COLUMN local_size"
+  }, "downgrading " + LastSyncDAO.TABLE_NAME).execute();
+  SchemaVersionDAO schemaDAO = db.findDAO(SchemaVersionDAO.class);
+  SchemaVersionDTO record = schemaDAO.findRecord(LastSyncDAO.class);
+  assertEquals(LastSyncDAO.SCHEMA_VERSION, record.getVersion());
+  record.setVersion(2);
+  schemaDAO.update(record);
+  db.close();
+  db = openDB();
+  try
+  {
+   db.findDAO(LastSyncDAO.class);
+   fail("Version 2 schema opened without an upgrade");
+  }
+  catch (IncompatibleSchemaException expected) {}
+  db.close();
+  db = openDB();
+  db.setSchemaEvolutionAllowed(true);
+  syncDAO = db.findDAO(LastSyncDAO.class);
+  assertEquals(LastSyncDAO.SCHEMA_VERSION,
+    db.findDAO(SchemaVersionDAO.class).findRecord(LastSyncDAO.class).getVersion());
+  // the existing record keeps its version, but not the local state
+  LastSyncDTO upgraded = syncDAO.findRecord(version.getFileId(), replica);
+  assertNotNull(upgraded);
+  assertEquals(Integer.valueOf(version.getId()), upgraded.getVersionId());
+  assertEquals(-1L, upgraded.getLocalSize());
+  assertNull(upgraded.getLocalModifiedTime());
+  syncDAO.recordSync(replica, version, 300L, new Timestamp(30000L));
+  assertEquals(300L, syncDAO.findRecord(version.getFileId(), replica).getLocalSize());
+ }
+
+ private static ReplicaDTO insertReplica(Manager db, String path)
+ 	throws Exception
+ {
+  ReplicaDTO replica = new ReplicaDTO();
+  replica.setUser("tester");
+  replica.setHost("localhost");
+  replica.setPath(new File(getLocation().getParentFile(), path).getPath());
+  db.findDAO(ReplicaDAO.class).insert(replica);
+  return replica;
+ }
+
+ private static VersionDTO insertVersion(Manager db, File path)
+ 	throws Exception
+ {
+  NodeNameDTO node = db.findDAO(NodeNameDAO.class).find(path, true);
+  FileDAO fileDAO = db.findDAO(FileDAO.class);
+  FileDTO file = new FileDTO();
+  file.setNameId(node.getId());
+  fileDAO.insert(file);
+  VersionDTO version = new VersionDTO(file);
+  version.setModifiedTime(new Timestamp(System.currentTimeMillis()));
+  version.setSize(0L);
+  db.findDAO(VersionDAO.class).insert(version);
+  file.setCurrentVersionId(version.getId());
+  fileDAO.update(file);
+  return version;
+ }
+
+ private Manager db;
+}
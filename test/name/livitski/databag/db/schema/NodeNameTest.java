@@ -147,6 +147,62 @@ public class NodeNameTest extends AbstractDBTest
   private Map<File, Long> ids;
  }
 
+ @Test
+ public void testPreload()
+ 	throws Exception
+ {
+  runTestMethod(1, new TestPreload());
+ }
+
+ private class TestPreload extends TestMethod
+ {
+  @Override
+  public void test(NodeNameDAO dao) throws Exception
+  {
+   Map<File, Long> ids = new HashMap<File, Long>();
+   scanNodes(dao, SAMPLE_DIR, null, ids);
+   dao.preload();
+   assertTrue("Nodes must be loaded", dao.isPreloaded());
+   dao.resetCache();
+   for (Map.Entry<File, Long> entry : ids.entrySet())
+   {
+    long id = entry.getValue();
+    File rel = entry.getKey();
+    assertEquals("toLocalFile() for loaded node " + id, rel, dao.toLocalFile(id));
+    NodeNameDTO node = dao.find(rel, false);
+    checkDTOSanity(rel, node, null);
+    assertEquals("Id of loaded node " + rel, id, node.getId().longValue());
+   }
+   File added = new File("newPreloadDir", "newPreloadFile");
+   assertNull("Node for " + added + " must not exist", dao.find(added, false));
+   long id = dao.find(added, true).getId();
+   dao.resetCache();
+   assertTrue("Nodes must remain loaded after an insert", dao.isPreloaded());
+   assertEquals("toLocalFile() for added node " + id, added, dao.toLocalFile(id));
+   assertEquals("Id of added node " + added, id, dao.find(added, false).getId().longValue());
+   dao.discardPreloaded();
+   assertEquals("Id of added node " + added + " after discarding loaded nodes",
+     id, dao.find(added, false).getId().longValue());
+  }
+
+  private void scanNodes(NodeNameDAO dao, File path, File rel, Map<File, Long> ids)
+  	throws DBException
+  {
+   if (path.isDirectory())
+   {
+    for (String name : path.list())
+     scanNodes(dao, new File(path, name), new File(rel, name), ids);
+   }
+   if (null != rel)
+    ids.put(rel, dao.find(rel, false).getId());
+  }
+
+  public TestPreload()
+  {
+   super("testPreload()");
+  }
+ }
+
  @Test(expected=IllegalArgumentException.class)
  public void testBadAbsolute()
  	throws Exception
@@ -0,0 +1,489 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.db.schema;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import name.livitski.databag.db.AbstractDBTest;
+import name.livitski.databag.db.DBException;
+import name.livitski.databag.db.IncompatibleSchemaException;
+import name.livitski.databag.db.Manager;
+import name.livitski.databag.db.PreparedStatementHandler;
+import name.livitski.databag.db.SchemaVersionDAO;
+import name.livitski.databag.db.SchemaVersionDTO;
+import name.livitski.databag.db.ScriptRunner;
+import name.livitski.databag.db.Transaction;
+
+/**
+ * Tests the storage of images in {@link PackDAO packs}, both directly
+ * and through the {@link VersionDAO}, and the upgrade of the
+ * <code>Version</code> table that added references to packs.
+ */
+public class PackTest extends AbstractDBTest
+{
+ @Before
+ public void connect() throws Exception
+ {
+  db = openDB();
+ }
+
+ @After
+ public void disconnect() throws Exception
+ {
+  if (null != db)
+   db.close();
+ }
+
+ /**
+  * Appends images to packs and reads them back, both from the pack
+  * being written and from the database.
+  */
+ @Test
+ public void testPackFormat() throws Exception
+ {
+  Random random = new Random(1L);
+  PackDAO packs = db.findDAO(PackDAO.class);
+  byte[][] images = new byte[IMAGE_COUNT][];
+  PackDAO.Location[] locations = new PackDAO.Location[IMAGE_COUNT];
+  Transaction txn = db.beginTransaction();
+  for (int i = 0; IMAGE_COUNT > i; i++)
+  {
+   images[i] = textImage(random, 100 + random.nextInt(5000));
+   locations[i] = packs.append(images[i], images[i].length);
+  }
+  assertEquals(0L, locations[0].getOffset());
+  for (int i = 1; IMAGE_COUNT > i; i++)
+  {
+   assertEquals(locations[0].getPackId(), locations[i].getPackId());
+   assertTrue(locations[i - 1].getOffset() < locations[i].getOffset());
+  }
+  // offsets refer to the uncompressed data
+  assertEquals(images[0].length, locations[1].getOffset());
+  for (int i = 0; IMAGE_COUNT > i; i++)
+   assertArrayEquals(images[i], read(packs, locations[i], images[i].length));
+  txn.commit();
+  packs = reopen().findDAO(PackDAO.class);
+  for (int i = IMAGE_COUNT; 0 < i--;)
+   assertArrayEquals(images[i], read(packs, locations[i], images[i].length));
+  // a pack that reaches the segment size is no longer appended to
+  byte[][] large = new byte[3][PackDAO.SEGMENT_SIZE * 2 / 5];
+  PackDAO.Location[] largeLocations = new PackDAO.Location[large.length];
+  txn = db.beginTransaction();
+  for (int i = 0; large.length > i; i++)
+  {
+   random.nextBytes(large[i]);
+   largeLocations[i] = packs.append(large[i], large[i].length);
+  }
+  txn.commit();
+  assertFalse(locations[0].getPackId() == largeLocations[0].getPackId());
+  assertEquals(largeLocations[0].getPackId(), largeLocations[1].getPackId());
+  assertFalse(largeLocations[1].getPackId() == largeLocations[2].getPackId());
+  packs = reopen().findDAO(PackDAO.class);
+  for (int i = 0; large.length > i; i++)
+   assertArrayEquals(large[i], read(packs, largeLocations[i], large[i].length));
+ }
+
+ /**
+  * Makes sure that images appended after a rollback are not written
+  * over the data of a pack as it was before the rollback.
+  */
+ @Test
+ public void testRollback() throws Exception
+ {
+  Random random = new Random(2L);
+  PackDAO packs = db.findDAO(PackDAO.class);
+  byte[] kept = textImage(random, 3000), undone = textImage(random, 3000), after = textImage(random, 3000);
+  Transaction txn = db.beginTransaction();
+  PackDAO.Location keptAt = packs.append(kept, kept.length);
+  txn.commit();
+  // roll back an append to an existing pack
+  txn = db.beginTransaction();
+  PackDAO.Location undoneAt = packs.append(undone, undone.length);
+  assertEquals(keptAt.getPackId(), undoneAt.getPackId());
+  txn.abort();
+  txn = db.beginTransaction();
+  PackDAO.Location afterAt = packs.append(after, after.length);
+  txn.commit();
+  assertFalse(keptAt.getPackId() == afterAt.getPackId());
+  // roll back the creation of a pack
+  packs = reopen().findDAO(PackDAO.class);
+  txn = db.beginTransaction();
+  PackDAO.Location createdAt = packs.append(undone, undone.length);
+  txn.abort();
+  txn = db.beginTransaction();
+  PackDAO.Location recreatedAt = packs.append(after, after.length);
+  txn.commit();
+  assertFalse(createdAt.getPackId() == recreatedAt.getPackId());
+  packs = reopen().findDAO(PackDAO.class);
+  assertArrayEquals(kept, read(packs, keptAt, kept.length));
+  assertArrayEquals(after, read(packs, afterAt, after.length));
+  assertArrayEquals(after, read(packs, recreatedAt, after.length));
+  try
+  {
+   read(packs, undoneAt, undone.length);
+   fail("Read an image after its append has been rolled back");
+  }
+  catch (DBException expected) {}
+  try
+  {
+   read(packs, createdAt, undone.length);
+   fail("Read a pack after its creation has been rolled back");
+  }
+  catch (DBException expected) {}
+ }
+
+ /**
+  * Makes sure that a pack is written once per transaction, and that
+  * similar images take less space in a pack than they would if each
+  * one were compressed on its own.
+  */
+ @Test
+ public void testSimilarImages() throws Exception
+ {
+  Random random = new Random(5L);
+  PackDAO packs = db.findDAO(PackDAO.class);
+  byte[] template = new byte[3000];
+  random.nextBytes(template);
+  byte[][] images = new byte[IMAGE_COUNT][];
+  PackDAO.Location[] locations = new PackDAO.Location[IMAGE_COUNT];
+  long separateSize = 0L;
+  Transaction txn = db.beginTransaction();
+  for (int i = 0; IMAGE_COUNT > i; i++)
+  {
+   images[i] = template.clone();
+   for (int j = 0; 10 > j; j++)
+    images[i][random.nextInt(images[i].length)] = (byte)random.nextInt();
+   locations[i] = packs.append(images[i], images[i].length);
+   separateSize += deflatedSize(images[i]);
+  }
+  long packId = locations[0].getPackId();
+  assertEquals(IMAGE_COUNT, countImages(locations, packId));
+  assertEquals(0L, storedSize(packId));
+  assertArrayEquals(images[1], read(packs, locations[1], images[1].length));
+  txn.commit();
+  long packedSize = storedSize(packId);
+  assertTrue("Packed " + packedSize + " byte(s) vs. " + separateSize + " compressed separately",
+    0L < packedSize && separateSize > packedSize * 5);
+  packs = reopen().findDAO(PackDAO.class);
+  for (int i = 0; IMAGE_COUNT > i; i++)
+   assertArrayEquals(images[i], read(packs, locations[i], images[i].length));
+ }
+
+ /**
+  * Makes sure that aborting a nested transaction does not lose images
+  * that its enclosing transaction appended to a pack before it began.
+  */
+ @Test
+ public void testNestedAbort() throws Exception
+ {
+  Random random = new Random(6L);
+  PackDAO packs = db.findDAO(PackDAO.class);
+  byte[] kept = textImage(random, 3000), later = textImage(random, 3000);
+  byte[] undone = new byte[PackDAO.SEGMENT_SIZE - 1000];
+  random.nextBytes(undone);
+  Transaction txn = db.beginTransaction();
+  PackDAO.Location keptAt = packs.append(kept, kept.length);
+  Transaction nested = db.beginTransaction();
+  // this fills the pack, which is then written within the nested transaction
+  PackDAO.Location undoneAt = packs.append(undone, undone.length);
+  assertFalse(keptAt.getPackId() == undoneAt.getPackId());
+  nested.abort();
+  PackDAO.Location laterAt = packs.append(later, later.length);
+  assertFalse(undoneAt.getPackId() == laterAt.getPackId());
+  assertArrayEquals(kept, read(packs, keptAt, kept.length));
+  txn.commit();
+  packs = reopen().findDAO(PackDAO.class);
+  assertArrayEquals(kept, read(packs, keptAt, kept.length));
+  assertArrayEquals(later, read(packs, laterAt, later.length));
+  try
+  {
+   read(packs, undoneAt, undone.length);
+   fail("Read a pack after its creation has been rolled back");
+  }
+  catch (DBException expected) {}
+ }
+
+ /**
+  * Makes sure that a pack is kept while any version refers to it,
+  * and deleted along with the last such version.
+  */
+ @Test
+ public void testDeleteIfUnused() throws Exception
+ {
+  Random random = new Random(3L);
+  db.setPackedImageLimit(PACKED_IMAGE_LIMIT);
+  VersionDAO versionDAO = db.findDAO(VersionDAO.class);
+  PackDAO packs = db.findDAO(PackDAO.class);
+  byte[] firstImage = textImage(random, 2000), secondImage = textImage(random, 2000);
+  VersionDTO first = insertVersion(db, new File("unused/first.txt"), firstImage.length);
+  VersionDTO second = insertVersion(db, new File("unused/second.txt"), secondImage.length);
+  Transaction txn = db.beginTransaction();
+  versionDAO.saveImage(first, new ByteArrayInputStream(firstImage));
+  versionDAO.saveImage(second, new ByteArrayInputStream(secondImage));
+  // an image without a version lands in the same pack
+  byte[] orphan = textImage(random, 100);
+  PackDAO.Location orphanAt = packs.append(orphan, orphan.length);
+  txn.commit();
+  long packId = orphanAt.getPackId();
+  packs.deleteIfUnused(packId);
+  versionDAO = reopen().findDAO(VersionDAO.class);
+  packs = db.findDAO(PackDAO.class);
+  assertArrayEquals(orphan, read(packs, orphanAt, orphan.length));
+  assertArrayEquals(firstImage, read(versionDAO.retrieveImage(first)));
+  versionDAO.delete(first);
+  assertArrayEquals(secondImage, read(versionDAO.retrieveImage(second)));
+  versionDAO.delete(second);
+  packs = reopen().findDAO(PackDAO.class);
+  try
+  {
+   read(packs, orphanAt, orphan.length);
+   fail("Pack #" + packId + " has not been deleted with its last version");
+  }
+  catch (DBException expected) {}
+  // larger images are stored separately
+  db.setPackedImageLimit(PACKED_IMAGE_LIMIT);
+  versionDAO = db.findDAO(VersionDAO.class);
+  byte[] largeImage = new byte[PACKED_IMAGE_LIMIT + 1];
+  VersionDTO large = insertVersion(db, new File("unused/large.bin"), largeImage.length);
+  random.nextBytes(largeImage);
+  versionDAO.saveImage(large, new ByteArrayInputStream(largeImage));
+  assertArrayEquals(largeImage, read(versionDAO.retrieveImage(large)));
+ }
+
+ /**
+  * Makes sure that images are not packed outside of a transaction,
+  * where the open pack would have to be written after each append.
+  */
+ @Test
+ public void testNoTransaction() throws Exception
+ {
+  Random random = new Random(7L);
+  db.setPackedImageLimit(PACKED_IMAGE_LIMIT);
+  byte[] image = textImage(random, 2000);
+  try
+  {
+   db.findDAO(PackDAO.class).append(image, image.length);
+   fail("Appended an image to a pack outside of a transaction");
+  }
+  catch (IllegalStateException expected) {}
+  VersionDAO versionDAO = db.findDAO(VersionDAO.class);
+  VersionDTO version = insertVersion(db, new File("unpacked/small.txt"), image.length);
+  long packCount = countPacks();
+  versionDAO.saveImage(version, new ByteArrayInputStream(image));
+  assertEquals(packCount, countPacks());
+  versionDAO = reopen().findDAO(VersionDAO.class);
+  assertArrayEquals(image, read(versionDAO.retrieveImage(version)));
+ }
+
+ @Test
+ public void testUpgradeV2toV3() throws Exception
+ {
+  Random random = new Random(4L);
+  byte[] oldImage = textImage(random, 2000);
+  VersionDTO old = insertVersion(db, new File("upgrade/old.txt"), oldImage.length);
+  db.findDAO(VersionDAO.class).saveImage(old, new ByteArrayInputStream(oldImage));
+  // restore the version 2 layout of the table
+  new ScriptRunner(db, new Object[] {
+    "ALTER TABLE " + VersionDAO.TABLE_NAME + " DROP CONSTRAINT FK_Version_pack",
+    "ALTER TABLE " + VersionDAO.TABLE_NAME + " DROP COLUMN pack_offset",
+    "ALTER TABLE " + VersionDAO.TABLE_NAME + " DROP COLUMN pack"
+  }, "downgrading " + VersionDAO.TABLE_NAME).execute();
+  SchemaVersionDAO schemaDAO = db.findDAO(SchemaVersionDAO.class);
+  SchemaVersionDTO record = schemaDAO.findRecord(VersionDAO.class);
+  assertEquals(VersionDAO.SCHEMA_VERSION, record.getVersion());
+  record.setVersion(2);
+  schemaDAO.update(record);
+  reopen();
+  try
+  {
+   db.findDAO(VersionDAO.class);
+   fail("Version 2 schema opened without an upgrade");
+  }
+  catch (IncompatibleSchemaException expected) {}
+  reopen();
+  db.setSchemaEvolutionAllowed(true);
+  VersionDAO versionDAO = db.findDAO(VersionDAO.class);
+  assertEquals(VersionDAO.SCHEMA_VERSION,
+    db.findDAO(SchemaVersionDAO.class).findRecord(VersionDAO.class).getVersion());
+  assertArrayEquals(oldImage, read(versionDAO.retrieveImage(old)));
+  db.setPackedImageLimit(PACKED_IMAGE_LIMIT);
+  byte[] packedImage = textImage(random, 2000);
+  VersionDTO packed = insertVersion(db, new File("upgrade/packed.txt"), packedImage.length);
+  Transaction txn = db.beginTransaction();
+  versionDAO.saveImage(packed, new ByteArrayInputStream(packedImage));
+  txn.commit();
+  versionDAO = reopen().findDAO(VersionDAO.class);
+  assertArrayEquals(packedImage, read(versionDAO.retrieveImage(packed)));
+  assertArrayEquals(oldImage, read(versionDAO.retrieveImage(old)));
+ }
+
+ private Manager reopen() throws Exception
+ {
+  db.close();
+  db = null;
+  db = openDB();
+  return db;
+ }
+
+ /**
+  * Generates compressible data that resembles text.
+  */
+ private static byte[] textImage(Random random, int length)
+ {
+  byte[] image = new byte[length];
+  for (int i = 0; length > i; i++)
+   image[i] = (byte)(0 == random.nextInt(6) ? ' ' : 'a' + random.nextInt(8));
+  return image;
+ }
+
+ private long storedSize(final long packId) throws Exception
+ {
+  final long[] size = { -1L };
+  new PreparedStatementHandler(db,
+    "SELECT LENGTH(data) FROM " + PackDAO.TABLE_NAME + " WHERE id = ?")
+  {
+   @Override
+   protected void bindParameters(PreparedStatement stmt) throws SQLException
+   {
+    stmt.setLong(1, packId);
+   }
+
+   @Override
+   protected void handleResults(ResultSet rs) throws SQLException
+   {
+    if (rs.next())
+     size[0] = rs.getLong(1);
+   }
+
+   @Override
+   protected String legend()
+   {
+    return "measuring pack #" + packId;
+   }
+  }.execute();
+  return size[0];
+ }
+
+ private long countPacks() throws Exception
+ {
+  final long[] count = { -1L };
+  new PreparedStatementHandler(db, "SELECT COUNT(*) FROM " + PackDAO.TABLE_NAME)
+  {
+   @Override
+   protected void handleResults(ResultSet rs) throws SQLException
+   {
+    if (rs.next())
+     count[0] = rs.getLong(1);
+   }
+
+   @Override
+   protected String legend()
+   {
+    return "counting packs";
+   }
+  }.execute();
+  return count[0];
+ }
+
+ private static int countImages(PackDAO.Location[] locations, long packId)
+ {
+  int count = 0;
+  for (PackDAO.Location location : locations)
+   if (packId == location.getPackId())
+    count++;
+  return count;
+ }
+
+ private static int deflatedSize(byte[] image)
+ {
+  Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+  try
+  {
+   deflater.setInput(image);
+   deflater.finish();
+   byte[] buffer = new byte[4096];
+   int size = 0;
+   while (!deflater.finished())
+    size += deflater.deflate(buffer);
+   return size;
+  }
+  finally
+  {
+   deflater.end();
+  }
+ }
+
+ private static byte[] read(PackDAO packs, PackDAO.Location location, int length)
+ 	throws Exception
+ {
+  return read(packs.openImage(location.getPackId(), location.getOffset(), length));
+ }
+
+ private static byte[] read(InputStream in)
+ 	throws Exception
+ {
+  try
+  {
+   ByteArrayOutputStream out = new ByteArrayOutputStream();
+   byte[] buffer = new byte[4096];
+   for (int count; 0 <= (count = in.read(buffer));)
+    out.write(buffer, 0, count);
+   return out.toByteArray();
+  }
+  finally
+  {
+   in.close();
+  }
+ }
+
+ private static VersionDTO insertVersion(Manager db, File path, long size)
+ 	throws Exception
+ {
+  NodeNameDTO node = db.findDAO(NodeNameDAO.class).find(path, true);
+  FileDTO file = new FileDTO();
+  file.setNameId(node.getId());
+  db.findDAO(FileDAO.class).insert(file);
+  VersionDTO version = new VersionDTO(file);
+  version.setModifiedTime(new Timestamp(System.currentTimeMillis()));
+  version.setSize(size);
+  db.findDAO(VersionDAO.class).insert(version);
+  return version;
+ }
+
+ private static final int IMAGE_COUNT = 20;
+ private static final int PACKED_IMAGE_LIMIT = 4096;
+
+ private Manager db;
+}
@@ -0,0 +1,127 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.db.schema;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Timestamp;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import name.livitski.databag.db.AbstractDBTest;
+import name.livitski.databag.db.Manager;
+import name.livitski.databag.db.StatementCache;
+import name.livitski.databag.diff.Delta;
+
+/**
+ * Tests storage and retrieval of version images and deltas.
+ */
+public class VersionTest extends AbstractDBTest
+{
+ @Before
+ public void connect() throws Exception
+ {
+  db = openDB();
+  versionDAO = db.findDAO(VersionDAO.class);
+ }
+
+ @After
+ public void disconnect() throws Exception
+ {
+  if (null != db)
+   db.close();
+ }
+
+ /**
+  * Makes sure that the statements kept open while streaming images
+  * and deltas from LOBs return to the statement cache once
+  * the streams are closed.
+  */
+ @Test
+ public void testBLOBStatementsReleased() throws Exception
+ {
+  byte[] data = new byte[PackDAO.SEGMENT_SIZE + 1];
+  new Random(1L).nextBytes(data);
+  VersionDTO version = insertVersion(new File("blob/image.bin"), data.length);
+  versionDAO.saveImage(version, new ByteArrayInputStream(data));
+  versionDAO.saveDelta(version, new ByteArrayInputStream(data, 0, 5000), Delta.Type.FORWARD);
+  StatementCache cache = db.getStatementCache();
+  int size = -1;
+  for (int i = 0; REPEATS > i; i++)
+  {
+   assertArrayEquals("image read #" + i, data, readFully(versionDAO.retrieveImage(version)));
+   assertEquals("delta read #" + i, 5000,
+     readFully(versionDAO.retrieveDelta(version, Delta.Type.FORWARD)).length);
+   assertEquals("statements in use after read #" + i, 0, cache.getInUseCount());
+   if (0 > size)
+    size = cache.getSize();
+   else
+    assertEquals("statements cached after read #" + i, size, cache.getSize());
+  }
+  assertTrue("statements were not reused: " + cache, REPEATS <= cache.getHits());
+ }
+
+ private VersionDTO insertVersion(File path, long size)
+ 	throws Exception
+ {
+  NodeNameDTO node = db.findDAO(NodeNameDAO.class).find(path, true);
+  FileDAO fileDAO = db.findDAO(FileDAO.class);
+  FileDTO file = new FileDTO();
+  file.setNameId(node.getId());
+  fileDAO.insert(file);
+  VersionDTO version = new VersionDTO(file);
+  version.setModifiedTime(new Timestamp(System.currentTimeMillis()));
+  version.setSize(size);
+  versionDAO.insert(version);
+  file.setCurrentVersionId(version.getId());
+  fileDAO.update(file);
+  return version;
+ }
+
+ private static byte[] readFully(InputStream in)
+ 	throws IOException
+ {
+  try
+  {
+   ByteArrayOutputStream out = new ByteArrayOutputStream();
+   byte[] buffer = new byte[8192];
+   for (int read; 0 <= (read = in.read(buffer));)
+    out.write(buffer, 0, read);
+   return out.toByteArray();
+  }
+  finally
+  {
+   in.close();
+  }
+ }
+
+ private static final int REPEATS = 100;
+
+ private Manager db;
+ private VersionDAO versionDAO;
+}
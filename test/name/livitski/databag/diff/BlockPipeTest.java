@@ -0,0 +1,125 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.diff;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the hand-off of data between threads by {@link BlockPipe}.
+ */
+public class BlockPipeTest
+{
+ @Test
+ public void testTransfer()
+ 	throws Exception
+ {
+  final byte[] data = new byte[100000];
+  new Random(SEED).nextBytes(data);
+  final BlockPipe pipe = new BlockPipe(1000, 2);
+  Future<Object> writer = executor.submit(new Callable<Object>() {
+   public Object call() throws Exception
+   {
+    BlockPipe.Sink sink = pipe.getSink();
+    Random random = new Random(SEED);
+    for (int pos = 0; pos < data.length;)
+    {
+     int length = Math.min(random.nextInt(3000), data.length - pos);
+     if (1 == length)
+      sink.writeByte(data[pos]);
+     else
+      sink.write(data, pos, length);
+     pos += length;
+     if (0 == pos % 7)
+      sink.flush();
+    }
+    sink.close();
+    return null;
+   }
+  });
+  InputStream source = pipe.getSource();
+  ByteArrayOutputStream received = new ByteArrayOutputStream();
+  byte[] buf = new byte[777];
+  for (int read; 0 <= (read = source.read(buf));)
+   received.write(buf, 0, read);
+  assertEquals("read after the end", -1, source.read());
+  writer.get(TIMEOUT, TimeUnit.MILLISECONDS);
+  assertTrue("data received", Arrays.equals(data, received.toByteArray()));
+ }
+
+ @Test
+ public void testReaderClose()
+ 	throws Exception
+ {
+  final BlockPipe pipe = new BlockPipe(100, 2);
+  Future<Object> writer = executor.submit(new Callable<Object>() {
+   public Object call() throws Exception
+   {
+    byte[] buf = new byte[150];
+    for (;;)
+     pipe.getSink().write(buf, 0, buf.length);
+   }
+  });
+  InputStream source = pipe.getSource();
+  assertTrue("first byte", 0 <= source.read());
+  source.close();
+  try
+  {
+   writer.get(TIMEOUT, TimeUnit.MILLISECONDS);
+   fail("writer did not fail after the reader closed the pipe");
+  }
+  catch (ExecutionException expected)
+  {
+   assertTrue(String.valueOf(expected.getCause()), expected.getCause() instanceof IOException);
+  }
+ }
+
+ @Before
+ public void setUp()
+ {
+  executor = Executors.newSingleThreadExecutor();
+ }
+
+ @After
+ public void tearDown()
+ {
+  executor.shutdownNow();
+ }
+
+ private static final long SEED = 20161017L;
+ private static final long TIMEOUT = 10000L;
+
+ private ExecutorService executor;
+}
@@ -50,10 +50,7 @@ public class ByteInputStreamTest
   samples = new ByteArrayInputStream[SIZES.length];
   for (int i = 0; i < SIZES.length; i++)
   {
-   byte[] sample = new byte[SIZES[i]];
-   for (int j = 0; SIZES[i] > j; j++)
-    sample[j] = (byte)j;
-   samples[i] = new ByteArrayInputStream(sample);
+   samples[i] = new ByteArrayInputStream(sampleData(i));
   }
  }
 
@@ -64,14 +61,39 @@ public class ByteInputStreamTest
    sample.reset();
  }
 
+ /**
+  * Creates the source to be tested that reads a sample.
+  * Subclasses override this method to test other
+  * implementations of {@link RepeatableByteSource}. 
+  * @param index index of the sample in the {@link #SIZES} array
+  */
+ protected RepeatableByteSource newSource(int index)
+ 	throws IOException
+ {
+  ByteArrayInputStream sample = samples[index];
+  sample.reset();
+  return new ByteInputStream(sample, BUFFER_SIZE);
+ }
+
+ /**
+  * Returns the contents of a sample.
+  * @param index index of the sample in the {@link #SIZES} array
+  */
+ protected static byte[] sampleData(int index)
+ {
+  byte[] sample = new byte[SIZES[index]];
+  for (int j = 0; SIZES[index] > j; j++)
+   sample[j] = (byte)j;
+  return sample;
+ }
+
  @Test
  public void testReadByte()
  	throws IOException
  {
   for (int i = 0; i < samples.length; i++)
   {
-   ByteArrayInputStream sample = samples[i];
-   RepeatableByteSource source = new ByteInputStream(sample, BUFFER_SIZE);
+   RepeatableByteSource source = newSource(i);
    int expectedSize = SIZES[i];
    for (int pos = 0; pos < expectedSize; pos++)
    {
@@ -99,8 +121,7 @@ public class ByteInputStreamTest
   {
    if (20 < SIZES[i] || 0 == SIZES[i])
     continue;
-   ByteArrayInputStream sample = samples[i];
-   RepeatableByteSource source = new ByteInputStream(sample, BUFFER_SIZE);
+   RepeatableByteSource source = newSource(i);
    int pos = 0;
    do
    {
@@ -128,12 +149,10 @@ public class ByteInputStreamTest
 		new byte[2 * BUFFER_SIZE] };
   for (int i = 0; i < samples.length; i++)
   {
-   ByteArrayInputStream sample = samples[i];
    int expectedSize = SIZES[i];
    for (byte[] buffer : buffers)
    {
-    sample.reset();
-    RepeatableByteSource source = new ByteInputStream(sample, BUFFER_SIZE);
+    RepeatableByteSource source = newSource(i);
     Arrays.fill(buffer, (byte)-1);
     int read = source.read(buffer);
     if (0 == expectedSize)
@@ -171,8 +190,7 @@ public class ByteInputStreamTest
   {
    if (0 == SIZES[i])
     continue;
-   ByteArrayInputStream sample = samples[i];
-   RepeatableByteSource source = new ByteInputStream(sample, BUFFER_SIZE);
+   RepeatableByteSource source = newSource(i);
    int pos = SIZES[i] - 1;
    for (int skip = 0; pos > skip;)
    {
@@ -193,8 +211,7 @@ public class ByteInputStreamTest
  public void testMarkTooBig()
 	throws IOException
  {
-  ByteArrayInputStream sample = samples[0];
-  RepeatableByteSource source = new ByteInputStream(sample, BUFFER_SIZE);
+  RepeatableByteSource source = newSource(0);
   source.mark(BUFFER_SIZE);
  } 
 
@@ -204,8 +221,7 @@ public class ByteInputStreamTest
  {
   for (int i = 0; i < samples.length; i++)
   {
-   ByteArrayInputStream sample = samples[i];
-   RepeatableByteSource source = new ByteInputStream(sample, BUFFER_SIZE);
+   RepeatableByteSource source = newSource(i);
    source.mark(0);
    int pos = SIZES[i];
    if (BUFFER_SIZE - 2 < pos)
@@ -244,8 +260,7 @@ public class ByteInputStreamTest
  {
   for (int i = 0; i < samples.length; i++)
   {
-   ByteArrayInputStream sample = samples[i];
-   RepeatableByteSource source = new ByteInputStream(sample, BUFFER_SIZE);
+   RepeatableByteSource source = newSource(i);
    source.mark(0);
    for (int pos = 0; SIZES[i] > pos; pos++)
    {
@@ -0,0 +1,187 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.diff;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the storage of bytes by {@link ByteSpool}, in memory and
+ * in a temporary file.
+ */
+public class ByteSpoolTest
+{
+ @Test
+ public void testInMemory()
+ 	throws Exception
+ {
+  Set<File> before = spoolFiles();
+  spool = new ByteSpool(MEMORY_LIMIT);
+  byte[] data = fill(spool, MEMORY_LIMIT - 1);
+  assertFalse("spooled below the memory limit", spool.isSpooled());
+  assertEquals(data.length, spool.getSize());
+  assertTrue("memory size " + spool.getMemorySize(), MEMORY_LIMIT >= spool.getMemorySize());
+  assertEquals("new spool files", before, spoolFiles());
+  assertTrue("data read", Arrays.equals(data, readAll(spool, 777)));
+  spool.close();
+  spool = null;
+  assertEquals("spool files after close", before, spoolFiles());
+ }
+
+ @Test
+ public void testSpill()
+ 	throws Exception
+ {
+  Set<File> before = spoolFiles();
+  spool = new ByteSpool(MEMORY_LIMIT);
+  byte[] data = fill(spool, 5 * ByteSpool.BLOCK_SIZE + 123);
+  assertTrue("not spooled above the memory limit", spool.isSpooled());
+  assertEquals(data.length, spool.getSize());
+  assertEquals(ByteSpool.BLOCK_SIZE, spool.getMemorySize());
+  Set<File> created = spoolFiles();
+  created.removeAll(before);
+  assertEquals("new spool files " + created, 1, created.size());
+  // read sequentially with buffers that straddle block boundaries
+  assertTrue("data read", Arrays.equals(data, readAll(spool, 777)));
+  assertTrue("data read", Arrays.equals(data, readAll(spool, ByteSpool.BLOCK_SIZE + 1)));
+  // read at random positions in the file and in memory
+  Random random = new Random(SEED);
+  byte[] buf = new byte[1000];
+  for (int i = 0; 100 > i; i++)
+  {
+   int position = random.nextInt(data.length);
+   int read = spool.read(position, buf, 0, buf.length);
+   assertTrue("read " + read + " bytes at " + position, 0 < read && buf.length >= read);
+   for (int j = 0; read > j; j++)
+    assertEquals("byte at " + (position + j), data[position + j], buf[j]);
+  }
+  assertEquals("read at the end", -1, spool.read(data.length, buf, 0, buf.length));
+  spool.close();
+  spool = null;
+  for (File file : created)
+   assertFalse("spool file " + file + " exists after close", file.exists());
+ }
+
+ @Test
+ public void testDeleteOnError()
+ 	throws Exception
+ {
+  Set<File> before = spoolFiles();
+  spool = new ByteSpool(0L);
+  byte[] data = fill(spool, 3 * ByteSpool.BLOCK_SIZE);
+  assertTrue("not spooled with zero memory limit", spool.isSpooled());
+  Set<File> created = spoolFiles();
+  created.removeAll(before);
+  assertEquals("new spool files " + created, 1, created.size());
+  byte[] buf = new byte[10];
+  try
+  {
+   spool.append(buf, 5, 10);
+   fail("appended bytes beyond the end of a buffer");
+  }
+  catch (IndexOutOfBoundsException expected) {}
+  try
+  {
+   spool.read(-1L, buf, 0, buf.length);
+   fail("read bytes at a negative position");
+  }
+  catch (IndexOutOfBoundsException expected) {}
+  assertEquals("size after failed append", data.length, spool.getSize());
+  spool.close();
+  for (File file : created)
+   assertFalse("spool file " + file + " exists after close", file.exists());
+  // a closed spool rejects further use without creating files
+  try
+  {
+   spool.append(data, 0, data.length);
+   fail("appended to a closed spool");
+  }
+  catch (IOException expected) {}
+  try
+  {
+   spool.read(0L, buf, 0, buf.length);
+   fail("read from a closed spool");
+  }
+  catch (IOException expected) {}
+  spool.close();
+  spool = null;
+  assertEquals("spool files after close", before, spoolFiles());
+ }
+
+ @After
+ public void cleanup()
+ 	throws IOException
+ {
+  if (null != spool)
+   spool.close();
+ }
+
+ private byte[] fill(ByteSpool spool, long size)
+ 	throws IOException
+ {
+  byte[] data = new byte[(int)size];
+  Random random = new Random(SEED);
+  random.nextBytes(data);
+  for (int pos = 0; pos < data.length;)
+  {
+   int length = Math.min(random.nextInt(ByteSpool.BLOCK_SIZE / 3), data.length - pos);
+   assertEquals("append position", (long)pos, spool.append(data, pos, length));
+   pos += length;
+  }
+  return data;
+ }
+
+ private byte[] readAll(ByteSpool spool, int bufferSize)
+ 	throws IOException
+ {
+  ByteArrayOutputStream received = new ByteArrayOutputStream();
+  byte[] buf = new byte[bufferSize];
+  for (int read; 0 <= (read = spool.read(received.size(), buf, 0, buf.length));)
+   received.write(buf, 0, read);
+  return received.toByteArray();
+ }
+
+ private Set<File> spoolFiles()
+ {
+  File[] files = new File(System.getProperty("java.io.tmpdir")).listFiles(new FilenameFilter() {
+   public boolean accept(File dir, String name)
+   {
+    return name.startsWith(ByteSpool.FILE_PREFIX) && name.endsWith(".spool");
+   }
+  });
+  return new HashSet<File>(Arrays.asList(files));
+ }
+
+ private static final long MEMORY_LIMIT = 2L * ByteSpool.BLOCK_SIZE;
+ private static final long SEED = 20161017L;
+
+ private ByteSpool spool;
+}
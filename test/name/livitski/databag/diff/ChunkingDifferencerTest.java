@@ -0,0 +1,318 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.diff;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static name.livitski.databag.diff.Delta.Type.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link ChunkingDifferencer} by restoring each input
+ * from the other one with the deltas it produces.
+ */
+public class ChunkingDifferencerTest
+{
+ @After
+ public void cleanUp()
+ 	throws IOException
+ {
+  for (MappedByteSource source : opened)
+   source.close();
+  opened.clear();
+  for (File file : files)
+   file.delete();
+  files.clear();
+ }
+
+ @Test
+ public void testEmpty()
+ 	throws Exception
+ {
+  byte[] data = new byte[10000];
+  new Random(SEED).nextBytes(data);
+  DiffResult result = roundTrip(new byte[0], new byte[0]);
+  for (Delta.Type t : Delta.Type.values())
+   assertEquals(t + " fragment count", 0, result.getFragmentCount(t));
+  result = roundTrip(new byte[0], data);
+  assertEquals("forward data size", data.length, result.getDeltaDataSize(FORWARD));
+  result = roundTrip(data, new byte[0]);
+  assertEquals("reverse data size", data.length, result.getDeltaDataSize(REVERSE));
+ }
+
+ @Test
+ public void testIdentical()
+ 	throws Exception
+ {
+  for (int size : new int[] { 1, 100, 5000, 300000 })
+  {
+   byte[] data = new byte[size];
+   new Random(SEED + size).nextBytes(data);
+   DiffResult result = roundTrip(data, data);
+   assertEquals("common fragment count for size " + size, 1, result.getFragmentCount(COMMON));
+   assertEquals("forward data size for size " + size, 0L, result.getDeltaDataSize(FORWARD));
+   assertEquals("reverse data size for size " + size, 0L, result.getDeltaDataSize(REVERSE));
+  }
+ }
+
+ @Test
+ public void testDistantChanges()
+ 	throws Exception
+ {
+  Random random = new Random(SEED);
+  byte[] data1 = new byte[1 << 21];
+  random.nextBytes(data1);
+  ByteArrayOutputStream buf = new ByteArrayOutputStream(data1.length + 4096);
+  int inserted = 0;
+  for (int pos = 0; pos < data1.length;)
+  {
+   int next = pos + (data1.length >> 3);
+   if (next > data1.length)
+    next = data1.length;
+   // drop a few bytes and insert some new ones at each position
+   buf.write(data1, pos + 10, next - pos - 10);
+   byte[] insert = new byte[100];
+   random.nextBytes(insert);
+   buf.write(insert);
+   inserted += insert.length;
+   pos = next;
+  }
+  byte[] data2 = buf.toByteArray();
+  DiffResult result = roundTrip(data1, data2);
+  assertTrue("forward data size " + result.getDeltaDataSize(FORWARD) + " for "
+    + inserted + " inserted bytes", inserted * 4 > result.getDeltaDataSize(FORWARD));
+  assertTrue("reverse data size " + result.getDeltaDataSize(REVERSE),
+    (data1.length >> 6) > result.getDeltaDataSize(REVERSE));
+ }
+
+ @Test
+ public void testRepeatedContent()
+ 	throws Exception
+ {
+  byte[] data1 = new byte[500000];
+  byte[] data2 = new byte[600000];
+  Arrays.fill(data2, 250000, 350000, (byte)1);
+  DiffResult result = roundTrip(data1, data2);
+  assertTrue("forward data size " + result.getDeltaDataSize(FORWARD),
+    150000 > result.getDeltaDataSize(FORWARD));
+ }
+
+ @Test
+ public void testMovedBlocks()
+ 	throws Exception
+ {
+  byte[] data1 = new byte[1 << 20];
+  new Random(SEED).nextBytes(data1);
+  byte[] data2 = permute(data1, 0, 5, 2, 3, 4, 1, 7, 6);
+  DiffResult result = roundTrip(data1, data2, false);
+  long ordered = result.getDeltaDataSize(FORWARD);
+  result = roundTrip(data1, data2, true);
+  assertTrue("forward data size " + result.getDeltaDataSize(FORWARD) + " with moves, "
+    + ordered + " without", ordered > result.getDeltaDataSize(FORWARD) << 4);
+  assertTrue("reverse data size " + result.getDeltaDataSize(REVERSE),
+    (data1.length >> 4) > result.getDeltaDataSize(REVERSE));
+ }
+
+ @Test
+ public void testCumulativeMoves()
+ 	throws Exception
+ {
+  byte[][] data = new byte[3][];
+  data[0] = new byte[1 << 19];
+  new Random(SEED).nextBytes(data[0]);
+  data[1] = permute(data[0], 3, 1, 2, 0, 4, 5, 6, 7);
+  Arrays.fill(data[1], 100000, 100100, (byte)0);
+  data[2] = permute(data[1], 0, 1, 6, 3, 4, 5, 2, 7);
+  File[] files = new File[data.length];
+  for (int i = 0; i < data.length; i++)
+   files[i] = writeTempFile(data[i]);
+  ByteArrayOutputStream[][] deltas = new ByteArrayOutputStream[data.length - 1][];
+  for (int i = 0; i < deltas.length; i++)
+   deltas[i] = compare(files[i], files[i + 1], true, null);
+  // restore the last version from the first one
+  CumulativeDelta cumulative = new CumulativeDelta();
+  for (int i = deltas.length - 1; 0 <= i; i--)
+   cumulative.addPriorDelta(link(deltas[i], FORWARD));
+  assertTrue("moves in forward cumulative delta", cumulative.hasMoves());
+  assertTrue("restored last version", Arrays.equals(data[2], restore(files[0], cumulative)));
+  // restore the first version from the last one
+  cumulative = new CumulativeDelta();
+  for (int i = 0; i < deltas.length; i++)
+   cumulative.addPriorDelta(link(deltas[i], REVERSE));
+  assertTrue("restored first version", Arrays.equals(data[0], restore(files[2], cumulative)));
+ }
+
+ @Test
+ public void testCumulativeSpilled()
+ 	throws Exception
+ {
+  byte[][] data = new byte[3][];
+  data[0] = new byte[1 << 19];
+  new Random(SEED).nextBytes(data[0]);
+  data[1] = data[0].clone();
+  for (int at = 1000; data[1].length > at; at += 50000)
+   Arrays.fill(data[1], at, at + 3000, (byte)at);
+  data[2] = permute(data[1], 3, 1, 2, 0, 4, 5, 6, 7);
+  File[] files = new File[data.length];
+  for (int i = 0; i < data.length; i++)
+   files[i] = writeTempFile(data[i]);
+  ByteArrayOutputStream[][] deltas = new ByteArrayOutputStream[data.length - 1][];
+  for (int i = 0; i < deltas.length; i++)
+   deltas[i] = compare(files[i], files[i + 1], true, null);
+  CumulativeDelta cumulative = new CumulativeDelta(0L);
+  try
+  {
+   for (int i = deltas.length - 1; 0 <= i; i--)
+    cumulative.addPriorDelta(link(deltas[i], FORWARD));
+   assertTrue("forward delta spilled", cumulative.isSpilled());
+   assertTrue("restored last version", Arrays.equals(data[2], restore(files[0], cumulative)));
+  }
+  finally
+  {
+   cumulative.close();
+  }
+  cumulative = new CumulativeDelta(0L);
+  try
+  {
+   for (int i = 0; i < deltas.length; i++)
+    cumulative.addPriorDelta(link(deltas[i], REVERSE));
+   assertTrue("reverse delta spilled", cumulative.isSpilled());
+   assertTrue("restored first version", Arrays.equals(data[0], restore(files[2], cumulative)));
+  }
+  finally
+  {
+   cumulative.close();
+  }
+ }
+
+ private DiffResult roundTrip(byte[] data1, byte[] data2)
+ 	throws Exception
+ {
+  return roundTrip(data1, data2, false);
+ }
+
+ private DiffResult roundTrip(byte[] data1, byte[] data2, boolean moves)
+ 	throws Exception
+ {
+  File file1 = writeTempFile(data1);
+  File file2 = writeTempFile(data2);
+  DiffResult[] result = new DiffResult[1];
+  ByteArrayOutputStream[] deltas = compare(file1, file2, moves, result);
+  assertTrue("restored second input",
+    Arrays.equals(data2, restore(file1, link(deltas, FORWARD))));
+  assertTrue("restored first input",
+    Arrays.equals(data1, restore(file2, link(deltas, REVERSE))));
+  return result[0];
+ }
+
+ private ByteArrayOutputStream[] compare(File file1, File file2, boolean moves, DiffResult[] result)
+ 	throws Exception
+ {
+  ByteArrayOutputStream[] deltas = new ByteArrayOutputStream[Delta.Type.values().length];
+  ChunkingDifferencer diff = new ChunkingDifferencer();
+  diff.setChunkSizes(256, 1024, 8192);
+  diff.setMovesEnabled(moves);
+  for (Delta.Type t : Delta.Type.values())
+  {
+   deltas[t.ordinal()] = new ByteArrayOutputStream();
+   diff.setDelta(t, new ByteOutputStream(deltas[t.ordinal()]));
+  }
+  diff.setInput1(open(file1));
+  diff.setInput2(open(file2));
+  DiffResult status = diff.compare();
+  assertFalse("comparison aborted", status.isAborted());
+  if (null != result)
+   result[0] = status;
+  return deltas;
+ }
+
+ private static DeltaLink link(ByteArrayOutputStream[] deltas, Delta.Type direction)
+ 	throws Exception
+ {
+  return DeltaLink.read(
+    new ByteInputStream(new ByteArrayInputStream(deltas[COMMON.ordinal()].toByteArray())),
+    new ByteInputStream(new ByteArrayInputStream(deltas[direction.ordinal()].toByteArray())));
+ }
+
+ private byte[] restore(File source, EffectiveDelta delta)
+ 	throws Exception
+ {
+  Restorer worker = new Restorer();
+  worker.setDelta(delta);
+  worker.setSource(open(source));
+  ByteArrayOutputStream out = new ByteArrayOutputStream();
+  worker.restore(new ByteOutputStream(out));
+  return out.toByteArray();
+ }
+
+ /**
+  * Splits the data into equal blocks and concatenates them
+  * in the argument order.
+  */
+ private static byte[] permute(byte[] data, int... order)
+ {
+  int size = data.length / order.length;
+  byte[] result = new byte[size * order.length];
+  for (int i = 0; i < order.length; i++)
+   System.arraycopy(data, order[i] * size, result, i * size, size);
+  return result;
+ }
+
+ private MappedByteSource open(File file)
+ 	throws IOException
+ {
+  MappedByteSource source = MappedByteSource.open(file, Differencer.BUFFER_SIZE);
+  opened.add(source);
+  return source;
+ }
+
+ private File writeTempFile(byte[] data)
+ 	throws IOException
+ {
+  File file = File.createTempFile("sample", ".bin");
+  files.add(file);
+  FileOutputStream out = new FileOutputStream(file);
+  try
+  {
+   out.write(data);
+  }
+  finally
+  {
+   out.close();
+  }
+  return file;
+ }
+
+ private static final long SEED = 20161017L;
+
+ private List<MappedByteSource> opened = new ArrayList<MappedByteSource>();
+ private List<File> files = new ArrayList<File>();
+}
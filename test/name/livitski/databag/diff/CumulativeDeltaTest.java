@@ -32,16 +32,19 @@ public class CumulativeDeltaTest
  @Test
  public void testEstimatedCommonFragmentSize()
  {
-  final int count = 10000;
-  for (int pass = 1; 5 >= pass; pass++)
+  final int count = 1 << 20;
+  for (int pass = 1; 3 >= pass; pass++)
   {
+   setUp();
    System.gc();
    long before = rt.totalMemory() - rt.freeMemory();
+   long estimatedBefore = delta.getEstimatedSize();
    for (int i = 0; count > i; i++)
-    delta.common.add(new CumulativeDelta.CommonFragment(0L, 0L, 0L, null));
+    delta.common.add(0L, 0L, 0L);
    System.gc();
    long after = rt.totalMemory() - rt.freeMemory();
-   Assert.assertEquals("Estimated common fragment size", CumulativeDelta.COMMON_INSTANCE_SIZE_ESTIMATE,
+   Assert.assertEquals("Estimated common fragment size",
+     (delta.getEstimatedSize() - estimatedBefore)/(float)count,
      (after - before)/(float)count, 13F);
   }
  }
@@ -49,17 +52,19 @@ public class CumulativeDeltaTest
  @Test
  public void testEstimatedDirectionalFragmentSize()
  {
-  final int count = 10000;
-  for (int pass = 1; 5 >= pass; pass++)
+  final int count = 1 << 20;
+  for (int pass = 1; 3 >= pass; pass++)
   {
+   setUp();
    System.gc();
    long before = rt.totalMemory() - rt.freeMemory();
+   long estimatedBefore = delta.getEstimatedSize();
    for (int i = 0; count > i; i++)
-    delta.forward.add(new CumulativeDelta.DirectionalFragment(0, new byte[2]));
+    delta.forward.add(0L, 0L, 2);
    System.gc();
    long after = rt.totalMemory() - rt.freeMemory();
    Assert.assertEquals("Estimated forward fragment size",
-     CumulativeDelta.DIRECTIONAL_INSTANCE_SIZE_ESTIMATE,
+     (delta.getEstimatedSize() - estimatedBefore)/(float)count,
      (after - before)/(float)count, 23F);
   }
  }
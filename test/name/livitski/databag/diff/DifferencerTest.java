@@ -231,6 +231,82 @@ public class DifferencerTest
   }
  }
 
+ @Test
+ public void testMatchAcrossRegions()
+ 	throws Exception
+ {
+  byte[] data = sequence(100);
+  int[][] bufferSizes = { { 11, 11 }, { 11, 17 }, { 16, 9 }, { 200, 13 } };
+  for (int[] sizes : bufferSizes)
+  {
+   String legend = "buffers " + sizes[0] + " and " + sizes[1];
+   assertEquals("Match length with " + legend, data.length,
+     match(data, sizes[0], data.clone(), sizes[1], Long.MAX_VALUE));
+   assertEquals("Limited match length with " + legend, 50L,
+     match(data, sizes[0], data.clone(), sizes[1], 50L));
+   for (int at : new int[] { 10, 16, 17, 33, 99 })
+   {
+    byte[] other = data.clone();
+    other[at] ^= 0x55;
+    assertEquals("Mismatch at " + at + " with " + legend, at,
+      match(data, sizes[0], other, sizes[1], Long.MAX_VALUE));
+   }
+  }
+ }
+
+ @Test
+ public void testMismatchOffsets()
+ 	throws Exception
+ {
+  byte[] data = sequence(40);
+  for (int at : new int[] { 0, 7, 8, 15, 16, data.length - 1 })
+  {
+   byte[] other = data.clone();
+   other[at] ^= 0x55;
+   assertEquals("Mismatch at " + at, at,
+     match(data, 100, other, 100, Long.MAX_VALUE));
+   assertEquals("Limited mismatch at " + at, at,
+     match(data, 100, other, 100, at + 1));
+  }
+  // a mismatch in the last byte of a region that is not the last one
+  ByteInputStream probe = new ByteInputStream(new ByteArrayInputStream(data), 13);
+  int end = probe.getAvailableRegion().remaining() - 1;
+  assertTrue("Region ends before the data: " + end, end + 1 < data.length);
+  byte[] other = data.clone();
+  other[end] ^= 0x55;
+  assertEquals("Mismatch at the end of a region", end,
+    match(data, 13, other, 13, Long.MAX_VALUE));
+ }
+
+ /**
+  * Matches two arrays read through ring buffers of given sizes
+  * and makes sure that neither source advances past the match.
+  */
+ private long match(byte[] data1, int bufferSize1, byte[] data2, int bufferSize2, long limit)
+ 	throws IOException
+ {
+  ByteInputStream s1 = new ByteInputStream(new ByteArrayInputStream(data1), bufferSize1);
+  ByteInputStream s2 = new ByteInputStream(new ByteArrayInputStream(data2), bufferSize2);
+  s1.mark(0);
+  s2.mark(0);
+  long count = Differencer.match(s1, s2, limit);
+  if (count < data1.length)
+   assertEquals("Next byte of the first source", data1[(int)count], s1.readByte());
+  else
+   assertFalse("First source advanced past its data", s1.hasData());
+  if (count < data2.length)
+   assertEquals("Next byte of the second source", data2[(int)count], s2.readByte());
+  return count;
+ }
+
+ private byte[] sequence(int length)
+ {
+  byte[] data = new byte[length];
+  for (int i = 0; i < length; i++)
+   data[i] = (byte)(i * 7 + 3);
+  return data;
+ }
+
  private byte[] fragment(long foffset, byte[] buf)
  	throws OffsetLengthDecodeException, IOException
  {
@@ -0,0 +1,214 @@
+/**
+ *  Copyright 2016 Stan Livitski
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the Data-bag Project License.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  Data-bag Project License for more details.
+ *
+ *  You should find a copy of the Data-bag Project License in the
+ *  `data-bag.md` file in the `LICENSE` directory
+ *  of this package or repository.  If not, see
+ *  <http://www.livitski.name/projects/data-bag/license>. If you have any
+ *  questions or concerns, contact the project's maintainers at
+ *  <http://www.livitski.name/contact>. 
+ */
+    
+package name.livitski.databag.diff;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link MappedByteSource} implementation of
+ * {@link RepeatableByteSource}. Runs all tests of
+ * {@link ByteInputStream} with samples stored in temporary
+ * files. The window size is kept small to make sure that
+ * the files are remapped as they are read.
+ */
+public class MappedByteSourceTest extends ByteInputStreamTest
+{
+ static final int WINDOW_SIZE = BUFFER_SIZE + 2;
+
+ private static File[] files;
+
+ private List<RandomAccessFile> opened = new ArrayList<RandomAccessFile>();
+
+ @BeforeClass
+ public static void setUpFiles()
+ 	throws IOException
+ {
+  files = new File[SIZES.length];
+  for (int i = 0; i < SIZES.length; i++)
+   files[i] = writeTempFile(sampleData(i));
+ }
+
+ @AfterClass
+ public static void tearDownFiles()
+ {
+  if (null != files)
+   for (File file : files)
+    if (null != file)
+     file.delete();
+ }
+
+ @After
+ public void closeFiles()
+ 	throws IOException
+ {
+  for (RandomAccessFile file : opened)
+   file.close();
+  opened.clear();
+ }
+
+ @Override
+ protected RepeatableByteSource newSource(int index)
+ 	throws IOException
+ {
+  return newSource(files[index], BUFFER_SIZE, WINDOW_SIZE);
+ }
+
+ @Test
+ public void testDigest()
+ 	throws Exception
+ {
+  int index = SIZES.length - 1;
+  byte[] expected = MessageDigest.getInstance("SHA-256").digest(sampleData(index));
+  for (int read = 0; SIZES[index] >= read; read += 7)
+  {
+   MappedByteSource source = newSource(files[index], BUFFER_SIZE, WINDOW_SIZE);
+   MessageDigest digest = MessageDigest.getInstance("SHA-256");
+   source.setDigest(digest);
+   for (int pos = 0; pos < read; pos++)
+   {
+    byte val = source.readByte();
+    if (0 == pos % 5)
+    {
+     source.pushback(val);
+     assertEquals("byte read after pushback at position " + pos, val, source.readByte());
+    }
+   }
+   source.finishDigest();
+   assertTrue("digest after reading " + read + " byte(s)",
+     Arrays.equals(expected, digest.digest()));
+   if (SIZES[index] > read)
+    assertEquals("byte read after digest at position " + read, (byte)read, source.readByte());
+   source.close();
+  }
+ }
+
+ @Test
+ public void testSameDeltas()
+ 	throws Exception
+ {
+  Random random = new Random(20161016L);
+  byte[] data1 = new byte[4000];
+  random.nextBytes(data1);
+  byte[] data2 = new byte[4500];
+  random.nextBytes(data2);
+  System.arraycopy(data1, 300, data2, 100, 1000);
+  System.arraycopy(data1, 2000, data2, 2200, 1500);
+  File file2 = writeTempFile(data2);
+  try
+  {
+   for (int bufferSize : new int[] { 64, 1024, 8192 })
+   {
+    ByteArrayOutputStream[] expected = compare(new ByteInputStream(
+      new ByteArrayInputStream(data1), bufferSize),
+      new ByteInputStream(new ByteArrayInputStream(data2), bufferSize));
+    ByteArrayOutputStream[] actual = compare(new ByteInputStream(
+      new ByteArrayInputStream(data1), bufferSize),
+      newSource(file2, bufferSize, bufferSize + 100));
+    for (Delta.Type t : Delta.Type.values())
+     assertTrue(t + " delta with buffer size " + bufferSize,
+       Arrays.equals(expected[t.ordinal()].toByteArray(), actual[t.ordinal()].toByteArray()));
+   }
+  }
+  finally
+  {
+   file2.delete();
+  }
+ }
+
+ @Test
+ public void testReadAfterClose()
+ 	throws Exception
+ {
+  MappedByteSource source = MappedByteSource.open(files[SIZES.length - 1], BUFFER_SIZE);
+  source.readByte();
+  source.close();
+  try
+  {
+   source.readByte();
+   fail("read a byte from a closed source");
+  }
+  catch (IOException expected) {}
+  try
+  {
+   source.read(new byte[3]);
+   fail("read bytes from a closed source");
+  }
+  catch (IOException expected) {}
+ }
+
+ protected MappedByteSource newSource(File file, int bufferSize, int windowSize)
+ 	throws IOException
+ {
+  RandomAccessFile in = new RandomAccessFile(file, "r");
+  opened.add(in);
+  return new MappedByteSource(in.getChannel(), bufferSize, windowSize);
+ }
+
+ private static ByteArrayOutputStream[] compare(RepeatableByteSource in1, RepeatableByteSource in2)
+ 	throws Exception
+ {
+  ByteArrayOutputStream[] deltas = new ByteArrayOutputStream[Delta.Type.values().length];
+  Differencer diff = new Differencer();
+  for (Delta.Type t : Delta.Type.values())
+  {
+   deltas[t.ordinal()] = new ByteArrayOutputStream();
+   diff.setDelta(t, new ByteOutputStream(deltas[t.ordinal()]));
+  }
+  diff.setInput1(in1);
+  diff.setInput2(in2);
+  DiffResult result = diff.compare();
+  assertFalse("comparison aborted", result.isAborted());
+  return deltas;
+ }
+
+ private static File writeTempFile(byte[] data)
+ 	throws IOException
+ {
+  File file = File.createTempFile("sample", ".bin");
+  file.deleteOnExit();
+  FileOutputStream out = new FileOutputStream(file);
+  try
+  {
+   out.write(data);
+  }
+  finally
+  {
+   out.close();
+  }
+  return file;
+ }
+}